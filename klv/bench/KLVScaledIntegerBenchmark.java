@@ -0,0 +1,173 @@
+import java.util.*;
+
+
+/**
+ * <p>Measures {@link KLVScaledInteger} against the straightforward way of
+ * decoding a scaled value: reading it with the <tt>KLV.get...</tt> methods
+ * and working out the scale factor each time.</p>
+ *
+ * <p>Each benchmark decodes or encodes a batch of values and returns
+ * something that depends on all of them, so that the work cannot be
+ * optimized away. Every benchmark is run for a few warmup rounds and then
+ * timed for a few measured rounds, reporting nanoseconds per value.</p>
+ *
+ * <pre>
+ * java -cp build/classes:build/bench KLVScaledIntegerBenchmark [values] [rounds]
+ * </pre>
+ *
+ * <p>This code is released into the Public Domain. Enjoy.</p>
+ *
+ * @author Robert Harder
+ * @author rharder@users.sourceforge.net
+ * @version 0.3.1
+ */
+public class KLVScaledIntegerBenchmark {
+
+    private final static int WARMUP_ROUNDS = 5;
+
+    private final int count;
+    private final KLVScaledInteger imapb = KLVScaledInteger.imapb( -900, 19000, 3 );
+    private final KLVScaledInteger signed = KLVScaledInteger.signed( -90, 90, 4 );
+    private final KLVScaledInteger[] table;
+    private final double[] values;
+    private final double[] decoded;
+    private final byte[] imapbBytes;
+    private final byte[] signedBytes;
+    private final byte[] tableBytes;
+    private final int[] tableOffsets;
+
+
+    /**
+     * A single benchmark.
+     */
+    private static interface Benchmark {
+        public abstract double run();
+    }   // end interface Benchmark
+
+
+
+    private KLVScaledIntegerBenchmark( int count ){
+        this.count = count;
+        Random random = new Random( 1 );
+        this.values = new double[ count ];
+        this.decoded = new double[ count ];
+        for( int i = 0; i < count; i++ ){
+            this.values[i] = -90 + random.nextDouble() * 180;
+        }   // end for: each value
+
+        this.imapbBytes = new byte[ count * 3 ];
+        this.imapb.encode( this.values, 0, this.imapbBytes, 0, count );
+        this.signedBytes = new byte[ count * 4 ];
+        this.signed.encode( this.values, 0, this.signedBytes, 0, count );
+
+        // One codec per value, cycling through a few of the ST 0601 ranges
+        KLVScaledInteger[] kinds = new KLVScaledInteger[]{
+            this.signed, KLVScaledInteger.signed( -180, 180, 4 ),
+            KLVScaledInteger.unsigned( 0, 360, 2 ), this.imapb };
+        this.table = new KLVScaledInteger[ count ];
+        this.tableOffsets = new int[ count ];
+        int size = 0;
+        for( int i = 0; i < count; i++ ){
+            this.table[i] = kinds[ i % kinds.length ];
+            this.tableOffsets[i] = size;
+            size += this.table[i].getLength();
+        }   // end for: each value
+        this.tableBytes = new byte[ size ];
+        for( int i = 0; i < count; i++ ){
+            this.table[i].encode( this.values[i], this.tableBytes, this.tableOffsets[i] );
+        }   // end for: each value
+    }
+
+
+    private double sum( double[] array ){
+        double sum = 0;
+        for( double d : array ){
+            sum += d;
+        }   // end for: each value
+        return sum;
+    }
+
+
+    /** Signed values decoded one at a time, working out the scale each time. */
+    private double naiveSigned(){
+        for( int i = 0; i < this.count; i++ ){
+            int raw = KLV.get32bitInt( this.signedBytes, i * 4 );
+            this.decoded[i] = raw == Integer.MIN_VALUE ? Double.NaN : raw * (180.0 / (Math.pow( 2, 32 ) - 2));
+        }   // end for: each value
+        return sum( this.decoded );
+    }
+
+
+    /** Signed values decoded one at a time with a codec. */
+    private double singleSigned(){
+        for( int i = 0; i < this.count; i++ ){
+            this.decoded[i] = this.signed.decode( this.signedBytes, i * 4 );
+        }   // end for: each value
+        return sum( this.decoded );
+    }
+
+
+    /** Signed values decoded as a batch. */
+    private double batchSigned(){
+        this.signed.decode( this.signedBytes, 0, this.decoded, 0, this.count );
+        return sum( this.decoded );
+    }
+
+
+    /** IMAPB values decoded as a batch. */
+    private double batchImapb(){
+        this.imapb.decode( this.imapbBytes, 0, this.decoded, 0, this.count );
+        return sum( this.decoded );
+    }
+
+
+    /** Values with mixed ranges decoded from a table of codecs. */
+    private double table(){
+        KLVScaledInteger.decode( this.table, this.tableBytes, this.tableOffsets, this.decoded, this.count );
+        return sum( this.decoded );
+    }
+
+
+    /** IMAPB values encoded as a batch. */
+    private double encodeImapb(){
+        this.imapb.encode( this.values, 0, this.imapbBytes, 0, this.count );
+        return this.imapbBytes[ this.count ];
+    }
+
+
+
+    private void measure( String name, Benchmark bench, int rounds ){
+        double sink = 0;
+        for( int i = 0; i < WARMUP_ROUNDS; i++ ){
+            sink += bench.run();
+        }   // end for: warmup
+        long best = Long.MAX_VALUE;
+        long total = 0;
+        for( int i = 0; i < rounds; i++ ){
+            long start = System.nanoTime();
+            sink += bench.run();
+            long elapsed = System.nanoTime() - start;
+            best = Math.min( best, elapsed );
+            total += elapsed;
+        }   // end for: each round
+        System.out.println( String.format( "%-14s %8.2f ns/value (best %6.2f)   [%s]",
+                name, (double)total / rounds / this.count, (double)best / this.count, sink != 0 ) );
+    }
+
+
+
+    public static void main( String[] args ){
+        int count = args.length > 0 ? Integer.parseInt( args[0] ) : 1000000;
+        int rounds = args.length > 1 ? Integer.parseInt( args[1] ) : 20;
+        final KLVScaledIntegerBenchmark b = new KLVScaledIntegerBenchmark( count );
+
+        b.measure( "naiveSigned", new Benchmark(){ public double run(){ return b.naiveSigned(); } }, rounds );
+        b.measure( "singleSigned", new Benchmark(){ public double run(){ return b.singleSigned(); } }, rounds );
+        b.measure( "batchSigned", new Benchmark(){ public double run(){ return b.batchSigned(); } }, rounds );
+        b.measure( "batchImapb", new Benchmark(){ public double run(){ return b.batchImapb(); } }, rounds );
+        b.measure( "table", new Benchmark(){ public double run(){ return b.table(); } }, rounds );
+        b.measure( "encodeImapb", new Benchmark(){ public double run(){ return b.encodeImapb(); } }, rounds );
+    }   // end main
+
+
+}   // end class KLVScaledIntegerBenchmark
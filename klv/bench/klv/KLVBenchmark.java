@@ -0,0 +1,283 @@
+package klv;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+
+/**
+ * <p>JMH benchmarks of the everyday <code>KLV</code> operations for every
+ * combination of {@link KLV.KeyLength} and {@link KLV.LengthEncoding},
+ * so that the cost of the copying paths, and what a change did to it,
+ * can be shown rather than guessed at. Run them with <tt>ant bench</tt>,
+ * or after <tt>ant compile-bench</tt>:</p>
+ *
+ * <pre>
+ * java -cp build/bench:lib/* org.openjdk.jmh.Main -prof gc [regexp]
+ * </pre>
+ *
+ * <p>JMH will not generate code for a class in the default package, so this
+ * one is in package <tt>klv</tt>, and <tt>compile-bench</tt> compiles it with
+ * a copy of the sources put in that package.</p>
+ *
+ * <p>Two kinds of data are used. A <em>local set</em> is a sixteen-byte
+ * Universal Label and BER length, like a MISB ST 0601 UAS Local Set, whose
+ * value holds 40 tags with the sizes of the ST 0601 tags, written with the
+ * key length and length encoding being measured. A <em>1 MB payload</em>
+ * is a single set with a 1,048,576-byte value, measured only with the
+ * four-byte and BER length encodings, since the others cannot hold it.</p>
+ *
+ * <ul>
+ *  <li><tt>parse</tt> &mdash; {@link KLV#bytesToList} of the 40 tags,
+ *      or the KLV constructor for the payload</li>
+ *  <li><tt>parsePooled</tt> &mdash; the same, filling sets from a {@link KLVPool},
+ *      or resetting one set for the payload</li>
+ *  <li><tt>parseTagMap</tt> &mdash; {@link KLVTagMap#reset} of the 40 tags,
+ *      which copies nothing, for the key lengths it handles</li>
+ *  <li><tt>build</tt> &mdash; a new set with 40 tags added, or the payload copied in</li>
+ *  <li><tt>toBytes</tt> &mdash; {@link KLV#toBytes} of a built set</li>
+ *  <li><tt>getSubKLVMap</tt> &mdash; {@link KLV#getSubKLVMap(KLV.KeyLength,KLV.LengthEncoding)}
+ *      of a built local set</li>
+ *  <li><tt>readKLV</tt> &mdash; {@link KLV#readKLV} of the 40 tags, or the payload,
+ *      from a buffered stream</li>
+ * </ul>
+ *
+ * <p>Each benchmark is run in throughput mode, for operations per
+ * microsecond, and in sample time mode, for the latency percentiles.
+ * The <tt>gc</tt> profiler, which <tt>ant bench</tt> turns on, adds the
+ * bytes allocated per operation as <tt>gc.alloc.rate.norm</tt>.</p>
+ *
+ * <p>This code is released into the Public Domain. Enjoy.</p>
+ *
+ * @author Robert Harder
+ * @author rharder@users.sourceforge.net
+ * @version 0.3.1
+ */
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit( TimeUnit.MICROSECONDS )
+@Warmup( iterations = 3, time = 1 )
+@Measurement( iterations = 5, time = 1 )
+@Fork( 1 )
+public class KLVBenchmark {
+
+    private final static byte[] UAS_KEY = new byte[]{
+        0x06, 0x0E, 0x2B, 0x34, 0x02, 0x0B, 0x01, 0x01,
+        0x0E, 0x01, 0x03, 0x01, 0x01, 0x00, 0x00, 0x00 };
+
+    /** Value sizes of the first 40 tags of the ST 0601 UAS Local Set. */
+    private final static int[] TAG_SIZES = new int[]{
+        8, 2, 12, 16, 2, 2, 2, 1, 2, 4,  4, 4, 4, 2, 4, 2, 2, 2, 2, 4,
+        4, 4, 4, 4, 4, 4, 2, 2, 2, 20,   1, 1, 2, 1, 1, 2, 2, 4, 4, 2 };
+
+    private final static int PAYLOAD_SIZE = 1 << 20;
+
+
+
+    /**
+     * A local set of 40 tags written with each key length and
+     * length encoding.
+     */
+    @State( Scope.Thread )
+    public static class LocalSet {
+
+        @Param
+        public KLV.KeyLength keyLength;
+
+        @Param
+        public KLV.LengthEncoding lengthEncoding;
+
+        byte[][] values;
+        KLV set;
+        byte[] payload;
+        final KLVPool pool = new KLVPool();
+        final List<KLV> list = new ArrayList<KLV>();
+
+        @Setup
+        public void setup(){
+            Random random = new Random( 1 );
+            this.values = new byte[ TAG_SIZES.length ][];
+            for( int i = 0; i < this.values.length; i++ ){
+                this.values[i] = new byte[ TAG_SIZES[i] ];
+                random.nextBytes( this.values[i] );
+            }   // end for: each tag
+            this.set = makeLocalSet( this.keyLength, this.lengthEncoding, this.values );
+            this.payload = this.set.getValue();
+        }
+
+    }   // end static inner class LocalSet
+
+
+
+    /**
+     * The same local set, for the key lengths that {@link KLVTagMap} handles.
+     */
+    @State( Scope.Thread )
+    public static class ShortKeyLocalSet {
+
+        @Param({ "OneByte", "TwoBytes", "FourBytes" })
+        public KLV.KeyLength keyLength;
+
+        @Param
+        public KLV.LengthEncoding lengthEncoding;
+
+        byte[] payload;
+        final KLVTagMap map = new KLVTagMap();
+
+        @Setup
+        public void setup(){
+            LocalSet s = new LocalSet();
+            s.keyLength = this.keyLength;
+            s.lengthEncoding = this.lengthEncoding;
+            s.setup();
+            this.payload = s.payload;
+        }
+
+    }   // end static inner class ShortKeyLocalSet
+
+
+
+    /**
+     * A single set with a 1 MB value, for the length
+     * encodings that can hold it.
+     */
+    @State( Scope.Thread )
+    public static class Payload {
+
+        @Param
+        public KLV.KeyLength keyLength;
+
+        @Param({ "FourBytes", "BER" })
+        public KLV.LengthEncoding lengthEncoding;
+
+        byte[] value;
+        KLV set;
+        byte[] bytes;
+        final KLV reused = new KLV();
+
+        @Setup
+        public void setup(){
+            this.value = new byte[ PAYLOAD_SIZE ];
+            new Random( 2 ).nextBytes( this.value );
+            this.set = makePayload( this.keyLength, this.lengthEncoding, this.value );
+            this.bytes = this.set.toBytes();
+        }
+
+    }   // end static inner class Payload
+
+
+
+    /** Returns the 40 tags of a local set written with the given key length and length encoding. */
+    private static KLV makeLocalSet( KLV.KeyLength keyLength, KLV.LengthEncoding lengthEncoding, byte[][] values ){
+        KLV set = new KLV();
+        set.setKey( UAS_KEY );
+        for( int i = 0; i < values.length; i++ ){
+            if( keyLength == KLV.KeyLength.SixteenBytes ){
+                set.addSubKLV( new KLV().setKey( i + 1, keyLength ).setLengthEncoding( lengthEncoding ).setValue( values[i] ) );
+            } else {
+                set.addSubKLV( i + 1, keyLength, lengthEncoding, values[i] );
+            }   // end else: short key
+        }   // end for: each tag
+        return set;
+    }
+
+
+    /** Returns a set with a single large value. */
+    private static KLV makePayload( KLV.KeyLength keyLength, KLV.LengthEncoding lengthEncoding, byte[] value ){
+        return new KLV().setKey( 0x0F, keyLength ).setLengthEncoding( lengthEncoding ).setValue( value );
+    }
+
+
+
+/* ********  L O C A L   S E T  ******** */
+
+
+    @Benchmark
+    public int parse( LocalSet s ) throws Exception {
+        return KLV.bytesToList( s.payload, 0, s.payload.length, s.keyLength, s.lengthEncoding ).size();
+    }
+
+
+    @Benchmark
+    public int parsePooled( LocalSet s ) throws Exception {
+        KLV.bytesToList( s.payload, 0, s.payload.length, s.keyLength, s.lengthEncoding, s.list, s.pool );
+        int n = s.list.size();
+        s.pool.release( s.list );
+        s.list.clear();
+        return n;
+    }
+
+
+    @Benchmark
+    public int parseTagMap( ShortKeyLocalSet s ){
+        return s.map.reset( s.payload, 0, s.payload.length, s.keyLength, s.lengthEncoding ).size();
+    }
+
+
+    @Benchmark
+    public int build( LocalSet s ){
+        return makeLocalSet( s.keyLength, s.lengthEncoding, s.values ).getLength();
+    }
+
+
+    @Benchmark
+    public byte[] toBytes( LocalSet s ){
+        return s.set.toBytes();
+    }
+
+
+    @Benchmark
+    public Map<Integer,KLV> getSubKLVMap( LocalSet s ) throws Exception {
+        return s.set.getSubKLVMap( s.keyLength, s.lengthEncoding );
+    }
+
+
+    @Benchmark
+    public long readKLV( LocalSet s ) throws IOException {
+        InputStream in = new BufferedInputStream( new ByteArrayInputStream( s.payload ) );
+        long n = 0;
+        KLV klv;
+        while( (klv = KLV.readKLV( in, s.keyLength, s.lengthEncoding )) != null ){
+            n += klv.getLength();
+        }   // end while: each tag
+        return n;
+    }
+
+
+
+/* ********  P A Y L O A D  ******** */
+
+
+    @Benchmark
+    public KLV parsePayload( Payload s ){
+        return new KLV( s.bytes, 0, s.keyLength, s.lengthEncoding );
+    }
+
+
+    @Benchmark
+    public int parsePayloadPooled( Payload s ){
+        return s.reused.reset( s.bytes, 0, s.keyLength, s.lengthEncoding ).getLength();
+    }
+
+
+    @Benchmark
+    public KLV buildPayload( Payload s ){
+        return makePayload( s.keyLength, s.lengthEncoding, s.value );
+    }
+
+
+    @Benchmark
+    public byte[] toBytesPayload( Payload s ){
+        return s.set.toBytes();
+    }
+
+
+    @Benchmark
+    public KLV readKLVPayload( Payload s ) throws IOException {
+        InputStream in = new BufferedInputStream( new ByteArrayInputStream( s.bytes ) );
+        return KLV.readKLV( in, s.keyLength, s.lengthEncoding );
+    }
+
+
+}   // end class KLVBenchmark
@@ -169,6 +169,28 @@ public class KLV {
     public final static String DEFAULT_CHARSET_NAME = "UTF-8";
 
 
+    /**
+     * Scratch space for writing headers, one for each thread
+     * so that {@link #writeTo} allocates nothing.
+     */
+    private final static ThreadLocal<Scratch> SCRATCH = new ThreadLocal<Scratch>(){
+        @Override
+        protected Scratch initialValue(){
+            return new Scratch();
+        }
+    };
+
+    /** Room for a sixteen-byte key and a five-byte BER length field. */
+    private final static class Scratch {
+        private final byte[] header = new byte[ 16 + 5 ];
+        private final java.nio.ByteBuffer[] srcs = new java.nio.ByteBuffer[]{ java.nio.ByteBuffer.wrap( header ), null };
+    }   // end class Scratch
+
+
+    /** The value of a cleared set, shared since nothing can be written to it. */
+    private final static byte[] NO_VALUE = new byte[0];
+
+
 /* ********  I N S T A N C E   F I E L D S  ******** */
 
 
@@ -203,6 +225,22 @@ public class KLV {
     private byte[] value;
 
 
+    /**
+     * Index of the KLV sets in the value, built the first time they
+     * are asked for and kept until the value changes. Null when not built.
+     */
+    private KLVTagMap subIndex;
+
+
+    /**
+     * Running checksum of the value, kept up to date as sets are
+     * added while building and filled in while reading, so that
+     * {@link #addChecksum} need not go back over the value.
+     * Null when not known.
+     */
+    private KLVChecksum valueChecksum;
+
+
 
     /**
      * When instantiated by reading a byte array, this private
@@ -214,6 +252,13 @@ public class KLV {
     private int offsetAfterInstantiation;
 
 
+    /**
+     * The pool this set came from, which supplies value arrays when
+     * the length changes and takes the old ones back. Null if none.
+     */
+    private KLVPool pool;
+
+
 
 
 /* ********  C O N S T R U C T O R S  ******** */
@@ -232,6 +277,18 @@ public class KLV {
     }
 
 
+    /**
+     * Creates an empty set like {@link #KLV()} whose value arrays come
+     * from, and go back to, the given pool. Used by {@link KLVPool#get}.
+     *
+     * @param pool where value arrays come from
+     */
+    KLV( KLVPool pool ){
+        this();
+        this.pool = pool;
+    }
+
+
 
 
 
@@ -276,43 +333,7 @@ public class KLV {
      * @throws ArrayIndexOutOfBoundsException   If offset is out of range of the byte array.
      */
     public KLV( byte[] theBytes, int offset, KeyLength keyLength, LengthEncoding lengthEncoding ){
-
-        // Check for null and bad offset
-        if( theBytes == null )
-            throw new NullPointerException( "KLV: KLV byte array must not be null." );
-        if( keyLength == null )
-            throw new NullPointerException( "KLV: Key length must not be null." );
-        if( lengthEncoding == null )
-            throw new NullPointerException( "KLV: Length encoding must not be null." );
-        if( offset < 0 || offset >= theBytes.length )
-            throw new ArrayIndexOutOfBoundsException( String.format(
-                    "KLV: Offset %d is out of range (byte array length: %d).",
-                    offset, theBytes.length ) );
-
-        this.keyLength      = keyLength;
-        this.lengthEncoding = lengthEncoding;
-
-        // These public methods will interpret the byte array
-        // and set the appropriate key length and length encoding flags.
-        // setLength returns the offset of where the length field ends
-        // and the value portion begins. It also initializes an array in
-        // this.value of the appropriate length.
-        setKey( theBytes, offset, keyLength );
-
-        // Set length and verify enough bytes exist
-        // setLength(..) also establishes a this.value array.
-        int valueOffset = setLength( theBytes, offset + keyLength.value(), lengthEncoding );
-        int remaining = theBytes.length - valueOffset;
-        if( remaining < this.value.length )
-            throw new ArrayIndexOutOfBoundsException( String.format(
-                    "KLV: Not enough bytes left in array (%d) for the declared length (%d).",
-                    remaining, this.value.length ) );
-
-
-        System.arraycopy(theBytes,valueOffset, this.value,0,this.value.length);
-
-        // Private field used when creating a list of KLVs from a long array.
-        this.offsetAfterInstantiation = valueOffset + this.value.length;
+        this.reset( theBytes, offset, keyLength, lengthEncoding );
     }   // end constructor
 
 
@@ -355,11 +376,11 @@ public class KLV {
         } else {
             if( offset < 0 )
                 throw new ArrayIndexOutOfBoundsException( "KLV: Offset must not be negative: " + offset );
-            if( value.length > 0 && offset >= value.length )
+            if( offset > value.length )                 // Empty values may start at the end
                 throw new ArrayIndexOutOfBoundsException( String.format(
                         "KLV: Offset %d is out of range (byte array length: %d).",
                         offset, value.length ) );
-            if( length - offset < value.length )
+            if( value.length - offset < length )
                 throw new ArrayIndexOutOfBoundsException( String.format(
                         "KLV: Not enough bytes in array (%d) for declared length (%d).",
                         value.length, length ) );
@@ -533,11 +554,30 @@ public class KLV {
      */
     public static KLV readKLV( java.io.InputStream in, KeyLength keyLength, LengthEncoding lengthEncoding )
     throws java.io.IOException{
-        KLV klv = null;
+        return readKLV( in, keyLength, lengthEncoding, null );
+    }
+
+
+    /**
+     * Reads a KLV set from the input stream into the given set, blocking
+     * until a proper KLV set can be read. The set's arrays are reused as
+     * with {@link #reset(byte[],int,KeyLength,LengthEncoding)}. If the stream
+     * ends early, null is returned and what is left in <tt>klv</tt> is
+     * undefined.
+     *
+     * @param in                the stream to read
+     * @param keyLength         the number of bytes in the key
+     * @param lengthEncoding    the length field encoding type
+     * @param klv               the set to fill, or null for a new one
+     * @return                  the set that was filled, or null at the end of the stream
+     */
+    public static KLV readKLV( java.io.InputStream in, KeyLength keyLength, LengthEncoding lengthEncoding, KLV klv )
+    throws java.io.IOException{
 
         // Read key
-        byte[] key = new byte[ keyLength.value() ]; // Size of key
-        for( int i = 0; i < key.length; i++ ){      // For each byte in key
+        byte[] key = SCRATCH.get().header;          // Room for the longest key
+        int keySize = keyLength.value();            // Size of key
+        for( int i = 0; i < keySize; i++ ){         // For each byte in key
             //System.out.println( "Trying to read byte for key...");
             int b = in.read();                      // Carefully read one byte at a time
             if( b < 0 ){                            // Early end of stream?
@@ -552,16 +592,15 @@ public class KLV {
             case OneByte:
             case TwoBytes:
             case FourBytes:
-                byte[] lengthField = new byte[ lengthEncoding.value() ];
-                for( int i = 0; i < lengthField.length; i++ ){  // For each byte in lengthField
+                length = 0;
+                for( int i = 0; i < lengthEncoding.value(); i++ ){  // For each byte in length field
                     //System.out.println( "Trying to read byte for length field...");
                     int b = in.read();                              // Carefully read one byte at a time
                     if( b < 0 ){                                    // Early end of stream?
                         return null;                                // Not an exception, but unsuccessful still
                     }   // end if: end of stream
-                    lengthField[i] = (byte)b;
-                }   // end for: bytes in key
-                length = getInt( lengthField, 0, lengthField.length );
+                    length = (length << 8) | b;
+                }   // end for: bytes in length field
                 break;
 
             case BER:
@@ -571,6 +610,7 @@ public class KLV {
                 } else {
                   len0 &= 0x7F;            // Clear high bit
                   if( len0 > 0 && len0 <= 4 ){
+                      length = 0;           // Not -1, which would set every bit below
                       for( int i = 0; i < len0; i++ ){
                         length |= in.read() << 8*(len0-i-1);
                       }   // end for: each byte in field
@@ -585,13 +625,23 @@ public class KLV {
             throw new java.io.IOException("KLV: Got invalid length: " + length );
         }
 
-        byte[] value = new byte[length];
+        if( klv == null ){
+            klv = new KLV();
+        }   // end if: fresh set
+        KLVChecksum sum = klv.valueChecksum;        // Reuse the old one
+        klv.setKey( key, 0, keyLength );
+        klv.setLength( length, lengthEncoding );
+        klv.lengthEncoding = lengthEncoding;
+        byte[] value = klv.value;
+        sum = sum == null ? new KLVChecksum() : sum;
+        sum.reset();
         int b = -1;
         for( int i = 0; i < length; i++ ){
             b = in.read();
             if( b < 0 )
                 return null; // Early end of stream
                 value[i] = (byte)b;
+                sum.update( b );    // Checksum as we go
         }
 //        int pos = 0;
 //        int read = -1;
@@ -602,9 +652,7 @@ public class KLV {
 //        if( pos < value.length ){       // Didn't read enough: end of stream
 //            return null;
 //        }
-        klv = new KLV();
-        klv.setKey(key);
-        klv.setValue(value);
+        klv.valueChecksum = sum;
 
         return klv;
     }
@@ -618,15 +666,105 @@ public class KLV {
      * The array is copied from the original underlying byte array.
      */
     public byte[] toBytes(){
-        byte[] key = this.getFullKey();
-        byte[] lengthField = KLV.makeLengthField(this.lengthEncoding, this.value.length);
-        byte[] bytes = new byte[ key.length + lengthField.length + this.value.length ];
+        int header = this.getHeaderLength();
+        byte[] bytes = new byte[ header + this.value.length ];
+        this.writeHeader( bytes, 0 );
+        System.arraycopy(this.value,0, bytes,header,this.value.length);
+        return bytes;
+    }
 
-        System.arraycopy(key,0, bytes,0,key.length);
-        System.arraycopy(lengthField,0, bytes,key.length,lengthField.length);
-        System.arraycopy(this.value,0, bytes,key.length+lengthField.length,this.value.length);
 
-        return bytes;
+
+    /**
+     * Returns the number of bytes in the key and the length field.
+     *
+     * @return length of the key and length field
+     */
+    public int getHeaderLength(){
+        return this.keyLength.value + KLV.getLengthFieldSize( this.lengthEncoding, this.value.length );
+    }
+
+
+
+    /**
+     * Writes the key and length field into the array at the offset.
+     *
+     * @param dest      the array to write to
+     * @param offset    where to start writing
+     * @return          the number of bytes written, {@link #getHeaderLength}
+     * @throws ArrayIndexOutOfBoundsException if there is not enough room
+     */
+    public int writeHeader( byte[] dest, int offset ){
+        return this.writeHeader( this.value.length, dest, offset );
+    }
+
+
+    /** Writes the key and the length field for a value of the given length. */
+    private int writeHeader( int payloadLength, byte[] dest, int offset ){
+        if( this.keyLength == KeyLength.SixteenBytes ){
+            System.arraycopy( this.keyIfLong, 0, dest, offset, 16 );
+            return 16 + KLV.writeLengthField( this.lengthEncoding, payloadLength, dest, offset + 16 );
+        } else {
+            return KLV.writeHeader( this.keyIfShort, this.keyLength, this.lengthEncoding, payloadLength, dest, offset );
+        }   // end else: short key
+    }
+
+
+
+    /**
+     * Writes the whole KLV set into the buffer at its position, advancing
+     * the position. The key and length field go through a small scratch
+     * array kept for each thread and the value is copied in with one bulk
+     * put, so nothing is allocated.
+     *
+     * @param dest  the buffer to write to
+     * @throws java.nio.BufferOverflowException if there is not enough room,
+     *         in which case nothing is written
+     */
+    public void writeTo( java.nio.ByteBuffer dest ){
+        int header = this.getHeaderLength();
+        if( dest.remaining() < header + this.value.length )
+            throw new java.nio.BufferOverflowException();
+        Scratch scratch = SCRATCH.get();
+        this.writeHeader( scratch.header, 0 );
+        dest.put( scratch.header, 0, header );
+        dest.put( this.value );
+    }
+
+
+
+    /**
+     * Writes the whole KLV set to the channel with a gathering write:
+     * the key and length field from a small scratch buffer kept for each
+     * thread, and the value straight from its array, without concatenating
+     * them first. Blocks until everything is written, so the channel
+     * must be in blocking mode.
+     *
+     * @param channel   the channel to write to
+     * @return          the number of bytes written
+     * @throws java.io.IOException if the channel cannot be written to
+     * @throws java.nio.channels.IllegalBlockingModeException if the channel is not blocking
+     */
+    public long writeTo( java.nio.channels.GatheringByteChannel channel ) throws java.io.IOException {
+        if( channel instanceof java.nio.channels.SelectableChannel
+        && !((java.nio.channels.SelectableChannel)channel).isBlocking() )
+            throw new java.nio.channels.IllegalBlockingModeException();
+        Scratch scratch = SCRATCH.get();
+        int header = this.writeHeader( scratch.header, 0 );
+        java.nio.ByteBuffer[] srcs = scratch.srcs;
+        srcs[0].clear();
+        srcs[0].limit( header );
+        srcs[1] = java.nio.ByteBuffer.wrap( this.value );
+        long total = header + this.value.length;
+        long written = 0;
+        try{
+            while( written < total ){
+                written += channel.write( srcs );
+            }   // end while: more to write
+        } finally {
+            srcs[1] = null;                         // Don't hold on to the value
+        }   // end finally
+        return written;
     }
 
 
@@ -665,8 +803,16 @@ public class KLV {
      */
     public List<KLV> getSubKLVList( KeyLength keyLength, LengthEncoding lengthEncoding )
     throws Exception{
-        return KLV.bytesToList(
+        KLVTagMap index = this.getSubIndexIfPossible( keyLength, lengthEncoding );
+        if( index == null ){
+            return KLV.bytesToList(
                 this.value,0,this.value.length, keyLength, lengthEncoding );
+        }   // end if: sixteen-byte keys or not well-formed
+        List<KLV> list = new ArrayList<KLV>( index.size() );
+        for( int i = 0; i < index.size(); i++ ){
+            list.add( index.getKLVAt( i ) );
+        }   // end for: each sub KLV
+        return list;
     }
 
 
@@ -694,8 +840,131 @@ public class KLV {
      *
      */
     public Map<Integer,KLV> getSubKLVMap( KeyLength keyLength, LengthEncoding lengthEncoding ) throws Exception{
-        return KLV.bytesToMap(
+        KLVTagMap index = this.getSubIndexIfPossible( keyLength, lengthEncoding );
+        if( index == null ){
+            return KLV.bytesToMap(
                 this.value,0,this.value.length, keyLength, lengthEncoding );
+        }   // end if: sixteen-byte keys or not well-formed
+        Map<Integer,KLV> map = new HashMap<Integer,KLV>();
+        for( int i = 0; i < index.size(); i++ ){
+            map.put( index.tagAt( i ), index.getKLVAt( i ) );
+        }   // end for: each sub KLV, latter ones winning
+        return map;
+    }
+
+
+
+    /**
+     * Return a {@link KLVTagMap} of keys (up to four bytes long) to
+     * value offsets and lengths within this KLV's payload (value field)
+     * based on the existing key length and length field encoding.
+     * No sub KLV objects are created and no keys are boxed.
+     * The map is built the first time it is asked for and kept
+     * until the value changes, so later calls cost nothing.
+     * If two KLV subsets are in the payload, and they each have the
+     * same key value, then the latter one will overwrite the earlier one.
+     *
+     * @throws IllegalArgumentException if the payload is not well-formed KLV
+     */
+    public KLVTagMap getSubKLVTagMap(){
+        return this.getSubKLVTagMap(this.keyLength, this.lengthEncoding);
+    }
+
+
+    /**
+     * Return a {@link KLVTagMap} of keys (up to four bytes long) to
+     * value offsets and lengths within this KLV's payload (value field)
+     * based on an assumed key length and length field encoding scheme.
+     * The offsets refer to the array returned by {@link #getValue}.
+     * The map is kept inside this KLV and handed out again until the
+     * value changes or other key lengths or length encodings are asked
+     * for; it must not be reset or cleared.
+     *
+     * @throws IllegalArgumentException if the payload is not well-formed KLV
+     */
+    public KLVTagMap getSubKLVTagMap( KeyLength keyLength, LengthEncoding lengthEncoding ){
+        KLVTagMap index = this.subIndex;
+        if( index == null
+        || index.getKeyLength() != keyLength
+        || index.getLengthEncoding() != lengthEncoding ){
+            this.subIndex = null;                   // In case parsing fails
+            index = KLVTagMap.parse(
+                this.value,0,this.value.length, keyLength, lengthEncoding );
+            this.subIndex = index;
+        }   // end if: not built for these settings
+        return index;
+    }
+
+
+    /**
+     * Returns whether or not the payload has a KLV set with the given
+     * key, using the existing key length and length field encoding.
+     * After the first lookup this allocates nothing.
+     *
+     * @param key   the key to look for
+     * @return      true if there is such a KLV set
+     * @throws IllegalArgumentException if the payload is not well-formed KLV
+     */
+    public boolean hasSubKLV( int key ){
+        return this.getSubKLVTagMap().containsTag( key );
+    }
+
+
+    /**
+     * Returns the offset within {@link #getValue} of the value of the
+     * last KLV set in the payload with the given key, or -1 if there
+     * is none, using the existing key length and length field encoding.
+     * After the first lookup this allocates nothing.
+     *
+     * @param key   the key to look for
+     * @return      offset of the sub KLV's value or -1
+     * @throws IllegalArgumentException if the payload is not well-formed KLV
+     */
+    public int getSubValueOffset( int key ){
+        return this.getSubKLVTagMap().getValueOffset( key );
+    }
+
+
+    /**
+     * Returns the length of the value of the last KLV set in the
+     * payload with the given key, or -1 if there is none, using the
+     * existing key length and length field encoding.
+     * After the first lookup this allocates nothing.
+     *
+     * @param key   the key to look for
+     * @return      length of the sub KLV's value or -1
+     * @throws IllegalArgumentException if the payload is not well-formed KLV
+     */
+    public int getSubValueLength( int key ){
+        return this.getSubKLVTagMap().getValueLength( key );
+    }
+
+
+    /**
+     * Returns a copy of the last KLV set in the payload with the given
+     * key, or null if there is none, using the existing key length and
+     * length field encoding. Unlike <code>getSubKLVMap().get(key)</code>,
+     * only the one KLV set is created.
+     *
+     * @param key   the key to look for
+     * @return      the sub KLV or null
+     * @throws IllegalArgumentException if the payload is not well-formed KLV
+     */
+    public KLV getSubKLV( int key ){
+        return this.getSubKLVTagMap().getKLV( key );
+    }
+
+
+    /** Returns the memoized index, or null if the payload cannot have one. */
+    private KLVTagMap getSubIndexIfPossible( KeyLength keyLength, LengthEncoding lengthEncoding ){
+        if( keyLength == KeyLength.SixteenBytes ){
+            return null;
+        }   // end if: not supported by KLVTagMap
+        try{
+            return this.getSubKLVTagMap( keyLength, lengthEncoding );
+        } catch( IllegalArgumentException exc ){
+            return null;                            // Let the old parser report it
+        }   // end catch
     }
 
 
@@ -735,7 +1004,7 @@ public class KLV {
             assert 16 == this.keyIfLong.length : this.keyIfLong.length;
             int key = 0;
             for( int i = 0; i < 4; i++ ){
-                key |= (this.keyIfLong[13+i] & 0xFF) << (4-i)*8;
+                key |= (this.keyIfLong[12+i] & 0xFF) << (3-i)*8;
             }   // end for: four bytes
             return key;
 
@@ -800,14 +1069,51 @@ public class KLV {
      */
     public boolean isFullKey( byte[] otherKey ){
         if( otherKey == null ) return false;                // Nothing can equal null
-        byte[] myKey = getFullKey();                        // My key
-        if( myKey.length != otherKey.length ) return false; // Wrong length
-        for( int i = 0; i < myKey.length; i++ ){            // Check each byte
-            if( myKey[i] != otherKey[i] ){                  // Mismatch?
-                return false;                               // False
-            }   // end if: mismatch
-        }   // end for: each byte
-        return true;                                        // Must be equal keys
+        if( otherKey.length != this.keyLength.value ) return false; // Wrong length
+        switch( this.keyLength ){
+        case SixteenBytes:                                  // Compare in place, no copy
+            for( int i = 0; i < 16; i++ ){                  // Check each byte
+                if( this.keyIfLong[i] != otherKey[i] ){     // Mismatch?
+                    return false;                           // False
+                }   // end if: mismatch
+            }   // end for: each byte
+            return true;                                    // Must be equal keys
+
+        default:
+            int other = 0;
+            for( int i = 0; i < otherKey.length; i++ ){
+                other = (other << 8) | (otherKey[i] & 0xFF);
+            }   // end for: each byte
+            return other == getShortKey();
+        }   // end switch
+    }
+
+
+    /**
+     * Returns true if and only if this KLV set has a sixteen-byte
+     * key equal to <tt>label</tt>. Throws no exceptions and
+     * allocates nothing.
+     *
+     * @param label the Universal Label to compare
+     * @return whether or not the two keys match
+     */
+    public boolean isFullKey( UniversalLabel label ){
+        return label != null
+            && this.keyLength == KeyLength.SixteenBytes
+            && label.matches( this.keyIfLong, 0 );
+    }
+
+
+    /**
+     * Returns the key as a {@link UniversalLabel} if this KLV set has
+     * a sixteen-byte key, or null otherwise.
+     *
+     * @return the key as a Universal Label, or null
+     */
+    public UniversalLabel getUniversalLabel(){
+        return this.keyLength == KeyLength.SixteenBytes
+            ? UniversalLabel.valueOf( this.keyIfLong, 0 )
+            : null;
     }
 
 
@@ -838,7 +1144,9 @@ public class KLV {
     /**
      * Returns the value of this KLV set.
      * This is the actual byte array, so changes to the byte array
-     * change the KLV's actual value.
+     * change the KLV's actual value. After changing it, pass it
+     * back to {@link #setValue(byte[])} so that anything worked out
+     * from the old value, such as its checksum, is forgotten.
      *
      * @return the value
      */
@@ -1063,31 +1371,70 @@ public class KLV {
     }   // end getValueAs8bitSignedInt
 
 
+    /**
+     * Reads a big endian 16 bit signed integer from the array at the offset.
+     *
+     * @return a 16-bit signed integer
+     */
     public static int get16bitSignedInt( byte[] data, int offset ){
-        short value = 0;
-        int shortLen = 2;
-        for( int i = 0; i < shortLen; i++ )
-            value |= (data[i] & 0xFF) << (shortLen*8 - i*8 - 8);
-        return value;
-    }   // end getValueAs16bitSignedInt
+        return (short)( (data[offset] & 0xFF) << 8
+                      | (data[offset+1] & 0xFF) );
+    }   // end get16bitSignedInt
 
 
+    /**
+     * Reads a big endian 16 bit unsigned integer from the array at the offset.
+     *
+     * @return a 16-bit unsigned integer
+     */
     public static int get16bitUnsignedInt( byte[] data, int offset ){
-        int value = 0;
-        int shortLen = 2;
-        for( int i = 0; i < shortLen; i++ )
-            value |= (data[i] & 0xFF) << (shortLen*8 - i*8 - 8);
-        return value;
-    }   // end getValueAs16bitUnsignedInt
+        return (data[offset] & 0xFF) << 8
+             | (data[offset+1] & 0xFF);
+    }   // end get16bitUnsignedInt
 
 
+    /**
+     * Reads a big endian 32 bit integer from the array at the offset.
+     *
+     * @return a 32-bit integer
+     */
     public static int get32bitInt( byte[] data, int offset ){
-        int value = 0;
-        int shortLen = 4;
-        for( int i = 0; i < shortLen; i++ )
-            value |= (data[i] & 0xFF) << (shortLen*8 - i*8 - 8);
-        return value;
-    }   // end getValueAs32bitSignedInt
+        return (data[offset]   & 0xFF) << 24
+             | (data[offset+1] & 0xFF) << 16
+             | (data[offset+2] & 0xFF) << 8
+             | (data[offset+3] & 0xFF);
+    }   // end get32bitInt
+
+
+    /**
+     * Reads a big endian 64 bit long from the array at the offset.
+     *
+     * @return a 64-bit long
+     */
+    public static long get64bitLong( byte[] data, int offset ){
+        return ((long)get32bitInt(data,offset) << 32)
+             | (get32bitInt(data,offset+4) & 0xFFFFFFFFL);
+    }   // end get64bitLong
+
+
+    /**
+     * Reads an IEEE 754 float from the four bytes at the offset.
+     *
+     * @return a float
+     */
+    public static float getFloat( byte[] data, int offset ){
+        return Float.intBitsToFloat( get32bitInt(data,offset) );
+    }   // end getFloat
+
+
+    /**
+     * Reads an IEEE 754 double from the eight bytes at the offset.
+     *
+     * @return a double
+     */
+    public static double getDouble( byte[] data, int offset ){
+        return Double.longBitsToDouble( get64bitLong(data,offset) );
+    }   // end getDouble
 
 
     /**
@@ -1121,7 +1468,7 @@ public class KLV {
 
 
 
-    // TODO: add statics for 64 bit, float, double, string, etc
+    // TODO: add statics for string, etc
 
 
 
@@ -1237,7 +1584,9 @@ public class KLV {
             break;
 
         case SixteenBytes:
-            this.keyIfLong = new byte[16];
+            if( this.keyIfLong == null ){
+                this.keyIfLong = new byte[16];
+            }   // end if: none to reuse
             System.arraycopy(inTheseBytes,offset, this.keyIfLong,0,16);
             this.keyIfShort = 0;
             break;
@@ -1286,8 +1635,10 @@ public class KLV {
         case SixteenBytes:
             byte[] key = new byte[16];
             for( int i = 0; i < 4; i++ ){
-                key[13+i] = (byte)(shortKey >> (3-i)*8);
+                key[12+i] = (byte)(shortKey >> (3-i)*8);
             }   // end for: four bytes
+            this.keyIfLong = key;
+            this.keyIfShort = 0;
             this.keyLength = keyLength;
             break;
 
@@ -1322,6 +1673,8 @@ public class KLV {
                 byte[] bytes = new byte[(2<<8)-1];
                 System.arraycopy(this.value,0, bytes,0,bytes.length);
                 this.value = bytes;
+                this.valueChecksum = null;
+                this.subIndex = null;
             }   // end if: need to truncate
             this.lengthEncoding = lengthEncoding;
             break;
@@ -1331,6 +1684,8 @@ public class KLV {
                 byte[] bytes = new byte[(2<<16)-1];
                 System.arraycopy(this.value,0, bytes,0,bytes.length);
                 this.value = bytes;
+                this.valueChecksum = null;
+                this.subIndex = null;
             }   // end if: need to truncate
             this.lengthEncoding = lengthEncoding;
             break;
@@ -1532,12 +1887,22 @@ public class KLV {
             assert false : lengthEncoding; // We've accounted for all types
         }   // end switch
 
-        // Copy old value
-        byte[] bytes = new byte[length];
-        if( this.value != null ){
-            System.arraycopy(value,0, bytes,0,(int)Math.min(length,this.value.length));
-        }   // end if: value exists
-        this.value = bytes;
+        // Copy old value, unless it is already the right length
+        if( this.value == null || this.value.length != length ){
+            byte[] bytes = this.takeValue( length );
+            int kept = 0;
+            if( this.value != null ){
+                kept = (int)Math.min(length,this.value.length);
+                System.arraycopy(value,0, bytes,0,kept);
+                this.giveBack( this.value );
+            }   // end if: value exists
+            if( this.pool != null ){
+                Arrays.fill( bytes, kept, length, (byte)0 );    // Pooled arrays are not clean
+            }   // end if: pooled
+            this.value = bytes;
+        }   // end if: new length
+        this.valueChecksum = null;
+        this.subIndex = null;
 
         return this;
     }
@@ -1613,6 +1978,8 @@ public class KLV {
         byte[] bytes = new byte[length];
         System.arraycopy(newValue,offset, bytes,0,length);
         this.value = bytes;
+        this.valueChecksum = null;
+        this.subIndex = null;
 
         return this;
     }
@@ -1622,6 +1989,123 @@ public class KLV {
 
 
 
+/* ********  R E U S E   M E T H O D S  ******** */
+
+
+
+    /**
+     * <p>Fills this set from the given byte array just as the
+     * {@link #KLV(byte[],int,KeyLength,LengthEncoding)} constructor would,
+     * so that one <code>KLV</code> can be used over and over, such as for
+     * every datagram in a receive loop.</p>
+     *
+     * <p>The value array is kept when the new value is the same length
+     * as the old one, which is the usual case for a stream of telemetry,
+     * and a sixteen-byte key array is always kept. Otherwise the value
+     * array comes from this set's {@link KLVPool}, if it came from one.
+     * Either way, arrays returned earlier by {@link #getValue} may be
+     * written over.</p>
+     *
+     * @param theBytes                  The bytes that make up the entire KLV set
+     * @param offset                    The offset from beginning of theBytes
+     * @param keyLength                 The number of bytes in the key.
+     * @param lengthEncoding            The length field encoding type.
+     * @return                          <tt>this</tt> to aid in stringing commands together
+     * @throws NullPointerException     If any parameters are null.
+     * @throws IllegalArgumentException If there are not enough bytes in the array
+     *                                  to cover at least the key and the length field.
+     * @throws ArrayIndexOutOfBoundsException   If offset is out of range of the byte array.
+     */
+    public KLV reset( byte[] theBytes, int offset, KeyLength keyLength, LengthEncoding lengthEncoding ){
+
+        // Check for null and bad offset
+        if( theBytes == null )
+            throw new NullPointerException( "KLV: KLV byte array must not be null." );
+        if( keyLength == null )
+            throw new NullPointerException( "KLV: Key length must not be null." );
+        if( lengthEncoding == null )
+            throw new NullPointerException( "KLV: Length encoding must not be null." );
+        if( offset < 0 || offset >= theBytes.length )
+            throw new ArrayIndexOutOfBoundsException( String.format(
+                    "KLV: Offset %d is out of range (byte array length: %d).",
+                    offset, theBytes.length ) );
+
+        this.keyLength      = keyLength;
+        this.lengthEncoding = lengthEncoding;
+
+        // These public methods will interpret the byte array
+        // and set the appropriate key length and length encoding flags.
+        // setLength returns the offset of where the length field ends
+        // and the value portion begins. It also initializes an array in
+        // this.value of the appropriate length.
+        setKey( theBytes, offset, keyLength );
+
+        // Set length and verify enough bytes exist
+        // setLength(..) also establishes a this.value array.
+        int valueOffset = setLength( theBytes, offset + keyLength.value(), lengthEncoding );
+        int remaining = theBytes.length - valueOffset;
+        if( remaining < this.value.length )
+            throw new ArrayIndexOutOfBoundsException( String.format(
+                    "KLV: Not enough bytes left in array (%d) for the declared length (%d).",
+                    remaining, this.value.length ) );
+
+
+        System.arraycopy(theBytes,valueOffset, this.value,0,this.value.length);
+        this.valueChecksum = null;
+        this.subIndex = null;
+
+        // Private field used when creating a list of KLVs from a long array.
+        this.offsetAfterInstantiation = valueOffset + this.value.length;
+        return this;
+    }   // end reset
+
+
+
+    /**
+     * Empties this set, leaving it as {@link #KLV()} would: a four-byte
+     * key of zero, BER length encoding, and no value. If the set came
+     * from a {@link KLVPool}, its value array goes back to the pool, so
+     * arrays returned earlier by {@link #getValue} must not be used.
+     *
+     * @return <tt>this</tt> to aid in stringing commands together
+     */
+    public KLV clear(){
+        this.giveBack( this.value );
+        this.value = NO_VALUE;
+        this.keyLength = DEFAULT_KEY_LENGTH;
+        this.keyIfShort = 0;                    // A sixteen-byte key array is kept for reuse
+        this.lengthEncoding = DEFAULT_LENGTH_ENCODING;
+        this.valueChecksum = null;
+        this.subIndex = null;
+        this.offsetAfterInstantiation = 0;
+        return this;
+    }
+
+
+    /** Returns the pool this set came from, or null. */
+    KLVPool getPool(){
+        return this.pool;
+    }
+
+
+    /** Returns an array for a value of the given length, from the pool if there is one. */
+    private byte[] takeValue( int length ){
+        return this.pool == null ? new byte[ length ] : this.pool.take( length );
+    }
+
+
+    /** Gives a value array that is no longer used back to the pool, if there is one. */
+    private void giveBack( byte[] old ){
+        if( this.pool != null && old != null ){
+            this.pool.give( old );
+        }   // end if: pooled
+    }
+
+
+
+
+
+
 /* ********  A D D   M E T H O D S  ******** */
 
 
@@ -1859,10 +2343,19 @@ public class KLV {
             assert false : this.lengthEncoding; // We've accounted for all types
         }   // end switch
 
+        // Keep the checksum running while building from empty
+        if( this.valueChecksum == null && this.value.length == 0 ){
+            this.valueChecksum = new KLVChecksum();
+        }   // end if: start checksum
+        if( this.valueChecksum != null ){
+            this.valueChecksum.update( bytes, offset, length );
+        }   // end if: checksum known
+
         byte[] newValue = new byte[ newLength ];
         System.arraycopy(this.value,0, newValue,0,this.value.length);
         System.arraycopy(bytes,offset, newValue,this.value.length,length);
         this.value = newValue;
+        this.subIndex = null;
 
         return this;
     }
@@ -1873,6 +2366,107 @@ public class KLV {
 
 
 
+/* ********  C H E C K S U M   M E T H O D S  ******** */
+
+
+
+    /**
+     * Adds a checksum set to the end of the payload, such as Tag 1 of
+     * the MISB ST 0601 UAS Local Set. Its two-byte value is the
+     * {@link KLVChecksum} of the whole set, from the first byte of
+     * this set's key through the checksum set's length field.
+     * When the set was built from empty with the <tt>add</tt> methods,
+     * or read with {@link #readKLV}, the checksum of the value was
+     * kept as the bytes went by and is not worked out again.
+     *
+     * @param tag                   key of the checksum set
+     * @param subKeyLength          key length of the checksum set
+     * @param subLengthEncoding     length encoding of the checksum set
+     * @return                      <tt>this</tt>, to aid in stringing commands together.
+     * @throws IllegalArgumentException if the key length is sixteen bytes
+     *                                  or the length encoding cannot hold the new length
+     */
+    public KLV addChecksum( int tag, KeyLength subKeyLength, LengthEncoding subLengthEncoding ){
+        byte[] trailer = new byte[ 4 + 5 + KLVChecksum.LENGTH ];
+        int n = KLV.writeHeader( tag, subKeyLength, subLengthEncoding, KLVChecksum.LENGTH, trailer, 0 );
+
+        Scratch scratch = SCRATCH.get();
+        KLVChecksum sum = new KLVChecksum();
+        sum.update( scratch.header, 0, this.writeHeader( this.value.length + n + KLVChecksum.LENGTH, scratch.header, 0 ) );
+        sum.update( this.getValueChecksum() );
+        sum.update( trailer, 0, n );
+
+        int checksum = (int)sum.getValue();
+        trailer[n]   = (byte)(checksum >> 8);
+        trailer[n+1] = (byte) checksum;
+        return addPayload( trailer, 0, n + KLVChecksum.LENGTH );
+    }
+
+
+    /**
+     * Returns the checksum of this set as it would be stored in a
+     * checksum set at the end of the payload: everything from the
+     * first byte of the key up to, but not including, the last
+     * two bytes of the value.
+     *
+     * @return the checksum, 0 to 65535
+     * @throws IllegalStateException if the value is shorter than two bytes
+     */
+    public int computeChecksum(){
+        int length = this.value.length;
+        if( length < KLVChecksum.LENGTH )
+            throw new IllegalStateException( "KLV: Value is too short to end with a checksum: " + length );
+        Scratch scratch = SCRATCH.get();
+        KLVChecksum sum = new KLVChecksum();
+        sum.update( scratch.header, 0, this.writeHeader( scratch.header, 0 ) );
+        KLVChecksum value = new KLVChecksum( this.getValueChecksum() );
+        value.remove( length - 2, this.value[ length - 2 ] );
+        value.remove( length - 1, this.value[ length - 1 ] );
+        sum.update( value );
+        return (int)sum.getValue();
+    }
+
+
+    /**
+     * Returns true if the payload ends with a checksum set with
+     * the given key whose value matches {@link #computeChecksum}.
+     *
+     * @param tag                   key of the checksum set
+     * @param subKeyLength          key length of the checksum set
+     * @param subLengthEncoding     length encoding of the checksum set
+     * @return                      whether the checksum is present and correct
+     */
+    public boolean isChecksumValid( int tag, KeyLength subKeyLength, LengthEncoding subLengthEncoding ){
+        byte[] trailer = SCRATCH.get().header;
+        int n = KLV.writeHeader( tag, subKeyLength, subLengthEncoding, KLVChecksum.LENGTH, trailer, 0 );
+        int start = this.value.length - n - KLVChecksum.LENGTH;
+        if( start < 0 ){
+            return false;
+        }   // end if: too short
+        for( int i = 0; i < n; i++ ){
+            if( this.value[ start + i ] != trailer[i] ){
+                return false;
+            }   // end if: not a checksum set
+        }   // end for: each header byte
+        return computeChecksum() == KLV.get16bitUnsignedInt( this.value, this.value.length - KLVChecksum.LENGTH );
+    }
+
+
+    /** Returns the checksum of the value, working it out if it is not known. */
+    private KLVChecksum getValueChecksum(){
+        if( this.valueChecksum == null ){
+            KLVChecksum sum = new KLVChecksum();
+            sum.update( this.value, 0, this.value.length );
+            this.valueChecksum = sum;
+        }   // end if: not known
+        return this.valueChecksum;
+    }
+
+
+
+
+
+
 /* ********  O B J E C T   O V E R R I D E  ******** */
 
 
@@ -1929,16 +2523,49 @@ public class KLV {
     public static java.util.List<KLV> bytesToList(
             byte[] bytes, int offset, int length,
             KeyLength keyLength, LengthEncoding lengthEncoding )throws Exception{
-        LinkedList<KLV> list = new LinkedList<KLV>();
+        return bytesToList( bytes, offset, length, keyLength, lengthEncoding, new LinkedList<KLV>(), null );
+    }   // end parseBytes
+
+
+
+    /**
+     * Adds the KLV sets in the supplied byte array to the given list,
+     * taking each <code>KLV</code> from the pool if one is given. With a
+     * reused list and a {@link KLVPool}, a receive loop can parse every
+     * packet without allocating, handing the sets back with
+     * {@link KLVPool#release(java.util.Collection)} when done.
+     *
+     * @param bytes             The byte array to parse
+     * @param offset            Where to start parsing
+     * @param length            How many bytes to parse
+     * @param keyLength         Length of keys assumed in the KLV sets
+     * @param lengthEncoding    Flag indicating encoding type
+     * @param list              Where to add the KLVs
+     * @param pool              Where to get the KLVs, or null to create them
+     * @return                  <tt>list</tt>
+     */
+    public static java.util.List<KLV> bytesToList(
+            byte[] bytes, int offset, int length,
+            KeyLength keyLength, LengthEncoding lengthEncoding,
+            java.util.List<KLV> list, KLVPool pool )throws Exception{
 
         int currentPos = offset;    // Keep track of where we are
         while( currentPos < offset + length ){
+            KLV klv = null;
             try{
-                KLV klv = new KLV( bytes, currentPos, keyLength, lengthEncoding );
+                if( pool == null ){
+                    klv = new KLV( bytes, currentPos, keyLength, lengthEncoding );
+                } else {
+                    klv = pool.get();
+                    klv.reset( bytes, currentPos, keyLength, lengthEncoding );
+                }   // end else: pooled
                 currentPos = klv.offsetAfterInstantiation; // private access
 
                 list.add( klv );
             } catch( Exception exc ){
+                if( pool != null && klv != null ){
+                    pool.release( klv );
+                }   // end if: give back the one that failed
                 // Stop trying for more?
                 throw new Exception("KLV: Stopped parsing list of KLVs with exception: " + exc.getMessage(), exc );
             }   // end catch
@@ -1990,9 +2617,23 @@ public class KLV {
      * @return                  byte array with appropriate length field bytes
      */
     protected static byte[] makeLengthField( LengthEncoding lengthEncoding, int payloadLength ){
+        byte[] bytes = new byte[ getLengthFieldSize( lengthEncoding, payloadLength ) ];
+        writeLengthField( lengthEncoding, payloadLength, bytes, 0 );
+        return bytes;
+    }   // end makeLengthField
 
-        // Bytes for length encoding
-        byte[] bytes = null;
+
+
+    /**
+     * Returns the number of bytes in the length field needed to
+     * indicate the given payload length.
+     *
+     * @param lengthEncoding    field encoding flag
+     * @param payloadLength     number of bytes in value
+     * @return                  number of bytes in the length field
+     * @throws IllegalArgumentException if the encoding cannot hold the length
+     */
+    public static int getLengthFieldSize( LengthEncoding lengthEncoding, int payloadLength ){
         switch( lengthEncoding ){
 
             // Unsigned integer, one byte long.
@@ -2000,25 +2641,18 @@ public class KLV {
                 if( payloadLength > 255 )
                     throw new IllegalArgumentException(
                         String.format("KLV: Too much data (%d bytes) for one-byte length field encoding.", payloadLength) );
-                bytes = new byte[]{ (byte)payloadLength };
-                break;
+                return 1;
 
             // Unsigned integer, two bytes long, big endian.
             case TwoBytes:
                 if( payloadLength > 65535 )
                     throw new IllegalArgumentException(
                         String.format("KLV: Too much data (%d bytes) for two-byte length field encoding.", payloadLength) );
-                bytes = new byte[]{ (byte)(payloadLength >> 8), (byte)payloadLength };
-                break;
+                return 2;
 
             // (Un?)signed integer, four bytes long, big endian.
             case FourBytes:
-                bytes = new byte[]{
-                    (byte)(payloadLength >> 24),
-                    (byte)(payloadLength >> 16),
-                    (byte)(payloadLength >>  8),
-                    (byte)payloadLength };
-                break;
+                return 4;
 
             // Short BER form: If high bit is not set, then
             // use the byte to determine length of payload.
@@ -2031,28 +2665,153 @@ public class KLV {
             // exactly illegal KLV notation either.
             case BER:
                 if( payloadLength <= 127 ){
-                    bytes = new byte[]{ (byte)payloadLength };
+                    return 1;                       // Short form
+                } else if( payloadLength <= 255 ){
+                    return 2;                       // One byte
+                } else if( payloadLength <= 65535 ){
+                    return 3;                       // Two bytes
+                } else {
+                    return 5;                       // Four bytes
+                }   // end else
+
+            default:
+                throw new IllegalStateException( "KLV: Unknown length field encoding flag: " + lengthEncoding );
+        }   // end switch
+    }   // end getLengthFieldSize
+
+
+
+    /**
+     * Writes the length field needed to indicate the given
+     * payload length into the array at the offset.
+     *
+     * @param lengthEncoding    field encoding flag
+     * @param payloadLength     number of bytes in value
+     * @param dest              the array to write to
+     * @param offset            where to start writing
+     * @return                  number of bytes written
+     * @throws IllegalArgumentException if the encoding cannot hold the length
+     */
+    public static int writeLengthField( LengthEncoding lengthEncoding, int payloadLength, byte[] dest, int offset ){
+        int size = getLengthFieldSize( lengthEncoding, payloadLength );
+        int pos = offset;
+        if( lengthEncoding == LengthEncoding.BER && size > 1 ){
+            dest[pos++] = (byte)(0x80 | (size - 1));    // Long form
+        }   // end if: long BER
+        int digits = lengthEncoding == LengthEncoding.BER && size > 1 ? size - 1 : size;
+        for( int i = digits - 1; i >= 0; i-- ){
+            dest[pos++] = (byte)(payloadLength >> (i*8));
+        }   // end for: each byte, big endian
+        return size;
+    }   // end writeLengthField
+
+
+
+    /**
+     * Writes a one-, two-, or four-byte key and the length field for
+     * the given payload length into the array at the offset, as the
+     * start of a KLV set whose value will follow.
+     *
+     * @param shortKey          the key
+     * @param keyLength         number of bytes in the key, not sixteen
+     * @param lengthEncoding    field encoding flag
+     * @param payloadLength     number of bytes in value
+     * @param dest              the array to write to
+     * @param offset            where to start writing
+     * @return                  number of bytes written
+     * @throws IllegalArgumentException if the key is sixteen bytes or
+     *                                  the encoding cannot hold the length
+     */
+    public static int writeHeader( int shortKey, KeyLength keyLength, LengthEncoding lengthEncoding,
+            int payloadLength, byte[] dest, int offset ){
+        if( keyLength == KeyLength.SixteenBytes )
+            throw new IllegalArgumentException( "KLV: Sixteen-byte keys must be written from a byte array." );
+        int pos = offset;
+        for( int i = keyLength.value - 1; i >= 0; i-- ){
+            dest[pos++] = (byte)(shortKey >> (i*8));
+        }   // end for: each key byte, big endian
+        pos += writeLengthField( lengthEncoding, payloadLength, dest, pos );
+        return pos - offset;
+    }   // end writeHeader
+
+
+
+
+    /**
+     * Returns the number of bytes taken up by the length field that
+     * begins at the given absolute position in the buffer. For fixed
+     * encodings this is just the size of the field; for BER, the first
+     * byte is examined. The buffer's position is not changed.
+     *
+     * @param buffer            The buffer containing the length field
+     * @param position          Absolute position of the length field
+     * @param lengthEncoding    Flag indicating encoding type
+     * @return                  Number of bytes in the length field
+     * @throws IndexOutOfBoundsException if <tt>position</tt> is out of range
+     */
+    public static int getLengthFieldSize( java.nio.ByteBuffer buffer, int position, LengthEncoding lengthEncoding ){
+        switch( lengthEncoding ){
+            case OneByte:
+            case TwoBytes:
+            case FourBytes:
+                return lengthEncoding.value();
+
+            case BER:
+                int ber = buffer.get(position) & 0xFF;
+                return (ber & 0x80) == 0 ? 1 : 1 + (ber & 0x7F);
+
+            default:
+                throw new IllegalStateException( "KLV: Unknown length field encoding flag: " + lengthEncoding );
+        }   // end switch
+    }   // end getLengthFieldSize
+
+
+
+    /**
+     * Reads the value length from the length field that begins at the
+     * given absolute position in the buffer. Four-byte lengths are read
+     * as unsigned, so the result may be larger than an <tt>int</tt>.
+     * Returns -1 if a BER length field uses more than four bytes
+     * (or zero bytes) to specify the length, which is not supported.
+     * The buffer's position is not changed.
+     *
+     * @param buffer            The buffer containing the length field
+     * @param position          Absolute position of the length field
+     * @param lengthEncoding    Flag indicating encoding type
+     * @return                  Length of the value or -1
+     * @throws IndexOutOfBoundsException if the field runs past the buffer's limit
+     */
+    public static long getLength( java.nio.ByteBuffer buffer, int position, LengthEncoding lengthEncoding ){
+        int count = 0;
+        switch( lengthEncoding ){
+            case OneByte:
+            case TwoBytes:
+            case FourBytes:
+                count = lengthEncoding.value();
+                break;
+
+            case BER:
+                int ber = buffer.get(position) & 0xFF;
+                if( (ber & 0x80) == 0 ){            // Short form
+                    return ber;
                 }   // end if: short form
-                else {
-                    if( payloadLength <= 255 ){ // One byte
-                        bytes = new byte[]{ (byte)0x81, (byte)payloadLength };
-                    } else if( payloadLength <= 65535 ){ // Two bytes
-                        bytes = new byte[]{ (byte)0x82, (byte)(payloadLength >> 8), (byte)payloadLength };
-                    } else { // Four bytes
-                    bytes = new byte[]{
-                        (byte)0x84,
-                        (byte)(payloadLength >> 24),
-                        (byte)(payloadLength >> 16),
-                        (byte)(payloadLength >>  8),
-                        (byte)payloadLength };
-                    }
-                }   // end else: long form
-                    break;
+                count = ber & 0x7F;                 // Long form
+                if( count == 0 || count > 4 ){
+                    return -1;
+                }   // end if: unsupported
+                position++;
+                break;
+
             default:
                 throw new IllegalStateException( "KLV: Unknown length field encoding flag: " + lengthEncoding );
         }   // end switch
-        return bytes;
-    }   // end makeLengthField
+
+        long length = 0;
+        for( int i = 0; i < count; i++ ){
+            length = (length << 8) | (buffer.get(position+i) & 0xFF);
+        }   // end for: each byte
+        return length;
+    }   // end getLength
 
 
 
@@ -0,0 +1,292 @@
+/**
+ * <p>The 16-bit running checksum that ends many KLV local sets, such
+ * as Tag 1 of the MISB ST 0601 UAS Local Set. It is the sum, modulo
+ * 2<sup>16</sup>, of the bytes taken as big endian 16-bit words, starting
+ * with the first byte of the set's key and ending with the length field
+ * of the checksum set itself:</p>
+ *
+ * <pre>
+ * sum += bytes[i] &lt;&lt; (i % 2 == 0 ? 8 : 0)
+ * </pre>
+ *
+ * <p>The checksum is incremental: bytes can be added as they are written
+ * or read, in pieces of any size, and {@link #getValue} returns the
+ * checksum of everything so far. Bytes at even and odd positions are
+ * summed separately, which lets one checksum be appended to another
+ * with {@link #update(KLVChecksum)} whatever the length of the first, and
+ * lets arrays be summed eight bytes at a time: each long is split into
+ * its even and odd bytes with two masks and added to four 16-bit lanes
+ * at once, so the per-byte table or shift of the textbook loop is not
+ * needed.</p>
+ *
+ * <p>This code is released into the Public Domain. Enjoy.</p>
+ *
+ * @author Robert Harder
+ * @author rharder@users.sourceforge.net
+ * @version 0.3.1
+ */
+public class KLVChecksum implements java.util.zip.Checksum {
+
+
+/* ********  S T A T I C   F I E L D S  ******** */
+
+
+    /** Number of bytes in a checksum value. */
+    public final static int LENGTH = 2;
+
+    /** Picks out the low byte of each 16-bit lane of a long. */
+    private final static long LANES = 0x00FF00FF00FF00FFL;
+
+    /** Words that can be added before a lane, starting at zero, might overflow. */
+    private final static int WORDS_PER_FOLD = 256;
+
+
+
+/* ********  I N S T A N C E   F I E L D S  ******** */
+
+
+    /** Sum of the bytes at even positions, which are the high bytes of each word. */
+    private long even;
+
+    /** Sum of the bytes at odd positions, which are the low bytes of each word. */
+    private long odd;
+
+    /** Number of bytes added. */
+    private long count;
+
+
+
+/* ********  C O N S T R U C T O R S  ******** */
+
+
+    /**
+     * Creates a checksum of no bytes.
+     */
+    public KLVChecksum(){
+    }
+
+
+    /**
+     * Creates a copy of another checksum.
+     *
+     * @param other the checksum to copy
+     */
+    public KLVChecksum( KLVChecksum other ){
+        this.even = other.even;
+        this.odd = other.odd;
+        this.count = other.count;
+    }
+
+
+
+/* ********  C H E C K S U M   M E T H O D S  ******** */
+
+
+    /**
+     * Adds one byte.
+     *
+     * @param b the byte, in the low eight bits
+     */
+    public void update( int b ){
+        if( (this.count++ & 1) == 0 ){
+            this.even += b & 0xFF;
+        } else {
+            this.odd += b & 0xFF;
+        }   // end else
+    }
+
+
+    /**
+     * Adds bytes from an array, eight at a time.
+     *
+     * @param bytes     the bytes
+     * @param offset    where to start
+     * @param length    how many bytes to add
+     */
+    public void update( byte[] bytes, int offset, int length ){
+        if( offset < 0 || length < 0 || offset + length > bytes.length )
+            throw new ArrayIndexOutOfBoundsException( String.format(
+                    "KLVChecksum: Offset %d and length %d out of range (byte array length: %d).",
+                    offset, length, bytes.length ) );
+        int pos = offset;
+        int end = offset + length;
+        while( end - pos >= 8 ){
+            long hi = 0;                                // Even positions within each chunk
+            long lo = 0;                                // Odd positions within each chunk
+            int start = pos;
+            int stop = pos + 8 * Math.min( WORDS_PER_FOLD, (end - pos) / 8 );
+            for( ; pos < stop; pos += 8 ){
+                long word = KLV.get64bitLong( bytes, pos );
+                hi += (word >>> 8) & LANES;
+                lo += word & LANES;
+            }   // end for: each long
+            long hiSum = foldLanes( hi );
+            long loSum = foldLanes( lo );
+            if( (this.count & 1) == 0 ){
+                this.even += hiSum;
+                this.odd += loSum;
+            } else {
+                this.even += loSum;
+                this.odd += hiSum;
+            }   // end else: odd alignment
+            this.count += stop - start;
+        }   // end while: whole longs
+        while( pos < end ){
+            update( bytes[ pos++ ] );
+        }   // end while: leftover bytes
+    }
+
+
+    /**
+     * Adds all the bytes in an array.
+     *
+     * @param bytes the bytes
+     */
+    public void update( byte[] bytes ){
+        update( bytes, 0, bytes.length );
+    }
+
+
+    /**
+     * Adds the bytes remaining in a buffer, advancing its
+     * position to its limit.
+     *
+     * @param buffer the bytes
+     */
+    public void update( java.nio.ByteBuffer buffer ){
+        if( buffer.hasArray() ){
+            int n = buffer.remaining();
+            update( buffer.array(), buffer.arrayOffset() + buffer.position(), n );
+            buffer.position( buffer.position() + n );
+        } else {
+            if( (this.count & 1) == 1 && buffer.hasRemaining() ){
+                update( buffer.get() );
+            }   // end if: get back in step
+            java.nio.ByteOrder order = buffer.order();
+            buffer.order( java.nio.ByteOrder.BIG_ENDIAN );
+            try{
+                while( buffer.remaining() >= 8 ){
+                    long hi = 0;
+                    long lo = 0;
+                    int words = Math.min( WORDS_PER_FOLD, buffer.remaining() / 8 );
+                    for( int i = 0; i < words; i++ ){
+                        long word = buffer.getLong();
+                        hi += (word >>> 8) & LANES;
+                        lo += word & LANES;
+                    }   // end for: each long
+                    this.even += foldLanes( hi );
+                    this.odd += foldLanes( lo );
+                    this.count += 8 * words;
+                }   // end while: whole longs
+            } finally {
+                buffer.order( order );
+            }   // end finally
+            while( buffer.hasRemaining() ){
+                update( buffer.get() );
+            }   // end while: leftover bytes
+        }   // end else: direct
+    }
+
+
+    /**
+     * Appends another checksum, as if the bytes it was made
+     * from had been added to this one.
+     *
+     * @param other the checksum of the bytes that follow
+     */
+    public void update( KLVChecksum other ){
+        if( (this.count & 1) == 0 ){
+            this.even += other.even;
+            this.odd += other.odd;
+        } else {
+            this.even += other.odd;
+            this.odd += other.even;
+        }   // end else: odd alignment
+        this.count += other.count;
+    }
+
+
+    /**
+     * Takes back a byte that was added at the given position,
+     * counting from the first byte added, without changing the
+     * number of bytes. Used to leave a value out of the sum
+     * after the fact.
+     *
+     * @param position  where the byte was
+     * @param b         the byte
+     */
+    public void remove( long position, int b ){
+        if( (position & 1) == 0 ){
+            this.even -= b & 0xFF;
+        } else {
+            this.odd -= b & 0xFF;
+        }   // end else
+    }
+
+
+    /**
+     * Returns the checksum of the bytes so far, 0 to 65535.
+     *
+     * @return the checksum
+     */
+    public long getValue(){
+        return ((this.even << 8) + this.odd) & 0xFFFF;
+    }
+
+
+    /**
+     * Returns the number of bytes added.
+     *
+     * @return the number of bytes
+     */
+    public long getCount(){
+        return this.count;
+    }
+
+
+    /**
+     * Starts over with no bytes.
+     */
+    public void reset(){
+        this.even = 0;
+        this.odd = 0;
+        this.count = 0;
+    }
+
+
+
+/* ********  S T A T I C   M E T H O D S  ******** */
+
+
+    /**
+     * Returns the checksum of part of an array.
+     *
+     * @param bytes     the bytes
+     * @param offset    where to start
+     * @param length    how many bytes
+     * @return the checksum, 0 to 65535
+     */
+    public static int compute( byte[] bytes, int offset, int length ){
+        KLVChecksum sum = new KLVChecksum();
+        sum.update( bytes, offset, length );
+        return (int)sum.getValue();
+    }
+
+
+    /** Adds up the four 16-bit lanes of a long. */
+    private static long foldLanes( long lanes ){
+        return (lanes & 0xFFFF) + ((lanes >>> 16) & 0xFFFF) + ((lanes >>> 32) & 0xFFFF) + (lanes >>> 48);
+    }
+
+
+
+/* ********  O B J E C T   O V E R R I D E  ******** */
+
+
+    @Override
+    public String toString(){
+        return String.format( "KLVChecksum[0x%04X, %d bytes]", getValue(), this.count );
+    }
+
+
+}   // end class KLVChecksum
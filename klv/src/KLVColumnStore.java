@@ -0,0 +1,721 @@
+import java.util.*;
+
+
+/**
+ * <p>Keeps millions of decoded local sets in memory as columns of
+ * primitives, one column per {@link KLVSchema} slot, instead of as
+ * lists of <code>KLV</code> objects. Each row is one local set and
+ * has a time stamp. A column is an <tt>int[]</tt> for integers of up
+ * to 32 bits (unsigned 32-bit integers need a <tt>long[]</tt>), a
+ * <tt>long[]</tt> for larger integers, a <tt>double[]</tt> for floating
+ * point and scaled values, or offsets into a single shared byte arena
+ * for strings and bytes. A bitmap in each column records which rows
+ * have a value. A value costs its primitive size plus one bit, rather
+ * than the couple hundred bytes of a <code>KLV</code> object.</p>
+ *
+ * <p>Rows are appended by decoding local sets straight into the store,
+ * which is a {@link KLVSchema.Target}:</p>
+ * <pre>
+ * KLVColumnStore store = new KLVColumnStore( uas, "timestamp" );
+ * for( KLV klv : packets ){
+ *     store.append( klv );
+ * }
+ * int heading = uas.slotOf( "platformHeading" );
+ * double avg = store.average( heading, start, end );
+ * </pre>
+ *
+ * <p>Time windows include their start and exclude their end. Finding a
+ * window is a binary search as long as rows were appended in time order;
+ * if they were not, every row is checked instead.</p>
+ *
+ * <p>A column store is not thread safe.</p>
+ *
+ * <p>This code is released into the Public Domain. Enjoy.</p>
+ *
+ * @author Robert Harder
+ * @author rharder@users.sourceforge.net
+ * @version 0.3.1
+ */
+public class KLVColumnStore implements KLVSchema.Target {
+
+
+/* ********  S T A T I C   F I E L D S  ******** */
+
+
+    /** Rows allocated when the store is created. */
+    private final static int INITIAL_CAPACITY = 1024;
+
+    /** Bytes allocated for the arena when the first string or bytes value arrives. */
+    private final static int INITIAL_ARENA = 4096;
+
+
+
+/* ********  I N S T A N C E   F I E L D S  ******** */
+
+
+    private final KLVSchema schema;
+
+    /** Slot holding each row's time stamp, or -1 if supplied by the caller. */
+    private final int timeSlot;
+
+    private final Column[] columns;
+
+    private long[] times;
+    private int rows;
+    private int capacity;
+
+    /** Whether every time stamp so far is at least the one before it. */
+    private boolean sorted = true;
+
+    /** Strings and bytes of every column, end to end. */
+    private byte[] arena = new byte[0];
+    private int arenaSize;
+
+    /** Row being filled by {@link KLVSchema#decode}. */
+    private int current = -1;
+
+
+
+/* ********  C O N S T R U C T O R S  ******** */
+
+
+    /**
+     * Creates a store whose rows are time stamped by the caller.
+     *
+     * @param schema the schema of the local sets
+     */
+    public KLVColumnStore( KLVSchema schema ){
+        this( schema, null );
+    }
+
+
+    /**
+     * Creates a store whose rows are time stamped with the named field,
+     * which must be an unscaled integer. A local set without that field
+     * is given the time stamp of the row before it.
+     *
+     * @param schema    the schema of the local sets
+     * @param timeField name of the time stamp field, or null
+     * @throws IllegalArgumentException if the field is not an unscaled integer
+     */
+    public KLVColumnStore( KLVSchema schema, String timeField ){
+        if( schema == null )
+            throw new NullPointerException( "KLVColumnStore: Schema must not be null." );
+        this.schema = schema;
+        if( timeField == null ){
+            this.timeSlot = -1;
+        } else {
+            this.timeSlot = schema.slotOf( timeField );
+            if( schema.getKind( this.timeSlot ) != KLVSchema.Kind.LONG )
+                throw new IllegalArgumentException( "KLVColumnStore: Time stamp must be an unscaled integer: " + timeField );
+        }   // end else
+
+        this.capacity = INITIAL_CAPACITY;
+        this.times = new long[ this.capacity ];
+        this.columns = new Column[ schema.getSlotCount() ];
+        for( int i = 0; i < this.columns.length; i++ ){
+            this.columns[i] = new Column( schema.getType(i), schema.getKind(i), this.capacity );
+        }   // end for: each slot
+    }
+
+
+
+/* ********  A P P E N D   M E T H O D S  ******** */
+
+
+    /**
+     * Appends the local set in a KLV set's value,
+     * time stamped with the schema's time field.
+     *
+     * @param klv the KLV set
+     * @return    the new row
+     * @throws IllegalArgumentException if the value is not well-formed KLV
+     * @throws IllegalStateException if the store has no time field
+     */
+    public int append( KLV klv ){
+        return append( klv.getValue(), 0, klv.getLength() );
+    }
+
+
+    /**
+     * Appends a local set, time stamped with the schema's time field.
+     *
+     * @param bytes     the array holding the local set
+     * @param offset    where the local set begins
+     * @param length    how many bytes the local set has
+     * @return          the new row
+     * @throws IllegalArgumentException if the bytes are not well-formed KLV
+     * @throws IllegalStateException if the store has no time field
+     */
+    public int append( byte[] bytes, int offset, int length ){
+        if( this.timeSlot < 0 )
+            throw new IllegalStateException( "KLVColumnStore: No time field, so a time stamp must be supplied." );
+        return append( 0, bytes, offset, length );
+    }
+
+
+    /**
+     * Appends a local set with the given time stamp, or with
+     * the schema's time field if the store has one.
+     *
+     * @param time      the row's time stamp
+     * @param bytes     the array holding the local set
+     * @param offset    where the local set begins
+     * @param length    how many bytes the local set has
+     * @return          the new row
+     * @throws IllegalArgumentException if the bytes are not well-formed KLV,
+     *                                  in which case nothing is appended
+     */
+    public int append( long time, byte[] bytes, int offset, int length ){
+        if( this.rows == this.capacity ){
+            grow();
+        }   // end if: full
+        int row = this.rows;
+        int arenaMark = this.arenaSize;
+        this.current = row;
+        try{
+            this.schema.decode( bytes, offset, length, this );
+        } catch( RuntimeException exc ){
+            for( Column c : this.columns ){
+                c.clearPresent( row );
+            }   // end for: each column
+            this.arenaSize = arenaMark;
+            throw exc;
+        } finally {
+            this.current = -1;
+        }   // end finally
+
+        if( this.timeSlot >= 0 ){
+            Column tc = this.columns[ this.timeSlot ];
+            if( tc.isPresent( row ) ){
+                time = tc.getLong( row );
+            } else {
+                time = row == 0 ? 0 : this.times[ row - 1 ];
+            }   // end else: no time stamp
+        }   // end if: time from field
+        if( row > 0 && time < this.times[ row - 1 ] ){
+            this.sorted = false;
+        }   // end if: out of order
+        this.times[ row ] = time;
+        this.rows++;
+        return row;
+    }
+
+
+    /**
+     * Removes every row, keeping the allocated arrays.
+     */
+    public void clear(){
+        for( Column c : this.columns ){
+            c.clearAllPresent();
+        }   // end for: each column
+        this.rows = 0;
+        this.arenaSize = 0;
+        this.sorted = true;
+    }
+
+
+    /**
+     * Shrinks the arrays to the number of rows in the store,
+     * once no more rows are expected.
+     */
+    public void trimToSize(){
+        resize( Math.max( this.rows, 1 ) );
+        if( this.arena.length > this.arenaSize ){
+            this.arena = Arrays.copyOf( this.arena, this.arenaSize );
+        }   // end if: arena too big
+    }
+
+
+
+/* ********  T A R G E T   M E T H O D S  ******** */
+
+
+    public void putLong( int slot, long value ){
+        checkDecoding();
+        this.columns[ slot ].putLong( this.current, value );
+    }
+
+
+    public void putDouble( int slot, double value ){
+        checkDecoding();
+        this.columns[ slot ].putDouble( this.current, value );
+    }
+
+
+    public void putBytes( int slot, byte[] bytes, int offset, int length ){
+        checkDecoding();
+        if( this.arena.length - this.arenaSize < length ){
+            long needed = (long)this.arenaSize + length;
+            long newSize = Math.max( Math.max( INITIAL_ARENA, this.arena.length * 2L ), needed );
+            if( needed > Integer.MAX_VALUE - 8 )
+                throw new IllegalStateException( "KLVColumnStore: Byte arena is full." );
+            this.arena = Arrays.copyOf( this.arena, (int)Math.min( newSize, Integer.MAX_VALUE - 8 ) );
+        }   // end if: arena full
+        System.arraycopy( bytes, offset, this.arena, this.arenaSize, length );
+        this.columns[ slot ].putBytes( this.current, this.arenaSize, length );
+        this.arenaSize += length;
+    }
+
+
+
+/* ********  R O W   M E T H O D S  ******** */
+
+
+    /** Returns the schema of the local sets. */
+    public KLVSchema getSchema(){
+        return this.schema;
+    }
+
+
+    /** Returns the number of rows. */
+    public int size(){
+        return this.rows;
+    }
+
+
+    /** Returns the row's time stamp. */
+    public long getTime( int row ){
+        checkRow( row );
+        return this.times[ row ];
+    }
+
+
+    /** Returns true if the row has a value in the slot. */
+    public boolean isPresent( int slot, int row ){
+        checkRow( row );
+        return this.columns[ slot ].isPresent( row );
+    }
+
+
+    /**
+     * Returns the value in the slot as a long, converting from
+     * a double if need be, or zero if there is none.
+     */
+    public long getLong( int slot, int row ){
+        checkRow( row );
+        Column c = this.columns[ slot ];
+        return c.isPresent( row ) ? c.getLong( row ) : 0;
+    }
+
+
+    /**
+     * Returns the value in the slot as a double, converting from
+     * an integer if need be, or <tt>NaN</tt> if there is none.
+     */
+    public double getDouble( int slot, int row ){
+        checkRow( row );
+        Column c = this.columns[ slot ];
+        return c.isPresent( row ) ? c.getDouble( row ) : Double.NaN;
+    }
+
+
+    /** Returns a copy of the bytes in the slot, or null if there are none. */
+    public byte[] getBytes( int slot, int row ){
+        checkRow( row );
+        Column c = this.columns[ slot ];
+        if( c.kind != KLVSchema.Kind.BYTES || !c.isPresent( row ) ){
+            return null;
+        }   // end if: no bytes
+        return Arrays.copyOfRange( this.arena, c.offsets[ row ], c.offsets[ row ] + c.lengths[ row ] );
+    }
+
+
+    /** Returns the bytes in the slot as a string, or null if there are none. */
+    public String getString( int slot, int row ){
+        checkRow( row );
+        Column c = this.columns[ slot ];
+        if( c.kind != KLVSchema.Kind.BYTES || !c.isPresent( row ) ){
+            return null;
+        }   // end if: no bytes
+        try{
+            return new String( this.arena, c.offsets[ row ], c.lengths[ row ], KLV.DEFAULT_CHARSET_NAME );
+        } catch( java.io.UnsupportedEncodingException exc ){
+            return new String( this.arena, c.offsets[ row ], c.lengths[ row ] );
+        }   // end catch
+    }
+
+
+    /**
+     * Returns roughly how many bytes the store's arrays take up.
+     *
+     * @return approximate memory use in bytes
+     */
+    public long getMemoryUsage(){
+        long total = 8L * this.times.length + this.arena.length;
+        for( Column c : this.columns ){
+            total += c.memoryUsage();
+        }   // end for: each column
+        return total;
+    }
+
+
+
+/* ********  R A N G E   M E T H O D S  ******** */
+
+
+    /**
+     * Returns the first row whose time stamp is at least <tt>time</tt>,
+     * or {@link #size} if there is none. Only meaningful if rows were
+     * appended in time order.
+     *
+     * @param time the time stamp to look for
+     * @return the row
+     */
+    public int lowerBound( long time ){
+        int lo = 0;
+        int hi = this.rows;
+        while( lo < hi ){
+            int mid = (lo + hi) >>> 1;
+            if( this.times[ mid ] < time ){
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }   // end else
+        }   // end while
+        return lo;
+    }
+
+
+    /** Returns true if rows were appended in time order. */
+    public boolean isSorted(){
+        return this.sorted;
+    }
+
+
+    /**
+     * Calls the visitor for every row from <tt>start</tt> (inclusive) to
+     * <tt>end</tt> (exclusive) that has a value in the slot, in row order.
+     *
+     * @param slot      a numeric slot
+     * @param start     start of the window
+     * @param end       end of the window
+     * @param visitor   receives each value
+     * @return the number of values visited
+     */
+    public int scan( int slot, long start, long end, Visitor visitor ){
+        Column c = numericColumn( slot );
+        int from = this.sorted ? lowerBound( start ) : 0;
+        int to = this.sorted ? lowerBound( end ) : this.rows;
+        int count = 0;
+        for( int row = from; row < to; row++ ){
+            long t = this.times[ row ];
+            if( c.isPresent( row ) && t >= start && t < end ){
+                visitor.visit( row, t, c.getDouble( row ) );
+                count++;
+            }   // end if: in window
+        }   // end for: each row
+        return count;
+    }
+
+
+    /**
+     * Returns the count, minimum, maximum, sum and average of the
+     * values in the slot between <tt>start</tt> (inclusive) and
+     * <tt>end</tt> (exclusive).
+     *
+     * @param slot      a numeric slot
+     * @param start     start of the window
+     * @param end       end of the window
+     * @return          the statistics
+     */
+    public Stats stats( int slot, long start, long end ){
+        Column c = numericColumn( slot );
+        int from = this.sorted ? lowerBound( start ) : 0;
+        int to = this.sorted ? lowerBound( end ) : this.rows;
+        boolean check = !this.sorted;
+        Stats s = new Stats();
+        switch( c.storage ){
+            case INT:
+                for( int row = from; row < to; row++ ){
+                    if( c.isPresent( row ) && (!check || inWindow( row, start, end )) ){
+                        s.add( c.ints[ row ] );
+                    }   // end if: has value
+                }   // end for: each row
+                break;
+            case LONG:
+                for( int row = from; row < to; row++ ){
+                    if( c.isPresent( row ) && (!check || inWindow( row, start, end )) ){
+                        s.add( c.longs[ row ] );
+                    }   // end if: has value
+                }   // end for: each row
+                break;
+            case DOUBLE:
+                for( int row = from; row < to; row++ ){
+                    if( c.isPresent( row ) && (!check || inWindow( row, start, end )) ){
+                        s.add( c.doubles[ row ] );
+                    }   // end if: has value
+                }   // end for: each row
+                break;
+            default:
+                assert false : c.storage;
+        }   // end switch
+        return s;
+    }
+
+
+    /** Returns the smallest value in the window, or <tt>NaN</tt> if there are none. */
+    public double min( int slot, long start, long end ){
+        return stats( slot, start, end ).getMin();
+    }
+
+
+    /** Returns the largest value in the window, or <tt>NaN</tt> if there are none. */
+    public double max( int slot, long start, long end ){
+        return stats( slot, start, end ).getMax();
+    }
+
+
+    /** Returns the average value in the window, or <tt>NaN</tt> if there are none. */
+    public double average( int slot, long start, long end ){
+        return stats( slot, start, end ).getAverage();
+    }
+
+
+
+/* ********  P R I V A T E   M E T H O D S  ******** */
+
+
+    private boolean inWindow( int row, long start, long end ){
+        long t = this.times[ row ];
+        return t >= start && t < end;
+    }
+
+
+    private Column numericColumn( int slot ){
+        Column c = this.columns[ slot ];
+        if( c.kind == KLVSchema.Kind.BYTES )
+            throw new IllegalArgumentException( "KLVColumnStore: Slot is not numeric: " + this.schema.getName( slot ) );
+        return c;
+    }
+
+
+    private void checkDecoding(){
+        if( this.current < 0 )
+            throw new IllegalStateException( "KLVColumnStore: Values can only be put while appending a row." );
+    }
+
+
+    private void checkRow( int row ){
+        if( row < 0 || row >= this.rows )
+            throw new IndexOutOfBoundsException( "KLVColumnStore: Row " + row + ", size " + this.rows );
+    }
+
+
+    private void grow(){
+        long newCapacity = this.capacity + (this.capacity >> 1) + 1;
+        if( newCapacity > Integer.MAX_VALUE - 8 ){
+            if( this.capacity == Integer.MAX_VALUE - 8 )
+                throw new IllegalStateException( "KLVColumnStore: Store is full." );
+            newCapacity = Integer.MAX_VALUE - 8;
+        }   // end if: too big
+        resize( (int)newCapacity );
+    }
+
+
+    private void resize( int newCapacity ){
+        this.times = Arrays.copyOf( this.times, newCapacity );
+        for( Column c : this.columns ){
+            c.resize( newCapacity );
+        }   // end for: each column
+        this.capacity = newCapacity;
+    }
+
+
+
+/* ********  I N N E R   C L A S S E S  ******** */
+
+
+    /**
+     * Receives values from {@link KLVColumnStore#scan}.
+     */
+    public static interface Visitor {
+
+        /**
+         * Receives one value.
+         *
+         * @param row   the row
+         * @param time  the row's time stamp
+         * @param value the value
+         */
+        public abstract void visit( int row, long time, double value );
+    }   // end interface Visitor
+
+
+
+    /**
+     * Count, minimum, maximum, sum and average of some values.
+     */
+    public static class Stats {
+        private int count;
+        private double min = Double.NaN;
+        private double max = Double.NaN;
+        private double sum;
+
+        private void add( double value ){
+            if( this.count == 0 ){
+                this.min = value;
+                this.max = value;
+            } else {
+                if( value < this.min ) this.min = value;
+                if( value > this.max ) this.max = value;
+            }   // end else
+            this.sum += value;
+            this.count++;
+        }
+
+        /** Returns the number of values. */
+        public int getCount(){
+            return this.count;
+        }
+
+        /** Returns the smallest value, or <tt>NaN</tt> if there are none. */
+        public double getMin(){
+            return this.min;
+        }
+
+        /** Returns the largest value, or <tt>NaN</tt> if there are none. */
+        public double getMax(){
+            return this.max;
+        }
+
+        /** Returns the sum of the values. */
+        public double getSum(){
+            return this.sum;
+        }
+
+        /** Returns the average value, or <tt>NaN</tt> if there are none. */
+        public double getAverage(){
+            return this.count == 0 ? Double.NaN : this.sum / this.count;
+        }
+
+        @Override
+        public String toString(){
+            return String.format( "count=%d, min=%s, max=%s, avg=%s", this.count, this.min, this.max, getAverage() );
+        }
+    }   // end class Stats
+
+
+
+    /** How a column's values are held. */
+    private static enum Storage { INT, LONG, DOUBLE, BYTES }
+
+
+
+    /**
+     * One slot's values, with a bitmap of which rows have one.
+     * Only the arrays for the column's storage are allocated.
+     */
+    private static final class Column {
+        private final KLVSchema.Kind kind;
+        private final Storage storage;
+        private long[] present;
+        private int[] ints;
+        private long[] longs;
+        private double[] doubles;
+        private int[] offsets;
+        private int[] lengths;
+
+        private Column( KLVSchema.Type type, KLVSchema.Kind kind, int capacity ){
+            this.kind = kind;
+            switch( kind ){
+                case LONG:
+                    this.storage = type.size() < 4 || type == KLVSchema.Type.INT32 ? Storage.INT : Storage.LONG;
+                    break;
+                case DOUBLE:
+                    this.storage = Storage.DOUBLE;
+                    break;
+                default:
+                    this.storage = Storage.BYTES;
+            }   // end switch
+            this.present = new long[0];
+            resize( capacity );
+        }
+
+        private void resize( int capacity ){
+            this.present = Arrays.copyOf( this.present, (capacity + 63) >>> 6 );
+            switch( this.storage ){
+                case INT:    this.ints = this.ints == null ? new int[ capacity ] : Arrays.copyOf( this.ints, capacity ); break;
+                case LONG:   this.longs = this.longs == null ? new long[ capacity ] : Arrays.copyOf( this.longs, capacity ); break;
+                case DOUBLE: this.doubles = this.doubles == null ? new double[ capacity ] : Arrays.copyOf( this.doubles, capacity ); break;
+                case BYTES:
+                    this.offsets = this.offsets == null ? new int[ capacity ] : Arrays.copyOf( this.offsets, capacity );
+                    this.lengths = this.lengths == null ? new int[ capacity ] : Arrays.copyOf( this.lengths, capacity );
+                    break;
+            }   // end switch
+        }
+
+        private long memoryUsage(){
+            long total = 8L * this.present.length;
+            if( this.ints != null ) total += 4L * this.ints.length;
+            if( this.longs != null ) total += 8L * this.longs.length;
+            if( this.doubles != null ) total += 8L * this.doubles.length;
+            if( this.offsets != null ) total += 8L * this.offsets.length;
+            return total;
+        }
+
+        private boolean isPresent( int row ){
+            return (this.present[ row >>> 6 ] & (1L << row)) != 0;
+        }
+
+        private void setPresent( int row ){
+            this.present[ row >>> 6 ] |= 1L << row;
+        }
+
+        private void clearPresent( int row ){
+            this.present[ row >>> 6 ] &= ~(1L << row);
+        }
+
+        private void clearAllPresent(){
+            Arrays.fill( this.present, 0L );
+        }
+
+        private void putLong( int row, long value ){
+            switch( this.storage ){
+                case INT:    this.ints[ row ] = (int)value; break;
+                case LONG:   this.longs[ row ] = value; break;
+                case DOUBLE: this.doubles[ row ] = value; break;
+                default:     return;
+            }   // end switch
+            setPresent( row );
+        }
+
+        private void putDouble( int row, double value ){
+            switch( this.storage ){
+                case INT:    this.ints[ row ] = (int)value; break;
+                case LONG:   this.longs[ row ] = (long)value; break;
+                case DOUBLE: this.doubles[ row ] = value; break;
+                default:     return;
+            }   // end switch
+            setPresent( row );
+        }
+
+        private void putBytes( int row, int offset, int length ){
+            if( this.storage == Storage.BYTES ){
+                this.offsets[ row ] = offset;
+                this.lengths[ row ] = length;
+                setPresent( row );
+            }   // end if: bytes column
+        }
+
+        private long getLong( int row ){
+            switch( this.storage ){
+                case INT:    return this.ints[ row ];
+                case LONG:   return this.longs[ row ];
+                case DOUBLE: return (long)this.doubles[ row ];
+                default:     return 0;
+            }   // end switch
+        }
+
+        private double getDouble( int row ){
+            switch( this.storage ){
+                case INT:    return this.ints[ row ];
+                case LONG:   return this.longs[ row ];
+                case DOUBLE: return this.doubles[ row ];
+                default:     return Double.NaN;
+            }   // end switch
+        }
+    }   // end class Column
+
+
+}   // end class KLVColumnStore
@@ -0,0 +1,1029 @@
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.FileChannel;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+
+/**
+ * <p>A compact index of the top-level KLV sets in a large recorded file,
+ * for random access without re-parsing the file from the beginning.
+ * The file is memory-mapped, and while indexing only the key and length
+ * fields are read: values are skipped over by their length.</p>
+ *
+ * <p>For each KLV set the index keeps its offset, its key, and the sizes
+ * of its header and value in primitive arrays, about 17 bytes per set.
+ * Sixteen-byte keys are stored as a number that refers to a small table
+ * of the distinct {@link UniversalLabel}s seen in the file.</p>
+ *
+ * <p>Optionally the index can also record a time stamp for every set,
+ * read from a configured tag in the set's value (treated as a local set),
+ * and then be binary searched by time with {@link #findTimestamp}. A set
+ * without the tag is given the time stamp of the set before it, so the
+ * search assumes time stamps never decrease in the file.</p>
+ *
+ * <p>The index is saved next to the file with the suffix
+ * {@link #INDEX_SUFFIX} and reused the next time the file is opened,
+ * as long as the file's length and modification time haven't changed
+ * and the same settings are used. If a recording ends in the middle of
+ * a KLV set, that last partial set is left out of the index and
+ * {@link #isTruncated} returns true. A length field that cannot be
+ * decoded is reported as corruption with an <tt>IOException</tt> instead.
+ * A damaged length field that happens to run past the end of the file
+ * cannot be told apart from a recording that was cut short, and is
+ * treated as a truncated tail.</p>
+ *
+ * <p>Example:</p>
+ * <pre>
+ * KLVFileIndex index = KLVFileIndex.open( file,
+ *     KLV.KeyLength.SixteenBytes, KLV.LengthEncoding.BER,
+ *     2, KLV.KeyLength.OneByte, KLV.LengthEncoding.BER );  // Time stamp is tag 2
+ * int i = index.findTimestamp( someMicroseconds );
+ * KLV klv = index.getKLV( i );
+ * index.close();
+ * </pre>
+ *
+ * <p>This can also be run from the command line to build an index
+ * and print a summary of the file. Run with <tt>-h</tt> for usage.</p>
+ *
+ * <p>This code is released into the Public Domain. Enjoy.</p>
+ *
+ * @author Robert Harder
+ * @author rharder@users.sourceforge.net
+ * @version 0.3.1
+ */
+public class KLVFileIndex implements Closeable {
+
+
+/* ********  S T A T I C   F I E L D S  ******** */
+
+
+    /** Suffix added to the recorded file's name for the saved index. */
+    public final static String INDEX_SUFFIX = ".kidx";
+
+    /** "KLVIDX" and a version number. */
+    private final static long MAGIC = 0x4B4C5649445800L | 1;
+
+    /** The file is mapped in segments of this many bytes... */
+    private final static int SEGMENT_BITS = 30;
+    private final static long SEGMENT_SIZE = 1L << SEGMENT_BITS;
+
+    /** ...plus this much overlap so that headers never straddle two mappings. */
+    private final static long SEGMENT_OVERLAP = 1L << 24;
+
+    /** Marks that there is no time stamp tag. */
+    private final static int NO_TAG = -1;
+
+    /** Bytes in the header of a saved index, before the labels. */
+    private final static int HEADER_SIZE = 60;
+
+    /** Size of buffer used for saving and loading the index. */
+    private final static int IO_BUFFER_SIZE = 1 << 20;
+
+    private final static int INITIAL_CAPACITY = 1024;
+
+    private final static String[] USAGE = new String[]{
+        "Usage: java KLVFileIndex [options] file",
+        "   -k 1|2|4|16     Key length (default 16)",
+        "   -l 1|2|4|ber    Length encoding (default ber)",
+        "   -t tag          Time stamp tag inside each set (one-byte keys, BER lengths)",
+        "   -r              Rebuild the index even if a saved one is current",
+        "   -h              This help message"
+    };
+
+
+
+/* ********  I N S T A N C E   F I E L D S  ******** */
+
+
+    private final File file;
+    private final RandomAccessFile raf;
+    private final FileChannel channel;
+    private final long fileLength;
+    private final AtomicReferenceArray<MappedByteBuffer> segments;   // Read without a lock by many threads
+
+    private final KLV.KeyLength keyLength;
+    private final KLV.LengthEncoding lengthEncoding;
+    private final int timestampTag;
+    private final KLV.KeyLength timestampKeyLength;
+    private final KLV.LengthEncoding timestampLengthEncoding;
+
+    /** Number of KLV sets indexed. */
+    private int size;
+
+    /** Offset in the file of each KLV set. */
+    private long[] offsets;
+
+    /** Short key, or for sixteen-byte keys, the position in <tt>labels</tt>. */
+    private int[] keys;
+
+    /** Length of each value. */
+    private int[] valueLengths;
+
+    /** Number of bytes of key and length field for each set. */
+    private byte[] headerLengths;
+
+    /** Time stamp of each set, or null if no time stamp tag is configured. */
+    private long[] timestamps;
+
+    /** Distinct sixteen-byte keys in the file. */
+    private UniversalLabel[] labels = new UniversalLabel[0];
+
+    /** Number of bytes of the file covered by the index. */
+    private long indexedLength;
+
+    /** Whether the index was loaded from a saved file. */
+    private boolean loaded;
+
+
+
+/* ********  C O N S T R U C T O R S  ******** */
+
+
+    private KLVFileIndex( File file,
+            KLV.KeyLength keyLength, KLV.LengthEncoding lengthEncoding,
+            int timestampTag, KLV.KeyLength timestampKeyLength, KLV.LengthEncoding timestampLengthEncoding )
+    throws IOException {
+        if( file == null )
+            throw new NullPointerException( "KLVFileIndex: File must not be null." );
+        if( keyLength == null )
+            throw new NullPointerException( "KLVFileIndex: Key length must not be null." );
+        if( lengthEncoding == null )
+            throw new NullPointerException( "KLVFileIndex: Length encoding must not be null." );
+        if( timestampTag != NO_TAG ){
+            if( timestampKeyLength == null || timestampLengthEncoding == null )
+                throw new NullPointerException( "KLVFileIndex: Time stamp key length and length encoding must not be null." );
+            if( timestampKeyLength == KLV.KeyLength.SixteenBytes )
+                throw new IllegalArgumentException( "KLVFileIndex: Time stamp tag cannot have a sixteen-byte key." );
+        }   // end if: time stamps
+
+        this.file = file;
+        this.keyLength = keyLength;
+        this.lengthEncoding = lengthEncoding;
+        this.timestampTag = timestampTag;
+        this.timestampKeyLength = timestampKeyLength;
+        this.timestampLengthEncoding = timestampLengthEncoding;
+
+        this.raf = new RandomAccessFile( file, "r" );
+        this.channel = this.raf.getChannel();
+        this.fileLength = this.channel.size();
+        this.segments = new AtomicReferenceArray<MappedByteBuffer>(
+                (int)((this.fileLength + SEGMENT_SIZE - 1) >>> SEGMENT_BITS) );
+    }
+
+
+
+    /**
+     * Opens a recorded file of top-level KLV sets, using the saved index
+     * if it is current or else building (and saving) a new one.
+     *
+     * @param file              The recorded file
+     * @param keyLength         Length of keys of the top-level sets
+     * @param lengthEncoding    Length encoding of the top-level sets
+     * @return                  The index, which should be closed when finished
+     * @throws IOException if the file cannot be read or is not KLV
+     */
+    public static KLVFileIndex open( File file, KLV.KeyLength keyLength, KLV.LengthEncoding lengthEncoding )
+    throws IOException {
+        return open( file, keyLength, lengthEncoding, NO_TAG, null, null, false );
+    }
+
+
+    /**
+     * Opens a recorded file of top-level KLV sets with a time stamp for each set,
+     * using the saved index if it is current or else building (and saving) a new one.
+     * The time stamp is read as a big endian unsigned integer of up to eight bytes
+     * from the local set with the given tag inside each top-level set.
+     *
+     * @param file                      The recorded file
+     * @param keyLength                 Length of keys of the top-level sets
+     * @param lengthEncoding            Length encoding of the top-level sets
+     * @param timestampTag              Tag of the time stamp inside each set
+     * @param timestampKeyLength        Length of keys inside each set
+     * @param timestampLengthEncoding   Length encoding inside each set
+     * @return                          The index, which should be closed when finished
+     * @throws IOException if the file cannot be read or is not KLV
+     */
+    public static KLVFileIndex open( File file, KLV.KeyLength keyLength, KLV.LengthEncoding lengthEncoding,
+            int timestampTag, KLV.KeyLength timestampKeyLength, KLV.LengthEncoding timestampLengthEncoding )
+    throws IOException {
+        if( timestampTag < 0 )
+            throw new IllegalArgumentException( "KLVFileIndex: Time stamp tag must not be negative: " + timestampTag );
+        return open( file, keyLength, lengthEncoding,
+                timestampTag, timestampKeyLength, timestampLengthEncoding, false );
+    }
+
+
+    private static KLVFileIndex open( File file, KLV.KeyLength keyLength, KLV.LengthEncoding lengthEncoding,
+            int timestampTag, KLV.KeyLength timestampKeyLength, KLV.LengthEncoding timestampLengthEncoding,
+            boolean rebuild )
+    throws IOException {
+        KLVFileIndex index = new KLVFileIndex( file, keyLength, lengthEncoding,
+                timestampTag, timestampKeyLength, timestampLengthEncoding );
+        try{
+            File indexFile = getIndexFile( file );
+            if( rebuild || !index.load( indexFile ) ){
+                index.build();
+                index.save( indexFile );
+            }   // end if: need to build
+        } catch( IOException exc ){
+            index.close();
+            throw exc;
+        } catch( RuntimeException exc ){
+            index.close();
+            throw exc;
+        }   // end catch
+        return index;
+    }
+
+
+    /**
+     * Returns the file where the index for <tt>file</tt> is saved.
+     *
+     * @param file the recorded file
+     * @return the index file
+     */
+    public static File getIndexFile( File file ){
+        return new File( file.getPath() + INDEX_SUFFIX );
+    }
+
+
+
+/* ********  P U B L I C   M E T H O D S  ******** */
+
+
+    /** Returns the recorded file. */
+    public File getFile(){
+        return this.file;
+    }
+
+
+    /** Returns the number of KLV sets in the index. */
+    public int size(){
+        return this.size;
+    }
+
+
+    /**
+     * Returns the number of bytes at the beginning of the file that
+     * the index covers. If this is less than the file's length, the
+     * recording ended in the middle of a KLV set.
+     */
+    public long getIndexedLength(){
+        return this.indexedLength;
+    }
+
+
+    /**
+     * Returns true if the recording ended in the middle of a KLV set,
+     * which is left out of the index, so that the indexed length
+     * is less than the file's length.
+     */
+    public boolean isTruncated(){
+        return this.indexedLength < this.fileLength;
+    }
+
+
+    /** Returns true if the index was loaded from a saved index rather than built. */
+    public boolean isLoaded(){
+        return this.loaded;
+    }
+
+
+    /** Returns true if a time stamp tag was configured. */
+    public boolean hasTimestamps(){
+        return this.timestamps != null;
+    }
+
+
+    /** Returns the key length of the top-level sets. */
+    public KLV.KeyLength getKeyLength(){
+        return this.keyLength;
+    }
+
+
+    /** Returns the length encoding of the top-level sets. */
+    public KLV.LengthEncoding getLengthEncoding(){
+        return this.lengthEncoding;
+    }
+
+
+    /** Returns the offset in the file where the KLV set at <tt>index</tt> begins. */
+    public long getOffset( int index ){
+        checkIndex( index );
+        return this.offsets[ index ];
+    }
+
+
+    /** Returns the offset in the file of the value of the KLV set at <tt>index</tt>. */
+    public long getValueOffset( int index ){
+        checkIndex( index );
+        return this.offsets[ index ] + this.headerLengths[ index ];
+    }
+
+
+    /** Returns the length of the value of the KLV set at <tt>index</tt>. */
+    public int getValueLength( int index ){
+        checkIndex( index );
+        return this.valueLengths[ index ];
+    }
+
+
+    /**
+     * Returns the key of the KLV set at <tt>index</tt> for one-, two-, and
+     * four-byte keys. As with {@link KLV#getShortKey}, for sixteen-byte keys
+     * the lowest four bytes are returned; use {@link #getUniversalLabel} instead.
+     */
+    public int getShortKey( int index ){
+        checkIndex( index );
+        return this.keyLength == KLV.KeyLength.SixteenBytes
+            ? (int)this.labels[ this.keys[index] ].getLow()
+            : this.keys[ index ];
+    }
+
+
+    /**
+     * Returns the key of the KLV set at <tt>index</tt> if keys are
+     * sixteen bytes, or null otherwise.
+     */
+    public UniversalLabel getUniversalLabel( int index ){
+        checkIndex( index );
+        return this.keyLength == KLV.KeyLength.SixteenBytes
+            ? this.labels[ this.keys[index] ]
+            : null;
+    }
+
+
+    /** Returns the distinct sixteen-byte keys found in the file. */
+    public UniversalLabel[] getUniversalLabels(){
+        return this.labels.clone();
+    }
+
+
+    /**
+     * Returns the time stamp of the KLV set at <tt>index</tt>, or
+     * <tt>Long.MIN_VALUE</tt> if no set so far has had a time stamp.
+     *
+     * @throws IllegalStateException if no time stamp tag was configured
+     */
+    public long getTimestamp( int index ){
+        checkIndex( index );
+        if( this.timestamps == null )
+            throw new IllegalStateException( "KLVFileIndex: No time stamp tag was configured." );
+        return this.timestamps[ index ];
+    }
+
+
+    /**
+     * Returns the position of the first KLV set whose time stamp is
+     * at least <tt>time</tt>, or {@link #size} if there is none.
+     * Assumes time stamps never decrease in the file.
+     *
+     * @param time the time stamp to look for
+     * @return position of the KLV set
+     * @throws IllegalStateException if no time stamp tag was configured
+     */
+    public int findTimestamp( long time ){
+        if( this.timestamps == null )
+            throw new IllegalStateException( "KLVFileIndex: No time stamp tag was configured." );
+        int lo = 0;
+        int hi = this.size;
+        while( lo < hi ){
+            int mid = (lo + hi) >>> 1;
+            if( this.timestamps[mid] < time ){
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }   // end else
+        }   // end while
+        return lo;
+    }
+
+
+    /**
+     * Returns the position of the next KLV set at or after <tt>from</tt>
+     * with the given one-, two-, or four-byte key, or -1 if there is none.
+     *
+     * @param shortKey the key to look for
+     * @param from     where to start looking
+     * @return position of the KLV set or -1
+     */
+    public int nextIndexOf( int shortKey, int from ){
+        if( this.keyLength == KLV.KeyLength.SixteenBytes ){
+            return -1;
+        }   // end if: wrong kind of key
+        return nextIndexOfStored( shortKey, from );
+    }
+
+
+    /**
+     * Returns the position of the next KLV set at or after <tt>from</tt>
+     * with the given sixteen-byte key, or -1 if there is none.
+     *
+     * @param label the key to look for
+     * @param from  where to start looking
+     * @return position of the KLV set or -1
+     */
+    public int nextIndexOf( UniversalLabel label, int from ){
+        int stored = labelNumber( label );
+        return stored < 0 ? -1 : nextIndexOfStored( stored, from );
+    }
+
+
+    /**
+     * Returns the positions of all KLV sets with the given
+     * one-, two-, or four-byte key.
+     *
+     * @param shortKey the key to look for
+     * @return positions of the KLV sets, in file order
+     */
+    public int[] indicesOf( int shortKey ){
+        if( this.keyLength == KLV.KeyLength.SixteenBytes ){
+            return new int[0];
+        }   // end if: wrong kind of key
+        return indicesOfStored( shortKey );
+    }
+
+
+    /**
+     * Returns the positions of all KLV sets with the given sixteen-byte key.
+     *
+     * @param label the key to look for
+     * @return positions of the KLV sets, in file order
+     */
+    public int[] indicesOf( UniversalLabel label ){
+        int stored = labelNumber( label );
+        return stored < 0 ? new int[0] : indicesOfStored( stored );
+    }
+
+
+    /**
+     * Returns a read-only view of the value of the KLV set at <tt>index</tt>.
+     * The value is read straight from the mapped file when possible.
+     *
+     * @param index position of the KLV set
+     * @return the value
+     * @throws IOException if the file cannot be read
+     */
+    public ByteBuffer getValue( int index ) throws IOException {
+        checkIndex( index );
+        return slice( getValueOffset(index), this.valueLengths[index] ).asReadOnlyBuffer();
+    }
+
+
+    /**
+     * Reads the KLV set at <tt>index</tt> from the file into a new <code>KLV</code>.
+     *
+     * @param index position of the KLV set
+     * @return the KLV set
+     * @throws IOException if the file cannot be read
+     */
+    public KLV getKLV( int index ) throws IOException {
+        checkIndex( index );
+        int length = this.headerLengths[index] + this.valueLengths[index];
+        byte[] bytes = new byte[ length ];
+        slice( this.offsets[index], length ).get( bytes );
+        return new KLV( bytes, 0, this.keyLength, this.lengthEncoding );
+    }
+
+
+    /** Closes the recorded file and releases the mappings. */
+    public void close() throws IOException {
+        synchronized( this.segments ){
+            for( int s = 0; s < this.segments.length(); s++ ){
+                this.segments.set( s, null );
+            }   // end for: each segment
+        }   // end sync
+        this.raf.close();
+    }
+
+
+
+/* ********  B U I L D I N G  ******** */
+
+
+    /**
+     * Scans the whole file, reading only keys and length fields.
+     * Stops at a set that runs past the end of the file.
+     *
+     * @throws IOException if the file cannot be read or a length field is invalid
+     */
+    private void build() throws IOException {
+        this.size = 0;
+        this.offsets = new long[ INITIAL_CAPACITY ];
+        this.keys = new int[ INITIAL_CAPACITY ];
+        this.valueLengths = new int[ INITIAL_CAPACITY ];
+        this.headerLengths = new byte[ INITIAL_CAPACITY ];
+        this.timestamps = this.timestampTag == NO_TAG ? null : new long[ INITIAL_CAPACITY ];
+        Map<UniversalLabel,Integer> labelNumbers = new LinkedHashMap<UniversalLabel,Integer>();
+
+        int keySize = this.keyLength.value();
+        long lastTimestamp = Long.MIN_VALUE;
+        long pos = 0;
+        while( this.fileLength - pos > keySize ){
+            ByteBuffer seg = segment( pos );
+            int p = (int)(pos & (SEGMENT_SIZE - 1));
+
+            // Key
+            int key = 0;
+            if( this.keyLength == KLV.KeyLength.SixteenBytes ){
+                UniversalLabel label = new UniversalLabel( seg.getLong(p), seg.getLong(p+8) );
+                Integer number = labelNumbers.get( label );
+                if( number == null ){
+                    number = labelNumbers.size();
+                    labelNumbers.put( label, number );
+                }   // end if: new label
+                key = number;
+            } else {
+                for( int i = 0; i < keySize; i++ ){
+                    key = (key << 8) | (seg.get(p+i) & 0xFF);
+                }   // end for: each key byte
+            }   // end else: short key
+
+            // Length
+            int lp = p + keySize;
+            int fieldSize = KLV.getLengthFieldSize( seg, lp, this.lengthEncoding );
+            if( this.lengthEncoding == KLV.LengthEncoding.BER
+             && (fieldSize > 5 || (seg.get(lp) & 0xFF) == 0x80) )
+                throw new IOException( String.format(                       // Corrupt, even if it is also cut short
+                        "KLVFileIndex: Invalid length field at offset %d in %s.", pos, this.file ) );
+            if( lp + fieldSize > seg.limit() ){
+                break;                                  // Recording ended mid-header
+            }   // end if: truncated
+            long valueLength = KLV.getLength( seg, lp, this.lengthEncoding );
+            if( valueLength < 0 || valueLength > Integer.MAX_VALUE )
+                throw new IOException( String.format(
+                        "KLVFileIndex: Invalid length field at offset %d in %s.", pos, this.file ) );
+            int headerLength = keySize + fieldSize;
+            if( pos + headerLength + valueLength > this.fileLength ){
+                break;                                  // Recording ended mid-value
+            }   // end if: truncated
+
+            // Time stamp
+            if( this.timestamps != null ){
+                long ts = readTimestamp( pos + headerLength, (int)valueLength );
+                if( ts != Long.MIN_VALUE ){
+                    lastTimestamp = ts;
+                }   // end if: found
+            }   // end if: time stamps
+
+            add( pos, key, (int)valueLength, headerLength, lastTimestamp );
+            pos += headerLength + valueLength;
+        }   // end while
+
+        this.indexedLength = pos;
+        this.labels = labelNumbers.keySet().toArray( new UniversalLabel[ labelNumbers.size() ] );
+        this.loaded = false;
+    }   // end build
+
+
+    private void add( long offset, int key, int valueLength, int headerLength, long timestamp ){
+        if( this.size == this.offsets.length ){
+            int newCap = this.offsets.length * 2;
+            this.offsets = Arrays.copyOf( this.offsets, newCap );
+            this.keys = Arrays.copyOf( this.keys, newCap );
+            this.valueLengths = Arrays.copyOf( this.valueLengths, newCap );
+            this.headerLengths = Arrays.copyOf( this.headerLengths, newCap );
+            if( this.timestamps != null ){
+                this.timestamps = Arrays.copyOf( this.timestamps, newCap );
+            }   // end if: time stamps
+        }   // end if: full
+        int i = this.size++;
+        this.offsets[i] = offset;
+        this.keys[i] = key;
+        this.valueLengths[i] = valueLength;
+        this.headerLengths[i] = (byte)headerLength;
+        if( this.timestamps != null ){
+            this.timestamps[i] = timestamp;
+        }   // end if: time stamps
+    }
+
+
+    /**
+     * Looks for the time stamp tag in the local set that makes up
+     * a value, returning <tt>Long.MIN_VALUE</tt> if it isn't there
+     * or the value isn't a well-formed local set.
+     */
+    private long readTimestamp( long valueOffset, int valueLength ) throws IOException {
+        ByteBuffer buf = slice( valueOffset, valueLength );
+        int keySize = this.timestampKeyLength.value();
+        int pos = 0;
+        while( valueLength - pos > keySize ){
+            int key = 0;
+            for( int i = 0; i < keySize; i++ ){
+                key = (key << 8) | (buf.get(pos+i) & 0xFF);
+            }   // end for: each key byte
+            int lp = pos + keySize;
+            int fieldSize = KLV.getLengthFieldSize( buf, lp, this.timestampLengthEncoding );
+            if( lp + fieldSize > valueLength ){
+                return Long.MIN_VALUE;
+            }   // end if: malformed
+            long length = KLV.getLength( buf, lp, this.timestampLengthEncoding );
+            int vp = lp + fieldSize;
+            if( length < 0 || vp + length > valueLength ){
+                return Long.MIN_VALUE;
+            }   // end if: malformed
+            if( key == this.timestampTag ){
+                long ts = 0;
+                int n = (int)Math.min( 8, length );
+                for( int i = 0; i < n; i++ ){
+                    ts = (ts << 8) | (buf.get(vp+i) & 0xFF);
+                }   // end for: each byte
+                return ts;
+            }   // end if: found
+            pos = vp + (int)length;
+        }   // end while
+        return Long.MIN_VALUE;
+    }   // end readTimestamp
+
+
+
+/* ********  S A V I N G   A N D   L O A D I N G  ******** */
+
+
+    /**
+     * Saves the index. Failing to save is not fatal since the
+     * index is already in memory, so the file is just removed.
+     */
+    private void save( File indexFile ){
+        FileOutputStream out = null;
+        boolean ok = false;
+        try{
+            out = new FileOutputStream( indexFile );
+            FileChannel ch = out.getChannel();
+            ByteBuffer buf = ByteBuffer.allocateDirect( IO_BUFFER_SIZE );
+
+            buf.putLong( MAGIC );
+            buf.putLong( this.fileLength );
+            buf.putLong( this.file.lastModified() );
+            buf.putInt( this.keyLength.value() );
+            buf.putInt( this.lengthEncoding.ordinal() );
+            buf.putInt( this.timestampTag );
+            buf.putInt( this.timestampTag == NO_TAG ? 0 : this.timestampKeyLength.value() );
+            buf.putInt( this.timestampTag == NO_TAG ? 0 : this.timestampLengthEncoding.ordinal() );
+            buf.putInt( this.size );
+            buf.putLong( this.indexedLength );
+            buf.putInt( this.labels.length );
+            buf.flip();
+            writeFully( ch, buf );
+
+            long[] labelHalves = new long[ this.labels.length * 2 ];
+            for( int i = 0; i < this.labels.length; i++ ){
+                labelHalves[i*2]   = this.labels[i].getHigh();
+                labelHalves[i*2+1] = this.labels[i].getLow();
+            }   // end for: each label
+            writeLongs( ch, buf, labelHalves, labelHalves.length );
+            writeLongs( ch, buf, this.offsets, this.size );
+            writeInts( ch, buf, this.keys, this.size );
+            writeInts( ch, buf, this.valueLengths, this.size );
+            writeBytes( ch, buf, this.headerLengths, this.size );
+            if( this.timestamps != null ){
+                writeLongs( ch, buf, this.timestamps, this.size );
+            }   // end if: time stamps
+            ok = true;
+        } catch( IOException exc ){
+            // Fall through and clean up
+        } finally {
+            try{ if( out != null ) out.close(); }
+            catch( IOException exc ){ ok = false; }
+            if( !ok ){
+                indexFile.delete();
+            }   // end if: failed
+        }   // end finally
+    }   // end save
+
+
+    /**
+     * Loads a saved index, returning false if there isn't one or
+     * it doesn't match the file and settings.
+     */
+    private boolean load( File indexFile ) throws IOException {
+        if( !indexFile.isFile() ){
+            return false;
+        }   // end if: no index
+
+        FileInputStream in = new FileInputStream( indexFile );
+        try{
+            FileChannel ch = in.getChannel();
+            ByteBuffer buf = ByteBuffer.allocateDirect( IO_BUFFER_SIZE );
+            buf.limit( HEADER_SIZE );
+            if( !readFully( ch, buf ) ){
+                return false;
+            }   // end if: too short
+            buf.flip();
+
+            if( buf.getLong() != MAGIC
+             || buf.getLong() != this.fileLength
+             || buf.getLong() != this.file.lastModified()
+             || buf.getInt() != this.keyLength.value()
+             || buf.getInt() != this.lengthEncoding.ordinal()
+             || buf.getInt() != this.timestampTag
+             || buf.getInt() != (this.timestampTag == NO_TAG ? 0 : this.timestampKeyLength.value())
+             || buf.getInt() != (this.timestampTag == NO_TAG ? 0 : this.timestampLengthEncoding.ordinal()) ){
+                return false;
+            }   // end if: stale or different settings
+            int count = buf.getInt();
+            long indexed = buf.getLong();
+            int labelCount = buf.getInt();
+            long setBytes = 8 + 4 + 4 + 1 + (this.timestampTag == NO_TAG ? 0 : 8);
+            if( count < 0 || labelCount < 0 || indexed < 0 || indexed > this.fileLength
+             || (long)count * (this.keyLength.value() + 1) > indexed     // Each set has a key and a length
+             || ch.size() != HEADER_SIZE + 16L * labelCount + setBytes * count ){
+                return false;
+            }   // end if: corrupt, checked before allocating
+
+            long[] labelHalves = new long[ labelCount * 2 ];
+            long[] offs = new long[ count ];
+            int[] ks = new int[ count ];
+            int[] lens = new int[ count ];
+            byte[] hdrs = new byte[ count ];
+            long[] ts = this.timestampTag == NO_TAG ? null : new long[ count ];
+            if( !readLongs( ch, buf, labelHalves )
+             || !readLongs( ch, buf, offs )
+             || !readInts( ch, buf, ks )
+             || !readInts( ch, buf, lens )
+             || !readBytes( ch, buf, hdrs )
+             || (ts != null && !readLongs( ch, buf, ts )) ){
+                return false;
+            }   // end if: truncated
+
+            UniversalLabel[] uls = new UniversalLabel[ labelCount ];
+            for( int i = 0; i < labelCount; i++ ){
+                uls[i] = new UniversalLabel( labelHalves[i*2], labelHalves[i*2+1] );
+            }   // end for: each label
+
+            this.size = count;
+            this.offsets = offs;
+            this.keys = ks;
+            this.valueLengths = lens;
+            this.headerLengths = hdrs;
+            this.timestamps = ts;
+            this.labels = uls;
+            this.indexedLength = indexed;
+            this.loaded = true;
+            return true;
+        } finally {
+            in.close();
+        }   // end finally
+    }   // end load
+
+
+    private static void writeFully( FileChannel ch, ByteBuffer buf ) throws IOException {
+        while( buf.hasRemaining() ){
+            ch.write( buf );
+        }   // end while
+    }
+
+    private static void writeLongs( FileChannel ch, ByteBuffer buf, long[] data, int n ) throws IOException {
+        for( int i = 0; i < n; ){
+            int k = Math.min( n - i, buf.capacity() / 8 );
+            buf.clear();
+            buf.asLongBuffer().put( data, i, k );
+            buf.limit( k * 8 );
+            writeFully( ch, buf );
+            i += k;
+        }   // end for: each chunk
+    }
+
+    private static void writeInts( FileChannel ch, ByteBuffer buf, int[] data, int n ) throws IOException {
+        for( int i = 0; i < n; ){
+            int k = Math.min( n - i, buf.capacity() / 4 );
+            buf.clear();
+            buf.asIntBuffer().put( data, i, k );
+            buf.limit( k * 4 );
+            writeFully( ch, buf );
+            i += k;
+        }   // end for: each chunk
+    }
+
+    private static void writeBytes( FileChannel ch, ByteBuffer buf, byte[] data, int n ) throws IOException {
+        for( int i = 0; i < n; ){
+            int k = Math.min( n - i, buf.capacity() );
+            buf.clear();
+            buf.put( data, i, k );
+            buf.flip();
+            writeFully( ch, buf );
+            i += k;
+        }   // end for: each chunk
+    }
+
+    /** Fills the buffer up to its limit, returning false at end of file. */
+    private static boolean readFully( FileChannel ch, ByteBuffer buf ) throws IOException {
+        while( buf.hasRemaining() ){
+            if( ch.read( buf ) < 0 ){
+                return false;
+            }   // end if: end of file
+        }   // end while
+        return true;
+    }
+
+    private static boolean readLongs( FileChannel ch, ByteBuffer buf, long[] data ) throws IOException {
+        for( int i = 0; i < data.length; ){
+            int k = Math.min( data.length - i, buf.capacity() / 8 );
+            buf.clear();
+            buf.limit( k * 8 );
+            if( !readFully( ch, buf ) ) return false;
+            buf.flip();
+            buf.asLongBuffer().get( data, i, k );
+            i += k;
+        }   // end for: each chunk
+        return true;
+    }
+
+    private static boolean readInts( FileChannel ch, ByteBuffer buf, int[] data ) throws IOException {
+        for( int i = 0; i < data.length; ){
+            int k = Math.min( data.length - i, buf.capacity() / 4 );
+            buf.clear();
+            buf.limit( k * 4 );
+            if( !readFully( ch, buf ) ) return false;
+            buf.flip();
+            buf.asIntBuffer().get( data, i, k );
+            i += k;
+        }   // end for: each chunk
+        return true;
+    }
+
+    private static boolean readBytes( FileChannel ch, ByteBuffer buf, byte[] data ) throws IOException {
+        for( int i = 0; i < data.length; ){
+            int k = Math.min( data.length - i, buf.capacity() );
+            buf.clear();
+            buf.limit( k );
+            if( !readFully( ch, buf ) ) return false;
+            buf.flip();
+            buf.get( data, i, k );
+            i += k;
+        }   // end for: each chunk
+        return true;
+    }
+
+
+
+/* ********  P R I V A T E   M E T H O D S  ******** */
+
+
+    /**
+     * Returns the mapping for the segment containing <tt>position</tt>,
+     * mapping it first if necessary. Each mapping runs a little past the
+     * end of its segment so that a header starting in the segment can
+     * always be read from it.
+     */
+    private ByteBuffer segment( long position ) throws IOException {
+        int s = (int)(position >>> SEGMENT_BITS);
+        MappedByteBuffer seg = this.segments.get( s );
+        if( seg != null ){
+            return seg;
+        }   // end if: already mapped, no lock needed
+        synchronized( this.segments ){
+            seg = this.segments.get( s );
+            if( seg == null ){
+                long start = (long)s << SEGMENT_BITS;
+                long length = Math.min( SEGMENT_SIZE + SEGMENT_OVERLAP, this.fileLength - start );
+                seg = this.channel.map( FileChannel.MapMode.READ_ONLY, start, length );
+                this.segments.set( s, seg );
+            }   // end if: not yet mapped
+            return seg;
+        }   // end sync
+    }
+
+
+    /**
+     * Returns a buffer with the given bytes of the file, straight
+     * from the mapping if it covers them or else read into memory.
+     */
+    private ByteBuffer slice( long offset, int length ) throws IOException {
+        if( length == 0 ){
+            return ByteBuffer.allocate(0);
+        }   // end if: empty
+        ByteBuffer seg = segment( offset );
+        int p = (int)(offset & (SEGMENT_SIZE - 1));
+        if( p + length <= seg.limit() ){
+            ByteBuffer dup = seg.duplicate();
+            dup.limit( p + length );
+            dup.position( p );
+            return dup.slice();
+        }   // end if: fits in mapping
+
+        ByteBuffer buf = ByteBuffer.allocate( length );
+        while( buf.hasRemaining() ){
+            if( this.channel.read( buf, offset + buf.position() ) < 0 )
+                throw new EOFException( "KLVFileIndex: Unexpected end of file " + this.file );
+        }   // end while
+        buf.flip();
+        return buf;
+    }
+
+
+    private int labelNumber( UniversalLabel label ){
+        if( label == null || this.keyLength != KLV.KeyLength.SixteenBytes ){
+            return -1;
+        }   // end if: wrong kind of key
+        for( int i = 0; i < this.labels.length; i++ ){
+            if( this.labels[i].equals( label ) ){
+                return i;
+            }   // end if: found
+        }   // end for: each label
+        return -1;
+    }
+
+
+    private int nextIndexOfStored( int stored, int from ){
+        for( int i = Math.max( 0, from ); i < this.size; i++ ){
+            if( this.keys[i] == stored ){
+                return i;
+            }   // end if: found
+        }   // end for: each set
+        return -1;
+    }
+
+
+    private int[] indicesOfStored( int stored ){
+        int count = 0;
+        for( int i = 0; i < this.size; i++ ){
+            if( this.keys[i] == stored ) count++;
+        }   // end for: each set
+        int[] found = new int[ count ];
+        for( int i = 0, j = 0; j < count; i++ ){
+            if( this.keys[i] == stored ) found[j++] = i;
+        }   // end for: each set
+        return found;
+    }
+
+
+    private void checkIndex( int index ){
+        if( index < 0 || index >= this.size )
+            throw new ArrayIndexOutOfBoundsException( String.format(
+                    "KLVFileIndex: Index %d is out of range (size: %d).", index, this.size ) );
+    }
+
+
+
+/* ********  C O M M A N D   L I N E  ******** */
+
+
+    /**
+     * Builds (or loads) the index for a file and prints a summary.
+     *
+     * @param args command line arguments
+     */
+    public static void main( String[] args ){
+        KLV.KeyLength kl = KLV.KeyLength.SixteenBytes;
+        KLV.LengthEncoding le = KLV.LengthEncoding.BER;
+        int tag = NO_TAG;
+        boolean rebuild = false;
+        String filename = null;
+
+        try{
+            for( int i = 0; i < args.length; i++ ){
+                if( "-h".equals( args[i] ) ){
+                    for( String s : USAGE ) System.out.println( s );
+                    System.exit(0);
+                } else if( "-k".equals( args[i] ) ){
+                    kl = KLV.KeyLength.valueOf( Integer.parseInt( args[++i] ) );
+                } else if( "-l".equals( args[i] ) ){
+                    String val = args[++i];
+                    le = "ber".equalsIgnoreCase( val )
+                       ? KLV.LengthEncoding.BER
+                       : KLV.LengthEncoding.valueOf( Integer.parseInt( val ) );
+                } else if( "-t".equals( args[i] ) ){
+                    tag = Integer.parseInt( args[++i] );
+                } else if( "-r".equals( args[i] ) ){
+                    rebuild = true;
+                } else {
+                    filename = args[i];
+                }   // end else: file
+            }   // end for: each arg
+        } catch( Exception exc ){
+            filename = null;
+        }   // end catch
+        if( filename == null || kl == null || le == null ){
+            for( String s : USAGE ) System.out.println( s );
+            System.exit(1);
+        }   // end if: bad args
+
+        try{
+            long start = System.nanoTime();
+            KLVFileIndex index = open( new File( filename ), kl, le,
+                    tag, KLV.KeyLength.OneByte, KLV.LengthEncoding.BER, rebuild );
+            long millis = (System.nanoTime() - start) / 1000000;
+            System.out.println( String.format( "%s %s in %d ms",
+                    index.isLoaded() ? "Loaded index for" : "Indexed", filename, millis ) );
+            System.out.println( "KLV sets:      " + index.size() );
+            System.out.println( "Indexed bytes: " + index.getIndexedLength() + " of " + index.fileLength );
+            if( kl == KLV.KeyLength.SixteenBytes ){
+                for( UniversalLabel ul : index.labels ){
+                    System.out.println( String.format( "  %s: %d", ul, index.indicesOf(ul).length ) );
+                }   // end for: each label
+            }   // end if: sixteen-byte keys
+            if( index.hasTimestamps() && index.size() > 0 ){
+                System.out.println( "First time:    " + index.getTimestamp( 0 ) );
+                System.out.println( "Last time:     " + index.getTimestamp( index.size() - 1 ) );
+            }   // end if: time stamps
+            index.close();
+        } catch( IOException exc ){
+            System.err.println( "Could not index " + filename + ": " + exc.getMessage() );
+            System.exit(2);
+        }   // end catch
+    }   // end main
+
+
+}   // end class KLVFileIndex
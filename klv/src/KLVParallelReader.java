@@ -0,0 +1,254 @@
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.stream.*;
+
+
+/**
+ * <p>Decodes the top-level KLV sets of a large recording on many cores.
+ * Finding where each set begins is cheap, since only keys and length
+ * fields need to be read, so that is done once on a single thread by
+ * {@link KLVFileIndex}. The sets are then split into ranges and handed
+ * to a <code>ForkJoinPool</code>, where each worker reads its sets from
+ * the mapped file and runs a {@link Decoder} on them, for instance to
+ * parse nested sets. Results come back in file order.</p>
+ *
+ * <p>Example, decoding every set's local set on a pool of 48 threads:</p>
+ * <pre>
+ * KLVFileIndex index = KLVFileIndex.open( file, KLV.KeyLength.SixteenBytes, KLV.LengthEncoding.BER );
+ * List&lt;KLVTagMap&gt; sets = KLVParallelReader.decodeAll( index,
+ *     new KLVParallelReader.Decoder&lt;KLVTagMap&gt;(){
+ *         public KLVTagMap decode( int position, KLV klv ){
+ *             return klv.getSubKLVTagMap( KLV.KeyLength.OneByte, KLV.LengthEncoding.BER );
+ *         }
+ *     }, new ForkJoinPool( 48 ) );
+ * </pre>
+ *
+ * <p>For results that don't fit in memory, use {@link #stream} and
+ * consume them with <code>forEachOrdered</code>.</p>
+ *
+ * <p>This code is released into the Public Domain. Enjoy.</p>
+ *
+ * @author Robert Harder
+ * @author rharder@users.sourceforge.net
+ * @version 0.3.1
+ */
+public class KLVParallelReader {
+
+
+    /**
+     * Ranges with fewer than this many sets are not split further,
+     * so that each task does enough work to be worth scheduling.
+     */
+    public final static int MIN_SPLIT_SIZE = 64;
+
+
+    /**
+     * Decodes one top-level KLV set. Called from many threads at once.
+     *
+     * @param <T> the type of result
+     */
+    public static interface Decoder<T> {
+
+        /**
+         * Decodes the KLV set found at <tt>position</tt> in the index.
+         *
+         * @param position  position of the set in the {@link KLVFileIndex}
+         * @param klv       the set, read from the file
+         * @return          the result
+         * @throws Exception if the set cannot be decoded
+         */
+        public abstract T decode( int position, KLV klv ) throws Exception;
+    }   // end interface Decoder
+
+
+    /** A decoder that returns the KLV set itself. */
+    private final static Decoder<KLV> IDENTITY = new Decoder<KLV>(){
+        public KLV decode( int position, KLV klv ){
+            return klv;
+        }
+    };
+
+
+    private KLVParallelReader(){}
+
+
+
+/* ********  S T A T I C   M E T H O D S  ******** */
+
+
+    /**
+     * Returns a parallel, ordered stream of the KLV sets in the index.
+     *
+     * @param index the index of the recording
+     * @return      a stream of KLV sets
+     */
+    public static Stream<KLV> stream( KLVFileIndex index ){
+        return stream( index, IDENTITY );
+    }
+
+
+    /**
+     * Returns a parallel, ordered stream of the decoded KLV sets in the index.
+     * The terminal operation runs in the common <code>ForkJoinPool</code>
+     * unless it is started from a task in another pool. A decoder that
+     * throws causes the terminal operation to throw an unchecked exception.
+     *
+     * @param index     the index of the recording
+     * @param decoder   decodes each set
+     * @return          a stream of results, in file order
+     */
+    public static <T> Stream<T> stream( KLVFileIndex index, Decoder<? extends T> decoder ){
+        return StreamSupport.stream( spliterator( index, decoder ), true );
+    }
+
+
+    /**
+     * Returns a spliterator over the decoded KLV sets in the index that
+     * splits its range in half on each {@link Spliterator#trySplit}.
+     *
+     * @param index     the index of the recording
+     * @param decoder   decodes each set
+     * @return          the spliterator
+     */
+    public static <T> Spliterator<T> spliterator( KLVFileIndex index, Decoder<? extends T> decoder ){
+        if( index == null )
+            throw new NullPointerException( "KLVParallelReader: Index must not be null." );
+        if( decoder == null )
+            throw new NullPointerException( "KLVParallelReader: Decoder must not be null." );
+        return new RangeSpliterator<T>( index, decoder, 0, index.size() );
+    }
+
+
+    /**
+     * Decodes every KLV set in the index using the given pool
+     * and returns the results in file order.
+     *
+     * @param index     the index of the recording
+     * @param decoder   decodes each set
+     * @param pool      the threads to decode with
+     * @return          the results, in file order
+     * @throws IOException          if the file cannot be read or a set cannot be decoded
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public static <T> List<T> decodeAll( final KLVFileIndex index, final Decoder<? extends T> decoder, ForkJoinPool pool )
+    throws IOException, InterruptedException {
+        if( pool == null )
+            throw new NullPointerException( "KLVParallelReader: Pool must not be null." );
+        ForkJoinTask<List<T>> task = pool.submit( new Callable<List<T>>(){
+            public List<T> call(){
+                // A parallel stream started inside a pool runs in that pool
+                return KLVParallelReader.<T>stream( index, decoder ).collect( Collectors.<T>toList() );
+            }
+        });
+        try{
+            return task.get();
+        } catch( ExecutionException exc ){
+            Throwable cause = exc.getCause();
+            if( cause instanceof UncheckedIOException ){
+                throw ((UncheckedIOException)cause).getCause();
+            } else if( cause instanceof DecodeException ){
+                throw new IOException( cause.getMessage(), cause.getCause() );
+            } else if( cause instanceof RuntimeException ){
+                throw (RuntimeException)cause;
+            } else if( cause instanceof Error ){
+                throw (Error)cause;
+            }   // end else if
+            throw new IOException( "KLVParallelReader: Decoding failed: " + cause, cause );
+        }   // end catch
+    }
+
+
+
+/* ********  I N N E R   C L A S S E S  ******** */
+
+
+    /**
+     * Thrown from inside a stream when a decoder fails.
+     */
+    public static class DecodeException extends RuntimeException {
+        private final static long serialVersionUID = 1L;
+        private final int position;
+
+        public DecodeException( int position, Throwable cause ){
+            super( String.format( "KLVParallelReader: Could not decode KLV set %d: %s",
+                    position, cause.getMessage() ), cause );
+            this.position = position;
+        }
+
+        /** Returns the position in the index of the set that could not be decoded. */
+        public int getPosition(){
+            return this.position;
+        }
+    }   // end class DecodeException
+
+
+
+    /**
+     * Walks a range of positions in the index, splitting it in half on demand.
+     */
+    private static final class RangeSpliterator<T> implements Spliterator<T> {
+        private final KLVFileIndex index;
+        private final Decoder<? extends T> decoder;
+        private int lo;         // Next position
+        private final int hi;   // One past the last position
+
+        private RangeSpliterator( KLVFileIndex index, Decoder<? extends T> decoder, int lo, int hi ){
+            this.index = index;
+            this.decoder = decoder;
+            this.lo = lo;
+            this.hi = hi;
+        }
+
+        private T decode( int position ){
+            KLV klv = null;
+            try{
+                klv = this.index.getKLV( position );
+            } catch( IOException exc ){
+                throw new UncheckedIOException( exc );
+            }   // end catch
+            try{
+                return this.decoder.decode( position, klv );
+            } catch( Exception exc ){
+                throw new DecodeException( position, exc );
+            }   // end catch
+        }
+
+        public boolean tryAdvance( java.util.function.Consumer<? super T> action ){
+            if( this.lo < this.hi ){
+                action.accept( decode( this.lo++ ) );
+                return true;
+            }   // end if: more
+            return false;
+        }
+
+        public void forEachRemaining( java.util.function.Consumer<? super T> action ){
+            int end = this.hi;
+            for( int i = this.lo; i < end; i++ ){
+                this.lo = i + 1;
+                action.accept( decode( i ) );
+            }   // end for: each position
+        }
+
+        public Spliterator<T> trySplit(){
+            int remaining = this.hi - this.lo;
+            if( remaining < 2 * MIN_SPLIT_SIZE ){
+                return null;
+            }   // end if: too small
+            int mid = this.lo + remaining / 2;
+            RangeSpliterator<T> prefix = new RangeSpliterator<T>( this.index, this.decoder, this.lo, mid );
+            this.lo = mid;
+            return prefix;
+        }
+
+        public long estimateSize(){
+            return this.hi - this.lo;
+        }
+
+        public int characteristics(){
+            return ORDERED | SIZED | SUBSIZED | IMMUTABLE;
+        }
+    }   // end class RangeSpliterator
+
+
+}   // end class KLVParallelReader
@@ -0,0 +1,323 @@
+/**
+ * <p>A pool of reusable <code>KLV</code> objects and value arrays, so that
+ * a steady stream of KLV sets, such as the datagrams arriving at a UDP
+ * command server, can be parsed without creating garbage. A receive loop
+ * takes sets with {@link #get}, fills them with
+ * {@link KLV#reset(byte[],int,KLV.KeyLength,KLV.LengthEncoding)},
+ * {@link KLV#readKLV(java.io.InputStream,KLV.KeyLength,KLV.LengthEncoding,KLV)},
+ * {@link KLV#bytesToList(byte[],int,int,KLV.KeyLength,KLV.LengthEncoding,java.util.List,KLVPool)}
+ * or {@link KLVTagMap#getKLVAt(int,KLV)}, and hands them back with
+ * {@link #release(KLV)} when done:</p>
+ *
+ * <pre>
+ * KLVPool pool = KLVPool.local();
+ * List&lt;KLV&gt; sets = new ArrayList&lt;KLV&gt;();
+ * while( running ){
+ *     socket.receive( packet );
+ *     KLV.bytesToList( packet.getData(), packet.getOffset(), packet.getLength(),
+ *         KLV.KeyLength.OneByte, KLV.LengthEncoding.BER, sets, pool );
+ *     ...
+ *     pool.release( sets );
+ *     sets.clear();
+ * }
+ * </pre>
+ *
+ * <p>A <code>KLV</code>'s value array is always exactly as long as the
+ * value, so arrays are filed by size class, the powers of two, and a
+ * set only takes an array of exactly the length it needs. Each size
+ * class is a stack searched from the top, so when a class holds only
+ * one length, as it usually does, the first array looked at is taken.
+ * When a class is full, the array given back the longest ago is
+ * dropped, so the pool follows a changing mix of lengths. Values longer
+ * than {@link #getMaxLength} are not pooled.</p>
+ *
+ * <p>Once a set has been released, neither it nor any array returned by
+ * its {@link KLV#getValue} may be used. A pool is not thread safe: each
+ * thread should own its pool, such as the one from {@link #local}.</p>
+ *
+ * <p>This code is released into the Public Domain. Enjoy.</p>
+ *
+ * @author Robert Harder
+ * @author rharder@users.sourceforge.net
+ * @version 0.3.1
+ */
+public class KLVPool {
+
+
+/* ********  S T A T I C   F I E L D S  ******** */
+
+
+    /** Longest value pooled by default, enough for any datagram. */
+    public final static int DEFAULT_MAX_LENGTH = 1 << 16;
+
+    /** Arrays kept in each size class by default, enough for a few UAS Local Sets. */
+    public final static int DEFAULT_ARRAYS_PER_CLASS = 64;
+
+    /** <code>KLV</code> objects kept by default. */
+    public final static int DEFAULT_MAX_SETS = 256;
+
+    /** Shared zero-length value, since nothing can be written to it. */
+    private final static byte[] EMPTY = new byte[0];
+
+    /** One pool for each thread. */
+    private final static ThreadLocal<KLVPool> LOCAL = new ThreadLocal<KLVPool>(){
+        @Override
+        protected KLVPool initialValue(){
+            return new KLVPool();
+        }
+    };
+
+
+
+/* ********  I N S T A N C E   F I E L D S  ******** */
+
+
+    private final int maxLength;
+
+    /** Stacks of arrays by size class, oldest first. */
+    private final byte[][][] classes;
+
+    /** Number of arrays in each stack. */
+    private final int[] counts;
+
+    /** Released <code>KLV</code> objects. */
+    private final KLV[] sets;
+    private int setCount;
+
+    private long takenCount;
+    private long reusedCount;
+
+
+
+/* ********  C O N S T R U C T O R S  ******** */
+
+
+    /**
+     * Creates a pool with the default limits.
+     */
+    public KLVPool(){
+        this( DEFAULT_MAX_LENGTH, DEFAULT_ARRAYS_PER_CLASS, DEFAULT_MAX_SETS );
+    }
+
+
+    /**
+     * Creates a pool with the given limits.
+     *
+     * @param maxLength         longest value array to keep
+     * @param arraysPerClass    arrays to keep in each size class
+     * @param maxSets           <code>KLV</code> objects to keep
+     * @throws IllegalArgumentException if any limit is negative,
+     *                                  or <tt>arraysPerClass</tt> is zero
+     */
+    public KLVPool( int maxLength, int arraysPerClass, int maxSets ){
+        if( maxLength < 0 )
+            throw new IllegalArgumentException( "KLVPool: Maximum length must not be negative: " + maxLength );
+        if( arraysPerClass <= 0 )
+            throw new IllegalArgumentException( "KLVPool: Arrays per class must be positive: " + arraysPerClass );
+        if( maxSets < 0 )
+            throw new IllegalArgumentException( "KLVPool: Maximum sets must not be negative: " + maxSets );
+        this.maxLength = maxLength;
+        this.classes = new byte[ sizeClass( maxLength ) + 1 ][ arraysPerClass ][];
+        this.counts = new int[ this.classes.length ];
+        this.sets = new KLV[ maxSets ];
+    }
+
+
+
+/* ********  P U B L I C   M E T H O D S  ******** */
+
+
+    /**
+     * Returns the calling thread's pool, created with the default limits.
+     *
+     * @return the pool for this thread
+     */
+    public static KLVPool local(){
+        return LOCAL.get();
+    }
+
+
+    /**
+     * Returns an empty <code>KLV</code>, as from {@link KLV#KLV()},
+     * whose value arrays come from this pool.
+     *
+     * @return an empty set
+     */
+    public KLV get(){
+        if( this.setCount > 0 ){
+            KLV klv = this.sets[ --this.setCount ];
+            this.sets[ this.setCount ] = null;
+            return klv;
+        }   // end if: one to reuse
+        return new KLV( this );
+    }
+
+
+    /**
+     * Clears a set and keeps it and its value array for reuse. Sets
+     * that did not come from this pool are ignored.
+     *
+     * @param klv the set, which must not be used again
+     */
+    public void release( KLV klv ){
+        if( klv != null && klv.getPool() == this ){
+            klv.clear();
+            if( this.setCount < this.sets.length ){
+                this.sets[ this.setCount++ ] = klv;
+            }   // end if: room
+        }   // end if: ours
+    }
+
+
+    /**
+     * Releases every set in a collection, such as the list filled by
+     * {@link KLV#bytesToList(byte[],int,int,KLV.KeyLength,KLV.LengthEncoding,java.util.List,KLVPool)}.
+     * The collection itself is not changed.
+     *
+     * @param klvs the sets, which must not be used again
+     */
+    public void release( java.util.Collection<KLV> klvs ){
+        if( klvs instanceof java.util.RandomAccess && klvs instanceof java.util.List ){
+            java.util.List<KLV> list = (java.util.List<KLV>)klvs;
+            for( int i = 0; i < list.size(); i++ ){
+                release( list.get(i) );
+            }   // end for: each set, without an iterator
+        } else {
+            for( KLV klv : klvs ){
+                release( klv );
+            }   // end for: each set
+        }   // end else: any collection
+    }
+
+
+    /**
+     * Returns an array of exactly the given length, reused if one is
+     * on hand. Its contents are left over from its last use.
+     *
+     * @param length length of the array
+     * @return the array
+     */
+    public byte[] take( int length ){
+        if( length < 0 )
+            throw new NegativeArraySizeException( "KLVPool: Length must not be negative: " + length );
+        this.takenCount++;
+        if( length == 0 ){
+            this.reusedCount++;
+            return EMPTY;
+        }   // end if: nothing
+        if( length <= this.maxLength ){
+            int c = sizeClass( length );
+            byte[][] stack = this.classes[ c ];
+            int top = this.counts[ c ] - 1;
+            for( int i = top; i >= 0; i-- ){
+                byte[] array = stack[i];
+                if( array.length == length ){
+                    stack[i] = stack[ top ];            // Fill the hole from the top
+                    stack[ top ] = null;
+                    this.counts[ c ] = top;
+                    this.reusedCount++;
+                    return array;
+                }   // end if: found one
+            }   // end for: each array, newest first
+        }   // end if: pooled length
+        return new byte[ length ];
+    }
+
+
+    /**
+     * Keeps an array that is no longer used for reuse.
+     *
+     * @param array the array, which must not be used again
+     */
+    public void give( byte[] array ){
+        int length = array.length;
+        if( length == 0 || length > this.maxLength ){
+            return;
+        }   // end if: not pooled
+        int c = sizeClass( length );
+        byte[][] stack = this.classes[ c ];
+        int count = this.counts[ c ];
+        if( count == stack.length ){                // Full: drop the oldest
+            System.arraycopy( stack, 1, stack, 0, --count );
+        }   // end if: full
+        stack[ count ] = array;
+        this.counts[ c ] = count + 1;
+    }
+
+
+    /**
+     * Drops everything kept in the pool.
+     */
+    public void clear(){
+        for( byte[][] slots : this.classes ){
+            java.util.Arrays.fill( slots, null );
+        }   // end for: each size class
+        java.util.Arrays.fill( this.counts, 0 );
+        java.util.Arrays.fill( this.sets, 0, this.setCount, null );
+        this.setCount = 0;
+    }
+
+
+    /**
+     * Returns the longest value array the pool will keep.
+     *
+     * @return the length in bytes
+     */
+    public int getMaxLength(){
+        return this.maxLength;
+    }
+
+
+    /**
+     * Returns the number of <code>KLV</code> objects on hand.
+     *
+     * @return number of sets
+     */
+    public int getSetCount(){
+        return this.setCount;
+    }
+
+
+    /**
+     * Returns the number of arrays asked for with {@link #take}.
+     *
+     * @return number of arrays
+     */
+    public long getTakenCount(){
+        return this.takenCount;
+    }
+
+
+    /**
+     * Returns the number of arrays {@link #take} found on hand
+     * rather than creating.
+     *
+     * @return number of arrays
+     */
+    public long getReusedCount(){
+        return this.reusedCount;
+    }
+
+
+
+/* ********  P R I V A T E   M E T H O D S  ******** */
+
+
+    /** Returns the size class of a length: the number of bits needed to write it. */
+    private static int sizeClass( int length ){
+        return 32 - Integer.numberOfLeadingZeros( length );
+    }
+
+
+
+/* ********  O B J E C T   O V E R R I D E  ******** */
+
+
+    @Override
+    public String toString(){
+        return String.format( "KLVPool[%d sets, %d of %d arrays reused]",
+                this.setCount, this.reusedCount, this.takenCount );
+    }
+
+
+}   // end class KLVPool
@@ -0,0 +1,788 @@
+import java.io.*;
+import java.nio.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+
+/**
+ * <p>Finds the KLV sets in a recording whose nested local sets meet a
+ * list of conditions, without decoding the sets that don't. Each set's
+ * local set is read straight from the mapped file: only the key and
+ * length of each tag are looked at, the values of tags that have no
+ * condition are skipped over by their lengths, and a set is dropped as
+ * soon as one condition fails. Conditions on the top-level key or on the
+ * time stamps recorded by {@link KLVFileIndex} are checked from the
+ * index alone, and a time window narrows the range of sets scanned by
+ * binary search.</p>
+ *
+ * <p>Example, finding every UAS Local Set from one hour in which the
+ * latitude (tag 13) was between 38 and 39 degrees, on 48 threads:</p>
+ * <pre>
+ * KLVFileIndex index = KLVFileIndex.open( file, KLV.KeyLength.SixteenBytes, KLV.LengthEncoding.BER,
+ *     2, KLV.KeyLength.OneByte, KLV.LengthEncoding.BER );
+ * int[] found = new KLVQuery( KLV.KeyLength.OneByte, KLV.LengthEncoding.BER )
+ *     .whereKey( uasLabel )
+ *     .whereTime( start, start + 3600000000L )
+ *     .whereDouble( 13, KLVScaledInteger.signed( -90, 90, 4 ), 38, 39 )
+ *     .find( index, new ForkJoinPool( 48 ) );
+ * </pre>
+ *
+ * <p>Only the first occurrence of a tag in a local set is tested, and a
+ * set that lacks a tag with a condition, or whose local set is cut short,
+ * does not match. Conditions may be added until the query is first used;
+ * after that it is immutable and may be used from many threads.</p>
+ *
+ * <p>This code is released into the Public Domain. Enjoy.</p>
+ *
+ * @author Robert Harder
+ * @author rharder@users.sourceforge.net
+ * @version 0.3.1
+ */
+public class KLVQuery {
+
+
+/* ********  S T A T I C   F I E L D S  ******** */
+
+
+    /**
+     * Ranges with fewer than this many sets are not split further,
+     * since testing a set is much cheaper than decoding it.
+     */
+    public final static int MIN_SPLIT_SIZE = 1024;
+
+    /** Most distinct tags that may have conditions. */
+    public final static int MAX_TAGS = 64;
+
+    /** Tags below this are looked up in a table rather than searched for. */
+    private final static int TABLE_SIZE = 256;
+
+
+
+/* ********  I N S T A N C E   F I E L D S  ******** */
+
+
+    private final KLV.KeyLength keyLength;
+    private final KLV.LengthEncoding lengthEncoding;
+
+    private final List<Condition> conditions = new ArrayList<Condition>();
+
+    private boolean hasShortKey;
+    private int shortKey;
+    private UniversalLabel label;
+
+    private boolean hasTime;
+    private long startTime;
+    private long endTime;
+
+    /** Conditions arranged for searching, made on first use. */
+    private volatile Plan plan;
+
+
+
+/* ********  C O N S T R U C T O R S  ******** */
+
+
+    /**
+     * Creates a query with no conditions, which every set matches,
+     * on local sets with the given key length and length encoding.
+     *
+     * @param keyLength         key length of the tags in each local set
+     * @param lengthEncoding    length encoding of the tags in each local set
+     * @throws IllegalArgumentException if the key length is sixteen bytes
+     */
+    public KLVQuery( KLV.KeyLength keyLength, KLV.LengthEncoding lengthEncoding ){
+        if( keyLength == null )
+            throw new NullPointerException( "KLVQuery: Key length must not be null." );
+        if( lengthEncoding == null )
+            throw new NullPointerException( "KLVQuery: Length encoding must not be null." );
+        if( keyLength == KLV.KeyLength.SixteenBytes )
+            throw new IllegalArgumentException( "KLVQuery: Local set tags must be one, two, or four bytes." );
+        this.keyLength = keyLength;
+        this.lengthEncoding = lengthEncoding;
+    }
+
+
+
+/* ********  C O N D I T I O N S  ******** */
+
+
+    /**
+     * Requires the tag's value, read as a big endian unsigned integer
+     * of one to eight bytes, to be between <tt>min</tt> and <tt>max</tt>
+     * inclusive. Eight-byte values are compared as signed <tt>long</tt>s.
+     *
+     * @param tag   the tag
+     * @param min   smallest value allowed
+     * @param max   largest value allowed
+     * @return this query
+     */
+    public KLVQuery whereLong( int tag, long min, long max ){
+        return add( new LongRange( tag, min, max, false ) );
+    }
+
+
+    /**
+     * Requires the tag's value, read as a big endian two's complement
+     * integer of one to eight bytes, to be between <tt>min</tt> and
+     * <tt>max</tt> inclusive.
+     *
+     * @param tag   the tag
+     * @param min   smallest value allowed
+     * @param max   largest value allowed
+     * @return this query
+     */
+    public KLVQuery whereSigned( int tag, long min, long max ){
+        return add( new LongRange( tag, min, max, true ) );
+    }
+
+
+    /**
+     * Requires the tag's value, decoded with the codec, to be between
+     * <tt>min</tt> and <tt>max</tt> inclusive. Values that decode to NaN,
+     * such as the out-of-range marker of a signed mapping, never match.
+     *
+     * @param tag   the tag
+     * @param codec decodes the value
+     * @param min   smallest value allowed
+     * @param max   largest value allowed
+     * @return this query
+     */
+    public KLVQuery whereDouble( int tag, KLVScaledInteger codec, double min, double max ){
+        if( codec == null )
+            throw new NullPointerException( "KLVQuery: Codec must not be null." );
+        return add( new DoubleRange( tag, codec, min, max ) );
+    }
+
+
+    /**
+     * Requires the tag's value to be exactly the given bytes.
+     *
+     * @param tag   the tag
+     * @param value the value
+     * @return this query
+     */
+    public KLVQuery whereEquals( int tag, byte[] value ){
+        if( value == null )
+            throw new NullPointerException( "KLVQuery: Value must not be null." );
+        return add( new Equals( tag, value.clone() ) );
+    }
+
+
+    /**
+     * Requires the tag's value to be the string, encoded as UTF-8.
+     *
+     * @param tag   the tag
+     * @param value the value
+     * @return this query
+     */
+    public KLVQuery whereEquals( int tag, String value ){
+        if( value == null )
+            throw new NullPointerException( "KLVQuery: Value must not be null." );
+        return add( new Equals( tag, value.getBytes( java.nio.charset.StandardCharsets.UTF_8 ) ) );
+    }
+
+
+    /**
+     * Requires the top-level set to have the given one-, two-, or
+     * four-byte key, which is checked from the index alone.
+     *
+     * @param key the key
+     * @return this query
+     */
+    public synchronized KLVQuery whereKey( int key ){
+        checkNotStarted();
+        this.hasShortKey = true;
+        this.shortKey = key;
+        this.label = null;
+        return this;
+    }
+
+
+    /**
+     * Requires the top-level set to have the given sixteen-byte key,
+     * which is checked from the index alone.
+     *
+     * @param label the key
+     * @return this query
+     */
+    public synchronized KLVQuery whereKey( UniversalLabel label ){
+        if( label == null )
+            throw new NullPointerException( "KLVQuery: Label must not be null." );
+        checkNotStarted();
+        this.label = label;
+        this.hasShortKey = false;
+        return this;
+    }
+
+
+    /**
+     * Requires the set's time stamp, as recorded by {@link KLVFileIndex},
+     * to be at least <tt>start</tt> and less than <tt>end</tt>. Since time
+     * stamps never decrease in a file, only the sets in that window are
+     * scanned. The index must have been opened with a time stamp tag.
+     *
+     * @param start earliest time stamp allowed
+     * @param end   time stamp just past the window
+     * @return this query
+     */
+    public synchronized KLVQuery whereTime( long start, long end ){
+        checkNotStarted();
+        this.hasTime = true;
+        this.startTime = start;
+        this.endTime = end;
+        return this;
+    }
+
+
+
+/* ********  S E A R C H I N G  ******** */
+
+
+    /**
+     * Returns the positions in the index of the sets that match, in file
+     * order, searching on the calling thread.
+     *
+     * @param index the index of the recording
+     * @return positions of the matching sets
+     * @throws IOException if the file cannot be read
+     * @throws IllegalStateException if there is a time window and the index has no time stamps
+     */
+    public int[] find( KLVFileIndex index ) throws IOException {
+        Plan p = plan();
+        int[] range = range( index );
+        Matches found = new Matches();
+        for( int i = range[0]; i < range[1]; i++ ){
+            if( matches( index, i, p ) ){
+                found.add( i );
+            }   // end if: match
+        }   // end for: each set
+        return found.toArray();
+    }
+
+
+    /**
+     * Returns the positions in the index of the sets that match, in file
+     * order, splitting the search among the threads of the pool.
+     *
+     * @param index the index of the recording
+     * @param pool  the threads to search with
+     * @return positions of the matching sets
+     * @throws IOException          if the file cannot be read
+     * @throws InterruptedException if interrupted while waiting
+     * @throws IllegalStateException if there is a time window and the index has no time stamps
+     */
+    public int[] find( KLVFileIndex index, ForkJoinPool pool )
+    throws IOException, InterruptedException {
+        if( pool == null )
+            throw new NullPointerException( "KLVQuery: Pool must not be null." );
+        int[] range = range( index );
+        ForkJoinTask<int[]> task = pool.submit( new SearchTask( index, plan(), range[0], range[1] ) );
+        try{
+            return task.get();
+        } catch( ExecutionException exc ){
+            Throwable cause = exc.getCause();
+            if( cause instanceof UncheckedIOException ){
+                throw ((UncheckedIOException)cause).getCause();
+            } else if( cause instanceof RuntimeException ){
+                throw (RuntimeException)cause;
+            } else if( cause instanceof Error ){
+                throw (Error)cause;
+            }   // end else if
+            throw new IOException( "KLVQuery: Search failed: " + cause, cause );
+        }   // end catch
+    }
+
+
+    /**
+     * Returns whether the set at <tt>position</tt> in the index matches.
+     *
+     * @param index     the index of the recording
+     * @param position  position of the set
+     * @return whether it matches
+     * @throws IOException if the file cannot be read
+     * @throws IllegalStateException if there is a time window and the index has no time stamps
+     */
+    public boolean matches( KLVFileIndex index, int position ) throws IOException {
+        return matches( index, position, plan() );
+    }
+
+
+    /**
+     * Returns whether a top-level set matches, such as one read with
+     * {@link KLV#readKLV(InputStream,KLV.KeyLength,KLV.LengthEncoding)}.
+     * A time window can only be checked from an index, so a query with
+     * one matches no <code>KLV</code>.
+     *
+     * @param klv the set
+     * @return whether it matches
+     */
+    public boolean matches( KLV klv ){
+        Plan p = plan();
+        if( p.hasTime ){
+            return false;
+        } else if( p.hasShortKey ){
+            if( klv.getKeyLength() == KLV.KeyLength.SixteenBytes || klv.getShortKey() != p.shortKey ){
+                return false;
+            }   // end if: wrong key
+        } else if( p.label != null && !klv.isFullKey( p.label.toBytes() ) ){
+            return false;
+        }   // end else if: wrong key
+        return p.tags.length == 0 || matchesLocalSet( ByteBuffer.wrap( klv.getValue() ), 0, klv.getLength(), p );
+    }
+
+
+    /**
+     * Returns whether the local set in the array, a run of tags
+     * such as the value of a top-level set, meets the conditions.
+     * Conditions on keys and time stamps are not checked.
+     *
+     * @param bytes     the array holding the local set
+     * @param offset    where the local set begins
+     * @param length    length of the local set
+     * @return whether it matches
+     */
+    public boolean matches( byte[] bytes, int offset, int length ){
+        if( offset < 0 || length < 0 || offset + length > bytes.length )
+            throw new IndexOutOfBoundsException( String.format(
+                    "KLVQuery: Offset %d and length %d do not fit in an array of length %d.",
+                    offset, length, bytes.length ) );
+        return matchesLocalSet( ByteBuffer.wrap( bytes ), offset, offset + length, plan() );
+    }
+
+
+    /**
+     * Returns whether the local set between absolute positions in the
+     * buffer meets the conditions. The buffer's position is not changed.
+     * Conditions on keys and time stamps are not checked.
+     *
+     * @param buffer    the buffer holding the local set
+     * @param position  where the local set begins
+     * @param length    length of the local set
+     * @return whether it matches
+     */
+    public boolean matches( ByteBuffer buffer, int position, int length ){
+        if( position < 0 || length < 0 || position + length > buffer.limit() )
+            throw new IndexOutOfBoundsException( String.format(
+                    "KLVQuery: Position %d and length %d do not fit in a buffer with limit %d.",
+                    position, length, buffer.limit() ) );
+        return matchesLocalSet( buffer, position, position + length, plan() );
+    }
+
+
+    /**
+     * Returns the key length of the tags in each local set.
+     *
+     * @return the key length
+     */
+    public KLV.KeyLength getKeyLength(){
+        return this.keyLength;
+    }
+
+
+    /**
+     * Returns the length encoding of the tags in each local set.
+     *
+     * @return the length encoding
+     */
+    public KLV.LengthEncoding getLengthEncoding(){
+        return this.lengthEncoding;
+    }
+
+
+
+/* ********  P R I V A T E   M E T H O D S  ******** */
+
+
+    private synchronized KLVQuery add( Condition condition ){
+        checkNotStarted();
+        boolean newTag = true;
+        for( Condition c : this.conditions ){
+            if( c.tag == condition.tag ){
+                newTag = false;
+                break;
+            }   // end if: tag seen
+        }   // end for: each condition
+        if( newTag && tagCount() == MAX_TAGS )
+            throw new IllegalStateException( "KLVQuery: No more than " + MAX_TAGS + " tags may have conditions." );
+        this.conditions.add( condition );
+        return this;
+    }
+
+
+    private int tagCount(){
+        Set<Integer> tags = new HashSet<Integer>();
+        for( Condition c : this.conditions ){
+            tags.add( c.tag );
+        }   // end for: each condition
+        return tags.size();
+    }
+
+
+    private void checkNotStarted(){
+        if( this.plan != null )
+            throw new IllegalStateException( "KLVQuery: Conditions cannot be added once the query has been used." );
+    }
+
+
+    /** Returns the conditions arranged for searching, arranging them on first use. */
+    private Plan plan(){
+        Plan p = this.plan;
+        if( p == null ){
+            synchronized( this ){
+                p = this.plan;
+                if( p == null ){
+                    p = new Plan( this );
+                    this.plan = p;
+                }   // end if: still not made
+            }   // end sync
+        }   // end if: not yet made
+        return p;
+    }
+
+
+    /** Returns the first and one past the last position to scan. */
+    private int[] range( KLVFileIndex index ){
+        if( index == null )
+            throw new NullPointerException( "KLVQuery: Index must not be null." );
+        Plan p = plan();
+        if( p.hasTime ){
+            if( !index.hasTimestamps() )
+                throw new IllegalStateException( "KLVQuery: The index has no time stamps to search by." );
+            if( p.startTime >= p.endTime ){
+                return new int[]{ 0, 0 };
+            }   // end if: empty window
+            return new int[]{ index.findTimestamp( p.startTime ), index.findTimestamp( p.endTime ) };
+        }   // end if: time window
+        return new int[]{ 0, index.size() };
+    }
+
+
+    private boolean matches( KLVFileIndex index, int position, Plan p ) throws IOException {
+        if( p.hasShortKey ){
+            if( index.getKeyLength() == KLV.KeyLength.SixteenBytes || index.getShortKey( position ) != p.shortKey ){
+                return false;
+            }   // end if: wrong key
+        } else if( p.label != null && !p.label.equals( index.getUniversalLabel( position ) ) ){
+            return false;
+        }   // end else if: wrong key
+        if( p.hasTime ){
+            long time = index.getTimestamp( position );
+            if( time < p.startTime || time >= p.endTime ){
+                return false;
+            }   // end if: outside window
+        }   // end if: time window
+        if( p.tags.length == 0 ){
+            return true;
+        }   // end if: nothing to read
+        ByteBuffer value = index.getValue( position );
+        return matchesLocalSet( value, 0, value.limit(), p );
+    }
+
+
+    /**
+     * Walks the tags between <tt>pos</tt> and <tt>end</tt>, testing the
+     * ones with conditions and skipping the rest by their lengths.
+     */
+    private boolean matchesLocalSet( ByteBuffer buf, int pos, int end, Plan p ){
+        long all = p.allBits;
+        if( all == 0 ){
+            return true;
+        }   // end if: no conditions
+        int keySize = this.keyLength.value();
+        KLV.LengthEncoding le = this.lengthEncoding;
+        long seen = 0;
+        while( end - pos > keySize ){                   // Room for a key and a length
+            int tag = 0;
+            for( int i = 0; i < keySize; i++ ){
+                tag = (tag << 8) | (buf.get( pos + i ) & 0xFF);
+            }   // end for: each key byte
+            int lengthPos = pos + keySize;
+            int fieldSize = KLV.getLengthFieldSize( buf, lengthPos, le );
+            if( fieldSize > end - lengthPos ){
+                return false;
+            }   // end if: length field cut short
+            long length = KLV.getLength( buf, lengthPos, le );
+            int valuePos = lengthPos + fieldSize;
+            if( length < 0 || length > end - valuePos ){
+                return false;
+            }   // end if: value cut short
+
+            int bit = p.bitOf( tag );
+            if( bit >= 0 && (seen & (1L << bit)) == 0 ){
+                for( Condition c : p.byBit[ bit ] ){
+                    if( !c.test( buf, valuePos, (int)length ) ){
+                        return false;
+                    }   // end if: failed
+                }   // end for: each condition on the tag
+                seen |= 1L << bit;
+                if( seen == all ){
+                    return true;
+                }   // end if: all met
+            }   // end if: first time seeing a tag with conditions
+            pos = valuePos + (int)length;
+        }   // end while: each tag
+        return false;                                   // Some tag missing
+    }
+
+
+    /** Reads a big endian integer of up to eight bytes. */
+    private static long readLong( ByteBuffer buf, int pos, int length, boolean signed ){
+        long value = signed && buf.get( pos ) < 0 ? -1L : 0L;
+        for( int i = 0; i < length; i++ ){
+            value = (value << 8) | (buf.get( pos + i ) & 0xFF);
+        }   // end for: each byte
+        return value;
+    }
+
+
+
+/* ********  O B J E C T   O V E R R I D E  ******** */
+
+
+    @Override
+    public synchronized String toString(){
+        StringBuilder sb = new StringBuilder( "KLVQuery[" );
+        String sep = "";
+        if( this.hasShortKey ){
+            sb.append( "key " ).append( this.shortKey );
+            sep = ", ";
+        } else if( this.label != null ){
+            sb.append( "key " ).append( this.label );
+            sep = ", ";
+        }   // end else if: key
+        if( this.hasTime ){
+            sb.append( sep ).append( "time in [" ).append( this.startTime )
+              .append( ", " ).append( this.endTime ).append( ")" );
+            sep = ", ";
+        }   // end if: time
+        for( Condition c : this.conditions ){
+            sb.append( sep ).append( c );
+            sep = ", ";
+        }   // end for: each condition
+        return sb.append( "]" ).toString();
+    }
+
+
+
+/* ********  I N N E R   C L A S S E S  ******** */
+
+
+    /** A test of one tag's value. */
+    private static abstract class Condition {
+        final int tag;
+
+        Condition( int tag ){
+            this.tag = tag;
+        }
+
+        /** Tests the value at an absolute position in the buffer. */
+        abstract boolean test( ByteBuffer buf, int pos, int length );
+    }   // end class Condition
+
+
+    private static final class LongRange extends Condition {
+        private final long min;
+        private final long max;
+        private final boolean signed;
+
+        LongRange( int tag, long min, long max, boolean signed ){
+            super( tag );
+            this.min = min;
+            this.max = max;
+            this.signed = signed;
+        }
+
+        boolean test( ByteBuffer buf, int pos, int length ){
+            if( length < 1 || length > 8 ){
+                return false;
+            }   // end if: not an integer
+            long value = readLong( buf, pos, length, this.signed );
+            return value >= this.min && value <= this.max;
+        }
+
+        @Override
+        public String toString(){
+            return String.format( "tag %d in [%d, %d]", this.tag, this.min, this.max );
+        }
+    }   // end class LongRange
+
+
+    private static final class DoubleRange extends Condition {
+        private final KLVScaledInteger codec;
+        private final double min;
+        private final double max;
+
+        DoubleRange( int tag, KLVScaledInteger codec, double min, double max ){
+            super( tag );
+            this.codec = codec;
+            this.min = min;
+            this.max = max;
+        }
+
+        boolean test( ByteBuffer buf, int pos, int length ){
+            double value = this.codec.decode( buf, pos, length );
+            return value >= this.min && value <= this.max;  // False for NaN
+        }
+
+        @Override
+        public String toString(){
+            return String.format( "tag %d in [%s, %s]", this.tag, this.min, this.max );
+        }
+    }   // end class DoubleRange
+
+
+    private static final class Equals extends Condition {
+        private final byte[] value;
+
+        Equals( int tag, byte[] value ){
+            super( tag );
+            this.value = value;
+        }
+
+        boolean test( ByteBuffer buf, int pos, int length ){
+            if( length != this.value.length ){
+                return false;
+            }   // end if: wrong length
+            for( int i = 0; i < length; i++ ){
+                if( buf.get( pos + i ) != this.value[i] ){
+                    return false;
+                }   // end if: differs
+            }   // end for: each byte
+            return true;
+        }
+
+        @Override
+        public String toString(){
+            return String.format( "tag %d equals %d bytes", this.tag, this.value.length );
+        }
+    }   // end class Equals
+
+
+    /**
+     * The query's conditions, fixed when it is first used. Each tag with
+     * conditions gets a bit, so the walk can tell when all have been met.
+     */
+    private static final class Plan {
+        final boolean hasShortKey;
+        final int shortKey;
+        final UniversalLabel label;
+        final boolean hasTime;
+        final long startTime;
+        final long endTime;
+
+        final int[] tags;               // Tag for each bit
+        final Condition[][] byBit;      // Conditions for each bit
+        final byte[] table;             // Bit + 1 for tags below TABLE_SIZE
+        final long allBits;
+
+        Plan( KLVQuery query ){
+            this.hasShortKey = query.hasShortKey;
+            this.shortKey = query.shortKey;
+            this.label = query.label;
+            this.hasTime = query.hasTime;
+            this.startTime = query.startTime;
+            this.endTime = query.endTime;
+
+            Map<Integer,List<Condition>> grouped = new LinkedHashMap<Integer,List<Condition>>();
+            for( Condition c : query.conditions ){
+                List<Condition> list = grouped.get( c.tag );
+                if( list == null ){
+                    list = new ArrayList<Condition>();
+                    grouped.put( c.tag, list );
+                }   // end if: new tag
+                list.add( c );
+            }   // end for: each condition
+            this.tags = new int[ grouped.size() ];
+            this.byBit = new Condition[ grouped.size() ][];
+            this.table = new byte[ TABLE_SIZE ];
+            int bit = 0;
+            for( Map.Entry<Integer,List<Condition>> e : grouped.entrySet() ){
+                int tag = e.getKey();
+                this.tags[ bit ] = tag;
+                this.byBit[ bit ] = e.getValue().toArray( new Condition[ e.getValue().size() ] );
+                if( tag >= 0 && tag < TABLE_SIZE ){
+                    this.table[ tag ] = (byte)(bit + 1);
+                }   // end if: in table
+                bit++;
+            }   // end for: each tag
+            this.allBits = bit == 64 ? -1L : (1L << bit) - 1;
+        }
+
+        /** Returns the bit for a tag, or -1 if it has no conditions. */
+        int bitOf( int tag ){
+            if( tag >= 0 && tag < TABLE_SIZE ){
+                return this.table[ tag ] - 1;
+            }   // end if: in table
+            for( int i = 0; i < this.tags.length; i++ ){
+                if( this.tags[i] == tag ){
+                    return i;
+                }   // end if: found
+            }   // end for: each tag
+            return -1;
+        }
+    }   // end class Plan
+
+
+    /** A growable list of positions. */
+    private static final class Matches {
+        private int[] positions = new int[ 16 ];
+        private int count;
+
+        void add( int position ){
+            if( this.count == this.positions.length ){
+                this.positions = Arrays.copyOf( this.positions, this.count * 2 );
+            }   // end if: full
+            this.positions[ this.count++ ] = position;
+        }
+
+        int[] toArray(){
+            return Arrays.copyOf( this.positions, this.count );
+        }
+    }   // end class Matches
+
+
+    /** Searches a range of positions, splitting it in half while it is large. */
+    private final class SearchTask extends RecursiveTask<int[]> {
+        private final static long serialVersionUID = 1L;
+        private final KLVFileIndex index;
+        private final Plan plan;
+        private final int lo;
+        private final int hi;
+
+        SearchTask( KLVFileIndex index, Plan plan, int lo, int hi ){
+            this.index = index;
+            this.plan = plan;
+            this.lo = lo;
+            this.hi = hi;
+        }
+
+        @Override
+        protected int[] compute(){
+            if( this.hi - this.lo < 2 * MIN_SPLIT_SIZE ){
+                Matches found = new Matches();
+                try{
+                    for( int i = this.lo; i < this.hi; i++ ){
+                        if( matches( this.index, i, this.plan ) ){
+                            found.add( i );
+                        }   // end if: match
+                    }   // end for: each set
+                } catch( IOException exc ){
+                    throw new UncheckedIOException( exc );
+                }   // end catch
+                return found.toArray();
+            }   // end if: small enough
+
+            int mid = (this.lo + this.hi) >>> 1;
+            SearchTask left = new SearchTask( this.index, this.plan, this.lo, mid );
+            SearchTask right = new SearchTask( this.index, this.plan, mid, this.hi );
+            left.fork();
+            int[] b = right.compute();
+            int[] a = left.join();
+            int[] both = Arrays.copyOf( a, a.length + b.length );
+            System.arraycopy( b, 0, both, a.length, b.length );
+            return both;
+        }
+    }   // end class SearchTask
+
+
+}   // end class KLVQuery
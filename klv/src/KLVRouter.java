@@ -0,0 +1,930 @@
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.concurrent.locks.LockSupport;
+
+
+/**
+ * <p>Routes top-level KLV sets by key to handlers, each of which is fed
+ * from its own bounded queue and runs on its own executor, so that one
+ * slow handler (an archiver, say) cannot hold up the others (the camera
+ * command path) or the thread that is receiving the data.</p>
+ *
+ * <p>KLV sets can come from anywhere: whole <code>KLV</code> objects,
+ * raw bytes from a UDP datagram or a <code>NioServer</code> read buffer
+ * holding one or more sets back to back, or an <code>InputStream</code>.
+ * When routing raw bytes, keys are looked up where they lie, and a
+ * <code>KLV</code> object is created only for sets that some handler
+ * wants.</p>
+ *
+ * <p>Each handler is registered with a queue capacity, a {@link Policy}
+ * for when its queue is full, and an executor. The queue is a lock-free
+ * ring buffer. When a set is queued and the handler is idle, one drain
+ * task is handed to the executor, which delivers queued sets in order
+ * until the queue is empty, so a handler never runs on two threads at
+ * once. If no executor is given, the route gets a daemon thread of its
+ * own. Any <code>Executor</code> will do; on Java 21 and later,
+ * <code>Executors.newVirtualThreadPerTaskExecutor()</code> gives each
+ * route a virtual thread instead.</p>
+ *
+ * <p>Example:</p>
+ * <pre>
+ * KLVRouter router = new KLVRouter( KLV.KeyLength.SixteenBytes, KLV.LengthEncoding.BER );
+ * router.addHandler( UAS_LOCAL_SET, archiver, 10000, KLVRouter.Policy.BLOCK, null );
+ * router.addHandler( UAS_LOCAL_SET, display, 16, KLVRouter.Policy.DROP_OLDEST, null );
+ * ...
+ * router.route( packet );     // On the receive thread
+ * </pre>
+ *
+ * <p>Registration is synchronized and publishes a fresh lookup table;
+ * routing never locks.</p>
+ *
+ * <p>This code is released into the Public Domain. Enjoy.</p>
+ *
+ * @author Robert Harder
+ * @author rharder@users.sourceforge.net
+ * @version 0.3.1
+ */
+public class KLVRouter {
+
+
+/* ********  E N U M  ******** */
+
+
+    /**
+     * What to do with a KLV set when a handler's queue is full.
+     */
+    public static enum Policy {
+        /** Discard the new set. */
+        DROP_NEWEST,
+        /** Discard the oldest queued set to make room for the new one. */
+        DROP_OLDEST,
+        /** Make the routing thread wait until there is room. */
+        BLOCK
+    }   // end enum Policy
+
+
+
+/* ********  S T A T I C   F I E L D S  ******** */
+
+
+    /** Default number of KLV sets a handler's queue can hold. */
+    public final static int DEFAULT_CAPACITY = 1024;
+
+    /** Default policy when a handler's queue is full. */
+    public final static Policy DEFAULT_POLICY = Policy.DROP_OLDEST;
+
+    /** Most sets a drain task delivers before giving its thread back to the executor. */
+    private final static int DRAIN_BATCH = 256;
+
+    /** How long a blocked routing thread sleeps between looks at a full queue. */
+    private final static long BLOCK_PARK_NANOS = 50000;
+
+    private final static Route[] NO_ROUTES = new Route[0];
+
+    /** Scratch arrays for copying out of direct buffers, one for each thread. */
+    private final static ThreadLocal<byte[][]> SCRATCH = new ThreadLocal<byte[][]>(){
+        @Override
+        protected byte[][] initialValue(){
+            return new byte[][]{ new byte[ 2048 ] };
+        }
+    };
+
+
+
+/* ********  I N S T A N C E   F I E L D S  ******** */
+
+
+    private final KLV.KeyLength keyLength;
+    private final KLV.LengthEncoding lengthEncoding;
+
+    /** Routes for keys of four bytes or fewer, guarded by <tt>this</tt>. */
+    private final Map<Integer,Route[]> shortRoutes = new LinkedHashMap<Integer,Route[]>();
+
+    /** Routes for sixteen-byte keys, also guarded by <tt>this</tt>. */
+    private final Map<UniversalLabel,Route[]> labelRoutes = new LinkedHashMap<UniversalLabel,Route[]>();
+
+    /** Lookup table for short keys, replaced on every change. */
+    private volatile KeyTable shortTable = new KeyTable( Collections.<Integer,Route[]>emptyMap() );
+
+    /** Lookup table for sixteen-byte keys. */
+    private final UniversalLabelRegistry<Route[]> labelTable = new UniversalLabelRegistry<Route[]>();
+
+    /** Routes for sets no other route wants. */
+    private volatile Route[] defaultRoutes = NO_ROUTES;
+
+    private final AtomicLong routedCount = new AtomicLong();
+    private final AtomicLong unroutedCount = new AtomicLong();
+    private final AtomicLong malformedCount = new AtomicLong();
+
+    private volatile boolean closed;
+
+
+
+/* ********  C O N S T R U C T O R S  ******** */
+
+
+    /**
+     * Creates a router for top-level KLV sets with the given key length
+     * and length encoding, which are used when routing raw bytes.
+     *
+     * @param keyLength         key length of the top-level sets
+     * @param lengthEncoding    length encoding of the top-level sets
+     */
+    public KLVRouter( KLV.KeyLength keyLength, KLV.LengthEncoding lengthEncoding ){
+        if( keyLength == null )
+            throw new NullPointerException( "KLVRouter: Key length must not be null." );
+        if( lengthEncoding == null )
+            throw new NullPointerException( "KLVRouter: Length encoding must not be null." );
+        this.keyLength = keyLength;
+        this.lengthEncoding = lengthEncoding;
+    }
+
+
+
+/* ********  H A N D L E R S  ******** */
+
+
+    /**
+     * Receives the KLV sets routed to it, one at a time and in order,
+     * on its route's executor.
+     */
+    public static interface Handler {
+
+        /**
+         * Called with each KLV set. Exceptions are counted
+         * ({@link Route#getErrorCount}) and otherwise ignored.
+         *
+         * @param klv the set, which the handler may keep
+         */
+        public abstract void klvReceived( KLV klv ) throws Exception;
+
+    }   // end interface Handler
+
+
+
+    /**
+     * Registers a handler for sets with a key of four bytes or fewer,
+     * with the default capacity and policy and a thread of its own.
+     *
+     * @param key       the key
+     * @param handler   the handler
+     * @return          the route, for its statistics and for removing it
+     */
+    public Route addHandler( int key, Handler handler ){
+        return addHandler( key, handler, DEFAULT_CAPACITY, DEFAULT_POLICY, null );
+    }
+
+
+    /**
+     * Registers a handler for sets with a key of four bytes or fewer.
+     * A set whose key has several handlers goes to each of them.
+     *
+     * @param key       the key
+     * @param handler   the handler
+     * @param capacity  most sets to queue for the handler, rounded up to a power of two
+     * @param policy    what to do when the queue is full
+     * @param executor  where to run the handler, or null for a thread of its own
+     * @return          the route, for its statistics and for removing it
+     */
+    public synchronized Route addHandler( int key, Handler handler, int capacity, Policy policy, Executor executor ){
+        Route route = new Route( "0x" + Integer.toHexString( key ), handler, capacity, policy, executor );
+        this.shortRoutes.put( key, append( this.shortRoutes.get( key ), route ) );
+        this.shortTable = new KeyTable( this.shortRoutes );
+        return route;
+    }
+
+
+    /**
+     * Registers a handler for sets with a sixteen-byte key,
+     * with the default capacity and policy and a thread of its own.
+     *
+     * @param label     the key
+     * @param handler   the handler
+     * @return          the route, for its statistics and for removing it
+     */
+    public Route addHandler( UniversalLabel label, Handler handler ){
+        return addHandler( label, handler, DEFAULT_CAPACITY, DEFAULT_POLICY, null );
+    }
+
+
+    /**
+     * Registers a handler for sets with a sixteen-byte key.
+     * A set whose key has several handlers goes to each of them.
+     *
+     * @param label     the key
+     * @param handler   the handler
+     * @param capacity  most sets to queue for the handler, rounded up to a power of two
+     * @param policy    what to do when the queue is full
+     * @param executor  where to run the handler, or null for a thread of its own
+     * @return          the route, for its statistics and for removing it
+     */
+    public synchronized Route addHandler( UniversalLabel label, Handler handler, int capacity, Policy policy, Executor executor ){
+        if( label == null )
+            throw new NullPointerException( "KLVRouter: Label must not be null." );
+        Route route = new Route( label.toString(), handler, capacity, policy, executor );
+        Route[] routes = append( this.labelRoutes.get( label ), route );
+        this.labelRoutes.put( label, routes );
+        this.labelTable.register( label, routes );
+        return route;
+    }
+
+
+    /**
+     * Registers a handler for sets that no other handler is registered for.
+     *
+     * @param handler   the handler
+     * @param capacity  most sets to queue for the handler, rounded up to a power of two
+     * @param policy    what to do when the queue is full
+     * @param executor  where to run the handler, or null for a thread of its own
+     * @return          the route, for its statistics and for removing it
+     */
+    public synchronized Route addDefaultHandler( Handler handler, int capacity, Policy policy, Executor executor ){
+        Route route = new Route( "default", handler, capacity, policy, executor );
+        this.defaultRoutes = append( this.defaultRoutes, route );
+        return route;
+    }
+
+
+    /**
+     * Removes a route. Sets already queued are still delivered, after
+     * which the route's own thread, if it has one, is shut down.
+     *
+     * @param route the route to remove
+     * @return      true if the route was registered
+     */
+    public synchronized boolean removeHandler( Route route ){
+        boolean found = false;
+        for( Iterator<Map.Entry<Integer,Route[]>> iter = this.shortRoutes.entrySet().iterator(); iter.hasNext(); ){
+            Map.Entry<Integer,Route[]> entry = iter.next();
+            Route[] routes = remove( entry.getValue(), route );
+            if( routes != entry.getValue() ){
+                found = true;
+                if( routes.length == 0 ){
+                    iter.remove();
+                } else {
+                    entry.setValue( routes );
+                }   // end else: others left
+            }   // end if: was there
+        }   // end for: each short key
+        if( found ){
+            this.shortTable = new KeyTable( this.shortRoutes );
+        }   // end if: short key
+
+        for( Iterator<Map.Entry<UniversalLabel,Route[]>> iter = this.labelRoutes.entrySet().iterator(); iter.hasNext(); ){
+            Map.Entry<UniversalLabel,Route[]> entry = iter.next();
+            Route[] routes = remove( entry.getValue(), route );
+            if( routes != entry.getValue() ){
+                found = true;
+                if( routes.length == 0 ){
+                    iter.remove();
+                    this.labelTable.unregister( entry.getKey() );
+                } else {
+                    entry.setValue( routes );
+                    this.labelTable.register( entry.getKey(), routes );
+                }   // end else: others left
+            }   // end if: was there
+        }   // end for: each label
+
+        Route[] defaults = remove( this.defaultRoutes, route );
+        if( defaults != this.defaultRoutes ){
+            found = true;
+            this.defaultRoutes = defaults;
+        }   // end if: default
+
+        if( found ){
+            route.close();
+        }   // end if: found
+        return found;
+    }
+
+
+
+/* ********  R O U T I N G  ******** */
+
+
+    /**
+     * Routes one KLV set, queueing the set itself (not a copy)
+     * for every handler of its key.
+     *
+     * @param klv   the set
+     * @return      true if at least one handler took it
+     */
+    public boolean route( KLV klv ){
+        Route[] routes;
+        if( klv.getKeyLength() == KLV.KeyLength.SixteenBytes ){
+            routes = this.labelTable.lookup( klv.getUniversalLabel() );
+        } else {
+            routes = this.shortTable.get( klv.getShortKey() );
+        }   // end else: short key
+        return deliver( routes, klv );
+    }
+
+
+    /**
+     * Routes every top-level KLV set in part of an array, such as
+     * a UDP datagram. Keys are looked up in place; sets are copied
+     * into <code>KLV</code> objects only if some handler wants them.
+     * Parsing stops at the first malformed set.
+     *
+     * @param bytes     the sets, back to back
+     * @param offset    where the first set begins
+     * @param length    number of bytes
+     * @return          number of sets at least one handler took
+     */
+    public int route( byte[] bytes, int offset, int length ){
+        if( offset < 0 || length < 0 || offset + length > bytes.length )
+            throw new ArrayIndexOutOfBoundsException( String.format(
+                    "KLVRouter: Offset %d and length %d out of range (byte array length: %d).",
+                    offset, length, bytes.length ) );
+        int end = offset + length;
+        int pos = offset;
+        int keySize = this.keyLength.value();
+        int routed = 0;
+        java.nio.ByteBuffer wrapped = java.nio.ByteBuffer.wrap( bytes, 0, end );     // For reading length fields
+        while( pos < end ){
+
+            // Key
+            if( end - pos < keySize + 1 ){
+                this.malformedCount.incrementAndGet();
+                break;
+            }   // end if: no room for key and length
+            Route[] routes;
+            if( this.keyLength == KLV.KeyLength.SixteenBytes ){
+                routes = this.labelTable.lookup( bytes, pos );
+            } else {
+                routes = this.shortTable.get( KLV.getInt( bytes, pos, keySize ) );
+            }   // end else: short key
+
+            // Length
+            int fieldSize;
+            long valueLength;
+            try{
+                fieldSize = KLV.getLengthFieldSize( wrapped, pos + keySize, this.lengthEncoding );
+                valueLength = KLV.getLength( wrapped, pos + keySize, this.lengthEncoding );
+            } catch( RuntimeException exc ){
+                this.malformedCount.incrementAndGet();
+                break;
+            }   // end catch: bad length field
+            long next = (long)pos + keySize + fieldSize + valueLength;
+            if( valueLength < 0 || next > end ){
+                this.malformedCount.incrementAndGet();
+                break;
+            }   // end if: runs off the end
+
+            // Value, copied only if wanted
+            if( routes == null ){
+                routes = this.defaultRoutes;
+            }   // end if: no handler
+            if( routes.length > 0 && !this.closed ){
+                if( deliver( routes, new KLV( bytes, pos, this.keyLength, this.lengthEncoding ) ) ){
+                    routed++;
+                }   // end if: taken
+            } else {
+                this.unroutedCount.incrementAndGet();
+            }   // end else: skip it
+            pos = (int)next;
+        }   // end while: more sets
+        return routed;
+    }
+
+
+    /**
+     * Routes every top-level KLV set remaining in a buffer, such as
+     * one filled by a <code>DatagramChannel</code> or handed over by a
+     * <code>NioServer</code> listener, advancing its position to its limit.
+     *
+     * @param buffer    the sets, back to back
+     * @return          number of sets at least one handler took
+     */
+    public int route( java.nio.ByteBuffer buffer ){
+        int n = buffer.remaining();
+        int routed;
+        if( buffer.hasArray() ){
+            routed = route( buffer.array(), buffer.arrayOffset() + buffer.position(), n );
+        } else {
+            byte[][] holder = SCRATCH.get();
+            if( holder[0].length < n ){
+                holder[0] = new byte[ Math.max( n, holder[0].length * 2 ) ];
+            }   // end if: grow
+            buffer.duplicate().get( holder[0], 0, n );
+            routed = route( holder[0], 0, n );
+        }   // end else: direct
+        buffer.position( buffer.limit() );
+        return routed;
+    }
+
+
+    /**
+     * Routes every top-level KLV set in a UDP datagram.
+     *
+     * @param packet    the datagram
+     * @return          number of sets at least one handler took
+     */
+    public int route( java.net.DatagramPacket packet ){
+        return route( packet.getData(), packet.getOffset(), packet.getLength() );
+    }
+
+
+    /**
+     * Reads and routes KLV sets from a stream until it ends
+     * or the router is closed.
+     *
+     * @param in    the stream
+     * @return      number of sets at least one handler took
+     * @throws java.io.IOException if the stream cannot be read
+     */
+    public long route( java.io.InputStream in ) throws java.io.IOException {
+        long routed = 0;
+        KLV klv;
+        while( !this.closed && (klv = KLV.readKLV( in, this.keyLength, this.lengthEncoding )) != null ){
+            if( route( klv ) ){
+                routed++;
+            }   // end if: taken
+        }   // end while: more sets
+        return routed;
+    }
+
+
+    /** Queues the set for each route, or counts it as unrouted. */
+    private boolean deliver( Route[] routes, KLV klv ){
+        if( routes == null || routes.length == 0 ){
+            routes = this.defaultRoutes;
+        }   // end if: no handler
+        boolean taken = false;
+        if( !this.closed ){
+            for( Route route : routes ){
+                taken |= route.offer( klv );
+            }   // end for: each route
+        }   // end if: open
+        if( taken ){
+            this.routedCount.incrementAndGet();
+        } else {
+            this.unroutedCount.incrementAndGet();
+        }   // end else
+        return taken;
+    }
+
+
+
+/* ********  L I F E C Y C L E  ******** */
+
+
+    /**
+     * Waits until every route's queue is empty and no handler is running.
+     *
+     * @param timeout   how long to wait
+     * @param unit      the unit of <tt>timeout</tt>
+     * @return          true if all routes went idle in time
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public boolean awaitIdle( long timeout, TimeUnit unit ) throws InterruptedException {
+        long deadline = System.nanoTime() + unit.toNanos( timeout );
+        for( Route route : getRoutes() ){
+            while( !route.isIdle() ){
+                if( System.nanoTime() - deadline > 0 ){
+                    return false;
+                }   // end if: out of time
+                if( Thread.interrupted() )
+                    throw new InterruptedException();
+                LockSupport.parkNanos( BLOCK_PARK_NANOS );
+            }   // end while: busy
+        }   // end for: each route
+        return true;
+    }
+
+
+    /**
+     * Stops routing. Sets already queued are still delivered, after which
+     * the threads the router made for its routes are shut down. Executors
+     * passed in by the caller are left running.
+     */
+    public void close(){
+        this.closed = true;
+        for( Route route : getRoutes() ){
+            route.close();
+        }   // end for: each route
+    }
+
+
+    /** Returns true if {@link #close} has been called. */
+    public boolean isClosed(){
+        return this.closed;
+    }
+
+
+
+/* ********  S T A T I S T I C S  ******** */
+
+
+    /**
+     * Returns every registered route.
+     *
+     * @return the routes
+     */
+    public synchronized List<Route> getRoutes(){
+        List<Route> list = new ArrayList<Route>();
+        for( Route[] routes : this.shortRoutes.values() ){
+            list.addAll( Arrays.asList( routes ) );
+        }   // end for: each short key
+        for( Route[] routes : this.labelRoutes.values() ){
+            list.addAll( Arrays.asList( routes ) );
+        }   // end for: each label
+        list.addAll( Arrays.asList( this.defaultRoutes ) );
+        return list;
+    }
+
+
+    /** Returns the number of sets at least one handler took. */
+    public long getRoutedCount(){
+        return this.routedCount.get();
+    }
+
+
+    /** Returns the number of sets that no handler took, whether unwanted or dropped. */
+    public long getUnroutedCount(){
+        return this.unroutedCount.get();
+    }
+
+
+    /** Returns the number of times raw bytes ended in a malformed set. */
+    public long getMalformedCount(){
+        return this.malformedCount.get();
+    }
+
+
+
+/* ********  P R I V A T E   M E T H O D S  ******** */
+
+
+    private static Route[] append( Route[] routes, Route route ){
+        if( routes == null ){
+            return new Route[]{ route };
+        }   // end if: first
+        Route[] longer = Arrays.copyOf( routes, routes.length + 1 );
+        longer[ routes.length ] = route;
+        return longer;
+    }
+
+
+    /** Returns the same array if the route is not in it. */
+    private static Route[] remove( Route[] routes, Route route ){
+        for( int i = 0; i < routes.length; i++ ){
+            if( routes[i] == route ){
+                Route[] shorter = new Route[ routes.length - 1 ];
+                System.arraycopy( routes, 0, shorter, 0, i );
+                System.arraycopy( routes, i + 1, shorter, i, routes.length - i - 1 );
+                return shorter;
+            }   // end if: found
+        }   // end for: each route
+        return routes;
+    }
+
+
+
+/* ********  I N N E R   C L A S S E S  ******** */
+
+
+    /**
+     * One handler with its queue, executor, and statistics.
+     */
+    public final static class Route {
+
+        private final String name;
+        private final Handler handler;
+        private final Policy policy;
+        private final Executor executor;
+        private final ExecutorService ownExecutor;
+        private final RingBuffer queue;
+
+        /** True while a drain task is queued or running. */
+        private final AtomicBoolean scheduled = new AtomicBoolean();
+
+        private final AtomicLong offered = new AtomicLong();
+        private final AtomicLong delivered = new AtomicLong();
+        private final AtomicLong dropped = new AtomicLong();
+        private final AtomicLong errors = new AtomicLong();
+        private final AtomicInteger maxDepth = new AtomicInteger();
+
+        private volatile boolean closed;
+
+        private final Runnable drain = new Runnable(){
+            public void run(){
+                drain();
+            }
+        };
+
+
+        private Route( String name, Handler handler, int capacity, Policy policy, Executor executor ){
+            if( handler == null )
+                throw new NullPointerException( "KLVRouter: Handler must not be null." );
+            if( policy == null )
+                throw new NullPointerException( "KLVRouter: Policy must not be null." );
+            if( capacity < 1 || capacity > (1 << 30) )
+                throw new IllegalArgumentException( "KLVRouter: Capacity must be 1 to 2^30, not " + capacity );
+            this.name = name;
+            this.handler = handler;
+            this.policy = policy;
+            this.queue = new RingBuffer( capacity );
+            if( executor == null ){
+                final String threadName = "KLVRouter-" + name;
+                this.ownExecutor = Executors.newSingleThreadExecutor( new ThreadFactory(){
+                    public Thread newThread( Runnable r ){
+                        Thread t = new Thread( r, threadName );
+                        t.setDaemon( true );
+                        return t;
+                    }
+                });
+                this.executor = this.ownExecutor;
+            } else {
+                this.ownExecutor = null;
+                this.executor = executor;
+            }   // end else: caller's executor
+        }
+
+
+        /** Queues a set according to the policy, returning false if it was dropped. */
+        private boolean offer( KLV klv ){
+            if( this.closed ){
+                this.dropped.incrementAndGet();
+                return false;
+            }   // end if: closed
+            this.offered.incrementAndGet();
+            boolean queued = this.queue.offer( klv );
+            if( !queued ){
+                switch( this.policy ){
+                    case DROP_OLDEST:
+                        while( !queued ){
+                            if( this.queue.poll() != null ){
+                                this.dropped.incrementAndGet();
+                            }   // end if: made room
+                            queued = this.queue.offer( klv );
+                        }   // end while: full
+                        break;
+
+                    case BLOCK:
+                        while( !queued && !this.closed ){
+                            schedule();                     // Make sure someone is emptying it
+                            LockSupport.parkNanos( BLOCK_PARK_NANOS );
+                            queued = this.queue.offer( klv );
+                        }   // end while: full
+                        break;
+
+                    case DROP_NEWEST:
+                    default:
+                        break;
+                }   // end switch
+                if( !queued ){
+                    this.dropped.incrementAndGet();
+                    return false;
+                }   // end if: gave up
+            }   // end if: full
+
+            int depth = this.queue.size();
+            int max = this.maxDepth.get();
+            while( depth > max && !this.maxDepth.compareAndSet( max, depth ) ){
+                max = this.maxDepth.get();
+            }   // end while: new high water mark
+            schedule();
+            return true;
+        }
+
+
+        /** Hands a drain task to the executor unless one is already pending. */
+        private void schedule(){
+            if( this.scheduled.compareAndSet( false, true ) ){
+                try{
+                    this.executor.execute( this.drain );
+                } catch( RejectedExecutionException exc ){
+                    this.scheduled.set( false );
+                    int n = 0;
+                    while( this.queue.poll() != null ){
+                        n++;
+                    }   // end while: discard
+                    this.dropped.addAndGet( n );
+                }   // end catch: executor shut down
+            }   // end if: idle
+        }
+
+
+        /** Delivers up to a batch of queued sets, rescheduling if more arrive. */
+        private void drain(){
+            try{
+                KLV klv;
+                for( int i = 0; i < DRAIN_BATCH && (klv = this.queue.poll()) != null; i++ ){
+                    try{
+                        this.handler.klvReceived( klv );
+                    } catch( Exception exc ){
+                        this.errors.incrementAndGet();
+                    }   // end catch
+                    this.delivered.incrementAndGet();
+                }   // end for: each set
+            } finally {
+                this.scheduled.set( false );
+                if( !this.queue.isEmpty() ){
+                    schedule();
+                } else if( this.closed && this.ownExecutor != null ){
+                    this.ownExecutor.shutdown();
+                }   // end else if: finished
+            }   // end finally
+        }
+
+
+        private void close(){
+            this.closed = true;
+            if( this.ownExecutor != null && this.queue.isEmpty() && !this.scheduled.get() ){
+                this.ownExecutor.shutdown();
+            }   // end if: nothing left to do
+        }
+
+
+        private boolean isIdle(){
+            return this.queue.isEmpty() && !this.scheduled.get();
+        }
+
+
+        /** Returns the key this route is for, as text. */
+        public String getName(){
+            return this.name;
+        }
+
+        /** Returns the handler. */
+        public Handler getHandler(){
+            return this.handler;
+        }
+
+        /** Returns what happens when the queue is full. */
+        public Policy getPolicy(){
+            return this.policy;
+        }
+
+        /** Returns the most sets the queue can hold. */
+        public int getCapacity(){
+            return this.queue.capacity();
+        }
+
+        /** Returns the number of sets waiting for the handler right now. */
+        public int getQueueDepth(){
+            return this.queue.size();
+        }
+
+        /** Returns the most sets that have been waiting at once. */
+        public int getMaxQueueDepth(){
+            return this.maxDepth.get();
+        }
+
+        /** Returns the number of sets offered to this route. */
+        public long getOfferedCount(){
+            return this.offered.get();
+        }
+
+        /** Returns the number of sets handed to the handler. */
+        public long getDeliveredCount(){
+            return this.delivered.get();
+        }
+
+        /** Returns the number of sets dropped because the queue was full or the route closed. */
+        public long getDroppedCount(){
+            return this.dropped.get();
+        }
+
+        /** Returns the number of times the handler threw an exception. */
+        public long getErrorCount(){
+            return this.errors.get();
+        }
+
+        @Override
+        public String toString(){
+            return String.format( "Route[%s, depth %d/%d, max %d, delivered %d, dropped %d, errors %d]",
+                    this.name, getQueueDepth(), getCapacity(), getMaxQueueDepth(),
+                    getDeliveredCount(), getDroppedCount(), getErrorCount() );
+        }
+
+    }   // end class Route
+
+
+
+    /**
+     * A bounded, lock-free queue for any number of producers and
+     * consumers, after Dmitry Vyukov's design: each slot has a sequence
+     * number that says whether it is ready to be written or read, so
+     * producers and consumers only contend on their own counters.
+     */
+    private final static class RingBuffer {
+        private final int mask;
+        private final AtomicReferenceArray<KLV> items;
+        private final AtomicLongArray sequences;
+        private final AtomicLong head = new AtomicLong();   // Next to read
+        private final AtomicLong tail = new AtomicLong();   // Next to write
+
+        private RingBuffer( int capacity ){
+            int size = Integer.highestOneBit( capacity );
+            if( size < capacity ){
+                size <<= 1;
+            }   // end if: round up
+            this.mask = size - 1;
+            this.items = new AtomicReferenceArray<KLV>( size );
+            this.sequences = new AtomicLongArray( size );
+            for( int i = 0; i < size; i++ ){
+                this.sequences.set( i, i );
+            }   // end for: each slot
+        }
+
+        private boolean offer( KLV klv ){
+            while( true ){
+                long pos = this.tail.get();
+                int slot = (int)pos & this.mask;
+                long diff = this.sequences.get( slot ) - pos;
+                if( diff == 0 ){
+                    if( this.tail.compareAndSet( pos, pos + 1 ) ){
+                        this.items.lazySet( slot, klv );
+                        this.sequences.set( slot, pos + 1 );    // Publish
+                        return true;
+                    }   // end if: claimed
+                } else if( diff < 0 ){
+                    return false;                               // Full
+                }   // end else if
+            }   // end while: retry
+        }
+
+        private KLV poll(){
+            while( true ){
+                long pos = this.head.get();
+                int slot = (int)pos & this.mask;
+                long diff = this.sequences.get( slot ) - (pos + 1);
+                if( diff == 0 ){
+                    if( this.head.compareAndSet( pos, pos + 1 ) ){
+                        KLV klv = this.items.get( slot );
+                        this.items.lazySet( slot, null );
+                        this.sequences.set( slot, pos + this.mask + 1 );   // Free for the next lap
+                        return klv;
+                    }   // end if: claimed
+                } else if( diff < 0 ){
+                    return null;                                // Empty
+                }   // end else if
+            }   // end while: retry
+        }
+
+        private int size(){
+            long size = this.tail.get() - this.head.get();
+            return (int)Math.max( 0, Math.min( size, this.mask + 1 ) );
+        }
+
+        private boolean isEmpty(){
+            return this.tail.get() == this.head.get();
+        }
+
+        private int capacity(){
+            return this.mask + 1;
+        }
+    }   // end class RingBuffer
+
+
+
+    /**
+     * An immutable open-addressing table from short keys to routes,
+     * so that routing does not box keys.
+     */
+    private final static class KeyTable {
+        private final int[] keys;
+        private final Route[][] routes;
+        private final int mask;
+
+        private KeyTable( Map<Integer,Route[]> map ){
+            int size = 4;
+            while( size < map.size() * 2 ){
+                size <<= 1;
+            }   // end while: load factor at most one half
+            this.keys = new int[ size ];
+            this.routes = new Route[ size ][];
+            this.mask = size - 1;
+            for( Map.Entry<Integer,Route[]> entry : map.entrySet() ){
+                int slot = hash( entry.getKey() ) & this.mask;
+                while( this.routes[ slot ] != null ){
+                    slot = (slot + 1) & this.mask;
+                }   // end while: probing
+                this.keys[ slot ] = entry.getKey();
+                this.routes[ slot ] = entry.getValue();
+            }   // end for: each key
+        }
+
+        private Route[] get( int key ){
+            int slot = hash( key ) & this.mask;
+            Route[] found;
+            while( (found = this.routes[ slot ]) != null ){
+                if( this.keys[ slot ] == key ){
+                    return found;
+                }   // end if: match
+                slot = (slot + 1) & this.mask;
+            }   // end while: probing
+            return null;
+        }
+
+        private static int hash( int key ){
+            int h = key * 0x9E3779B9;
+            return h ^ (h >>> 16);
+        }
+    }   // end class KeyTable
+
+
+}   // end class KLVRouter
@@ -0,0 +1,550 @@
+/**
+ * <p>Converts floating point values to and from the fixed-width scaled
+ * integers that telemetry KLV uses for positions, angles, and the like.
+ * Three mappings are supported:</p>
+ *
+ * <ul>
+ *  <li>{@link #imapb} &mdash; MISB ST 1201 Floating Point to Integer
+ *      Mapping (IMAPB), with its special values for infinities and NaN.</li>
+ *  <li>{@link #signed} &mdash; MISB ST 0601 style signed integers that map
+ *      &plusmn;(2<sup>n-1</sup>-1) onto the range, keeping the most negative
+ *      integer to mean "out of range".</li>
+ *  <li>{@link #unsigned} &mdash; unsigned integers that map 0 to
+ *      2<sup>n</sup>-1 onto the range.</li>
+ * </ul>
+ *
+ * <p>Scale factors are worked out once, when the codec is made, so a
+ * codec is the precomputed scale-factor table entry for one tag. Decoding
+ * one value is a big endian read, a compare for the special values, and
+ * a multiply-add. The batch methods convert whole arrays of values packed
+ * end to end, or one value per codec in a table of codecs, with the
+ * choice of mapping made once outside the loop.</p>
+ *
+ * <p>Codecs are immutable and can be shared between threads.</p>
+ *
+ * <p>This code is released into the Public Domain. Enjoy.</p>
+ *
+ * @author Robert Harder
+ * @author rharder@users.sourceforge.net
+ * @version 0.3.1
+ */
+public final class KLVScaledInteger {
+
+
+/* ********  E N U M  ******** */
+
+
+    /**
+     * How floating point values are mapped onto integers.
+     */
+    public static enum Mapping {
+        /** MISB ST 1201 IMAPB. */
+        IMAPB,
+        /** Signed, symmetric about the middle of the range, with an "out of range" value. */
+        SIGNED,
+        /** Unsigned, covering the whole range. */
+        UNSIGNED
+    }   // end enum Mapping
+
+
+
+/* ********  S T A T I C   F I E L D S  ******** */
+
+
+    /** IMAPB special value: positive infinity. */
+    private final static int IMAPB_POSITIVE_INFINITY = 0xC8;
+
+    /** IMAPB special value: negative infinity. */
+    private final static int IMAPB_NEGATIVE_INFINITY = 0xE8;
+
+    /** IMAPB special value: positive quiet NaN. */
+    private final static int IMAPB_NAN = 0xD0;
+
+
+
+/* ********  I N S T A N C E   F I E L D S  ******** */
+
+
+    private final Mapping mapping;
+    private final double min;
+    private final double max;
+    private final int length;
+
+    /** Multiplied by (integer - zOffset) when decoding. */
+    private final double decodeScale;
+
+    /** Multiplied by (value - min or center) when encoding. */
+    private final double encodeScale;
+
+    /** The center of the range, for signed mappings; <tt>min</tt> otherwise. */
+    private final double origin;
+
+    /** IMAPB offset that makes zero map exactly; zero for other mappings. */
+    private final double zOffset;
+
+    /** Largest integer that is a normal value. */
+    private final long maxInteger;
+
+    /** Smallest integer that is a normal value. */
+    private final long minInteger;
+
+    /** Special integer meaning "out of range", for signed mappings. */
+    private final long outOfRange;
+
+
+
+/* ********  C O N S T R U C T O R S  ******** */
+
+
+    private KLVScaledInteger( Mapping mapping, double min, double max, int length ){
+        if( !(min < max) || Double.isInfinite( min ) || Double.isInfinite( max ) )
+            throw new IllegalArgumentException( String.format(
+                    "KLVScaledInteger: Range must be finite with min < max, not %s to %s.", min, max ) );
+        if( length < 1 || length > 8 )
+            throw new IllegalArgumentException( "KLVScaledInteger: Length must be 1 to 8 bytes, not " + length );
+        this.mapping = mapping;
+        this.min = min;
+        this.max = max;
+        this.length = length;
+        int bits = length * 8;
+
+        switch( mapping ){
+            case IMAPB:
+                int bPow = (int)Math.ceil( Math.log( max - min ) / Math.log( 2 ) );
+                int dPow = bits - 1;
+                this.encodeScale = Math.pow( 2, dPow - bPow );
+                this.decodeScale = Math.pow( 2, bPow - dPow );
+                double scaledMin = this.encodeScale * min;
+                this.zOffset = min < 0 && scaledMin != Math.floor( scaledMin ) ? scaledMin - Math.floor( scaledMin ) : 0;
+                this.origin = min;
+                this.minInteger = 0;
+                this.maxInteger = (1L << dPow) - 1;     // High bit marks special values
+                this.outOfRange = 0;
+                break;
+
+            case SIGNED:
+                long half = bits == 64 ? Long.MAX_VALUE : (1L << (bits - 1)) - 1;
+                this.decodeScale = (max - min) / (2.0 * half);
+                this.encodeScale = (2.0 * half) / (max - min);
+                this.origin = (max + min) / 2;
+                this.zOffset = 0;
+                this.minInteger = -half;
+                this.maxInteger = half;
+                this.outOfRange = -half - 1;
+                break;
+
+            case UNSIGNED:
+                double steps = Math.pow( 2, bits ) - 1;
+                this.decodeScale = (max - min) / steps;
+                this.encodeScale = steps / (max - min);
+                this.origin = min;
+                this.zOffset = 0;
+                this.minInteger = 0;
+                this.maxInteger = bits == 64 ? -1L : (1L << bits) - 1;    // Compared unsigned
+                this.outOfRange = 0;
+                break;
+
+            default:
+                throw new IllegalArgumentException( "KLVScaledInteger: Unknown mapping: " + mapping );
+        }   // end switch
+    }
+
+
+    /**
+     * Creates a MISB ST 1201 IMAPB codec. Values that are out of range
+     * are encoded as the infinity on their side, and NaN as NaN.
+     *
+     * @param min       low end of the range
+     * @param max       high end of the range
+     * @param length    number of bytes, 1 to 8
+     * @return the codec
+     */
+    public static KLVScaledInteger imapb( double min, double max, int length ){
+        return new KLVScaledInteger( Mapping.IMAPB, min, max, length );
+    }
+
+
+    /**
+     * Creates a signed codec as used by many MISB ST 0601 tags. The most
+     * negative integer means "out of range": values outside the range,
+     * and NaN, are encoded as that integer, which decodes to NaN.
+     *
+     * @param min       low end of the range
+     * @param max       high end of the range
+     * @param length    number of bytes, 1 to 8
+     * @return the codec
+     */
+    public static KLVScaledInteger signed( double min, double max, int length ){
+        return new KLVScaledInteger( Mapping.SIGNED, min, max, length );
+    }
+
+
+    /**
+     * Creates an unsigned codec. There is no integer to spare for special
+     * values, so values outside the range are clamped to it and NaN
+     * is encoded as zero.
+     *
+     * @param min       low end of the range
+     * @param max       high end of the range
+     * @param length    number of bytes, 1 to 8
+     * @return the codec
+     */
+    public static KLVScaledInteger unsigned( double min, double max, int length ){
+        return new KLVScaledInteger( Mapping.UNSIGNED, min, max, length );
+    }
+
+
+
+/* ********  P U B L I C   G E T   M E T H O D S  ******** */
+
+
+    /** Returns the mapping. */
+    public Mapping getMapping(){
+        return this.mapping;
+    }
+
+
+    /** Returns the low end of the range. */
+    public double getMin(){
+        return this.min;
+    }
+
+
+    /** Returns the high end of the range. */
+    public double getMax(){
+        return this.max;
+    }
+
+
+    /** Returns the number of bytes in each encoded value. */
+    public int getLength(){
+        return this.length;
+    }
+
+
+    /** Returns the difference between two neighboring decoded values. */
+    public double getResolution(){
+        return this.decodeScale;
+    }
+
+
+
+/* ********  D E C O D E   M E T H O D S  ******** */
+
+
+    /**
+     * Decodes the integer found at the offset, which must be
+     * {@link #getLength} bytes long.
+     *
+     * @param data      the array holding the value
+     * @param offset    where the value begins
+     * @return the value, or an infinity or NaN for special values
+     */
+    public double decode( byte[] data, int offset ){
+        return toDouble( readRaw( data, offset, this.length ) );
+    }
+
+
+    /**
+     * Decodes an integer of the given length. Signed and unsigned integers
+     * shorter than the codec's, which some standards allow, are sign or
+     * zero extended and keep the codec's scale. Anything else that is not
+     * the codec's length, including any IMAPB value, whose scale depends
+     * on its length, decodes to NaN.
+     *
+     * @param data      the array holding the value
+     * @param offset    where the value begins
+     * @param length    number of bytes in the value
+     * @return the value, or an infinity or NaN for special values
+     */
+    public double decode( byte[] data, int offset, int length ){
+        if( length == this.length ){
+            return decode( data, offset );
+        } else if( length < 1 || length > this.length || this.mapping == Mapping.IMAPB ){
+            return Double.NaN;
+        }   // end else if: does not fit
+        long raw = readRaw( data, offset, length );
+        if( this.mapping == Mapping.SIGNED ){
+            return this.origin + raw * this.decodeScale;
+        } else {
+            return this.min + raw * this.decodeScale;
+        }   // end else
+    }
+
+
+    /**
+     * Decodes an integer of the given length at an absolute position
+     * in a buffer, as {@link #decode(byte[],int,int)} does, so that a
+     * value can be tested straight from a mapped file. The buffer's
+     * position is not changed.
+     *
+     * @param buffer    the buffer holding the value
+     * @param position  absolute position where the value begins
+     * @param length    number of bytes in the value
+     * @return the value, or an infinity or NaN for special values
+     * @throws IndexOutOfBoundsException if the value runs past the buffer's limit
+     */
+    public double decode( java.nio.ByteBuffer buffer, int position, int length ){
+        if( length < 1 || length > this.length || (length != this.length && this.mapping == Mapping.IMAPB) ){
+            return Double.NaN;
+        }   // end if: does not fit
+        boolean signed = this.mapping == Mapping.SIGNED;
+        long raw = signed && buffer.get( position ) < 0 ? -1L : 0L;
+        for( int i = 0; i < length; i++ ){
+            raw = (raw << 8) | (buffer.get( position + i ) & 0xFF);
+        }   // end for: each byte
+        if( length == this.length ){
+            return toDouble( raw );
+        } else if( signed ){
+            return this.origin + raw * this.decodeScale;
+        } else {
+            return this.min + raw * this.decodeScale;
+        }   // end else
+    }
+
+
+    /**
+     * Decodes <tt>count</tt> values packed end to end.
+     *
+     * @param src       the encoded values
+     * @param srcOffset where the first value begins
+     * @param dest      where to put the decoded values
+     * @param destOffset where to put the first decoded value
+     * @param count     number of values
+     */
+    public void decode( byte[] src, int srcOffset, double[] dest, int destOffset, int count ){
+        if( srcOffset < 0 || count < 0 || srcOffset + (long)count * this.length > src.length )
+            throw new ArrayIndexOutOfBoundsException( String.format(
+                    "KLVScaledInteger: Not enough bytes for %d values at offset %d (byte array length: %d).",
+                    count, srcOffset, src.length ) );
+        int len = this.length;
+        int pos = srcOffset;
+        switch( this.mapping ){
+            case IMAPB:
+                for( int i = 0; i < count; i++, pos += len ){
+                    long raw = readRaw( src, pos, len );
+                    dest[ destOffset + i ] = raw > this.maxInteger || raw < 0
+                            ? special( src[pos] & 0xFF )
+                            : this.decodeScale * (raw - this.zOffset) + this.min;
+                }   // end for: each value
+                break;
+
+            case SIGNED:
+                for( int i = 0; i < count; i++, pos += len ){
+                    long raw = readRaw( src, pos, len );
+                    dest[ destOffset + i ] = raw == this.outOfRange
+                            ? Double.NaN
+                            : this.origin + raw * this.decodeScale;
+                }   // end for: each value
+                break;
+
+            case UNSIGNED:
+                for( int i = 0; i < count; i++, pos += len ){
+                    dest[ destOffset + i ] = this.min + unsignedToDouble( readRaw( src, pos, len ) ) * this.decodeScale;
+                }   // end for: each value
+                break;
+        }   // end switch
+    }
+
+
+    /**
+     * Decodes one value per codec, as when each tag in a local set has
+     * its own range: value <tt>i</tt> is at <tt>offsets[i]</tt> and is
+     * decoded with <tt>codecs[i]</tt>.
+     *
+     * @param codecs    the precomputed codec for each value
+     * @param src       the array holding the values
+     * @param offsets   where each value begins
+     * @param dest      where to put the decoded values
+     * @param count     number of values
+     */
+    public static void decode( KLVScaledInteger[] codecs, byte[] src, int[] offsets, double[] dest, int count ){
+        for( int i = 0; i < count; i++ ){
+            dest[i] = codecs[i].decode( src, offsets[i] );
+        }   // end for: each value
+    }
+
+
+
+/* ********  E N C O D E   M E T H O D S  ******** */
+
+
+    /**
+     * Encodes a value as an integer, handling out-of-range
+     * values and NaN as described for each mapping.
+     *
+     * @param value the value
+     * @return the integer, in the low {@link #getLength} bytes
+     */
+    public long toInteger( double value ){
+        switch( this.mapping ){
+            case IMAPB:
+                if( value != value ){
+                    return specialBits( IMAPB_NAN );
+                } else if( value > this.max ){
+                    return specialBits( IMAPB_POSITIVE_INFINITY );
+                } else if( value < this.min ){
+                    return specialBits( IMAPB_NEGATIVE_INFINITY );
+                }   // end else if
+                long imapb = (long)Math.floor( this.encodeScale * (value - this.min) + this.zOffset );
+                return Math.min( imapb, this.maxInteger );
+
+            case SIGNED:
+                if( value != value || value < this.min || value > this.max ){
+                    return this.outOfRange & mask();
+                }   // end if: out of range
+                long signed = Math.round( (value - this.origin) * this.encodeScale );
+                signed = Math.max( this.minInteger, Math.min( this.maxInteger, signed ) );
+                return signed & mask();
+
+            case UNSIGNED:
+            default:
+                if( value != value || value <= this.min ){
+                    return 0;
+                } else if( value >= this.max ){
+                    return this.maxInteger;
+                }   // end else if
+                double scaled = Math.rint( (value - this.min) * this.encodeScale );
+                if( scaled >= 0x1p63 ){
+                    return (long)(scaled - 0x1p63) ^ Long.MIN_VALUE;    // Above Long.MAX_VALUE
+                }   // end if: big
+                return (long)scaled;
+        }   // end switch
+    }
+
+
+    /**
+     * Encodes a value into the array at the offset.
+     *
+     * @param value     the value
+     * @param dest      the array to write to
+     * @param offset    where to start writing
+     */
+    public void encode( double value, byte[] dest, int offset ){
+        writeRaw( toInteger( value ), dest, offset, this.length );
+    }
+
+
+    /**
+     * Encodes <tt>count</tt> values, packing them end to end.
+     *
+     * @param src       the values
+     * @param srcOffset where the first value is
+     * @param dest      where to put the encoded values
+     * @param destOffset where to put the first encoded value
+     * @param count     number of values
+     */
+    public void encode( double[] src, int srcOffset, byte[] dest, int destOffset, int count ){
+        if( destOffset < 0 || count < 0 || destOffset + (long)count * this.length > dest.length )
+            throw new ArrayIndexOutOfBoundsException( String.format(
+                    "KLVScaledInteger: Not enough room for %d values at offset %d (byte array length: %d).",
+                    count, destOffset, dest.length ) );
+        int len = this.length;
+        for( int i = 0; i < count; i++ ){
+            writeRaw( toInteger( src[ srcOffset + i ] ), dest, destOffset + i * len, len );
+        }   // end for: each value
+    }
+
+
+    /**
+     * Returns a new array with the encoded value.
+     *
+     * @param value the value
+     * @return the encoded value
+     */
+    public byte[] encode( double value ){
+        byte[] bytes = new byte[ this.length ];
+        encode( value, bytes, 0 );
+        return bytes;
+    }
+
+
+
+/* ********  P R I V A T E   M E T H O D S  ******** */
+
+
+    /** Converts a full-length integer to a value. */
+    private double toDouble( long raw ){
+        switch( this.mapping ){
+            case IMAPB:
+                if( raw > this.maxInteger || raw < 0 ){
+                    return special( (int)(raw >>> (this.length * 8 - 8)) & 0xFF );
+                }   // end if: special
+                return this.decodeScale * (raw - this.zOffset) + this.min;
+
+            case SIGNED:
+                return raw == this.outOfRange ? Double.NaN : this.origin + raw * this.decodeScale;
+
+            case UNSIGNED:
+            default:
+                return this.min + unsignedToDouble( raw ) * this.decodeScale;
+        }   // end switch
+    }
+
+
+    /** Returns the value of an IMAPB special, given its first byte. */
+    private static double special( int firstByte ){
+        switch( firstByte & 0xF8 ){
+            case IMAPB_POSITIVE_INFINITY: return Double.POSITIVE_INFINITY;
+            case IMAPB_NEGATIVE_INFINITY: return Double.NEGATIVE_INFINITY;
+            default:                      return Double.NaN;    // NaNs, reserved, and user defined
+        }   // end switch
+    }
+
+
+    /** Returns the integer for an IMAPB special value, given its first byte. */
+    private long specialBits( int firstByte ){
+        return (long)firstByte << (this.length * 8 - 8);
+    }
+
+
+    /** Returns a mask of the low {@link #length} bytes. */
+    private long mask(){
+        return this.length == 8 ? -1L : (1L << (this.length * 8)) - 1;
+    }
+
+
+    private static double unsignedToDouble( long raw ){
+        return raw >= 0 ? raw : ((raw >>> 1) * 2.0 + (raw & 1));
+    }
+
+
+    /**
+     * Reads a big endian integer, sign-extended for signed mappings,
+     * using the static readers in {@link KLV} for the common lengths.
+     */
+    private long readRaw( byte[] data, int offset, int length ){
+        boolean signed = this.mapping == Mapping.SIGNED;
+        switch( length ){
+            case 1: return signed ? KLV.get8bitSignedInt( data, offset ) : KLV.get8bitUnsignedInt( data, offset );
+            case 2: return signed ? KLV.get16bitSignedInt( data, offset ) : KLV.get16bitUnsignedInt( data, offset );
+            case 4: return signed ? KLV.get32bitInt( data, offset ) : KLV.get32bitInt( data, offset ) & 0xFFFFFFFFL;
+            case 8: return KLV.get64bitLong( data, offset );
+            default:
+                long value = signed && data[offset] < 0 ? -1L : 0L;
+                for( int i = 0; i < length; i++ ){
+                    value = (value << 8) | (data[offset+i] & 0xFF);
+                }   // end for: each byte
+                return value;
+        }   // end switch
+    }
+
+
+    private static void writeRaw( long raw, byte[] dest, int offset, int length ){
+        for( int i = length - 1; i >= 0; i-- ){
+            dest[ offset++ ] = (byte)(raw >>> (i * 8));
+        }   // end for: each byte, big endian
+    }
+
+
+
+/* ********  O B J E C T   O V E R R I D E  ******** */
+
+
+    @Override
+    public String toString(){
+        return String.format( "%s[%s to %s, %d bytes]", this.mapping, this.min, this.max, this.length );
+    }
+
+
+}   // end class KLVScaledInteger
@@ -0,0 +1,847 @@
+import java.util.*;
+
+
+/**
+ * <p>A declarative description of a KLV local set (tag, name, type,
+ * optional linear scaling, and nested sets) that decodes raw bytes
+ * directly into primitive slots, without creating any <code>KLV</code>
+ * objects and without calling the <tt>getValueAs...</tt> methods.</p>
+ *
+ * <p>The first time a schema is used for decoding, it is compiled into
+ * dense arrays indexed by tag, so handling each KLV set takes one array
+ * lookup and one switch. Every field that holds a value (everything
+ * except a nested set) is given a <em>slot</em>, numbered in the order
+ * the fields were added, with nested fields numbered where their set was
+ * added. Decoded values go to a {@link Target} by slot. A {@link Record}
+ * is a reusable target that stores them in primitive arrays; a column
+ * buffer can implement {@link Target} as well.</p>
+ *
+ * <p>Example, for part of the MISB ST 0601 UAS Local Set:</p>
+ * <pre>
+ * KLVSchema uas = new KLVSchema( KLV.KeyLength.OneByte, KLV.LengthEncoding.BER )
+ *     .add( 2, "timestamp", KLVSchema.Type.UINT64 )
+ *     .addScaled( 5, "platformHeading", KLVSchema.Type.UINT16, 0, 360 )
+ *     .addScaled( 13, "sensorLatitude", KLVSchema.Type.INT32, -90, 90 )
+ *     .add( 3, "missionId", KLVSchema.Type.STRING );
+ * int heading = uas.slotOf( "platformHeading" );
+ * KLVSchema.Record rec = uas.newRecord();
+ * rec.decode( klv.getValue(), 0, klv.getLength() );
+ * double deg = rec.getDouble( heading );
+ * </pre>
+ *
+ * <p>Sets with tags that are not in the schema are skipped, as are values
+ * whose length does not suit their type: integers longer than eight bytes,
+ * floats that are not four bytes, and doubles that are not eight bytes.
+ * Integers shorter than their type, which some standards allow, are
+ * read as big endian numbers of whatever length they have.</p>
+ *
+ * <p>Once compiled, a schema can no longer be changed and can decode on
+ * many threads at once, as long as each thread has its own target.</p>
+ *
+ * <p>This code is released into the Public Domain. Enjoy.</p>
+ *
+ * @author Robert Harder
+ * @author rharder@users.sourceforge.net
+ * @version 0.3.1
+ */
+public class KLVSchema {
+
+
+/* ********  E N U M  ******** */
+
+
+    /**
+     * The type of a field's value.
+     */
+    public static enum Type {
+        INT8(1), UINT8(1), INT16(2), UINT16(2), INT32(4), UINT32(4), INT64(8), UINT64(8),
+        FLOAT(4), DOUBLE(8), MAPPED(0), STRING(0), BYTES(0), SET(0);
+
+        private int size;
+
+        Type( int size ){
+            this.size = size;
+        }
+
+        /** Returns the number of bytes in the value, or zero if it varies. */
+        public int size(){
+            return this.size;
+        }
+
+        /** Returns true if the type is one of the integer types. */
+        public boolean isInteger(){
+            return this.compareTo( UINT64 ) <= 0;
+        }
+
+        /** Returns true if the type is one of the signed integer types. */
+        public boolean isSigned(){
+            return this == INT8 || this == INT16 || this == INT32 || this == INT64;
+        }
+    }   // end enum Type
+
+
+    /**
+     * How a slot stores its value.
+     */
+    public static enum Kind {
+        /** Integers that are not scaled. */
+        LONG,
+        /** Floats, doubles, scaled integers, and mapped integers. */
+        DOUBLE,
+        /** Strings and raw bytes. */
+        BYTES
+    }   // end enum Kind
+
+
+
+/* ********  S T A T I C   F I E L D S  ******** */
+
+
+    /** Tags must be below this value so that the dispatch table stays small. */
+    public final static int MAX_TAG = 0xFFFF;
+
+
+
+/* ********  I N S T A N C E   F I E L D S  ******** */
+
+
+    private final KLV.KeyLength keyLength;
+    private final KLV.LengthEncoding lengthEncoding;
+
+    /** Fields in the order they were added. */
+    private final List<Field> fields = new ArrayList<Field>();
+
+    /** Compiled form, built on first use. */
+    private volatile Compiled compiled;
+
+
+
+/* ********  C O N S T R U C T O R S  ******** */
+
+
+    /**
+     * Creates an empty schema for local sets with the given
+     * key length and length encoding.
+     *
+     * @param keyLength         key length of the sets in the local set
+     * @param lengthEncoding    length encoding of the sets in the local set
+     * @throws IllegalArgumentException if the key length is sixteen bytes
+     */
+    public KLVSchema( KLV.KeyLength keyLength, KLV.LengthEncoding lengthEncoding ){
+        if( keyLength == null )
+            throw new NullPointerException( "KLVSchema: Key length must not be null." );
+        if( lengthEncoding == null )
+            throw new NullPointerException( "KLVSchema: Length encoding must not be null." );
+        if( keyLength == KLV.KeyLength.SixteenBytes )
+            throw new IllegalArgumentException( "KLVSchema: Sixteen-byte keys are not supported in local sets." );
+        this.keyLength = keyLength;
+        this.lengthEncoding = lengthEncoding;
+    }
+
+
+
+/* ********  S C H E M A   M E T H O D S  ******** */
+
+
+    /**
+     * Adds a field whose value is stored as is.
+     *
+     * @param tag   the field's key
+     * @param name  the field's name, unique within the schema
+     * @param type  the field's type, anything but {@link Type#SET}
+     * @return      <tt>this</tt> to aid in stringing commands together
+     */
+    public KLVSchema add( int tag, String name, Type type ){
+        if( type == Type.SET )
+            throw new IllegalArgumentException( "KLVSchema: Use addSet for nested sets." );
+        if( type == Type.MAPPED )
+            throw new IllegalArgumentException( "KLVSchema: Use addMapped for mapped integers." );
+        return addField( new Field( tag, name, type, 1, 0, null ) );
+    }
+
+
+    /**
+     * Adds an integer field that is mapped linearly onto the range
+     * <tt>min</tt> to <tt>max</tt>, as in MISB ST 0601. Unsigned values
+     * 0 to 2<sup>n</sup>-1 map onto the whole range; signed values map
+     * &plusmn;(2<sup>n-1</sup>-1) onto the range, centered in the middle.
+     *
+     * @param tag   the field's key
+     * @param name  the field's name, unique within the schema
+     * @param type  one of the integer types
+     * @param min   the value the smallest integer maps to
+     * @param max   the value the largest integer maps to
+     * @return      <tt>this</tt> to aid in stringing commands together
+     */
+    public KLVSchema addScaled( int tag, String name, Type type, double min, double max ){
+        if( type == null || !type.isInteger() )
+            throw new IllegalArgumentException( "KLVSchema: Only integer types can be scaled, not " + type );
+        double steps = Math.pow( 2, type.size() * 8 );
+        if( type.isSigned() ){
+            return addLinear( tag, name, type, (max - min) / (steps - 2), (max + min) / 2 );
+        } else {
+            return addLinear( tag, name, type, (max - min) / (steps - 1), min );
+        }   // end else
+    }
+
+
+    /**
+     * Adds an integer field whose decoded value is
+     * <tt>integer&nbsp;*&nbsp;scale&nbsp;+&nbsp;offset</tt>.
+     *
+     * @param tag       the field's key
+     * @param name      the field's name, unique within the schema
+     * @param type      one of the integer types
+     * @param scale     multiplied by the integer
+     * @param offset    added after scaling
+     * @return          <tt>this</tt> to aid in stringing commands together
+     */
+    public KLVSchema addLinear( int tag, String name, Type type, double scale, double offset ){
+        if( type == null || !type.isInteger() )
+            throw new IllegalArgumentException( "KLVSchema: Only integer types can be scaled, not " + type );
+        return addField( new Field( tag, name, type, scale, offset, null ) );
+    }
+
+
+    /**
+     * Adds a field of type {@link Type#MAPPED} that is decoded with a
+     * {@link KLVScaledInteger}, such as an MISB ST 1201 IMAPB value.
+     * The codec is kept in the compiled dispatch table, so its scale
+     * factors are worked out once rather than for every value.
+     *
+     * @param tag       the field's key
+     * @param name      the field's name, unique within the schema
+     * @param codec     how to map the integer to a value
+     * @return          <tt>this</tt> to aid in stringing commands together
+     */
+    public KLVSchema addMapped( int tag, String name, KLVScaledInteger codec ){
+        if( codec == null )
+            throw new NullPointerException( "KLVSchema: Codec must not be null." );
+        return addField( new Field( tag, name, Type.MAPPED, 1, 0, null, codec ) );
+    }
+
+
+    /**
+     * Adds a nested local set. The nested schema's fields are given
+     * slots in this schema, named <tt>name.fieldName</tt>.
+     *
+     * @param tag       the set's key
+     * @param name      the set's name, unique within the schema
+     * @param nested    the schema of the nested set
+     * @return          <tt>this</tt> to aid in stringing commands together
+     */
+    public KLVSchema addSet( int tag, String name, KLVSchema nested ){
+        if( nested == null )
+            throw new NullPointerException( "KLVSchema: Nested schema must not be null." );
+        if( nested == this )
+            throw new IllegalArgumentException( "KLVSchema: A schema cannot contain itself." );
+        return addField( new Field( tag, name, Type.SET, 1, 0, nested ) );
+    }
+
+
+    private synchronized KLVSchema addField( Field field ){
+        if( this.compiled != null )
+            throw new IllegalStateException( "KLVSchema: Schema has already been compiled." );
+        if( field.tag < 0 || field.tag > MAX_TAG )
+            throw new IllegalArgumentException( "KLVSchema: Tag must be 0 to " + MAX_TAG + ", not " + field.tag );
+        if( field.tag >= (1L << (this.keyLength.value() * 8)) )
+            throw new IllegalArgumentException( String.format(
+                    "KLVSchema: Tag %d does not fit in a %d-byte key.", field.tag, this.keyLength.value() ) );
+        if( field.name == null )
+            throw new NullPointerException( "KLVSchema: Name must not be null." );
+        if( field.type == null )
+            throw new NullPointerException( "KLVSchema: Type must not be null." );
+        for( Field f : this.fields ){
+            if( f.name.equals( field.name ) )
+                throw new IllegalArgumentException( "KLVSchema: Duplicate field name: " + field.name );
+            if( f.tag == field.tag )
+                throw new IllegalArgumentException( "KLVSchema: Duplicate tag: " + field.tag );
+        }   // end for: each existing field
+        this.fields.add( field );
+        return this;
+    }
+
+
+    /**
+     * Compiles the schema, after which it can no longer be changed.
+     * This happens on its own the first time the schema is used.
+     *
+     * @return <tt>this</tt> to aid in stringing commands together
+     */
+    public KLVSchema compile(){
+        compiled();
+        return this;
+    }
+
+
+    /** Returns the key length of the sets in the local set. */
+    public KLV.KeyLength getKeyLength(){
+        return this.keyLength;
+    }
+
+
+    /** Returns the length encoding of the sets in the local set. */
+    public KLV.LengthEncoding getLengthEncoding(){
+        return this.lengthEncoding;
+    }
+
+
+    /** Returns the number of slots, including those of nested sets. */
+    public int getSlotCount(){
+        return compiled().slots.length;
+    }
+
+
+    /**
+     * Returns the slot for the named field, using <tt>parent.child</tt>
+     * names for the fields of nested sets.
+     *
+     * @param name  the field's name
+     * @return      the slot
+     * @throws IllegalArgumentException if there is no such field
+     */
+    public int slotOf( String name ){
+        Integer slot = compiled().slotsByName.get( name );
+        if( slot == null )
+            throw new IllegalArgumentException( "KLVSchema: No such field: " + name );
+        return slot;
+    }
+
+
+    /** Returns the full name of the field in the slot. */
+    public String getName( int slot ){
+        return compiled().names[ slot ];
+    }
+
+
+    /** Returns the type of the field in the slot. */
+    public Type getType( int slot ){
+        return compiled().slots[ slot ].type;
+    }
+
+
+    /** Returns how the slot stores its value. */
+    public Kind getKind( int slot ){
+        return compiled().slots[ slot ].kind();
+    }
+
+
+    /** Returns the tag of the field in the slot. */
+    public int getTag( int slot ){
+        return compiled().slots[ slot ].tag;
+    }
+
+
+
+/* ********  D E C O D E   M E T H O D S  ******** */
+
+
+    /**
+     * Decodes a local set, sending every value found to the target.
+     * Nothing is allocated.
+     *
+     * @param bytes     the array holding the local set
+     * @param offset    where the local set begins
+     * @param length    how many bytes the local set has
+     * @param target    where to put the values
+     * @throws IllegalArgumentException if the bytes are not well-formed KLV
+     */
+    public void decode( byte[] bytes, int offset, int length, Target target ){
+        if( bytes == null )
+            throw new NullPointerException( "KLVSchema: Byte array must not be null." );
+        if( target == null )
+            throw new NullPointerException( "KLVSchema: Target must not be null." );
+        if( offset < 0 || length < 0 || offset + length > bytes.length )
+            throw new ArrayIndexOutOfBoundsException( String.format(
+                    "KLVSchema: Offset %d and length %d out of range (byte array length: %d).",
+                    offset, length, bytes.length ) );
+        compiled().root.decode( bytes, offset, offset + length, target );
+    }
+
+
+    /**
+     * Decodes the value of a KLV set, which holds the local set.
+     *
+     * @param klv       the KLV set
+     * @param target    where to put the values
+     * @throws IllegalArgumentException if the value is not well-formed KLV
+     */
+    public void decode( KLV klv, Target target ){
+        decode( klv.getValue(), 0, klv.getLength(), target );
+    }
+
+
+    /**
+     * Returns a new record that can be filled over and over again.
+     *
+     * @return a new record
+     */
+    public Record newRecord(){
+        return new Record( this );
+    }
+
+
+
+/* ********  P R I V A T E   M E T H O D S  ******** */
+
+
+    private Compiled compiled(){
+        Compiled c = this.compiled;
+        if( c == null ){
+            synchronized( this ){
+                c = this.compiled;
+                if( c == null ){
+                    c = new Compiled( this );
+                    this.compiled = c;
+                }   // end if: still not compiled
+            }   // end sync
+        }   // end if: not compiled
+        return c;
+    }
+
+
+    /**
+     * Reads up to eight bytes as a big endian integer,
+     * sign-extending if <tt>signed</tt> is true.
+     */
+    private static long readInteger( byte[] bytes, int offset, int length, boolean signed ){
+        switch( length ){
+            case 1: return signed ? KLV.get8bitSignedInt( bytes, offset ) : KLV.get8bitUnsignedInt( bytes, offset );
+            case 2: return signed ? KLV.get16bitSignedInt( bytes, offset ) : KLV.get16bitUnsignedInt( bytes, offset );
+            case 4: return signed ? KLV.get32bitInt( bytes, offset ) : KLV.get32bitInt( bytes, offset ) & 0xFFFFFFFFL;
+            case 8: return KLV.get64bitLong( bytes, offset );
+            default:
+                long value = signed && bytes[offset] < 0 ? -1L : 0L;
+                for( int i = 0; i < length; i++ ){
+                    value = (value << 8) | (bytes[offset+i] & 0xFF);
+                }   // end for: each byte
+                return value;
+        }   // end switch
+    }
+
+
+
+/* ********  I N N E R   C L A S S E S  ******** */
+
+
+    /**
+     * Receives decoded values by slot. Implemented by {@link Record}
+     * and by anything else that wants values without boxing,
+     * such as a column buffer.
+     */
+    public static interface Target {
+
+        /** Receives an integer that is not scaled. */
+        public abstract void putLong( int slot, long value );
+
+        /** Receives a float, a double, or a scaled integer. */
+        public abstract void putDouble( int slot, double value );
+
+        /**
+         * Receives a string or raw bytes. The bytes belong to the
+         * caller of {@link KLVSchema#decode} and should be copied
+         * if they are needed after it returns.
+         */
+        public abstract void putBytes( int slot, byte[] bytes, int offset, int length );
+    }   // end interface Target
+
+
+
+    /**
+     * One field in a schema.
+     */
+    private static final class Field {
+        private final int tag;
+        private final String name;
+        private final Type type;
+        private final double scale;
+        private final double offset;
+        private final KLVSchema nested;
+        private final KLVScaledInteger codec;
+
+        private Field( int tag, String name, Type type, double scale, double offset, KLVSchema nested ){
+            this( tag, name, type, scale, offset, nested, null );
+        }
+
+        private Field( int tag, String name, Type type, double scale, double offset, KLVSchema nested,
+                KLVScaledInteger codec ){
+            this.tag = tag;
+            this.name = name;
+            this.type = type;
+            this.scale = scale;
+            this.offset = offset;
+            this.nested = nested;
+            this.codec = codec;
+        }
+
+        private boolean isScaled(){
+            return this.scale != 1 || this.offset != 0;
+        }
+
+        private Kind kind(){
+            if( this.type.isInteger() ){
+                return isScaled() ? Kind.DOUBLE : Kind.LONG;
+            } else if( this.type == Type.FLOAT || this.type == Type.DOUBLE || this.type == Type.MAPPED ){
+                return Kind.DOUBLE;
+            } else {
+                return Kind.BYTES;
+            }   // end else
+        }
+    }   // end class Field
+
+
+
+    /**
+     * A schema flattened into slots, with one dispatch table per
+     * (possibly nested) local set.
+     */
+    private static final class Compiled {
+        private final Table root;
+        private final Field[] slots;
+        private final String[] names;
+        private final Map<String,Integer> slotsByName = new HashMap<String,Integer>();
+
+        private Compiled( KLVSchema schema ){
+            List<Field> slotList = new ArrayList<Field>();
+            List<String> nameList = new ArrayList<String>();
+            this.root = new Table( schema, "", slotList, nameList, new IdentityHashMap<KLVSchema,Boolean>() );
+            this.slots = slotList.toArray( new Field[ slotList.size() ] );
+            this.names = nameList.toArray( new String[ nameList.size() ] );
+            for( int i = 0; i < this.names.length; i++ ){
+                this.slotsByName.put( this.names[i], i );
+            }   // end for: each slot
+        }
+    }   // end class Compiled
+
+
+
+    /**
+     * The dispatch table for one local set, indexed by tag.
+     */
+    private static final class Table {
+        private final KLV.KeyLength keyLength;
+        private final KLV.LengthEncoding lengthEncoding;
+        private final Type[] types;         // Null for tags not in the schema
+        private final int[] slots;
+        private final boolean[] scaled;
+        private final double[] scales;
+        private final double[] offsets;
+        private final KLVScaledInteger[] codecs;
+        private final Table[] nested;
+
+        private Table( KLVSchema schema, String prefix, List<Field> slotList, List<String> nameList,
+                IdentityHashMap<KLVSchema,Boolean> path ){
+            if( path.put( schema, Boolean.TRUE ) != null )
+                throw new IllegalArgumentException( "KLVSchema: A schema cannot contain itself." );
+            List<Field> fields;
+            synchronized( schema ){
+                fields = new ArrayList<Field>( schema.fields );
+            }   // end sync
+            int size = 0;
+            for( Field f : fields ){
+                size = Math.max( size, f.tag + 1 );
+            }   // end for: each field
+
+            this.keyLength = schema.keyLength;
+            this.lengthEncoding = schema.lengthEncoding;
+            this.types = new Type[ size ];
+            this.slots = new int[ size ];
+            this.scaled = new boolean[ size ];
+            this.scales = new double[ size ];
+            this.offsets = new double[ size ];
+            this.codecs = new KLVScaledInteger[ size ];
+            this.nested = new Table[ size ];
+
+            for( Field f : fields ){
+                this.types[ f.tag ] = f.type;
+                if( f.type == Type.SET ){
+                    this.slots[ f.tag ] = -1;
+                    this.nested[ f.tag ] = new Table( f.nested, prefix + f.name + ".", slotList, nameList, path );
+                } else {
+                    this.slots[ f.tag ] = slotList.size();
+                    this.scaled[ f.tag ] = f.isScaled();
+                    this.scales[ f.tag ] = f.scale;
+                    this.offsets[ f.tag ] = f.offset;
+                    this.codecs[ f.tag ] = f.codec;
+                    slotList.add( f );
+                    nameList.add( prefix + f.name );
+                }   // end else: value
+            }   // end for: each field
+            path.remove( schema );
+        }
+
+
+        private void decode( byte[] bytes, int pos, int end, Target target ){
+            int keySize = this.keyLength.value();
+            while( pos < end ){
+
+                // Key
+                if( end - pos < keySize )
+                    throw new IllegalArgumentException( String.format(
+                            "KLVSchema: Not enough bytes for %d-byte key at offset %d.", keySize, pos ) );
+                int tag = 0;
+                for( int i = 0; i < keySize; i++ ){
+                    tag = (tag << 8) | (bytes[pos++] & 0xFF);
+                }   // end for: each key byte
+
+                // Length
+                if( pos >= end )
+                    throw new IllegalArgumentException( String.format(
+                            "KLVSchema: No length field for key %d at offset %d.", tag, pos - keySize ) );
+                int length = 0;
+                if( this.lengthEncoding == KLV.LengthEncoding.BER ){
+                    int ber = bytes[pos++] & 0xFF;
+                    if( (ber & 0x80) == 0 ){            // Short form
+                        length = ber;
+                    } else {                            // Long form
+                        int following = ber & 0x7F;
+                        if( following == 0 || following > 4 || end - pos < following )
+                            throw new IllegalArgumentException( String.format(
+                                    "KLVSchema: Invalid BER length field at offset %d.", pos-1 ) );
+                        for( int i = 0; i < following; i++ ){
+                            length = (length << 8) | (bytes[pos++] & 0xFF);
+                        }   // end for: each following byte
+                    }   // end else: long form
+                } else {
+                    int lengthSize = this.lengthEncoding.value();
+                    if( end - pos < lengthSize )
+                        throw new IllegalArgumentException( String.format(
+                                "KLVSchema: Not enough bytes for %s length encoding at offset %d.",
+                                this.lengthEncoding, pos ) );
+                    for( int i = 0; i < lengthSize; i++ ){
+                        length = (length << 8) | (bytes[pos++] & 0xFF);
+                    }   // end for: each length byte
+                }   // end else: fixed length field
+
+                // Value
+                if( length < 0 || end - pos < length )
+                    throw new IllegalArgumentException( String.format(
+                            "KLVSchema: Not enough bytes left in array (%d) for declared length (%d).",
+                            end - pos, length ) );
+                if( tag >= 0 && tag < this.types.length && this.types[ tag ] != null ){   // Four-byte keys can be negative
+                    dispatch( tag, bytes, pos, length, target );
+                }   // end if: known tag
+                pos += length;
+            }   // end while
+        }   // end decode
+
+
+        private void dispatch( int tag, byte[] bytes, int pos, int length, Target target ){
+            int slot = this.slots[ tag ];
+            Type type = this.types[ tag ];
+            switch( type ){
+                case INT8:
+                case INT16:
+                case INT32:
+                case INT64:
+                case UINT8:
+                case UINT16:
+                case UINT32:
+                case UINT64:
+                    if( length == 0 || length > 8 ){
+                        return;
+                    }   // end if: does not fit
+                    long value = readInteger( bytes, pos, length, type.isSigned() );
+                    if( this.scaled[ tag ] ){
+                        if( !type.isSigned() && length == 8 && value < 0 ){
+                            // Unsigned 64-bit values above Long.MAX_VALUE
+                            target.putDouble( slot, ((value >>> 1) * 2.0 + (value & 1)) * this.scales[ tag ] + this.offsets[ tag ] );
+                        } else {
+                            target.putDouble( slot, value * this.scales[ tag ] + this.offsets[ tag ] );
+                        }   // end else
+                    } else {
+                        target.putLong( slot, value );
+                    }   // end else: not scaled
+                    break;
+
+                case FLOAT:
+                    if( length == 4 ){
+                        target.putDouble( slot, KLV.getFloat( bytes, pos ) );
+                    }   // end if: four bytes
+                    break;
+
+                case DOUBLE:
+                    if( length == 8 ){
+                        target.putDouble( slot, KLV.getDouble( bytes, pos ) );
+                    }   // end if: eight bytes
+                    break;
+
+                case MAPPED:
+                    target.putDouble( slot, this.codecs[ tag ].decode( bytes, pos, length ) );
+                    break;
+
+                case STRING:
+                case BYTES:
+                    target.putBytes( slot, bytes, pos, length );
+                    break;
+
+                case SET:
+                    this.nested[ tag ].decode( bytes, pos, pos + length, target );
+                    break;
+
+                default:
+                    assert false : type;
+            }   // end switch
+        }   // end dispatch
+    }   // end class Table
+
+
+
+    /**
+     * A reusable target that keeps the values of one local set in
+     * primitive arrays, indexed by slot. Strings and bytes are not
+     * copied: the record refers to the array it was decoded from,
+     * which must not change while the record is in use.
+     */
+    public static class Record implements Target {
+        private final KLVSchema schema;
+        private final Kind[] kinds;
+        private final long[] longs;
+        private final double[] doubles;
+        private final byte[][] arrays;
+        private final int[] offsets;
+        private final int[] lengths;
+        private final long[] present;
+
+
+        private Record( KLVSchema schema ){
+            int n = schema.getSlotCount();
+            this.schema = schema;
+            this.kinds = new Kind[ n ];
+            for( int i = 0; i < n; i++ ){
+                this.kinds[i] = schema.getKind( i );
+            }   // end for: each slot
+            this.longs = new long[ n ];
+            this.doubles = new double[ n ];
+            this.arrays = new byte[ n ][];
+            this.offsets = new int[ n ];
+            this.lengths = new int[ n ];
+            this.present = new long[ (n + 63) >>> 6 ];
+        }
+
+
+        /** Returns the schema this record belongs to. */
+        public KLVSchema getSchema(){
+            return this.schema;
+        }
+
+
+        /**
+         * Clears the record and decodes a local set into it.
+         *
+         * @param bytes     the array holding the local set
+         * @param offset    where the local set begins
+         * @param length    how many bytes the local set has
+         * @return          <tt>this</tt> to aid in stringing commands together
+         * @throws IllegalArgumentException if the bytes are not well-formed KLV
+         */
+        public Record decode( byte[] bytes, int offset, int length ){
+            clear();
+            this.schema.decode( bytes, offset, length, this );
+            return this;
+        }
+
+
+        /**
+         * Marks every slot as not present.
+         *
+         * @return <tt>this</tt> to aid in stringing commands together
+         */
+        public Record clear(){
+            Arrays.fill( this.present, 0L );
+            return this;
+        }
+
+
+        /** Returns true if the slot received a value. */
+        public boolean isPresent( int slot ){
+            return (this.present[ slot >>> 6 ] & (1L << slot)) != 0;
+        }
+
+
+        /**
+         * Returns the slot's value as a long, converting from a double
+         * if need be, or zero if it is not present.
+         */
+        public long getLong( int slot ){
+            if( !isPresent( slot ) ){
+                return 0;
+            }   // end if: not present
+            return this.kinds[ slot ] == Kind.DOUBLE ? (long)this.doubles[ slot ] : this.longs[ slot ];
+        }
+
+
+        /**
+         * Returns the slot's value as a double, converting from a long
+         * if need be, or <tt>NaN</tt> if it is not present.
+         */
+        public double getDouble( int slot ){
+            if( !isPresent( slot ) ){
+                return Double.NaN;
+            }   // end if: not present
+            return this.kinds[ slot ] == Kind.LONG ? this.longs[ slot ] : this.doubles[ slot ];
+        }
+
+
+        /** Returns the slot's bytes as a string, or null if it is not present. */
+        public String getString( int slot ){
+            if( !isPresent( slot ) ){
+                return null;
+            }   // end if: not present
+            try{
+                return new String( this.arrays[ slot ], this.offsets[ slot ], this.lengths[ slot ], KLV.DEFAULT_CHARSET_NAME );
+            } catch( java.io.UnsupportedEncodingException exc ){
+                return new String( this.arrays[ slot ], this.offsets[ slot ], this.lengths[ slot ] );
+            }   // end catch
+        }
+
+
+        /** Returns a copy of the slot's bytes, or null if it is not present. */
+        public byte[] getBytes( int slot ){
+            if( !isPresent( slot ) ){
+                return null;
+            }   // end if: not present
+            return Arrays.copyOfRange( this.arrays[ slot ], this.offsets[ slot ], this.offsets[ slot ] + this.lengths[ slot ] );
+        }
+
+
+        /** Returns the array holding the slot's bytes, or null if it is not present. */
+        public byte[] getBytesArray( int slot ){
+            return isPresent( slot ) ? this.arrays[ slot ] : null;
+        }
+
+
+        /** Returns where the slot's bytes begin in {@link #getBytesArray}. */
+        public int getBytesOffset( int slot ){
+            return this.offsets[ slot ];
+        }
+
+
+        /** Returns how many bytes the slot has. */
+        public int getBytesLength( int slot ){
+            return this.lengths[ slot ];
+        }
+
+
+        public void putLong( int slot, long value ){
+            this.longs[ slot ] = value;
+            this.present[ slot >>> 6 ] |= 1L << slot;
+        }
+
+
+        public void putDouble( int slot, double value ){
+            this.doubles[ slot ] = value;
+            this.present[ slot >>> 6 ] |= 1L << slot;
+        }
+
+
+        public void putBytes( int slot, byte[] bytes, int offset, int length ){
+            this.arrays[ slot ] = bytes;
+            this.offsets[ slot ] = offset;
+            this.lengths[ slot ] = length;
+            this.present[ slot >>> 6 ] |= 1L << slot;
+        }
+    }   // end class Record
+
+
+}   // end class KLVSchema
@@ -0,0 +1,744 @@
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.util.*;
+
+
+/**
+ * <p>Pulls KLV metadata out of an MPEG-2 transport stream (ISO 13818-1),
+ * such as a video file or a UDP video feed, without an external tool
+ * and without copying the video. Transport stream packets are 188 bytes
+ * long, each tagged with a packet identifier (PID). Only packets on the
+ * selected metadata PIDs are looked at beyond their four-byte header;
+ * everything else, video included, is skipped by PID.</p>
+ *
+ * <p>Metadata PIDs are found on their own from the stream's program
+ * tables: elementary streams of type 0x15 (metadata carried in PES
+ * packets) and of type 0x06 (private data) with a <tt>KLVA</tt>
+ * registration descriptor are selected. Calling {@link #addPid} turns
+ * that off and selects PIDs by hand instead.</p>
+ *
+ * <p>The PES packets on each metadata PID are reassembled, unwrapped
+ * from the metadata access unit cells that synchronous metadata (stream
+ * id 0xFC) uses, and split into KLV sets, each of which is handed to the
+ * listeners as a {@link View}. A PES packet that fits in one transport
+ * stream packet, which is typical, is read right out of the caller's
+ * buffer. Larger ones are gathered into a buffer kept for that PID.</p>
+ *
+ * <p>Example, reading a file:</p>
+ * <pre>
+ * KLVTSDemuxer demux = new KLVTSDemuxer( KLV.KeyLength.SixteenBytes, KLV.LengthEncoding.BER );
+ * demux.addListener( new KLVTSDemuxer.Listener(){
+ *     public void klvReceived( KLVTSDemuxer.View view ){
+ *         if( view.matches( uasLocalSet ) ){
+ *             KLV klv = view.toKLV();
+ *             ...
+ *         }
+ *     }
+ * });
+ * demux.demux( new File( "flight.ts" ) );
+ * </pre>
+ *
+ * <p>For a live stream, pass each buffer that arrives to {@link #feed},
+ * which consumes whole packets and leaves any partial packet in the
+ * buffer for the caller to compact and top up.</p>
+ *
+ * <p>Program tables are expected to fit in one packet, which they
+ * nearly always do. A demuxer is not thread safe.</p>
+ *
+ * <p>This code is released into the Public Domain. Enjoy.</p>
+ *
+ * @author Robert Harder
+ * @author rharder@users.sourceforge.net
+ * @version 0.3.1
+ */
+public class KLVTSDemuxer {
+
+
+/* ********  S T A T I C   F I E L D S  ******** */
+
+
+    /** Number of bytes in a transport stream packet. */
+    public final static int PACKET_SIZE = 188;
+
+    /** First byte of every transport stream packet. */
+    public final static int SYNC_BYTE = 0x47;
+
+    /** Number of possible PIDs. */
+    public final static int PID_COUNT = 0x2000;
+
+    /** Stream type for metadata carried in PES packets. */
+    public final static int STREAM_TYPE_METADATA = 0x15;
+
+    /** Stream type for PES packets containing private data. */
+    public final static int STREAM_TYPE_PRIVATE_DATA = 0x06;
+
+    /** Format identifier in the registration descriptor of KLV streams: "KLVA". */
+    public final static int FORMAT_IDENTIFIER_KLVA = 0x4B4C5641;
+
+    /** PES stream id of synchronous metadata, which is wrapped in access unit cells. */
+    private final static int STREAM_ID_METADATA = 0xFC;
+
+    /** Bytes of the file mapped at a time by {@link #demux(File)}. */
+    private final static int MAP_SIZE = PACKET_SIZE * (1 << 18);   // About 47 MB
+
+
+
+/* ********  I N S T A N C E   F I E L D S  ******** */
+
+
+    private final KLV.KeyLength keyLength;
+    private final KLV.LengthEncoding lengthEncoding;
+
+    /** State of each selected metadata PID, or null if not selected. */
+    private final PidState[] pids = new PidState[ PID_COUNT ];
+
+    /** PIDs carrying program map tables. */
+    private final boolean[] pmtPids = new boolean[ PID_COUNT ];
+
+    /** Whether metadata PIDs come from the program tables. */
+    private boolean autoDetect = true;
+
+    private final Collection<Listener> listeners = new LinkedList<Listener>();
+    private Listener[] cachedListeners = new Listener[0];
+
+    /** Reused for every KLV set handed to the listeners. */
+    private final View view = new View();
+
+    private long packetCount;
+    private long metadataPacketCount;
+    private long klvCount;
+    private long syncLossCount;
+    private long errorCount;
+
+
+
+/* ********  C O N S T R U C T O R S  ******** */
+
+
+    /**
+     * Creates a demuxer for KLV sets with sixteen-byte keys
+     * and BER length fields, as in MISB ST 0601.
+     */
+    public KLVTSDemuxer(){
+        this( KLV.KeyLength.SixteenBytes, KLV.LengthEncoding.BER );
+    }
+
+
+    /**
+     * Creates a demuxer for KLV sets with the given key length and length encoding.
+     *
+     * @param keyLength         key length of the top-level KLV sets
+     * @param lengthEncoding    length encoding of the top-level KLV sets
+     */
+    public KLVTSDemuxer( KLV.KeyLength keyLength, KLV.LengthEncoding lengthEncoding ){
+        if( keyLength == null )
+            throw new NullPointerException( "KLVTSDemuxer: Key length must not be null." );
+        if( lengthEncoding == null )
+            throw new NullPointerException( "KLVTSDemuxer: Length encoding must not be null." );
+        this.keyLength = keyLength;
+        this.lengthEncoding = lengthEncoding;
+    }
+
+
+
+/* ********  P I D   M E T H O D S  ******** */
+
+
+    /**
+     * Selects a PID to read KLV from and stops
+     * selecting PIDs from the program tables.
+     *
+     * @param pid the PID
+     * @return <tt>this</tt> to aid in stringing commands together
+     */
+    public KLVTSDemuxer addPid( int pid ){
+        checkPid( pid );
+        if( this.autoDetect ){
+            this.autoDetect = false;
+            Arrays.fill( this.pids, null );
+        }   // end if: first by hand
+        if( this.pids[ pid ] == null ){
+            this.pids[ pid ] = new PidState();
+        }   // end if: new
+        return this;
+    }
+
+
+    /**
+     * Returns true if KLV is being read from the PID.
+     *
+     * @param pid the PID
+     * @return whether the PID is selected
+     */
+    public boolean isSelected( int pid ){
+        checkPid( pid );
+        return this.pids[ pid ] != null;
+    }
+
+
+    /** Returns the number of packets read. */
+    public long getPacketCount(){
+        return this.packetCount;
+    }
+
+
+    /** Returns the number of packets read on metadata PIDs. */
+    public long getMetadataPacketCount(){
+        return this.metadataPacketCount;
+    }
+
+
+    /** Returns the number of KLV sets handed to listeners. */
+    public long getKLVCount(){
+        return this.klvCount;
+    }
+
+
+    /** Returns how many times the stream had to be searched for the next sync byte. */
+    public long getSyncLossCount(){
+        return this.syncLossCount;
+    }
+
+
+    /**
+     * Returns the number of metadata packets or KLV sets dropped
+     * because of transport errors, lost packets, or bad data.
+     */
+    public long getErrorCount(){
+        return this.errorCount;
+    }
+
+
+
+/* ********  D E M U X   M E T H O D S  ******** */
+
+
+    /**
+     * Reads every KLV set in a transport stream file, mapping it
+     * into memory a piece at a time, then calls {@link #flush}.
+     *
+     * @param file the file to read
+     * @throws IOException if the file cannot be read
+     */
+    public void demux( File file ) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile( file, "r" );
+        try{
+            FileChannel channel = raf.getChannel();
+            long size = channel.size();
+            long pos = 0;
+            while( size - pos >= PACKET_SIZE ){
+                int len = (int)Math.min( MAP_SIZE, size - pos );
+                MappedByteBuffer buf = channel.map( FileChannel.MapMode.READ_ONLY, pos, len );
+                feed( buf );
+                if( buf.position() == 0 ){
+                    break;
+                }   // end if: no progress
+                pos += buf.position();
+            }   // end while: more packets
+            flush();
+        } finally {
+            raf.close();
+        }   // end finally
+    }
+
+
+    /**
+     * Reads all the whole packets between the buffer's position and
+     * its limit, leaving the position after the last whole packet.
+     * Bytes before the first sync byte are skipped.
+     *
+     * @param buffer the stream data
+     * @return the number of KLV sets handed to listeners
+     */
+    public int feed( ByteBuffer buffer ){
+        long before = this.klvCount;
+        int pos = buffer.position();
+        int limit = buffer.limit();
+        while( limit - pos >= PACKET_SIZE ){
+            if( (buffer.get( pos ) & 0xFF) != SYNC_BYTE ){
+                pos = resync( buffer, pos, limit );
+                continue;
+            }   // end if: lost sync
+            this.packetCount++;
+
+            int b1 = buffer.get( pos + 1 ) & 0xFF;
+            int pid = ((b1 & 0x1F) << 8) | (buffer.get( pos + 2 ) & 0xFF);
+            PidState state = this.pids[ pid ];
+            if( state != null ){
+                this.metadataPacketCount++;
+                readMetadataPacket( state, buffer, pos, b1 );
+            } else if( this.autoDetect && (pid == 0 || this.pmtPids[ pid ]) ){
+                readTablePacket( buffer, pos, b1, pid );
+            }   // end else if: program tables
+            pos += PACKET_SIZE;
+        }   // end while: whole packets
+        buffer.position( pos );
+        return (int)(this.klvCount - before);
+    }
+
+
+    /**
+     * Hands over any PES packets that were waiting for more data,
+     * as at the end of a file.
+     */
+    public void flush(){
+        for( int pid = 0; pid < PID_COUNT; pid++ ){
+            PidState state = this.pids[ pid ];
+            if( state != null && state.size > 0 ){
+                finishPes( pid, state );
+            }   // end if: waiting
+        }   // end for: each pid
+    }
+
+
+
+/* ********  P R I V A T E   M E T H O D S  ******** */
+
+
+    private static void checkPid( int pid ){
+        if( pid < 0 || pid >= PID_COUNT )
+            throw new IllegalArgumentException( "KLVTSDemuxer: PID must be 0 to " + (PID_COUNT-1) + ", not " + pid );
+    }
+
+
+    /**
+     * Finds the next sync byte that is followed one packet later by
+     * another sync byte (or by the end of the data).
+     */
+    private int resync( ByteBuffer buffer, int pos, int limit ){
+        this.syncLossCount++;
+        for( pos++; limit - pos >= PACKET_SIZE; pos++ ){
+            if( (buffer.get( pos ) & 0xFF) == SYNC_BYTE
+            && ( limit - pos < 2 * PACKET_SIZE || (buffer.get( pos + PACKET_SIZE ) & 0xFF) == SYNC_BYTE ) ){
+                return pos;
+            }   // end if: found
+        }   // end for: each byte
+        return pos;
+    }
+
+
+    /**
+     * Returns the offset from the start of the packet to its payload,
+     * or -1 if it has no payload.
+     */
+    private static int payloadOffset( ByteBuffer buffer, int pos ){
+        int control = (buffer.get( pos + 3 ) >> 4) & 0x3;
+        switch( control ){
+            case 1:                                             // Payload only
+                return 4;
+            case 3:                                             // Adaptation field and payload
+                int offset = 5 + (buffer.get( pos + 4 ) & 0xFF);
+                return offset < PACKET_SIZE ? offset : -1;
+            default:                                            // No payload
+                return -1;
+        }   // end switch
+    }
+
+
+    /**
+     * Reads a packet on a metadata PID, starting, continuing,
+     * or finishing the PID's PES packet.
+     */
+    private void readMetadataPacket( PidState state, ByteBuffer buffer, int pos, int b1 ){
+        int pid = ((b1 & 0x1F) << 8) | (buffer.get( pos + 2 ) & 0xFF);
+        if( (b1 & 0x80) != 0 ){                                 // Transport error
+            this.errorCount++;
+            state.drop();
+            return;
+        }   // end if: error
+        int offset = payloadOffset( buffer, pos );
+        if( offset < 0 ){
+            return;
+        }   // end if: no payload
+
+        // Continuity
+        int cc = buffer.get( pos + 3 ) & 0xF;
+        if( cc == state.lastContinuity ){
+            return;                                             // Duplicate packet
+        } else if( state.lastContinuity >= 0 && cc != ((state.lastContinuity + 1) & 0xF) && state.size > 0 ){
+            this.errorCount++;                                  // Lost a packet
+            state.drop();
+        }   // end else if: discontinuity
+        state.lastContinuity = cc;
+
+        int start = pos + offset;
+        int length = PACKET_SIZE - offset;
+        if( (b1 & 0x40) != 0 ){                                 // Start of a PES packet
+            if( state.size > 0 ){
+                finishPes( pid, state );                        // Unbounded one before it
+            }   // end if: one in progress
+            int pesLength = length >= 6 ? 6 + (((buffer.get( start + 4 ) & 0xFF) << 8) | (buffer.get( start + 5 ) & 0xFF)) : 0;
+            if( pesLength > 6 && pesLength <= length ){
+                processPes( pid, buffer, start, pesLength );    // Whole PES in this packet: no copy
+                return;
+            }   // end if: fits
+            state.expected = pesLength > 6 ? pesLength : 0;
+            state.append( buffer, start, length );
+        } else if( state.size > 0 ){
+            state.append( buffer, start, length );
+        } else {
+            return;                                             // Middle of a PES we missed the start of
+        }   // end else
+
+        if( state.expected > 0 && state.size >= state.expected ){
+            finishPes( pid, state );
+        }   // end if: complete
+    }
+
+
+    private void finishPes( int pid, PidState state ){
+        int length = state.expected > 0 ? Math.min( state.expected, state.size ) : state.size;
+        processPes( pid, state.wrapper(), 0, length );
+        state.size = 0;
+        state.expected = 0;
+    }
+
+
+    /**
+     * Reads a whole PES packet: its header, its time stamp,
+     * and then the KLV sets in its payload.
+     */
+    private void processPes( int pid, ByteBuffer buffer, int start, int length ){
+        if( length < 6
+        || buffer.get( start ) != 0 || buffer.get( start + 1 ) != 0 || buffer.get( start + 2 ) != 1 ){
+            this.errorCount++;
+            return;
+        }   // end if: bad start code
+        int streamId = buffer.get( start + 3 ) & 0xFF;
+        int end = start + length;
+        int pos = start + 6;
+        long pts = -1;
+        if( hasOptionalHeader( streamId ) ){
+            if( end - pos < 3 ){
+                this.errorCount++;
+                return;
+            }   // end if: too short
+            int flags = buffer.get( pos + 1 ) & 0xFF;
+            int headerLength = buffer.get( pos + 2 ) & 0xFF;
+            if( (flags & 0x80) != 0 && headerLength >= 5 && end - pos >= 8 ){
+                pts = readTimeStamp( buffer, pos + 3 );
+            }   // end if: has PTS
+            pos += 3 + headerLength;
+            if( pos > end ){
+                this.errorCount++;
+                return;
+            }   // end if: too short
+        }   // end if: optional header
+
+        if( streamId == STREAM_ID_METADATA ){
+            // Metadata access unit cells: service id, sequence number,
+            // flags, flags, and a two-byte length, then the data
+            while( end - pos >= 5 ){
+                int cellLength = ((buffer.get( pos + 3 ) & 0xFF) << 8) | (buffer.get( pos + 4 ) & 0xFF);
+                pos += 5;
+                if( cellLength > end - pos ){
+                    this.errorCount++;
+                    return;
+                }   // end if: too long
+                deliver( pid, pts, buffer, pos, pos + cellLength );
+                pos += cellLength;
+            }   // end while: each cell
+        } else {
+            deliver( pid, pts, buffer, pos, end );
+        }   // end else
+    }
+
+
+    /** Returns false for the PES stream ids that have no optional header. */
+    private static boolean hasOptionalHeader( int streamId ){
+        switch( streamId ){
+            case 0xBC:  // Program stream map
+            case 0xBE:  // Padding
+            case 0xBF:  // Private stream 2
+            case 0xF0:  // ECM
+            case 0xF1:  // EMM
+            case 0xF2:  // DSMCC
+            case 0xF8:  // H.222.1 type E
+            case 0xFF:  // Program stream directory
+                return false;
+            default:
+                return true;
+        }   // end switch
+    }
+
+
+    /** Reads a 33-bit PES time stamp from its five bytes. */
+    private static long readTimeStamp( ByteBuffer buffer, int pos ){
+        return ((long)(buffer.get( pos ) & 0x0E) << 29)
+             | ((long)(buffer.get( pos + 1 ) & 0xFF) << 22)
+             | ((long)(buffer.get( pos + 2 ) & 0xFE) << 14)
+             | ((long)(buffer.get( pos + 3 ) & 0xFF) << 7)
+             | ((long)(buffer.get( pos + 4 ) & 0xFE) >> 1);
+    }
+
+
+    /**
+     * Splits metadata into KLV sets and hands each to the listeners.
+     * Stops at the first set that does not fit.
+     */
+    private void deliver( int pid, long pts, ByteBuffer buffer, int pos, int end ){
+        int keySize = this.keyLength.value();
+        Listener[] ll = this.cachedListeners;
+        while( end - pos > keySize ){
+            int lengthPos = pos + keySize;
+            int fieldSize = KLV.getLengthFieldSize( buffer, lengthPos, this.lengthEncoding );
+            long valueLength = end - lengthPos >= fieldSize ? KLV.getLength( buffer, lengthPos, this.lengthEncoding ) : -1;
+            int valuePos = lengthPos + fieldSize;
+            if( valueLength < 0 || valueLength > end - valuePos ){
+                this.errorCount++;
+                return;
+            }   // end if: malformed
+            this.view.set( pid, pts, buffer, pos, valuePos, (int)valueLength );
+            this.klvCount++;
+            for( Listener l : ll ){
+                l.klvReceived( this.view );
+            }   // end for: each listener
+            pos = valuePos + (int)valueLength;
+        }   // end while: each set
+    }
+
+
+    /**
+     * Reads a program association table (PID 0) or program map table,
+     * selecting the PIDs that carry KLV.
+     */
+    private void readTablePacket( ByteBuffer buffer, int pos, int b1, int pid ){
+        if( (b1 & 0x80) != 0 || (b1 & 0x40) == 0 ){
+            return;
+        }   // end if: error or not the start of a section
+        int offset = payloadOffset( buffer, pos );
+        if( offset < 0 ){
+            return;
+        }   // end if: no payload
+        int end = pos + PACKET_SIZE;
+        int p = pos + offset + 1 + (buffer.get( pos + offset ) & 0xFF);    // Skip pointer field
+        if( end - p < 8 ){
+            return;
+        }   // end if: too short
+        int tableId = buffer.get( p ) & 0xFF;
+        int sectionLength = ((buffer.get( p + 1 ) & 0x0F) << 8) | (buffer.get( p + 2 ) & 0xFF);
+        int sectionEnd = Math.min( end, p + 3 + sectionLength - 4 );       // Less CRC
+
+        if( pid == 0 && tableId == 0x00 ){                                  // Program association
+            for( int e = p + 8; e + 4 <= sectionEnd; e += 4 ){
+                int program = ((buffer.get( e ) & 0xFF) << 8) | (buffer.get( e + 1 ) & 0xFF);
+                int pmt = ((buffer.get( e + 2 ) & 0x1F) << 8) | (buffer.get( e + 3 ) & 0xFF);
+                if( program != 0 ){
+                    this.pmtPids[ pmt ] = true;
+                }   // end if: not network PID
+            }   // end for: each program
+
+        } else if( this.pmtPids[ pid ] && tableId == 0x02 && sectionEnd - p >= 12 ){   // Program map
+            int infoLength = ((buffer.get( p + 10 ) & 0x0F) << 8) | (buffer.get( p + 11 ) & 0xFF);
+            int e = p + 12 + infoLength;
+            while( e + 5 <= sectionEnd ){
+                int streamType = buffer.get( e ) & 0xFF;
+                int esPid = ((buffer.get( e + 1 ) & 0x1F) << 8) | (buffer.get( e + 2 ) & 0xFF);
+                int esInfoLength = ((buffer.get( e + 3 ) & 0x0F) << 8) | (buffer.get( e + 4 ) & 0xFF);
+                int descriptors = e + 5;
+                e = descriptors + esInfoLength;
+                boolean klv = streamType == STREAM_TYPE_METADATA
+                        || ( streamType == STREAM_TYPE_PRIVATE_DATA
+                          && hasKLVRegistration( buffer, descriptors, Math.min( e, sectionEnd ) ) );
+                if( klv && this.pids[ esPid ] == null ){
+                    this.pids[ esPid ] = new PidState();
+                }   // end if: new metadata PID
+            }   // end while: each elementary stream
+        }   // end else if: program map
+    }
+
+
+    /** Returns true if a registration descriptor with the KLVA format identifier is present. */
+    private static boolean hasKLVRegistration( ByteBuffer buffer, int pos, int end ){
+        while( end - pos >= 2 ){
+            int tag = buffer.get( pos ) & 0xFF;
+            int length = buffer.get( pos + 1 ) & 0xFF;
+            if( tag == 0x05 && length >= 4 && end - pos >= 6 && buffer.getInt( pos + 2 ) == FORMAT_IDENTIFIER_KLVA ){
+                return true;
+            }   // end if: KLVA
+            pos += 2 + length;
+        }   // end while: each descriptor
+        return false;
+    }
+
+
+
+/* ********  L I S T E N E R   M E T H O D S  ******** */
+
+
+    /**
+     * Adds a listener to receive every KLV set found.
+     *
+     * @param l the listener
+     */
+    public synchronized void addListener( Listener l ){
+        this.listeners.add( l );
+        this.cachedListeners = this.listeners.toArray( new Listener[ this.listeners.size() ] );
+    }
+
+
+    /**
+     * Removes a listener.
+     *
+     * @param l the listener
+     */
+    public synchronized void removeListener( Listener l ){
+        this.listeners.remove( l );
+        this.cachedListeners = this.listeners.toArray( new Listener[ this.listeners.size() ] );
+    }
+
+
+
+/* ********  I N N E R   C L A S S E S  ******** */
+
+
+    /**
+     * Receives the KLV sets found in a transport stream.
+     */
+    public static interface Listener {
+
+        /**
+         * Called for each KLV set found. The view, and the bytes it
+         * refers to, are only valid until this method returns.
+         *
+         * @param view the KLV set
+         */
+        public abstract void klvReceived( View view );
+    }   // end interface Listener
+
+
+
+    /**
+     * A KLV set inside a buffer owned by the demuxer. Only valid during
+     * a call to {@link Listener#klvReceived}; use {@link #toKLV} to keep it.
+     */
+    public class View {
+        private int pid;
+        private long pts;
+        private ByteBuffer buffer;
+        private int offset;
+        private int valueOffset;
+        private int valueLength;
+
+        private View(){}
+
+        private void set( int pid, long pts, ByteBuffer buffer, int offset, int valueOffset, int valueLength ){
+            this.pid = pid;
+            this.pts = pts;
+            this.buffer = buffer;
+            this.offset = offset;
+            this.valueOffset = valueOffset;
+            this.valueLength = valueLength;
+        }
+
+        /** Returns the PID the KLV set arrived on. */
+        public int getPid(){
+            return this.pid;
+        }
+
+        /**
+         * Returns the presentation time stamp of the PES packet
+         * the KLV set arrived in, in 90 kHz units, or -1 if it had none.
+         */
+        public long getPts(){
+            return this.pts;
+        }
+
+        /** Returns the buffer holding the KLV set, to be read with absolute positions. */
+        public ByteBuffer getBuffer(){
+            return this.buffer;
+        }
+
+        /** Returns where the KLV set's key begins in the buffer. */
+        public int getOffset(){
+            return this.offset;
+        }
+
+        /** Returns the number of bytes in the whole KLV set: key, length field, and value. */
+        public int getTotalLength(){
+            return this.valueOffset + this.valueLength - this.offset;
+        }
+
+        /** Returns where the value begins in the buffer. */
+        public int getValueOffset(){
+            return this.valueOffset;
+        }
+
+        /** Returns the number of bytes in the value. */
+        public int getValueLength(){
+            return this.valueLength;
+        }
+
+        /**
+         * Returns the key, or for sixteen-byte keys its last four bytes,
+         * as an int.
+         */
+        public int getShortKey(){
+            int size = KLVTSDemuxer.this.keyLength.value();
+            int key = 0;
+            for( int i = Math.max( 0, size - 4 ); i < size; i++ ){
+                key = (key << 8) | (this.buffer.get( this.offset + i ) & 0xFF);
+            }   // end for: each byte
+            return key;
+        }
+
+        /** Returns true if the sixteen-byte key is the given label. */
+        public boolean matches( UniversalLabel label ){
+            return KLVTSDemuxer.this.keyLength == KLV.KeyLength.SixteenBytes
+                && this.buffer.getLong( this.offset ) == label.getHigh()
+                && this.buffer.getLong( this.offset + 8 ) == label.getLow();
+        }
+
+        /** Returns a read-only buffer of just the value. */
+        public ByteBuffer getValue(){
+            ByteBuffer dup = this.buffer.asReadOnlyBuffer();
+            dup.limit( this.valueOffset + this.valueLength ).position( this.valueOffset );
+            return dup.slice();
+        }
+
+        /** Copies the KLV set into a new <code>KLV</code> object. */
+        public KLV toKLV(){
+            byte[] bytes = new byte[ getTotalLength() ];
+            ByteBuffer dup = this.buffer.duplicate();
+            dup.position( this.offset );
+            dup.get( bytes );
+            return new KLV( bytes, 0, KLVTSDemuxer.this.keyLength, KLVTSDemuxer.this.lengthEncoding );
+        }
+    }   // end class View
+
+
+
+    /**
+     * Reassembly state of one metadata PID.
+     */
+    private static final class PidState {
+        private byte[] data = new byte[ 2 * PACKET_SIZE ];
+        private ByteBuffer wrapper = ByteBuffer.wrap( this.data );
+        private int size;
+        private int expected;
+        private int lastContinuity = -1;
+
+        private void append( ByteBuffer buffer, int pos, int length ){
+            if( this.data.length - this.size < length ){
+                this.data = Arrays.copyOf( this.data, Math.max( this.data.length * 2, this.size + length ) );
+                this.wrapper = ByteBuffer.wrap( this.data );
+            }   // end if: full
+            ByteBuffer dup = buffer.duplicate();
+            dup.position( pos );
+            dup.get( this.data, this.size, length );
+            this.size += length;
+        }
+
+        private ByteBuffer wrapper(){
+            return this.wrapper;
+        }
+
+        private void drop(){
+            this.size = 0;
+            this.expected = 0;
+        }
+    }   // end class PidState
+
+
+}   // end class KLVTSDemuxer
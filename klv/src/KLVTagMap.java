@@ -0,0 +1,501 @@
+/**
+ * <p>A primitive, int-keyed index of the KLV sets found in a payload,
+ * meant for local sets with one-, two-, or four-byte keys.
+ * Unlike {@link KLV#bytesToMap}, no keys are boxed and no
+ * <code>KLV</code> objects or map entries are created: the map only
+ * records where each value lives in the original byte array.</p>
+ *
+ * <p>Tags below {@link #DENSE_SIZE} (the vast majority of local-set tags)
+ * are looked up directly in a dense array. Larger tags go into a small
+ * open-addressing hash table with linear probing.</p>
+ *
+ * <p>As with {@link KLV#bytesToMap}, if two KLV sets in the payload have
+ * the same key, then the latter one wins. The sets are also remembered
+ * in the order they were found, so callers that need every set,
+ * duplicates included, can walk them with {@link #size} and the
+ * <tt>...At(index)</tt> methods.</p>
+ *
+ * <p>A <code>KLVTagMap</code> can be reused with {@link #reset} to avoid
+ * allocating a new one for every packet.</p>
+ *
+ * <p>This code is released into the Public Domain. Enjoy.</p>
+ *
+ * @author Robert Harder
+ * @author rharder@users.sourceforge.net
+ * @version 0.3.1
+ */
+public class KLVTagMap {
+
+
+/* ********  S T A T I C   F I E L D S  ******** */
+
+
+    /** Tags below this value are stored in the dense lookup array. */
+    public final static int DENSE_SIZE = 128;
+
+    /** Initial number of entries the map can hold before growing. */
+    private final static int INITIAL_CAPACITY = 16;
+
+
+/* ********  I N S T A N C E   F I E L D S  ******** */
+
+
+    /** The bytes the offsets refer to. */
+    private byte[] data;
+
+    private KLV.KeyLength keyLength;
+    private KLV.LengthEncoding lengthEncoding;
+
+    /** Number of KLV sets found, duplicates included. */
+    private int size;
+
+    /** Key of each KLV set, in the order found. */
+    private int[] tags;
+
+    /** Offset of the start of each KLV set (its key), in the order found. */
+    private int[] recordOffsets;
+
+    /** Offset of each value, in the order found. */
+    private int[] valueOffsets;
+
+    /** Length of each value, in the order found. */
+    private int[] valueLengths;
+
+    /** For tags below DENSE_SIZE: index+1 of the last set with that tag, or zero. */
+    private final int[] dense = new int[ DENSE_SIZE ];
+
+    /** Open-addressed keys for larger tags. */
+    private int[] sparseKeys;
+
+    /** Open-addressed index+1 of the last set with that tag, or zero if the slot is empty. */
+    private int[] sparseIndices;
+
+    /** Number of occupied slots in the open-addressed table. */
+    private int sparseCount;
+
+
+
+/* ********  C O N S T R U C T O R S  ******** */
+
+
+    /**
+     * Creates an empty map with the default key length and length encoding
+     * that can be filled with {@link #reset}.
+     */
+    public KLVTagMap(){
+        this.data = new byte[0];
+        this.keyLength = KLV.DEFAULT_KEY_LENGTH;
+        this.lengthEncoding = KLV.DEFAULT_LENGTH_ENCODING;
+        this.tags = new int[ INITIAL_CAPACITY ];
+        this.recordOffsets = new int[ INITIAL_CAPACITY ];
+        this.valueOffsets = new int[ INITIAL_CAPACITY ];
+        this.valueLengths = new int[ INITIAL_CAPACITY ];
+    }
+
+
+    /**
+     * Creates a map of the KLV sets in the supplied byte array
+     * assuming the provided key length and length field encoding.
+     *
+     * @param bytes             The byte array to parse
+     * @param offset            Where to start parsing
+     * @param length            How many bytes to parse
+     * @param keyLength         Length of keys assumed in the KLV sets
+     * @param lengthEncoding    Flag indicating encoding type
+     * @return                  Map of keys to value offsets and lengths
+     * @throws IllegalArgumentException if the bytes are not well-formed KLV
+     *                                  or the key length is sixteen bytes
+     */
+    public static KLVTagMap parse( byte[] bytes, int offset, int length,
+            KLV.KeyLength keyLength, KLV.LengthEncoding lengthEncoding ){
+        return new KLVTagMap().reset( bytes, offset, length, keyLength, lengthEncoding );
+    }
+
+
+
+/* ********  P U B L I C   M E T H O D S  ******** */
+
+
+    /**
+     * Clears the map and fills it with the KLV sets found in the
+     * supplied byte array. The byte array is not copied.
+     *
+     * @param bytes             The byte array to parse
+     * @param offset            Where to start parsing
+     * @param length            How many bytes to parse
+     * @param keyLength         Length of keys assumed in the KLV sets
+     * @param lengthEncoding    Flag indicating encoding type
+     * @return                  <tt>this</tt> to aid in stringing commands together
+     * @throws IllegalArgumentException if the bytes are not well-formed KLV
+     *                                  or the key length is sixteen bytes
+     */
+    public KLVTagMap reset( byte[] bytes, int offset, int length,
+            KLV.KeyLength keyLength, KLV.LengthEncoding lengthEncoding ){
+
+        if( bytes == null )
+            throw new NullPointerException( "KLVTagMap: Byte array must not be null." );
+        if( keyLength == null )
+            throw new NullPointerException( "KLVTagMap: Key length must not be null." );
+        if( lengthEncoding == null )
+            throw new NullPointerException( "KLVTagMap: Length encoding must not be null." );
+        if( keyLength == KLV.KeyLength.SixteenBytes )
+            throw new IllegalArgumentException( "KLVTagMap: Sixteen-byte keys are not supported." );
+        if( offset < 0 || length < 0 || offset + length > bytes.length )
+            throw new ArrayIndexOutOfBoundsException( String.format(
+                    "KLVTagMap: Offset %d and length %d out of range (byte array length: %d).",
+                    offset, length, bytes.length ) );
+
+        clear();
+        this.data = bytes;
+        this.keyLength = keyLength;
+        this.lengthEncoding = lengthEncoding;
+
+        int end = offset + length;
+        int pos = offset;           // Keep track of where we are
+        while( pos < end ){
+            int recordOffset = pos;
+
+            // Key
+            if( end - pos < keyLength.value() )
+                throw new IllegalArgumentException( String.format(
+                        "KLVTagMap: Not enough bytes for %d-byte key at offset %d.",
+                        keyLength.value(), pos ) );
+            int tag = 0;
+            for( int i = 0; i < keyLength.value(); i++ ){
+                tag = (tag << 8) | (bytes[pos++] & 0xFF);
+            }   // end for: each key byte
+
+            // Length
+            if( pos >= end )
+                throw new IllegalArgumentException( String.format(
+                        "KLVTagMap: No length field for key %d at offset %d.", tag, recordOffset ) );
+            int valueLength = 0;
+            switch( lengthEncoding ){
+                case OneByte:
+                case TwoBytes:
+                case FourBytes:
+                    if( end - pos < lengthEncoding.value() )
+                        throw new IllegalArgumentException( String.format(
+                                "KLVTagMap: Not enough bytes for %s length encoding at offset %d.",
+                                lengthEncoding, pos ) );
+                    for( int i = 0; i < lengthEncoding.value(); i++ ){
+                        valueLength = (valueLength << 8) | (bytes[pos++] & 0xFF);
+                    }   // end for: each length byte
+                    break;
+
+                case BER:
+                    int ber = bytes[pos++] & 0xFF;
+                    if( (ber & 0x80) == 0 ){            // Short form
+                        valueLength = ber;
+                    } else {                            // Long form
+                        int following = ber & 0x7F;
+                        if( following == 0 || following > 4 || end - pos < following )
+                            throw new IllegalArgumentException( String.format(
+                                    "KLVTagMap: Invalid BER length field at offset %d.", pos-1 ) );
+                        for( int i = 0; i < following; i++ ){
+                            valueLength = (valueLength << 8) | (bytes[pos++] & 0xFF);
+                        }   // end for: each following byte
+                    }   // end else: long form
+                    break;
+
+                default:
+                    assert false : lengthEncoding;
+            }   // end switch
+
+            // Value
+            if( valueLength < 0 || end - pos < valueLength )
+                throw new IllegalArgumentException( String.format(
+                        "KLVTagMap: Not enough bytes left in array (%d) for declared length (%d).",
+                        end - pos, valueLength ) );
+            add( tag, recordOffset, pos, valueLength );
+            pos += valueLength;
+        }   // end while
+
+        return this;
+    }   // end reset
+
+
+
+    /**
+     * Removes all entries, keeping the allocated arrays for reuse.
+     *
+     * @return <tt>this</tt> to aid in stringing commands together
+     */
+    public KLVTagMap clear(){
+        for( int i = 0; i < this.size; i++ ){
+            int tag = this.tags[i];
+            if( tag >= 0 && tag < DENSE_SIZE ){
+                this.dense[ tag ] = 0;
+            }   // end if: dense
+        }   // end for: each entry
+        if( this.sparseCount > 0 ){
+            java.util.Arrays.fill( this.sparseIndices, 0 );
+            this.sparseCount = 0;
+        }   // end if: sparse entries
+        this.size = 0;
+        return this;
+    }
+
+
+
+    /**
+     * Returns the number of KLV sets found, including any
+     * whose keys were repeated.
+     *
+     * @return number of KLV sets
+     */
+    public int size(){
+        return this.size;
+    }
+
+
+    /**
+     * Returns the byte array that the offsets in this map refer to.
+     * This is the actual array, not a copy.
+     *
+     * @return the underlying data
+     */
+    public byte[] getData(){
+        return this.data;
+    }
+
+
+    /** Returns the key length this map was parsed with. */
+    public KLV.KeyLength getKeyLength(){
+        return this.keyLength;
+    }
+
+
+    /** Returns the length encoding this map was parsed with. */
+    public KLV.LengthEncoding getLengthEncoding(){
+        return this.lengthEncoding;
+    }
+
+
+    /**
+     * Returns the position (as used by the <tt>...At(index)</tt> methods)
+     * of the last KLV set with the given tag, or -1 if there is none.
+     *
+     * @param tag the key to look up
+     * @return position of the KLV set or -1
+     */
+    public int indexOf( int tag ){
+        if( tag >= 0 && tag < DENSE_SIZE ){
+            return this.dense[ tag ] - 1;
+        }   // end if: dense
+
+        if( this.sparseCount == 0 ){
+            return -1;
+        }   // end if: nothing sparse
+        int mask = this.sparseKeys.length - 1;
+        int slot = hash( tag ) & mask;
+        while( this.sparseIndices[ slot ] != 0 ){
+            if( this.sparseKeys[ slot ] == tag ){
+                return this.sparseIndices[ slot ] - 1;
+            }   // end if: found
+            slot = (slot + 1) & mask;
+        }   // end while: probing
+        return -1;
+    }   // end indexOf
+
+
+    /**
+     * Returns whether or not a KLV set with the given tag was found.
+     *
+     * @param tag the key to look up
+     * @return true if the tag is present
+     */
+    public boolean containsTag( int tag ){
+        return indexOf( tag ) >= 0;
+    }
+
+
+    /**
+     * Returns the offset in {@link #getData} of the value of the last
+     * KLV set with the given tag, or -1 if there is none.
+     *
+     * @param tag the key to look up
+     * @return offset of the value or -1
+     */
+    public int getValueOffset( int tag ){
+        int i = indexOf( tag );
+        return i < 0 ? -1 : this.valueOffsets[i];
+    }
+
+
+    /**
+     * Returns the length of the value of the last
+     * KLV set with the given tag, or -1 if there is none.
+     *
+     * @param tag the key to look up
+     * @return length of the value or -1
+     */
+    public int getValueLength( int tag ){
+        int i = indexOf( tag );
+        return i < 0 ? -1 : this.valueLengths[i];
+    }
+
+
+    /**
+     * Returns the offset in {@link #getData} where the last KLV set
+     * with the given tag begins (that is, its key), or -1 if there is none.
+     *
+     * @param tag the key to look up
+     * @return offset of the KLV set or -1
+     */
+    public int getRecordOffset( int tag ){
+        int i = indexOf( tag );
+        return i < 0 ? -1 : this.recordOffsets[i];
+    }
+
+
+    /**
+     * Creates a <code>KLV</code> object for the last KLV set with the
+     * given tag, or returns null if there is none. This copies the
+     * value and should be avoided in tight loops.
+     *
+     * @param tag the key to look up
+     * @return a new KLV or null
+     */
+    public KLV getKLV( int tag ){
+        int i = indexOf( tag );
+        return i < 0 ? null : getKLVAt( i );
+    }
+
+
+    /** Returns the key of the KLV set at the given position. */
+    public int tagAt( int index ){
+        checkIndex( index );
+        return this.tags[ index ];
+    }
+
+
+    /** Returns the offset of the start of the KLV set at the given position. */
+    public int recordOffsetAt( int index ){
+        checkIndex( index );
+        return this.recordOffsets[ index ];
+    }
+
+
+    /** Returns the offset of the value of the KLV set at the given position. */
+    public int valueOffsetAt( int index ){
+        checkIndex( index );
+        return this.valueOffsets[ index ];
+    }
+
+
+    /** Returns the length of the value of the KLV set at the given position. */
+    public int valueLengthAt( int index ){
+        checkIndex( index );
+        return this.valueLengths[ index ];
+    }
+
+
+    /**
+     * Creates a <code>KLV</code> object for the KLV set at the given position.
+     * This copies the value and should be avoided in tight loops.
+     */
+    public KLV getKLVAt( int index ){
+        checkIndex( index );
+        return new KLV( this.tags[index], this.keyLength, this.lengthEncoding,
+                this.data, this.valueOffsets[index], this.valueLengths[index] );
+    }
+
+
+    /**
+     * Fills the given <code>KLV</code> with the KLV set at the given position,
+     * reusing its arrays as {@link KLV#reset(byte[],int,KLV.KeyLength,KLV.LengthEncoding)}
+     * does, such as a set from a {@link KLVPool}.
+     *
+     * @param index position of the KLV set
+     * @param klv   the set to fill
+     * @return      <tt>klv</tt>
+     */
+    public KLV getKLVAt( int index, KLV klv ){
+        checkIndex( index );
+        return klv.reset( this.data, this.recordOffsets[index], this.keyLength, this.lengthEncoding );
+    }
+
+
+
+/* ********  P R I V A T E   M E T H O D S  ******** */
+
+
+    private void add( int tag, int recordOffset, int valueOffset, int valueLength ){
+
+        // Grow ordered arrays
+        if( this.size == this.tags.length ){
+            int newCap = this.tags.length * 2;
+            this.tags = java.util.Arrays.copyOf( this.tags, newCap );
+            this.recordOffsets = java.util.Arrays.copyOf( this.recordOffsets, newCap );
+            this.valueOffsets = java.util.Arrays.copyOf( this.valueOffsets, newCap );
+            this.valueLengths = java.util.Arrays.copyOf( this.valueLengths, newCap );
+        }   // end if: full
+
+        int index = this.size++;
+        this.tags[ index ] = tag;
+        this.recordOffsets[ index ] = recordOffset;
+        this.valueOffsets[ index ] = valueOffset;
+        this.valueLengths[ index ] = valueLength;
+
+        // Index for lookup, latter entries overwriting earlier ones
+        if( tag >= 0 && tag < DENSE_SIZE ){
+            this.dense[ tag ] = index + 1;
+        } else {
+            putSparse( tag, index + 1 );
+        }   // end else: sparse
+    }   // end add
+
+
+    private void putSparse( int tag, int indexPlusOne ){
+        if( this.sparseKeys == null ){
+            this.sparseKeys = new int[ INITIAL_CAPACITY ];
+            this.sparseIndices = new int[ INITIAL_CAPACITY ];
+        } else if( (this.sparseCount + 1) * 2 > this.sparseKeys.length ){
+            rehash( this.sparseKeys.length * 2 );
+        }   // end else if: load factor over one half
+
+        int mask = this.sparseKeys.length - 1;
+        int slot = hash( tag ) & mask;
+        while( this.sparseIndices[ slot ] != 0 ){
+            if( this.sparseKeys[ slot ] == tag ){
+                this.sparseIndices[ slot ] = indexPlusOne;  // Last one wins
+                return;
+            }   // end if: already present
+            slot = (slot + 1) & mask;
+        }   // end while: probing
+        this.sparseKeys[ slot ] = tag;
+        this.sparseIndices[ slot ] = indexPlusOne;
+        this.sparseCount++;
+    }   // end putSparse
+
+
+    private void rehash( int newCapacity ){
+        int[] oldKeys = this.sparseKeys;
+        int[] oldIndices = this.sparseIndices;
+        this.sparseKeys = new int[ newCapacity ];
+        this.sparseIndices = new int[ newCapacity ];
+        this.sparseCount = 0;
+        for( int i = 0; i < oldKeys.length; i++ ){
+            if( oldIndices[i] != 0 ){
+                putSparse( oldKeys[i], oldIndices[i] );
+            }   // end if: occupied
+        }   // end for: each old slot
+    }   // end rehash
+
+
+    /** Spreads the bits of small, sequential tags across the table. */
+    private static int hash( int tag ){
+        int h = tag * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
+
+    private void checkIndex( int index ){
+        if( index < 0 || index >= this.size )
+            throw new ArrayIndexOutOfBoundsException( String.format(
+                    "KLVTagMap: Index %d is out of range (size: %d).", index, this.size ) );
+    }
+
+
+}   // end class KLVTagMap
@@ -0,0 +1,227 @@
+/**
+ * <p>An immutable sixteen-byte SMPTE Universal Label (UL), the kind of key
+ * used on the outermost KLV sets, stored as two big endian longs with the
+ * hash code computed once up front. Comparing two labels, or comparing a
+ * label against sixteen bytes sitting in an array, takes at most two long
+ * comparisons and allocates nothing, unlike {@link KLV#getFullKey}
+ * and {@link KLV#isFullKey(byte[])}.</p>
+ *
+ * <p>Labels that an application knows about ahead of time should be
+ * registered with a {@link UniversalLabelRegistry}, which interns them
+ * and dispatches raw keys to handlers.</p>
+ *
+ * <p>This code is released into the Public Domain. Enjoy.</p>
+ *
+ * @author Robert Harder
+ * @author rharder@users.sourceforge.net
+ * @version 0.3.1
+ */
+public final class UniversalLabel {
+
+
+    /** Number of bytes in a Universal Label. */
+    public final static int LENGTH = 16;
+
+
+    /** First eight bytes of the label, big endian. */
+    private final long high;
+
+    /** Last eight bytes of the label, big endian. */
+    private final long low;
+
+    /** Precomputed hash code. */
+    private final int hash;
+
+
+
+/* ********  C O N S T R U C T O R S  ******** */
+
+
+    /**
+     * Creates a label from the two halves of its sixteen bytes,
+     * each interpreted as a big endian long.
+     *
+     * @param high the first eight bytes
+     * @param low  the last eight bytes
+     */
+    public UniversalLabel( long high, long low ){
+        this.high = high;
+        this.low = low;
+        this.hash = hash( high, low );
+    }
+
+
+    /**
+     * Creates a label from sixteen bytes in an array,
+     * beginning at the given offset. The bytes are not retained.
+     *
+     * @param bytes  the array containing the label
+     * @param offset where the label begins
+     * @return the new label
+     * @throws NullPointerException if <tt>bytes</tt> is null
+     * @throws ArrayIndexOutOfBoundsException if there are not sixteen bytes at <tt>offset</tt>
+     */
+    public static UniversalLabel valueOf( byte[] bytes, int offset ){
+        checkBounds( bytes, offset );
+        return new UniversalLabel( readLong(bytes,offset), readLong(bytes,offset+8) );
+    }
+
+
+    /**
+     * Creates a label from a sixteen-byte array.
+     *
+     * @param key the sixteen-byte key
+     * @return the new label
+     * @throws IllegalArgumentException if the array is not sixteen bytes long
+     */
+    public static UniversalLabel valueOf( byte[] key ){
+        if( key == null )
+            throw new NullPointerException( "UniversalLabel: Key must not be null." );
+        if( key.length != LENGTH )
+            throw new IllegalArgumentException( "UniversalLabel: Key must be 16 bytes, not " + key.length );
+        return valueOf( key, 0 );
+    }
+
+
+
+/* ********  P U B L I C   M E T H O D S  ******** */
+
+
+    /** Returns the first eight bytes of the label as a big endian long. */
+    public long getHigh(){
+        return this.high;
+    }
+
+
+    /** Returns the last eight bytes of the label as a big endian long. */
+    public long getLow(){
+        return this.low;
+    }
+
+
+    /**
+     * Returns true if the sixteen bytes at <tt>offset</tt> are this label.
+     * Returns false rather than throwing an exception if there are
+     * not sixteen bytes available.
+     *
+     * @param bytes  the array to check
+     * @param offset where the key begins
+     * @return whether or not the bytes match this label
+     */
+    public boolean matches( byte[] bytes, int offset ){
+        if( bytes == null || offset < 0 || bytes.length - offset < LENGTH ){
+            return false;
+        }   // end if: not enough bytes
+        return readLong(bytes,offset) == this.high
+            && readLong(bytes,offset+8) == this.low;
+    }
+
+
+    /**
+     * Returns a new sixteen-byte array with the label.
+     *
+     * @return the label as bytes
+     */
+    public byte[] toBytes(){
+        byte[] bytes = new byte[ LENGTH ];
+        writeTo( bytes, 0 );
+        return bytes;
+    }
+
+
+    /**
+     * Writes the sixteen bytes of the label into the array at the given offset.
+     *
+     * @param bytes  the destination
+     * @param offset where to start writing
+     */
+    public void writeTo( byte[] bytes, int offset ){
+        checkBounds( bytes, offset );
+        for( int i = 0; i < 8; i++ ){
+            bytes[offset+i]   = (byte)(this.high >>> (56 - i*8));
+            bytes[offset+8+i] = (byte)(this.low  >>> (56 - i*8));
+        }   // end for: each byte
+    }
+
+
+
+/* ********  S T A T I C   M E T H O D S  ******** */
+
+
+    /**
+     * Reads eight bytes from the array as a big endian long.
+     * No bounds checking beyond what Java provides is done.
+     *
+     * @param bytes  the array
+     * @param offset where to start reading
+     * @return the long
+     */
+    public static long readLong( byte[] bytes, int offset ){
+        return ((long)(bytes[offset]   & 0xFF) << 56)
+             | ((long)(bytes[offset+1] & 0xFF) << 48)
+             | ((long)(bytes[offset+2] & 0xFF) << 40)
+             | ((long)(bytes[offset+3] & 0xFF) << 32)
+             | ((long)(bytes[offset+4] & 0xFF) << 24)
+             | ((long)(bytes[offset+5] & 0xFF) << 16)
+             | ((long)(bytes[offset+6] & 0xFF) <<  8)
+             |  (long)(bytes[offset+7] & 0xFF);
+    }
+
+
+    /**
+     * Mixes the two halves of a label into a hash code. Many labels
+     * in the same registry share their first eight bytes, so the
+     * second half must affect every bit of the result.
+     */
+    static int hash( long high, long low ){
+        long h = high * 0x9E3779B97F4A7C15L + low;
+        h = (h ^ (h >>> 32)) * 0xD6E8FEB86659FD93L;
+        return (int)(h ^ (h >>> 32));
+    }
+
+
+    private static void checkBounds( byte[] bytes, int offset ){
+        if( bytes == null )
+            throw new NullPointerException( "UniversalLabel: Byte array must not be null." );
+        if( offset < 0 || bytes.length - offset < LENGTH )
+            throw new ArrayIndexOutOfBoundsException( String.format(
+                    "UniversalLabel: Not enough bytes for 16-byte key at offset %d (byte array length: %d).",
+                    offset, bytes.length ) );
+    }
+
+
+
+/* ********  O B J E C T   O V E R R I D E  ******** */
+
+
+    @Override
+    public boolean equals( Object obj ){
+        if( obj == this ) return true;
+        if( !(obj instanceof UniversalLabel) ) return false;
+        UniversalLabel other = (UniversalLabel)obj;
+        return this.high == other.high && this.low == other.low;
+    }
+
+
+    @Override
+    public int hashCode(){
+        return this.hash;
+    }
+
+
+    /** Returns the label in the usual dotted hex form, e.g. <tt>06.0E.2B.34...</tt> */
+    @Override
+    public String toString(){
+        StringBuilder sb = new StringBuilder( LENGTH * 3 );
+        for( int i = 0; i < LENGTH; i++ ){
+            long half = i < 8 ? this.high : this.low;
+            int b = (int)(half >>> (56 - (i%8)*8)) & 0xFF;
+            if( i > 0 ) sb.append('.');
+            if( b < 0x10 ) sb.append('0');
+            sb.append( Integer.toHexString(b).toUpperCase() );
+        }   // end for: each byte
+        return sb.toString();
+    }
+
+
+}   // end class UniversalLabel
@@ -0,0 +1,293 @@
+import java.util.*;
+
+
+/**
+ * <p>A registry of known sixteen-byte {@link UniversalLabel}s, each mapped
+ * to a handler of the caller's choosing, for demultiplexing incoming KLV
+ * sets by key. Registered labels are interned: {@link #intern} returns
+ * the registered instance rather than a new one.</p>
+ *
+ * <p>Lookups go straight from a raw key in a byte array to its handler.
+ * Every time a label is registered, the lookup table is rebuilt so that
+ * no two labels share a slot, so a lookup reads two longs, hashes them,
+ * and does at most two long comparisons. Nothing is allocated.</p>
+ *
+ * <p>Lookups never block. Registration is synchronized and
+ * publishes a fresh table when it is done, so it is meant to happen
+ * mostly at startup.</p>
+ *
+ * <p>This code is released into the Public Domain. Enjoy.</p>
+ *
+ * @param <H> the type of handler
+ * @author Robert Harder
+ * @author rharder@users.sourceforge.net
+ * @version 0.3.1
+ */
+public class UniversalLabelRegistry<H> {
+
+
+    /** Largest table, in bits, that will be tried before giving up. */
+    private final static int MAX_TABLE_BITS = 20;
+
+    /** Number of hash seeds tried for each table size. */
+    private final static int SEEDS_PER_SIZE = 32;
+
+
+    /** Registered labels and their handlers, guarded by <tt>this</tt>. */
+    private final Map<UniversalLabel,H> registered = new LinkedHashMap<UniversalLabel,H>();
+
+    /** The current lookup table, replaced on every change. */
+    private volatile Table table = new Table( 1, 0L );
+
+
+
+/* ********  P U B L I C   M E T H O D S  ******** */
+
+
+    /**
+     * Registers a label with its handler, replacing any previous handler
+     * for the same label. Returns the interned instance of the label,
+     * which is the one already registered if there was one.
+     *
+     * @param label   the label to register
+     * @param handler the handler for KLV sets with that label
+     * @return the interned label
+     * @throws NullPointerException if either parameter is null
+     */
+    public synchronized UniversalLabel register( UniversalLabel label, H handler ){
+        if( label == null )
+            throw new NullPointerException( "UniversalLabelRegistry: Label must not be null." );
+        if( handler == null )
+            throw new NullPointerException( "UniversalLabelRegistry: Handler must not be null." );
+
+        UniversalLabel interned = label;
+        for( UniversalLabel existing : this.registered.keySet() ){
+            if( existing.equals( label ) ){
+                interned = existing;
+                break;
+            }   // end if: already known
+        }   // end for: each registered
+        this.registered.put( interned, handler );
+        rebuild();
+        return interned;
+    }
+
+
+    /**
+     * Registers a sixteen-byte key with its handler.
+     *
+     * @param key     the sixteen-byte key
+     * @param handler the handler for KLV sets with that key
+     * @return the interned label
+     * @see #register(UniversalLabel, Object)
+     */
+    public UniversalLabel register( byte[] key, H handler ){
+        return register( UniversalLabel.valueOf(key), handler );
+    }
+
+
+    /**
+     * Removes a label and its handler.
+     *
+     * @param label the label to remove
+     * @return the handler that was registered, or null if there was none
+     */
+    public synchronized H unregister( UniversalLabel label ){
+        H old = this.registered.remove( label );
+        if( old != null ){
+            rebuild();
+        }   // end if: changed
+        return old;
+    }
+
+
+    /** Returns the number of registered labels. */
+    public synchronized int size(){
+        return this.registered.size();
+    }
+
+
+    /**
+     * Returns the handler registered for the sixteen-byte key at
+     * <tt>offset</tt>, or null if the key is not registered or there
+     * are not sixteen bytes available. Allocates nothing.
+     *
+     * @param bytes  the array containing the key
+     * @param offset where the key begins
+     * @return the handler or null
+     */
+    @SuppressWarnings("unchecked")
+    public H lookup( byte[] bytes, int offset ){
+        if( bytes == null || offset < 0 || bytes.length - offset < UniversalLabel.LENGTH ){
+            return null;
+        }   // end if: not enough bytes
+        long high = UniversalLabel.readLong( bytes, offset );
+        long low  = UniversalLabel.readLong( bytes, offset + 8 );
+        Table t = this.table;
+        int slot = t.slot( high, low );
+        // Empty slots have null handlers, so an all-zero key is safe here
+        if( t.highs[slot] == high && t.lows[slot] == low ){
+            return (H)t.handlers[slot];
+        }   // end if: match
+        return null;
+    }
+
+
+    /**
+     * Returns the handler registered for the label, or null if there is none.
+     *
+     * @param label the label to look up
+     * @return the handler or null
+     */
+    @SuppressWarnings("unchecked")
+    public H lookup( UniversalLabel label ){
+        if( label == null ){
+            return null;
+        }   // end if: null
+        Table t = this.table;
+        int slot = t.slot( label.getHigh(), label.getLow() );
+        if( t.highs[slot] == label.getHigh() && t.lows[slot] == label.getLow() ){
+            return (H)t.handlers[slot];
+        }   // end if: match
+        return null;
+    }
+
+
+    /**
+     * Returns the registered label for the sixteen-byte key at
+     * <tt>offset</tt>, or null if it is not registered. Allocates nothing.
+     *
+     * @param bytes  the array containing the key
+     * @param offset where the key begins
+     * @return the registered label or null
+     */
+    public UniversalLabel lookupLabel( byte[] bytes, int offset ){
+        if( bytes == null || offset < 0 || bytes.length - offset < UniversalLabel.LENGTH ){
+            return null;
+        }   // end if: not enough bytes
+        long high = UniversalLabel.readLong( bytes, offset );
+        long low  = UniversalLabel.readLong( bytes, offset + 8 );
+        Table t = this.table;
+        int slot = t.slot( high, low );
+        if( t.highs[slot] == high && t.lows[slot] == low ){
+            return t.labels[slot];
+        }   // end if: match
+        return null;
+    }
+
+
+    /**
+     * Returns the registered instance of the sixteen-byte key at
+     * <tt>offset</tt> if there is one, or else a new label.
+     *
+     * @param bytes  the array containing the key
+     * @param offset where the key begins
+     * @return the interned or new label
+     */
+    public UniversalLabel intern( byte[] bytes, int offset ){
+        UniversalLabel label = lookupLabel( bytes, offset );
+        return label != null ? label : UniversalLabel.valueOf( bytes, offset );
+    }
+
+
+    /**
+     * Returns the registered instance equal to <tt>label</tt>
+     * if there is one, or else <tt>label</tt> itself.
+     *
+     * @param label the label to intern
+     * @return the interned label
+     */
+    public UniversalLabel intern( UniversalLabel label ){
+        if( label == null ){
+            return null;
+        }   // end if: null
+        Table t = this.table;
+        int slot = t.slot( label.getHigh(), label.getLow() );
+        if( t.labels[slot] != null && t.highs[slot] == label.getHigh() && t.lows[slot] == label.getLow() ){
+            return t.labels[slot];
+        }   // end if: match
+        return label;
+    }
+
+
+
+/* ********  P R I V A T E   M E T H O D S  ******** */
+
+
+    /**
+     * Finds the smallest table size, and a seed, that gives
+     * every registered label its own slot, then publishes the table.
+     */
+    private void rebuild(){
+        int n = this.registered.size();
+        int bits = 1;
+        while( (1 << bits) < n * 2 ){
+            bits++;
+        }   // end while: at least twice as many slots as labels
+
+        long seed = 0x2545F4914F6CDD1DL;
+        for( ; bits <= MAX_TABLE_BITS; bits++ ){
+            for( int s = 0; s < SEEDS_PER_SIZE; s++ ){
+                seed = seed * 0x5851F42D4C957F2DL + 0x14057B7EF767814FL;
+                Table t = new Table( bits, seed );
+                if( t.fill( this.registered ) ){
+                    this.table = t;
+                    return;
+                }   // end if: no collisions
+            }   // end for: each seed
+        }   // end for: each size
+        throw new IllegalStateException(
+                "UniversalLabelRegistry: Could not find a collision-free table for " + n + " labels." );
+    }   // end rebuild
+
+
+
+/* ********  I N N E R   C L A S S  ******** */
+
+
+    /**
+     * An immutable, collision-free lookup table.
+     */
+    private static final class Table {
+        private final int shift;
+        private final long seed;
+        private final long[] highs;
+        private final long[] lows;
+        private final Object[] handlers;
+        private final UniversalLabel[] labels;
+
+        private Table( int bits, long seed ){
+            int size = 1 << bits;
+            this.shift = 64 - bits;
+            this.seed = seed;
+            this.highs = new long[ size ];
+            this.lows = new long[ size ];
+            this.handlers = new Object[ size ];
+            this.labels = new UniversalLabel[ size ];
+        }
+
+        private int slot( long high, long low ){
+            long h = (high ^ this.seed) * 0x9E3779B97F4A7C15L + low;
+            h = (h ^ (h >>> 29)) * 0xBF58476D1CE4E5B9L;
+            return (int)(h >>> this.shift);
+        }
+
+        /** Returns false if two labels land in the same slot. */
+        private <H> boolean fill( Map<UniversalLabel,H> entries ){
+            for( Map.Entry<UniversalLabel,H> e : entries.entrySet() ){
+                UniversalLabel label = e.getKey();
+                int slot = slot( label.getHigh(), label.getLow() );
+                if( this.labels[slot] != null ){
+                    return false;
+                }   // end if: collision
+                this.highs[slot] = label.getHigh();
+                this.lows[slot] = label.getLow();
+                this.handlers[slot] = e.getValue();
+                this.labels[slot] = label;
+            }   // end for: each entry
+            return true;
+        }
+    }   // end class Table
+
+
+}   // end class UniversalLabelRegistry
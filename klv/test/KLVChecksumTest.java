@@ -0,0 +1,128 @@
+import junit.framework.*;
+import java.io.*;
+import java.nio.*;
+import java.util.*;
+
+
+/**
+ *
+ * @author robert.harder
+ */
+public class KLVChecksumTest extends TestCase {
+
+    private final static byte[] UAS_KEY = new byte[]{
+        0x06, 0x0E, 0x2B, 0x34, 0x02, 0x0B, 0x01, 0x01,
+        0x0E, 0x01, 0x03, 0x01, 0x01, 0x00, 0x00, 0x00 };
+
+    public KLVChecksumTest(String testName) {
+        super(testName);
+    }
+
+    protected void setUp() throws Exception {
+    }
+
+    protected void tearDown() throws Exception {
+    }
+
+
+    /** The checksum the slow way, straight from MISB ST 0601. */
+    private static int naive( byte[] bytes, int offset, int length ){
+        int bcc = 0;
+        for( int i = 0; i < length; i++ ){
+            bcc += (bytes[ offset + i ] & 0xFF) << (8 * ((i + 1) % 2));
+        }   // end for: each byte
+        return bcc & 0xFFFF;
+    }
+
+
+
+    /**
+     * Test of adding bytes in pieces of all sizes, from arrays and buffers.
+     */
+    public void testUpdate() {
+        System.out.println("update");
+
+        Random random = new Random( 3 );
+        byte[] bytes = new byte[ 5000 ];
+        random.nextBytes( bytes );
+        Arrays.fill( bytes, 1000, 3000, (byte)0xFF );      // Fills the lanes
+        assertEquals( naive( bytes, 0, bytes.length ), KLVChecksum.compute( bytes, 0, bytes.length ) );
+
+        for( int trial = 0; trial < 200; trial++ ){
+            int offset = random.nextInt( 100 );
+            int length = random.nextInt( bytes.length - offset );
+            KLVChecksum sum = new KLVChecksum();
+            KLVChecksum buf = new KLVChecksum();
+            int pos = offset;
+            while( pos < offset + length ){
+                int n = Math.min( offset + length - pos, random.nextInt( 40 ) );
+                sum.update( bytes, pos, n );
+                ByteBuffer direct = ByteBuffer.allocateDirect( n );
+                direct.put( bytes, pos, n ).flip();
+                buf.update( direct );
+                assertFalse( direct.hasRemaining() );
+                pos += n;
+            }   // end while: more
+            assertEquals( naive( bytes, offset, length ), sum.getValue() );
+            assertEquals( sum.getValue(), buf.getValue() );
+            assertEquals( length, sum.getCount() );
+        }   // end for: each trial
+
+        // Appending one checksum to another
+        KLVChecksum first = new KLVChecksum();
+        first.update( bytes, 0, 333 );
+        KLVChecksum second = new KLVChecksum();
+        second.update( ByteBuffer.wrap( bytes, 333, 4000 ) );
+        first.update( second );
+        assertEquals( naive( bytes, 0, 4333 ), first.getValue() );
+
+        first.reset();
+        assertEquals( 0, first.getValue() );
+        assertEquals( 0, first.getCount() );
+    }   // end testUpdate
+
+
+
+    /**
+     * Test of building a set that ends with a checksum and reading it back.
+     */
+    public void testBuildAndRead() throws Exception {
+        System.out.println("buildAndRead");
+
+        for( int size : new int[]{ 0, 1, 120, 121, 122, 123, 124, 125, 126, 127, 1000 } ){
+            KLV klv = new KLV();
+            klv.setKey( UAS_KEY );
+            klv.addSubKLV( 2, KLV.KeyLength.OneByte, KLV.LengthEncoding.BER, new byte[ size ] );
+            klv.addSubKLV( 5, KLV.KeyLength.OneByte, KLV.LengthEncoding.BER, new byte[]{ 0x71, (byte)0xC2 } );
+            klv.addChecksum( 1, KLV.KeyLength.OneByte, KLV.LengthEncoding.BER );
+
+            byte[] bytes = klv.toBytes();
+            assertEquals( 1, bytes[ bytes.length - 4 ] );
+            assertEquals( 2, bytes[ bytes.length - 3 ] );
+            assertEquals( naive( bytes, 0, bytes.length - 2 ), KLV.get16bitUnsignedInt( bytes, bytes.length - 2 ) );
+            assertEquals( naive( bytes, 0, bytes.length - 2 ), klv.computeChecksum() );
+            assertTrue( klv.isChecksumValid( 1, KLV.KeyLength.OneByte, KLV.LengthEncoding.BER ) );
+            assertFalse( klv.isChecksumValid( 2, KLV.KeyLength.OneByte, KLV.LengthEncoding.BER ) );
+
+            KLV read = KLV.readKLV( new ByteArrayInputStream( bytes ), KLV.KeyLength.SixteenBytes, KLV.LengthEncoding.BER );
+            assertTrue( read.isChecksumValid( 1, KLV.KeyLength.OneByte, KLV.LengthEncoding.BER ) );
+            KLV parsed = new KLV( bytes, 0, KLV.KeyLength.SixteenBytes, KLV.LengthEncoding.BER );
+            assertTrue( parsed.isChecksumValid( 1, KLV.KeyLength.OneByte, KLV.LengthEncoding.BER ) );
+
+            // Changed value
+            byte[] value = parsed.getValue();
+            value[1] ^= 0x10;
+            parsed.setValue( value );
+            assertFalse( parsed.isChecksumValid( 1, KLV.KeyLength.OneByte, KLV.LengthEncoding.BER ) );
+        }   // end for: each size
+
+        KLV empty = new KLV();
+        assertFalse( empty.isChecksumValid( 1, KLV.KeyLength.OneByte, KLV.LengthEncoding.BER ) );
+        try{
+            empty.computeChecksum();
+            fail("Should have thrown exception");
+        } catch( IllegalStateException exc ){ }
+    }   // end testBuildAndRead
+
+
+}
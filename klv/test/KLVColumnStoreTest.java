@@ -0,0 +1,123 @@
+import junit.framework.*;
+import java.nio.*;
+
+
+/**
+ *
+ * @author robert.harder
+ */
+public class KLVColumnStoreTest extends TestCase {
+
+    private KLVSchema schema;
+
+    public KLVColumnStoreTest(String testName) {
+        super(testName);
+    }
+
+    protected void setUp() throws Exception {
+        schema = new KLVSchema( KLV.KeyLength.OneByte, KLV.LengthEncoding.BER )
+                .add( 2, "timestamp", KLVSchema.Type.UINT64 )
+                .add( 3, "mission", KLVSchema.Type.STRING )
+                .addScaled( 5, "heading", KLVSchema.Type.UINT16, 0, 360 )
+                .add( 15, "altitude", KLVSchema.Type.UINT16 )
+                .add( 16, "count", KLVSchema.Type.UINT32 );
+    }
+
+    protected void tearDown() throws Exception {
+    }
+
+
+    private static KLV makeSet( long time, int altitude, boolean withMission ) throws Exception {
+        KLV klv = new KLV( 1, KLV.KeyLength.OneByte, KLV.LengthEncoding.BER );
+        klv.addSubKLV( 2, KLV.KeyLength.OneByte, KLV.LengthEncoding.BER, ByteBuffer.allocate(8).putLong(time).array() );
+        klv.addSubKLV( 15, KLV.KeyLength.OneByte, KLV.LengthEncoding.BER, new byte[]{ (byte)(altitude >> 8), (byte)altitude } );
+        klv.addSubKLV( 16, KLV.KeyLength.OneByte, KLV.LengthEncoding.BER, new byte[]{ (byte)0xFF, (byte)0xFF, (byte)0xFF, (byte)0xFF } );
+        if( withMission ){
+            klv.addSubKLV( 3, KLV.KeyLength.OneByte, KLV.LengthEncoding.BER, ("m" + time).getBytes("UTF-8") );
+        }   // end if: mission
+        return klv;
+    }
+
+
+
+    /**
+     * Test of appending rows and reading them back.
+     */
+    public void testAppend() throws Exception {
+        System.out.println("append");
+
+        KLVColumnStore store = new KLVColumnStore( schema, "timestamp" );
+        int alt = schema.slotOf( "altitude" );
+        int mission = schema.slotOf( "mission" );
+        int count = schema.slotOf( "count" );
+        for( int i = 0; i < 5000; i++ ){
+            assertEquals( i, store.append( makeSet( 100L * i, i % 1000, i % 10 == 0 ) ) );
+        }   // end for: each row
+        assertEquals( 5000, store.size() );
+        assertTrue( store.isSorted() );
+        assertEquals( 4200, store.getTime( 42 ) );
+        assertEquals( 42, store.getLong( alt, 42 ) );
+        assertEquals( 0xFFFFFFFFL, store.getLong( count, 42 ) );
+        assertEquals( "m4000", store.getString( mission, 40 ) );
+        assertFalse( store.isPresent( mission, 5 ) );
+        assertNull( store.getString( mission, 5 ) );
+        assertTrue( Double.isNaN( store.getDouble( schema.slotOf( "heading" ), 5 ) ) );
+
+        // Malformed set: nothing appended
+        try{
+            store.append( 600000L, new byte[]{ 15, 5, 0 }, 0, 3 );
+            fail("Should have thrown exception");
+        } catch( IllegalArgumentException exc ){ }
+        assertEquals( 5000, store.size() );
+
+        store.trimToSize();
+        assertEquals( 42, store.getLong( alt, 42 ) );
+        store.clear();
+        assertEquals( 0, store.size() );
+    }   // end testAppend
+
+
+
+    /**
+     * Test of time windows and aggregates.
+     */
+    public void testStats() throws Exception {
+        System.out.println("stats");
+
+        KLVColumnStore store = new KLVColumnStore( schema, "timestamp" );
+        int alt = schema.slotOf( "altitude" );
+        for( int i = 0; i < 1000; i++ ){
+            store.append( makeSet( 10L * i, i, false ) );
+        }   // end for: each row
+
+        assertEquals( 10, store.lowerBound( 95 ) );
+        KLVColumnStore.Stats s = store.stats( alt, 100, 200 );   // Rows 10 to 19
+        assertEquals( 10, s.getCount() );
+        assertEquals( 10.0, s.getMin(), 0 );
+        assertEquals( 19.0, s.getMax(), 0 );
+        assertEquals( 14.5, s.getAverage(), 0 );
+        assertTrue( Double.isNaN( store.average( alt, 50000, 60000 ) ) );
+
+        final int[] visited = new int[1];
+        int n = store.scan( alt, 0, 30, new KLVColumnStore.Visitor(){
+            public void visit( int row, long time, double value ){
+                assertEquals( row, (int)value );
+                visited[0]++;
+            }
+        });
+        assertEquals( 3, n );
+        assertEquals( 3, visited[0] );
+
+        // Out of order rows fall back to checking every row
+        store.append( makeSet( 105, 5000, false ) );
+        assertFalse( store.isSorted() );
+        assertEquals( 5000.0, store.max( alt, 100, 200 ), 0 );
+
+        try{
+            store.stats( schema.slotOf( "mission" ), 0, 1 );
+            fail("Should have thrown exception");
+        } catch( IllegalArgumentException exc ){ }
+    }   // end testStats
+
+
+}
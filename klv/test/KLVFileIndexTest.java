@@ -0,0 +1,225 @@
+import junit.framework.*;
+import java.io.*;
+import java.nio.*;
+import java.util.*;
+
+
+/**
+ *
+ * @author robert.harder
+ */
+public class KLVFileIndexTest extends TestCase {
+
+    private File file;
+
+    public KLVFileIndexTest(String testName) {
+        super(testName);
+    }
+
+    protected void setUp() throws Exception {
+        file = File.createTempFile("KLVFileIndexTest", ".klv");
+    }
+
+    protected void tearDown() throws Exception {
+        KLVFileIndex.getIndexFile(file).delete();
+        file.delete();
+    }
+
+
+    private static byte[] makeKey( int n ){
+        return new byte[]{
+            0x06, 0x0E, 0x2B, 0x34, 0x02, 0x0B, 0x01, 0x01,
+            0x0E, 0x01, 0x03, 0x01, 0x01, 0x00, 0x00, (byte)n };
+    }
+
+
+    /**
+     * Writes <tt>count</tt> 16-byte-key, BER-length sets alternating between
+     * two keys, each with a local set holding time stamp tag 2 and some filler.
+     */
+    private void writeRecording( int count, int extraBytes ) throws IOException {
+        OutputStream out = new BufferedOutputStream( new FileOutputStream( file ) );
+        for( int i = 0; i < count; i++ ){
+            KLV klv = new KLV();
+            klv.setKey( makeKey( i % 2 ) );
+            klv.setLengthEncoding( KLV.LengthEncoding.BER );
+            klv.addSubKLV( 2, KLV.KeyLength.OneByte, KLV.LengthEncoding.BER, longBytes( 1000L * i ) );
+            klv.addSubKLV( 3, KLV.KeyLength.OneByte, KLV.LengthEncoding.BER, new byte[ i % 300 ] );
+            out.write( klv.toBytes() );
+        }   // end for: each set
+        out.write( new byte[ extraBytes ] );
+        out.close();
+    }
+
+    private static byte[] longBytes( long val ){
+        return ByteBuffer.allocate(8).putLong(val).array();
+    }
+
+
+
+    /**
+     * Test of building, saving, and reloading an index.
+     */
+    public void testOpen() throws Exception {
+        System.out.println("open");
+
+        writeRecording( 1000, 0 );
+        KLVFileIndex index = KLVFileIndex.open( file, KLV.KeyLength.SixteenBytes, KLV.LengthEncoding.BER,
+                2, KLV.KeyLength.OneByte, KLV.LengthEncoding.BER );
+        assertFalse( index.isLoaded() );
+        assertTrue( KLVFileIndex.getIndexFile(file).isFile() );
+        assertEquals( 1000, index.size() );
+        assertEquals( file.length(), index.getIndexedLength() );
+        assertEquals( 2, index.getUniversalLabels().length );
+        assertEquals( 0, index.getOffset(0) );
+        long[] offsets = new long[ index.size() ];
+        for( int i = 0; i < index.size(); i++ ) offsets[i] = index.getOffset(i);
+        index.close();
+
+        // Open again: should load
+        index = KLVFileIndex.open( file, KLV.KeyLength.SixteenBytes, KLV.LengthEncoding.BER,
+                2, KLV.KeyLength.OneByte, KLV.LengthEncoding.BER );
+        assertTrue( index.isLoaded() );
+        assertEquals( 1000, index.size() );
+        for( int i = 0; i < index.size(); i++ ){
+            assertEquals( offsets[i], index.getOffset(i) );
+            assertEquals( 1000L * i, index.getTimestamp(i) );
+        }   // end for: each set
+
+        // Random access
+        KLV klv = index.getKLV( 777 );
+        assertTrue( klv.isFullKey( makeKey(1) ) );
+        assertEquals( 777 % 300, klv.getSubKLVTagMap( KLV.KeyLength.OneByte, KLV.LengthEncoding.BER ).getValueLength(3) );
+        ByteBuffer value = index.getValue( 777 );
+        assertEquals( klv.getLength(), value.remaining() );
+        assertEquals( klv.getValue()[0], value.get(0) );
+        index.close();
+
+        // Different settings: must rebuild
+        index = KLVFileIndex.open( file, KLV.KeyLength.SixteenBytes, KLV.LengthEncoding.BER );
+        assertFalse( index.isLoaded() );
+        assertFalse( index.hasTimestamps() );
+        index.close();
+    }   // end testOpen
+
+
+
+    /**
+     * Test of key filtering and time search.
+     */
+    public void testFind() throws Exception {
+        System.out.println("find");
+
+        writeRecording( 500, 0 );
+        KLVFileIndex index = KLVFileIndex.open( file, KLV.KeyLength.SixteenBytes, KLV.LengthEncoding.BER,
+                2, KLV.KeyLength.OneByte, KLV.LengthEncoding.BER );
+        UniversalLabel odd = UniversalLabel.valueOf( makeKey(1) );
+        int[] odds = index.indicesOf( odd );
+        assertEquals( 250, odds.length );
+        for( int i = 0; i < odds.length; i++ ){
+            assertEquals( i*2 + 1, odds[i] );
+            assertEquals( odd, index.getUniversalLabel( odds[i] ) );
+        }   // end for: each odd
+        assertEquals( 3, index.nextIndexOf( odd, 2 ) );
+        assertEquals( -1, index.nextIndexOf( UniversalLabel.valueOf( makeKey(9) ), 0 ) );
+
+        assertEquals( 0, index.findTimestamp( -5 ) );
+        assertEquals( 123, index.findTimestamp( 123000 ) );
+        assertEquals( 124, index.findTimestamp( 123001 ) );
+        assertEquals( 500, index.findTimestamp( Long.MAX_VALUE ) );
+        index.close();
+    }   // end testFind
+
+
+
+    /**
+     * Test that a recording that ends mid-set is indexed up to the last whole set.
+     */
+    public void testTruncated() throws Exception {
+        System.out.println("truncated");
+
+        writeRecording( 10, 0 );
+        long whole = file.length();
+        RandomAccessFile raf = new RandomAccessFile( file, "rw" );
+        raf.seek( whole );
+        raf.write( makeKey(0) );
+        raf.write( new byte[]{ (byte)0x82, 0x10 } );   // Ends in the middle of the length field
+        raf.close();
+
+        KLVFileIndex index = KLVFileIndex.open( file, KLV.KeyLength.SixteenBytes, KLV.LengthEncoding.BER );
+        assertEquals( 10, index.size() );
+        assertEquals( whole, index.getIndexedLength() );
+        assertTrue( index.isTruncated() );
+        index.close();
+
+        KLVFileIndex.getIndexFile(file).delete();
+        writeRecording( 10, 0 );
+        index = KLVFileIndex.open( file, KLV.KeyLength.SixteenBytes, KLV.LengthEncoding.BER );
+        assertFalse( index.isTruncated() );
+        index.close();
+    }   // end testTruncated
+
+
+
+    /**
+     * Test that a length field that cannot be decoded is reported
+     * rather than taken for the end of the recording.
+     */
+    public void testCorrupt() throws Exception {
+        System.out.println("corrupt");
+
+        writeRecording( 10, 0 );
+        RandomAccessFile raf = new RandomAccessFile( file, "rw" );
+        raf.seek( file.length() );
+        raf.write( makeKey(0) );
+        raf.write( new byte[]{ (byte)0xFF, 0x10 } );  // 127 length bytes, and the file ends
+        raf.close();
+        try{
+            KLVFileIndex.open( file, KLV.KeyLength.SixteenBytes, KLV.LengthEncoding.BER );
+            fail("Should have thrown exception");
+        } catch( IOException exc ){ }
+
+        // Same in the middle of the file
+        writeRecording( 10, 0 );
+        raf = new RandomAccessFile( file, "rw" );
+        raf.seek( 16 );                                 // First set's length field
+        raf.write( 0x80 );                              // Long form with no length bytes
+        raf.close();
+        try{
+            KLVFileIndex.open( file, KLV.KeyLength.SixteenBytes, KLV.LengthEncoding.BER );
+            fail("Should have thrown exception");
+        } catch( IOException exc ){ }
+        assertFalse( KLVFileIndex.getIndexFile(file).exists() );
+    }   // end testCorrupt
+
+
+
+    /**
+     * Test that a saved index whose header doesn't fit its size
+     * is rebuilt rather than trusted.
+     */
+    public void testCorruptIndex() throws Exception {
+        System.out.println("corruptIndex");
+
+        writeRecording( 10, 0 );
+        KLVFileIndex.open( file, KLV.KeyLength.SixteenBytes, KLV.LengthEncoding.BER ).close();
+        File indexFile = KLVFileIndex.getIndexFile(file);
+        int[] counts = new int[]{ Integer.MAX_VALUE - 8, 11, 9 };
+        for( int count : counts ){
+            RandomAccessFile raf = new RandomAccessFile( indexFile, "rw" );
+            raf.seek( 44 );                             // Number of sets
+            raf.writeInt( count );
+            raf.close();
+            KLVFileIndex index = KLVFileIndex.open( file, KLV.KeyLength.SixteenBytes, KLV.LengthEncoding.BER );
+            assertFalse( "Count " + count, index.isLoaded() );
+            assertEquals( 10, index.size() );
+            index.close();
+        }   // end for: each bad count
+
+        KLVFileIndex index = KLVFileIndex.open( file, KLV.KeyLength.SixteenBytes, KLV.LengthEncoding.BER );
+        assertTrue( index.isLoaded() );
+        index.close();
+    }   // end testCorruptIndex
+
+
+}
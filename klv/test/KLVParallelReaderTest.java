@@ -0,0 +1,97 @@
+import junit.framework.*;
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.stream.*;
+
+
+/**
+ *
+ * @author robert.harder
+ */
+public class KLVParallelReaderTest extends TestCase {
+
+    private File file;
+
+    public KLVParallelReaderTest(String testName) {
+        super(testName);
+    }
+
+    protected void setUp() throws Exception {
+        file = File.createTempFile("KLVParallelReaderTest", ".klv");
+        OutputStream out = new BufferedOutputStream( new FileOutputStream( file ) );
+        for( int i = 0; i < 5000; i++ ){
+            KLV klv = new KLV( 1, KLV.KeyLength.OneByte, KLV.LengthEncoding.BER );
+            klv.addSubKLV( 2, KLV.KeyLength.OneByte, KLV.LengthEncoding.BER, new byte[]{ (byte)(i>>24), (byte)(i>>16), (byte)(i>>8), (byte)i } );
+            klv.addSubKLV( 3, KLV.KeyLength.OneByte, KLV.LengthEncoding.BER, new byte[ i % 200 ] );
+            out.write( klv.toBytes() );
+        }   // end for: each set
+        out.close();
+    }
+
+    protected void tearDown() throws Exception {
+        KLVFileIndex.getIndexFile(file).delete();
+        file.delete();
+    }
+
+
+    /** Decodes the counter stored in tag 2 of each set. */
+    private final static KLVParallelReader.Decoder<Integer> COUNTER = new KLVParallelReader.Decoder<Integer>(){
+        public Integer decode( int position, KLV klv ){
+            KLVTagMap map = klv.getSubKLVTagMap( KLV.KeyLength.OneByte, KLV.LengthEncoding.BER );
+            return map.getKLV(2).getValueAs32bitSignedInt();
+        }
+    };
+
+
+
+    /**
+     * Test that results come back in file order.
+     */
+    public void testDecodeAll() throws Exception {
+        System.out.println("decodeAll");
+
+        KLVFileIndex index = KLVFileIndex.open( file, KLV.KeyLength.OneByte, KLV.LengthEncoding.BER );
+        ForkJoinPool pool = new ForkJoinPool( 4 );
+        List<Integer> results = KLVParallelReader.decodeAll( index, COUNTER, pool );
+        pool.shutdown();
+        assertEquals( 5000, results.size() );
+        for( int i = 0; i < results.size(); i++ ){
+            assertEquals( i, results.get(i).intValue() );
+        }   // end for: each result
+
+        List<Integer> lengths = KLVParallelReader.stream( index )
+                .map( klv -> klv.getLength() ).collect( Collectors.toList() );
+        assertEquals( 5000, lengths.size() );
+        assertEquals( index.getValueLength(4321), lengths.get(4321).intValue() );
+        index.close();
+    }   // end testDecodeAll
+
+
+
+    /**
+     * Test that a failing decoder is reported with the set's position.
+     */
+    public void testDecodeFailure() throws Exception {
+        System.out.println("decodeFailure");
+
+        KLVFileIndex index = KLVFileIndex.open( file, KLV.KeyLength.OneByte, KLV.LengthEncoding.BER );
+        ForkJoinPool pool = new ForkJoinPool( 2 );
+        try{
+            KLVParallelReader.decodeAll( index, new KLVParallelReader.Decoder<Object>(){
+                public Object decode( int position, KLV klv ) throws Exception {
+                    if( position == 3000 ) throw new Exception( "bad set" );
+                    return klv;
+                }
+            }, pool );
+            fail("Should have thrown exception");
+        } catch( IOException exc ){
+            assertTrue( exc.getMessage().indexOf( "3000" ) >= 0 );
+        } finally {
+            pool.shutdown();
+            index.close();
+        }
+    }   // end testDecodeFailure
+
+
+}
@@ -0,0 +1,216 @@
+import junit.framework.*;
+import java.io.*;
+import java.util.*;
+
+
+/**
+ *
+ * @author robert.harder
+ */
+public class KLVPoolTest extends TestCase {
+
+    private final static byte[] UAS_KEY = new byte[]{
+        0x06, 0x0E, 0x2B, 0x34, 0x02, 0x0B, 0x01, 0x01,
+        0x0E, 0x01, 0x03, 0x01, 0x01, 0x00, 0x00, 0x00 };
+
+    public KLVPoolTest(String testName) {
+        super(testName);
+    }
+
+    protected void setUp() throws Exception {
+    }
+
+    protected void tearDown() throws Exception {
+    }
+
+
+    /** A packet of local-set tags with values of the given lengths. */
+    private static byte[] makePacket( int[] lengths, int seed ){
+        KLV klv = new KLV();
+        klv.setKey( UAS_KEY );
+        for( int i = 0; i < lengths.length; i++ ){
+            byte[] value = new byte[ lengths[i] ];
+            Arrays.fill( value, (byte)(seed + i) );
+            klv.addSubKLV( i + 2, KLV.KeyLength.OneByte, KLV.LengthEncoding.BER, value );
+        }   // end for: each tag
+        return klv.getValue();
+    }
+
+
+
+    /**
+     * Test of refilling and clearing one KLV.
+     */
+    public void testResetAndClear() throws Exception {
+        System.out.println("resetAndClear");
+
+        byte[] bytes = new byte[]{ 9, 9, 0x05, 0x03, 1, 2, 3, 0x07, 0x03, 4, 5, 6, 0x08, 0x01, 7 };
+        KLV klv = new KLV( bytes, 2, KLV.KeyLength.OneByte, KLV.LengthEncoding.BER );
+        byte[] first = klv.getValue();
+        assertSame( klv, klv.reset( bytes, 7, KLV.KeyLength.OneByte, KLV.LengthEncoding.BER ) );
+        assertEquals( 7, klv.getShortKey() );
+        assertSame( first, klv.getValue() );                    // Same length, same array
+        assertTrue( Arrays.equals( new byte[]{ 4, 5, 6 }, klv.getValue() ) );
+
+        klv.reset( bytes, 12, KLV.KeyLength.OneByte, KLV.LengthEncoding.BER );
+        assertEquals( 8, klv.getShortKey() );
+        assertTrue( Arrays.equals( new byte[]{ 7 }, klv.getValue() ) );
+
+        byte[] twoByte = new byte[]{ 0x01, 0x02, 0x00, 0x02, 0x0A, 0x0B };
+        klv.reset( twoByte, 0, KLV.KeyLength.TwoBytes, KLV.LengthEncoding.TwoBytes );
+        assertEquals( 0x0102, klv.getShortKey() );
+        assertEquals( KLV.LengthEncoding.TwoBytes, klv.getLengthEncoding() );
+        assertTrue( Arrays.equals( twoByte, klv.toBytes() ) );
+
+        try{
+            klv.reset( bytes, 12, KLV.KeyLength.FourBytes, KLV.LengthEncoding.BER );
+            fail("Should have thrown exception");
+        } catch( RuntimeException exc ){ }
+
+        klv.clear();
+        assertEquals( KLV.DEFAULT_KEY_LENGTH, klv.getKeyLength() );
+        assertEquals( KLV.DEFAULT_LENGTH_ENCODING, klv.getLengthEncoding() );
+        assertEquals( 0, klv.getShortKey() );
+        assertEquals( 0, klv.getLength() );
+        assertTrue( Arrays.equals( new KLV().toBytes(), klv.toBytes() ) );
+
+        // Sixteen-byte keys
+        KLV full = new KLV();
+        full.setKey( UAS_KEY );
+        full.setValue( new byte[]{ 1, 2 } );
+        byte[] fullBytes = full.toBytes();
+        klv.reset( fullBytes, 0, KLV.KeyLength.SixteenBytes, KLV.LengthEncoding.BER );
+        assertTrue( klv.isFullKey( UAS_KEY ) );
+        assertTrue( Arrays.equals( fullBytes, klv.toBytes() ) );
+        klv.clear().reset( bytes, 2, KLV.KeyLength.OneByte, KLV.LengthEncoding.BER );
+        assertEquals( 5, klv.getShortKey() );
+        assertFalse( klv.isFullKey( UAS_KEY ) );
+    }   // end testResetAndClear
+
+
+
+    /**
+     * Test that a receive loop reuses every set and array once warmed up.
+     */
+    public void testSteadyState() throws Exception {
+        System.out.println("steadyState");
+
+        KLVPool pool = new KLVPool();
+        List<KLV> sets = new ArrayList<KLV>();
+        int[] lengths = new int[]{ 8, 2, 4, 4, 4, 0, 300, 2, 2, 1 };
+        long reusedBefore = 0;
+        long takenBefore = 0;
+        for( int packet = 0; packet < 20; packet++ ){
+            if( packet == 10 ){
+                reusedBefore = pool.getReusedCount();
+                takenBefore = pool.getTakenCount();
+            }   // end if: warmed up
+            byte[] bytes = makePacket( lengths, packet );
+            KLV.bytesToList( bytes, 0, bytes.length, KLV.KeyLength.OneByte, KLV.LengthEncoding.BER, sets, pool );
+            assertEquals( lengths.length, sets.size() );
+            for( int i = 0; i < lengths.length; i++ ){
+                KLV klv = sets.get(i);
+                assertEquals( i + 2, klv.getShortKey() );
+                assertEquals( lengths[i], klv.getLength() );
+                for( byte b : klv.getValue() ){
+                    assertEquals( (byte)(packet + i), b );
+                }   // end for: each byte
+            }   // end for: each set
+            pool.release( sets );
+            sets.clear();
+        }   // end for: each packet
+        assertEquals( lengths.length, pool.getSetCount() );
+        assertTrue( pool.getTakenCount() > takenBefore );
+        assertEquals( pool.getTakenCount() - takenBefore, pool.getReusedCount() - reusedBefore );
+
+        // Sets from elsewhere are left alone
+        KLV other = new KLV();
+        pool.release( other );
+        assertEquals( lengths.length, pool.getSetCount() );
+        pool.clear();
+        assertEquals( 0, pool.getSetCount() );
+    }   // end testSteadyState
+
+
+
+    /**
+     * Test of arrays by size class, and that reused arrays are cleaned when grown.
+     */
+    public void testArrays() throws Exception {
+        System.out.println("arrays");
+
+        KLVPool pool = new KLVPool( 1024, 2, 4 );
+        byte[] a = pool.take( 100 );
+        byte[] b = pool.take( 120 );
+        assertEquals( 100, a.length );
+        assertEquals( 0, pool.getReusedCount() );
+        pool.give( a );
+        pool.give( b );
+        assertSame( b, pool.take( 120 ) );                      // Same size class, exact length
+        assertEquals( 110, pool.take( 110 ).length );
+        pool.give( b );
+        pool.give( new byte[ 101 ] );                           // Full: drops the oldest, a
+        assertNotSame( a, pool.take( 100 ) );
+        assertSame( b, pool.take( 120 ) );
+        pool.give( new byte[ 5000 ] );                          // Too long to keep
+        assertEquals( 5000, pool.take( 5000 ).length );
+        assertEquals( 0, pool.take( 0 ).length );
+
+        KLV klv = pool.get();
+        byte[] dirty = new byte[ 6 ];
+        Arrays.fill( dirty, (byte)0x55 );
+        pool.give( dirty );
+        klv.setValue( new byte[]{ 1, 2, 3 } );
+        klv.setLength( 6 );
+        assertSame( dirty, klv.getValue() );
+        assertTrue( Arrays.equals( new byte[]{ 1, 2, 3, 0, 0, 0 }, klv.getValue() ) );
+
+        try{
+            new KLVPool( 10, 0, 10 );
+            fail("Should have thrown exception");
+        } catch( IllegalArgumentException exc ){ }
+    }   // end testArrays
+
+
+
+    /**
+     * Test of reading from a stream and from a tag map into recycled sets.
+     */
+    public void testReadInto() throws Exception {
+        System.out.println("readInto");
+
+        KLVPool pool = KLVPool.local();
+        assertSame( pool, KLVPool.local() );
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for( int i = 0; i < 5; i++ ){
+            KLV klv = new KLV();
+            klv.setKey( UAS_KEY );
+            klv.setValue( makePacket( new int[]{ 4, 2, i * 100 }, i ) );
+            out.write( klv.toBytes() );
+        }   // end for: each record
+        byte[] stream = out.toByteArray();
+
+        InputStream in = new ByteArrayInputStream( stream );
+        InputStream again = new ByteArrayInputStream( stream );
+        KLV record = pool.get();
+        KLV tag = pool.get();
+        for( int i = 0; i < 5; i++ ){
+            assertSame( record, KLV.readKLV( in, KLV.KeyLength.SixteenBytes, KLV.LengthEncoding.BER, record ) );
+            assertTrue( record.isFullKey( UAS_KEY ) );
+            KLV fresh = KLV.readKLV( again, KLV.KeyLength.SixteenBytes, KLV.LengthEncoding.BER );
+            assertTrue( Arrays.equals( fresh.toBytes(), record.toBytes() ) );
+
+            KLVTagMap map = record.getSubKLVTagMap( KLV.KeyLength.OneByte, KLV.LengthEncoding.BER );
+            assertEquals( 3, map.size() );
+            assertSame( tag, map.getKLVAt( 2, tag ) );
+            assertEquals( 4, tag.getShortKey() );
+            assertEquals( i * 100, tag.getLength() );
+            assertEquals( map.getKLVAt( 2 ).toString(), tag.toString() );
+        }   // end for: each record
+        assertNull( KLV.readKLV( in, KLV.KeyLength.SixteenBytes, KLV.LengthEncoding.BER, record ) );
+        pool.release( record );
+        pool.release( tag );
+    }   // end testReadInto
+
+
+}
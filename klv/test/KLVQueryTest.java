@@ -0,0 +1,206 @@
+import junit.framework.*;
+import java.io.*;
+import java.nio.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+
+/**
+ *
+ * @author robert.harder
+ */
+public class KLVQueryTest extends TestCase {
+
+    private final static UniversalLabel UAS = UniversalLabel.valueOf( new byte[]{
+        0x06, 0x0E, 0x2B, 0x34, 0x02, 0x0B, 0x01, 0x01,
+        0x0E, 0x01, 0x03, 0x01, 0x01, 0x00, 0x00, 0x00 } );
+
+    private final static UniversalLabel OTHER = UniversalLabel.valueOf( new byte[]{
+        0x06, 0x0E, 0x2B, 0x34, 0x02, 0x0B, 0x01, 0x01,
+        0x0E, 0x01, 0x03, 0x01, 0x01, 0x00, 0x00, 0x01 } );
+
+    private final static KLVScaledInteger LATITUDE = KLVScaledInteger.signed( -90, 90, 4 );
+
+    private File file;
+
+    public KLVQueryTest(String testName) {
+        super(testName);
+    }
+
+    protected void setUp() throws Exception {
+        file = File.createTempFile("KLVQueryTest", ".klv");
+    }
+
+    protected void tearDown() throws Exception {
+        KLVFileIndex.getIndexFile(file).delete();
+        file.delete();
+    }
+
+
+    private static double latitude( int i ){
+        return -60 + (i * 7 % 1200) / 10.0;
+    }
+
+    /** The local set of record <tt>i</tt>: filler, platform, latitude, time stamp. */
+    private static byte[] makeLocalSet( int i ) throws IOException {
+        KLV klv = new KLV();
+        klv.addSubKLV( 3, KLV.KeyLength.OneByte, KLV.LengthEncoding.BER, new byte[ i % 200 ] );
+        klv.addSubKLV( 10, KLV.KeyLength.OneByte, KLV.LengthEncoding.BER,
+                (i % 3 == 0 ? "Reaper" : "Raven").getBytes( "UTF-8" ) );
+        if( i % 10 != 9 ){
+            klv.addSubKLV( 13, KLV.KeyLength.OneByte, KLV.LengthEncoding.BER, LATITUDE.encode( latitude( i ) ) );
+        }   // end if: has a latitude
+        klv.addSubKLV( 2, KLV.KeyLength.OneByte, KLV.LengthEncoding.BER,
+                ByteBuffer.allocate(8).putLong( 1000L * i ).array() );
+        return klv.getValue();
+    }
+
+    /** Writes <tt>count</tt> UAS Local Sets, with every seventh under another key. */
+    private void writeRecording( int count ) throws IOException {
+        OutputStream out = new BufferedOutputStream( new FileOutputStream( file ) );
+        for( int i = 0; i < count; i++ ){
+            KLV klv = new KLV();
+            klv.setKey( (i % 7 == 6 ? OTHER : UAS).toBytes() );
+            klv.setValue( makeLocalSet( i ) );
+            out.write( klv.toBytes() );
+        }   // end for: each set
+        out.close();
+    }
+
+    /** Decodes every set to find the expected answer the slow way. */
+    private static int[] naive( KLVFileIndex index, UniversalLabel key, long start, long end, double lo, double hi )
+    throws Exception {
+        List<Integer> found = new ArrayList<Integer>();
+        for( int i = 0; i < index.size(); i++ ){
+            KLV klv = index.getKLV( i );
+            if( key != null && !klv.isFullKey( key.toBytes() ) ) continue;
+            Map<Integer,KLV> tags = klv.getSubKLVMap( KLV.KeyLength.OneByte, KLV.LengthEncoding.BER );
+            long time = tags.get( 2 ).getValueAs64bitLong();
+            if( time < start || time >= end ) continue;
+            KLV lat = tags.get( 13 );
+            if( lat == null ) continue;
+            double d = LATITUDE.decode( lat.getValue(), 0 );
+            if( d >= lo && d <= hi ) found.add( i );
+        }   // end for: each set
+        int[] array = new int[ found.size() ];
+        for( int i = 0; i < array.length; i++ ) array[i] = found.get(i);
+        return array;
+    }
+
+
+
+    /**
+     * Test of matching local sets held in memory.
+     */
+    public void testMatches() throws Exception {
+        System.out.println("matches");
+
+        KLVQuery query = new KLVQuery( KLV.KeyLength.OneByte, KLV.LengthEncoding.BER )
+                .whereDouble( 13, LATITUDE, -10, 10 )
+                .whereEquals( 10, "Reaper" )
+                .whereLong( 2, 0, 90000 );
+        int count = 0;
+        for( int i = 0; i < 100; i++ ){
+            byte[] set = makeLocalSet( i );
+            double lat = latitude( i );
+            boolean expected = i % 10 != 9 && lat >= -10 && lat <= 10 && i % 3 == 0 && i <= 90;
+            assertEquals( "Set " + i, expected, query.matches( set, 0, set.length ) );
+            if( expected ) count++;
+
+            byte[] padded = new byte[ set.length + 5 ];
+            System.arraycopy( set, 0, padded, 3, set.length );
+            assertEquals( expected, query.matches( ByteBuffer.wrap( padded ), 3, set.length ) );
+            if( expected ){
+                assertFalse( query.matches( set, 0, set.length - 1 ) );    // Cut short
+            }   // end if: matched
+        }   // end for: each set
+        assertTrue( count > 0 );
+
+        // Signed integers, several conditions on a tag, and top-level sets
+        byte[] set = new byte[]{ 0x05, 0x02, (byte)0xFF, (byte)0xFE, 0x06, 0x01, 0x07 };
+        assertTrue( new KLVQuery( KLV.KeyLength.OneByte, KLV.LengthEncoding.BER )
+                .whereSigned( 5, -2, -2 ).whereLong( 5, 0xFFFE, 0xFFFE ).matches( set, 0, set.length ) );
+        assertFalse( new KLVQuery( KLV.KeyLength.OneByte, KLV.LengthEncoding.BER )
+                .whereSigned( 5, -2, -2 ).whereLong( 6, 8, 9 ).matches( set, 0, set.length ) );
+        assertFalse( new KLVQuery( KLV.KeyLength.OneByte, KLV.LengthEncoding.BER )
+                .whereEquals( 4, new byte[0] ).matches( set, 0, set.length ) );
+        KLVQuery any = new KLVQuery( KLV.KeyLength.OneByte, KLV.LengthEncoding.BER );
+        assertTrue( any.matches( set, 0, set.length ) );
+
+        KLV klv = new KLV();
+        klv.setKey( UAS.toBytes() );
+        klv.setValue( set );
+        KLVQuery byKey = new KLVQuery( KLV.KeyLength.OneByte, KLV.LengthEncoding.BER ).whereKey( UAS ).whereLong( 6, 7, 7 );
+        assertTrue( byKey.matches( klv ) );
+        klv.setKey( OTHER.toBytes() );
+        assertFalse( byKey.matches( klv ) );
+
+        try{
+            byKey.whereLong( 7, 0, 1 );
+            fail("Should have thrown exception");
+        } catch( IllegalStateException exc ){ }
+    }   // end testMatches
+
+
+
+    /**
+     * Test of searching a recording on one thread and on many, against decoding everything.
+     */
+    public void testFind() throws Exception {
+        System.out.println("find");
+
+        writeRecording( 5000 );
+        KLVFileIndex index = KLVFileIndex.open( file, KLV.KeyLength.SixteenBytes, KLV.LengthEncoding.BER,
+                2, KLV.KeyLength.OneByte, KLV.LengthEncoding.BER );
+        ForkJoinPool pool = new ForkJoinPool( 4 );
+        try{
+            // Latitude only
+            KLVQuery query = new KLVQuery( KLV.KeyLength.OneByte, KLV.LengthEncoding.BER )
+                    .whereDouble( 13, LATITUDE, 20, 25.5 );
+            int[] expected = naive( index, null, Long.MIN_VALUE, Long.MAX_VALUE, 20, 25.5 );
+            assertTrue( expected.length > 100 );
+            assertTrue( Arrays.equals( expected, query.find( index ) ) );
+            assertTrue( Arrays.equals( expected, query.find( index, pool ) ) );
+
+            // Key, time window, and latitude
+            long start = 1000L * 1234;
+            long end = 1000L * 4321;
+            query = new KLVQuery( KLV.KeyLength.OneByte, KLV.LengthEncoding.BER )
+                    .whereKey( UAS )
+                    .whereTime( start, end )
+                    .whereDouble( 13, LATITUDE, -30, 0 );
+            expected = naive( index, UAS, start, end, -30, 0 );
+            assertTrue( expected.length > 100 );
+            assertTrue( expected[0] >= 1234 && expected[ expected.length - 1 ] < 4321 );
+            assertTrue( Arrays.equals( expected, query.find( index ) ) );
+            assertTrue( Arrays.equals( expected, query.find( index, pool ) ) );
+            for( int i = 0; i < 50; i++ ){
+                assertEquals( Arrays.binarySearch( expected, i * 97 ) >= 0, query.matches( index, i * 97 ) );
+            }   // end for: some sets
+
+            // No conditions on tags: nothing is read
+            query = new KLVQuery( KLV.KeyLength.OneByte, KLV.LengthEncoding.BER ).whereKey( OTHER );
+            assertTrue( Arrays.equals( index.indicesOf( OTHER ), query.find( index, pool ) ) );
+            assertEquals( 0, new KLVQuery( KLV.KeyLength.OneByte, KLV.LengthEncoding.BER )
+                    .whereTime( end, start ).find( index ).length );
+            assertEquals( 0, new KLVQuery( KLV.KeyLength.OneByte, KLV.LengthEncoding.BER )
+                    .whereKey( 6 ).find( index ).length );
+        } finally {
+            pool.shutdown();
+            index.close();
+        }   // end finally
+
+        // Time windows need time stamps
+        KLVFileIndex.getIndexFile(file).delete();
+        index = KLVFileIndex.open( file, KLV.KeyLength.SixteenBytes, KLV.LengthEncoding.BER );
+        try{
+            new KLVQuery( KLV.KeyLength.OneByte, KLV.LengthEncoding.BER ).whereTime( 0, 1 ).find( index );
+            fail("Should have thrown exception");
+        } catch( IllegalStateException exc ){
+        } finally {
+            index.close();
+        }   // end finally
+    }   // end testFind
+
+
+}
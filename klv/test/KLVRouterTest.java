@@ -0,0 +1,208 @@
+import junit.framework.*;
+import java.io.*;
+import java.nio.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+
+/**
+ *
+ * @author robert.harder
+ */
+public class KLVRouterTest extends TestCase {
+
+    private final static UniversalLabel UAS = UniversalLabel.valueOf( new byte[]{
+        0x06, 0x0E, 0x2B, 0x34, 0x02, 0x0B, 0x01, 0x01,
+        0x0E, 0x01, 0x03, 0x01, 0x01, 0x00, 0x00, 0x00 } );
+
+    private KLVRouter router;
+
+    public KLVRouterTest(String testName) {
+        super(testName);
+    }
+
+    protected void setUp() throws Exception {
+    }
+
+    protected void tearDown() throws Exception {
+        if( router != null ){
+            router.close();
+        }   // end if: made one
+    }
+
+
+    /** Collects what it is given. */
+    private static class Collector implements KLVRouter.Handler {
+        final List<KLV> received = Collections.synchronizedList( new ArrayList<KLV>() );
+        final CountDownLatch gate;
+        Collector(){ this( null ); }
+        Collector( CountDownLatch gate ){ this.gate = gate; }
+        public void klvReceived( KLV klv ) throws Exception {
+            if( gate != null ){
+                gate.await();
+            }   // end if: held up
+            received.add( klv );
+        }
+        int value( int i ){ return received.get(i).getValueAs8bitUnsignedInt(); }
+    }   // end class Collector
+
+
+    private static byte[] makeSets( int[] keys, int[] values ){
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for( int i = 0; i < keys.length; i++ ){
+            KLV klv = new KLV( keys[i], KLV.KeyLength.OneByte, KLV.LengthEncoding.BER, new byte[]{ (byte)values[i] } );
+            byte[] bytes = klv.toBytes();
+            out.write( bytes, 0, bytes.length );
+        }   // end for: each set
+        return out.toByteArray();
+    }
+
+
+
+    /**
+     * Test of routing raw bytes and KLV objects by key, in order.
+     */
+    public void testRoute() throws Exception {
+        System.out.println("route");
+
+        router = new KLVRouter( KLV.KeyLength.OneByte, KLV.LengthEncoding.BER );
+        Collector camera = new Collector();
+        Collector archive = new Collector();
+        Collector other = new Collector();
+        router.addHandler( 1, camera );
+        router.addHandler( 1, archive );
+        router.addHandler( 2, archive );
+        router.addDefaultHandler( other, 16, KLVRouter.Policy.BLOCK, null );
+
+        int[] keys = new int[ 300 ];
+        int[] values = new int[ 300 ];
+        for( int i = 0; i < keys.length; i++ ){
+            keys[i] = 1 + i % 3;
+            values[i] = i & 0xFF;
+        }   // end for: each set
+        byte[] bytes = makeSets( keys, values );
+        assertEquals( 300, router.route( bytes, 0, bytes.length ) );
+        assertTrue( router.route( new KLV( 2, KLV.KeyLength.OneByte, KLV.LengthEncoding.BER, new byte[]{ 7 } ) ) );
+        assertTrue( router.awaitIdle( 5, TimeUnit.SECONDS ) );
+
+        assertEquals( 100, camera.received.size() );
+        assertEquals( 201, archive.received.size() );
+        assertEquals( 100, other.received.size() );
+        for( int i = 0; i < 100; i++ ){
+            assertEquals( (3 * i) & 0xFF, camera.value( i ) );
+            assertEquals( (3 * i + 2) & 0xFF, other.value( i ) );
+        }   // end for: each set
+        int lastTwo = -1;                                       // Each key is in order
+        for( int i = 0; i < archive.received.size(); i++ ){
+            if( archive.received.get(i).getShortKey() == 2 ) lastTwo = archive.value( i );
+        }   // end for: each set
+        assertEquals( 7, lastTwo );
+        assertEquals( 301, router.getRoutedCount() );
+        assertEquals( 0, router.getUnroutedCount() );
+
+        // A set cut short
+        assertEquals( 1, router.route( ByteBuffer.wrap( new byte[]{ 2, 1, 9, 1, 5 } ) ) );
+        assertEquals( 1, router.getMalformedCount() );
+    }   // end testRoute
+
+
+
+    /**
+     * Test that a stuck handler does not hold up the others, with each policy.
+     */
+    public void testPolicies() throws Exception {
+        System.out.println("policies");
+
+        router = new KLVRouter( KLV.KeyLength.OneByte, KLV.LengthEncoding.BER );
+        CountDownLatch gate = new CountDownLatch( 1 );
+        Collector fast = new Collector();
+        Collector newest = new Collector( gate );
+        Collector oldest = new Collector( gate );
+        KLVRouter.Route fastRoute = router.addHandler( 1, fast );
+        KLVRouter.Route newestRoute = router.addHandler( 1, newest, 4, KLVRouter.Policy.DROP_NEWEST, null );
+        KLVRouter.Route oldestRoute = router.addHandler( 1, oldest, 4, KLVRouter.Policy.DROP_OLDEST, null );
+        assertEquals( 4, newestRoute.getCapacity() );
+
+        for( int i = 0; i < 100; i++ ){
+            router.route( new KLV( 1, KLV.KeyLength.OneByte, KLV.LengthEncoding.BER, new byte[]{ (byte)i } ) );
+            Thread.sleep( i == 0 ? 100 : 0 );   // Let the first set reach the gate
+        }   // end for: each set
+        long deadline = System.currentTimeMillis() + 5000;
+        while( fast.received.size() < 100 && System.currentTimeMillis() < deadline ){
+            Thread.sleep( 10 );
+        }   // end while: waiting
+        assertEquals( 100, fast.received.size() );
+        assertEquals( 0, newest.received.size() );
+        assertEquals( 4, newestRoute.getQueueDepth() );
+        assertEquals( 4, newestRoute.getMaxQueueDepth() );
+        assertEquals( 95, newestRoute.getDroppedCount() );      // One at the gate, four queued
+        assertEquals( 95, oldestRoute.getDroppedCount() );
+
+        gate.countDown();
+        assertTrue( router.awaitIdle( 5, TimeUnit.SECONDS ) );
+        assertEquals( 5, newest.received.size() );
+        assertEquals( 4, newest.value( 4 ) );                   // Kept the first ones
+        assertEquals( 5, oldest.received.size() );
+        assertEquals( 99, oldest.value( 4 ) );                  // Kept the last ones
+        assertEquals( 100, fastRoute.getDeliveredCount() );
+        assertEquals( 0, fastRoute.getQueueDepth() );
+    }   // end testPolicies
+
+
+
+    /**
+     * Test of blocking, sixteen-byte keys, shared executors, and errors.
+     */
+    public void testBlockAndLabels() throws Exception {
+        System.out.println("blockAndLabels");
+
+        router = new KLVRouter( KLV.KeyLength.SixteenBytes, KLV.LengthEncoding.BER );
+        ExecutorService pool = Executors.newFixedThreadPool( 2 );
+        try{
+            final List<Integer> seen = Collections.synchronizedList( new ArrayList<Integer>() );
+            KLVRouter.Route route = router.addHandler( UAS, new KLVRouter.Handler(){
+                public void klvReceived( KLV klv ) throws Exception {
+                    Thread.sleep( 1 );
+                    seen.add( klv.getValueAs8bitUnsignedInt() );
+                    if( seen.size() % 10 == 0 ) throw new IOException( "Counted" );
+                }
+            }, 2, KLVRouter.Policy.BLOCK, pool );
+
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            for( int i = 0; i < 50; i++ ){
+                KLV klv = new KLV();
+                klv.setKey( UAS.toBytes() );
+                klv.setValue( new byte[]{ (byte)i } );
+                out.write( klv.toBytes() );
+                KLV unknown = new KLV();
+                unknown.setKey( new byte[16] );
+                unknown.setValue( new byte[]{ (byte)i } );
+                out.write( unknown.toBytes() );
+            }   // end for: each set
+            byte[] bytes = out.toByteArray();
+            ByteBuffer direct = ByteBuffer.allocateDirect( bytes.length );
+            direct.put( bytes ).flip();
+            assertEquals( 50, router.route( direct ) );
+            assertFalse( direct.hasRemaining() );
+            assertEquals( 50, router.getUnroutedCount() );
+
+            assertTrue( router.awaitIdle( 5, TimeUnit.SECONDS ) );
+            assertEquals( 50, seen.size() );
+            for( int i = 0; i < 50; i++ ){
+                assertEquals( i, seen.get(i).intValue() );
+            }   // end for: each set
+            assertEquals( 0, route.getDroppedCount() );
+            assertEquals( 5, route.getErrorCount() );
+            assertTrue( route.getMaxQueueDepth() <= 2 );
+
+            // From a stream, after removing the handler
+            assertTrue( router.removeHandler( route ) );
+            assertFalse( router.removeHandler( route ) );
+            assertEquals( 0, router.route( new ByteArrayInputStream( bytes ) ) );
+        } finally {
+            pool.shutdown();
+        }   // end finally
+    }   // end testBlockAndLabels
+
+
+}
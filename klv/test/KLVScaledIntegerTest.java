@@ -0,0 +1,175 @@
+import junit.framework.*;
+import java.util.*;
+
+
+/**
+ *
+ * @author robert.harder
+ */
+public class KLVScaledIntegerTest extends TestCase {
+
+    public KLVScaledIntegerTest(String testName) {
+        super(testName);
+    }
+
+    protected void setUp() throws Exception {
+    }
+
+    protected void tearDown() throws Exception {
+    }
+
+
+
+    /**
+     * Test of IMAPB against the example in MISB ST 1201, and its special values.
+     */
+    public void testImapb() {
+        System.out.println("imapb");
+
+        KLVScaledInteger codec = KLVScaledInteger.imapb( -900, 19000, 3 );
+        assertEquals( KLVScaledInteger.Mapping.IMAPB, codec.getMapping() );
+        assertTrue( Arrays.equals( new byte[]{ 0x03, (byte)0x8E, 0x00 }, codec.encode( 10.0 ) ) );
+        assertEquals( 10.0, codec.decode( new byte[]{ 0x03, (byte)0x8E, 0x00 }, 0 ), 0 );
+        assertEquals( 1.0 / 256, codec.getResolution(), 0 );
+
+        assertEquals( -900.0, codec.decode( codec.encode( -900.0 ), 0 ), 0 );
+        assertEquals( 19000.0, codec.decode( codec.encode( 19000.0 ), 0 ), 1.0 / 256 );
+        assertEquals( Double.POSITIVE_INFINITY, codec.decode( codec.encode( 20000.0 ), 0 ) );
+        assertEquals( Double.NEGATIVE_INFINITY, codec.decode( codec.encode( -1000.0 ), 0 ) );
+        assertTrue( Double.isNaN( codec.decode( codec.encode( Double.NaN ), 0 ) ) );
+        assertTrue( Arrays.equals( new byte[]{ (byte)0xC8, 0, 0 }, codec.encode( Double.POSITIVE_INFINITY ) ) );
+        assertTrue( Double.isNaN( codec.decode( new byte[]{ (byte)0xF0, 0, 0 }, 0 ) ) );
+
+        // Zero is exact even when the minimum is not a multiple of the resolution
+        KLVScaledInteger odd = KLVScaledInteger.imapb( -0.3, 1.0, 2 );
+        assertEquals( 0.0, odd.decode( odd.encode( 0.0 ), 0 ), 0 );
+        assertEquals( 0.5, odd.decode( odd.encode( 0.5 ), 0 ), odd.getResolution() );
+    }   // end testImapb
+
+
+
+    /**
+     * Test of the signed and unsigned mappings against MISB ST 0601 examples.
+     */
+    public void testSignedUnsigned() {
+        System.out.println("signedUnsigned");
+
+        // Tag 5, platform heading
+        KLVScaledInteger heading = KLVScaledInteger.unsigned( 0, 360, 2 );
+        assertTrue( Arrays.equals( new byte[]{ 0x71, (byte)0xC2 }, heading.encode( 159.9744 ) ) );
+        assertEquals( 159.9744, heading.decode( new byte[]{ 0x71, (byte)0xC2 }, 0 ), 1e-4 );
+        assertEquals( 0.0, heading.decode( heading.encode( -5 ), 0 ), 0 );
+        assertEquals( 360.0, heading.decode( heading.encode( 400 ), 0 ), 0 );
+
+        // Tag 13, sensor latitude
+        KLVScaledInteger lat = KLVScaledInteger.signed( -90, 90, 4 );
+        assertTrue( Arrays.equals( new byte[]{ 0x55, (byte)0x95, (byte)0xB6, 0x6D }, lat.encode( 60.176822966978335 ) ) );
+        assertEquals( 60.176822966978335, lat.decode( new byte[]{ 0x55, (byte)0x95, (byte)0xB6, 0x6D }, 0 ), 1e-7 );
+        assertEquals( -90.0, lat.decode( lat.encode( -90 ), 0 ), 0 );
+        assertTrue( Arrays.equals( new byte[]{ (byte)0x80, 0, 0, 0 }, lat.encode( 91 ) ) );
+        assertTrue( Double.isNaN( lat.decode( new byte[]{ (byte)0x80, 0, 0, 0 }, 0 ) ) );
+
+        // Short values, as some tags allow
+        assertEquals( lat.decode( new byte[]{ (byte)0xFF, (byte)0xFF, (byte)0xFF, (byte)0x81 }, 0 ),
+                lat.decode( new byte[]{ (byte)0x81, 1 }, 0, 1 ), 0 );
+        assertEquals( heading.decode( new byte[]{ 0, 0x7F }, 0 ), heading.decode( new byte[]{ 0x7F }, 0, 1 ), 0 );
+        assertTrue( Double.isNaN( KLVScaledInteger.imapb( 0, 1, 4 ).decode( new byte[ 2 ], 0, 2 ) ) );
+        assertTrue( Double.isNaN( lat.decode( new byte[ 5 ], 0, 5 ) ) );
+
+        KLVScaledInteger big = KLVScaledInteger.unsigned( 0, 1, 8 );
+        assertEquals( 1.0, big.decode( big.encode( 1.0 ), 0 ), 0 );
+        assertEquals( 0.75, big.decode( big.encode( 0.75 ), 0 ), 1e-15 );
+
+        try{
+            KLVScaledInteger.signed( 1, 1, 2 );
+            fail("Should have thrown exception");
+        } catch( IllegalArgumentException exc ){ }
+        try{
+            KLVScaledInteger.imapb( 0, 1, 9 );
+            fail("Should have thrown exception");
+        } catch( IllegalArgumentException exc ){ }
+    }   // end testSignedUnsigned
+
+
+
+    /**
+     * Test of the batch methods and the codec table.
+     */
+    public void testBatch() {
+        System.out.println("batch");
+
+        KLVScaledInteger[] codecs = new KLVScaledInteger[]{
+            KLVScaledInteger.imapb( -900, 19000, 3 ),
+            KLVScaledInteger.signed( -180, 180, 4 ),
+            KLVScaledInteger.unsigned( 0, 360, 2 ),
+            KLVScaledInteger.imapb( -1, 1, 5 )
+        };
+        Random random = new Random( 42 );
+        for( KLVScaledInteger codec : codecs ){
+            double[] values = new double[ 1000 ];
+            for( int i = 0; i < values.length; i++ ){
+                values[i] = codec.getMin() + random.nextDouble() * (codec.getMax() - codec.getMin());
+            }   // end for: each value
+            values[7] = Double.NaN;
+
+            byte[] packed = new byte[ 3 + values.length * codec.getLength() ];
+            codec.encode( values, 0, packed, 3, values.length );
+            double[] back = new double[ values.length + 1 ];
+            codec.decode( packed, 3, back, 1, values.length );
+            for( int i = 0; i < values.length; i++ ){
+                double expected = codec.decode( codec.encode( values[i] ), 0 );
+                if( i == 7 && codec.getMapping() == KLVScaledInteger.Mapping.UNSIGNED ){
+                    assertEquals( codec.getMin(), back[i+1], 0 );
+                } else if( i == 7 ){
+                    assertTrue( Double.isNaN( back[i+1] ) );
+                } else {
+                    assertEquals( expected, back[i+1], 0 );
+                    assertEquals( values[i], back[i+1], codec.getResolution() );
+                }   // end else
+            }   // end for: each value
+
+            try{
+                codec.decode( packed, 4, back, 0, values.length );
+                fail("Should have thrown exception");
+            } catch( ArrayIndexOutOfBoundsException exc ){ }
+        }   // end for: each codec
+
+        byte[] data = new byte[ 3 + 4 + 2 + 5 ];
+        int[] offsets = new int[]{ 0, 3, 7, 9 };
+        double[] values = new double[]{ 10.0, -45.5, 90.0, -0.25 };
+        for( int i = 0; i < codecs.length; i++ ){
+            codecs[i].encode( values[i], data, offsets[i] );
+        }   // end for: each codec
+        double[] back = new double[4];
+        KLVScaledInteger.decode( codecs, data, offsets, back, 4 );
+        for( int i = 0; i < 4; i++ ){
+            assertEquals( values[i], back[i], codecs[i].getResolution() );
+        }   // end for: each value
+    }   // end testBatch
+
+
+
+    /**
+     * Test of mapped fields in a schema.
+     */
+    public void testSchema() throws Exception {
+        System.out.println("schema");
+
+        KLVScaledInteger codec = KLVScaledInteger.imapb( -900, 19000, 3 );
+        KLVSchema schema = new KLVSchema( KLV.KeyLength.OneByte, KLV.LengthEncoding.BER )
+                .addMapped( 1, "altitude", codec );
+        assertEquals( KLVSchema.Kind.DOUBLE, schema.getKind( 0 ) );
+        KLV klv = new KLV( 0, KLV.KeyLength.OneByte, KLV.LengthEncoding.BER );
+        klv.addSubKLV( 1, KLV.KeyLength.OneByte, KLV.LengthEncoding.BER, codec.encode( 10.0 ) );
+        KLVSchema.Record rec = schema.newRecord();
+        rec.decode( klv.getValue(), 0, klv.getLength() );
+        assertEquals( 10.0, rec.getDouble( 0 ), 0 );
+
+        try{
+            schema.add( 2, "other", KLVSchema.Type.MAPPED );
+            fail("Should have thrown exception");
+        } catch( IllegalArgumentException exc ){ }
+    }   // end testSchema
+
+
+}
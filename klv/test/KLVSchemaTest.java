@@ -0,0 +1,168 @@
+import junit.framework.*;
+import java.nio.*;
+
+
+/**
+ *
+ * @author robert.harder
+ */
+public class KLVSchemaTest extends TestCase {
+
+    public KLVSchemaTest(String testName) {
+        super(testName);
+    }
+
+    protected void setUp() throws Exception {
+    }
+
+    protected void tearDown() throws Exception {
+    }
+
+
+    private static KLVSchema makeSchema(){
+        KLVSchema nested = new KLVSchema( KLV.KeyLength.OneByte, KLV.LengthEncoding.BER )
+                .add( 1, "count", KLVSchema.Type.UINT8 )
+                .add( 2, "name", KLVSchema.Type.STRING );
+        return new KLVSchema( KLV.KeyLength.OneByte, KLV.LengthEncoding.BER )
+                .add( 2, "timestamp", KLVSchema.Type.UINT64 )
+                .add( 3, "mission", KLVSchema.Type.STRING )
+                .addScaled( 5, "heading", KLVSchema.Type.UINT16, 0, 360 )
+                .addScaled( 13, "latitude", KLVSchema.Type.INT32, -90, 90 )
+                .add( 20, "offset", KLVSchema.Type.INT16 )
+                .add( 21, "ratio", KLVSchema.Type.DOUBLE )
+                .addSet( 48, "security", nested );
+    }
+
+
+
+    /**
+     * Test of the static readers, at offsets other than zero.
+     */
+    public void testStaticReaders() {
+        System.out.println("staticReaders");
+
+        byte[] bytes = new byte[]{ 0, (byte)0xFF, (byte)0xFE, 0x12, 0x34, 0x56, 0x78, 0, 0, 0, 1 };
+        assertEquals( -2, KLV.get16bitSignedInt( bytes, 1 ) );
+        assertEquals( 0xFFFE, KLV.get16bitUnsignedInt( bytes, 1 ) );
+        assertEquals( 0x12345678, KLV.get32bitInt( bytes, 3 ) );
+        assertEquals( 0x1234, KLV.getInt( bytes, 3, 2 ) );
+        assertEquals( 0x12345678_00000001L, KLV.get64bitLong( bytes, 3 ) );
+        assertEquals( 1.5, KLV.getDouble( ByteBuffer.allocate(9).putDouble(1, 1.5).array(), 1 ), 0 );
+    }   // end testStaticReaders
+
+
+
+    /**
+     * Test of decoding into a record, including a nested set.
+     */
+    public void testDecode() throws Exception {
+        System.out.println("decode");
+
+        KLVSchema schema = makeSchema();
+        assertEquals( 8, schema.getSlotCount() );
+        int ts = schema.slotOf( "timestamp" );
+        int heading = schema.slotOf( "heading" );
+        int latitude = schema.slotOf( "latitude" );
+        int offset = schema.slotOf( "offset" );
+        int ratio = schema.slotOf( "ratio" );
+        int count = schema.slotOf( "security.count" );
+        int name = schema.slotOf( "security.name" );
+        assertEquals( KLVSchema.Kind.LONG, schema.getKind( ts ) );
+        assertEquals( KLVSchema.Kind.DOUBLE, schema.getKind( heading ) );
+
+        KLV sec = new KLV( 48, KLV.KeyLength.OneByte, KLV.LengthEncoding.BER );
+        sec.addSubKLV( 1, KLV.KeyLength.OneByte, KLV.LengthEncoding.BER, new byte[]{ (byte)200 } );
+        sec.addSubKLV( 2, KLV.KeyLength.OneByte, KLV.LengthEncoding.BER, "top".getBytes("UTF-8") );
+
+        KLV klv = new KLV( 1, KLV.KeyLength.OneByte, KLV.LengthEncoding.BER );
+        klv.addSubKLV( 2, KLV.KeyLength.OneByte, KLV.LengthEncoding.BER, ByteBuffer.allocate(8).putLong(1234567890123L).array() );
+        klv.addSubKLV( 5, KLV.KeyLength.OneByte, KLV.LengthEncoding.BER, new byte[]{ (byte)0xFF, (byte)0xFF } );
+        klv.addSubKLV( 13, KLV.KeyLength.OneByte, KLV.LengthEncoding.BER, new byte[]{ (byte)0x80, 0, 0, 1 } );
+        klv.addSubKLV( 20, KLV.KeyLength.OneByte, KLV.LengthEncoding.BER, new byte[]{ (byte)0xFF } );  // Short int
+        klv.addSubKLV( 21, KLV.KeyLength.OneByte, KLV.LengthEncoding.BER, new byte[]{ 1, 2, 3 } );    // Bad double
+        klv.addSubKLV( 99, KLV.KeyLength.OneByte, KLV.LengthEncoding.BER, new byte[]{ 1, 2, 3 } );    // Unknown
+        klv.addSubKLV( sec );
+
+        KLVSchema.Record rec = schema.newRecord().decode( klv.getValue(), 0, klv.getLength() );
+        assertEquals( 1234567890123L, rec.getLong( ts ) );
+        assertEquals( 360.0, rec.getDouble( heading ), 1e-9 );
+        assertEquals( -90.0, rec.getDouble( latitude ), 1e-9 );
+        assertEquals( -1, rec.getLong( offset ) );
+        assertFalse( rec.isPresent( ratio ) );
+        assertTrue( Double.isNaN( rec.getDouble( ratio ) ) );
+        assertFalse( rec.isPresent( schema.slotOf( "mission" ) ) );
+        assertNull( rec.getString( schema.slotOf( "mission" ) ) );
+        assertEquals( 200, rec.getLong( count ) );
+        assertEquals( "top", rec.getString( name ) );
+
+        // Reuse: old values must not linger
+        KLV small = new KLV( 1, KLV.KeyLength.OneByte, KLV.LengthEncoding.BER );
+        small.addSubKLV( 20, KLV.KeyLength.OneByte, KLV.LengthEncoding.BER, new byte[]{ 0x01, 0x00 } );
+        rec.decode( small.getValue(), 0, small.getLength() );
+        assertEquals( 256, rec.getLong( offset ) );
+        assertFalse( rec.isPresent( ts ) );
+        assertFalse( rec.isPresent( name ) );
+    }   // end testDecode
+
+
+
+    /**
+     * Test that four-byte keys with the high bit set are skipped as unknown.
+     */
+    public void testHighBitKey() throws Exception {
+        System.out.println("highBitKey");
+
+        KLVSchema schema = new KLVSchema( KLV.KeyLength.FourBytes, KLV.LengthEncoding.BER )
+                .add( 5, "altitude", KLVSchema.Type.UINT16 );
+        int alt = schema.slotOf( "altitude" );
+        byte[] bytes = new byte[]{
+            (byte)0x80, 0, 0, 1, 1, 7,                  // Tag -2147483647
+            (byte)0xFF, (byte)0xFF, (byte)0xFF, (byte)0xFF, 0,   // Tag -1, empty
+            0, 0, 0, 5, 2, 0x01, 0x02 };
+        KLVSchema.Record rec = schema.newRecord().decode( bytes, 0, bytes.length );
+        assertEquals( 0x0102, rec.getLong( alt ) );
+
+        KLVColumnStore store = new KLVColumnStore( schema );
+        assertEquals( 0, store.append( 1000L, bytes, 0, bytes.length ) );
+        assertEquals( 0x0102, store.getLong( alt, 0 ) );
+    }   // end testHighBitKey
+
+
+
+    /**
+     * Test that bad schemas are rejected and compiled schemas cannot change.
+     */
+    public void testSchemaErrors() {
+        System.out.println("schemaErrors");
+
+        KLVSchema schema = new KLVSchema( KLV.KeyLength.OneByte, KLV.LengthEncoding.BER )
+                .add( 1, "a", KLVSchema.Type.UINT8 );
+        try{
+            schema.add( 1, "b", KLVSchema.Type.UINT8 );
+            fail("Should have thrown exception");
+        } catch( IllegalArgumentException exc ){ }
+        try{
+            schema.add( 300, "c", KLVSchema.Type.UINT8 );
+            fail("Should have thrown exception");
+        } catch( IllegalArgumentException exc ){ }
+        try{
+            schema.addScaled( 2, "d", KLVSchema.Type.FLOAT, 0, 1 );
+            fail("Should have thrown exception");
+        } catch( IllegalArgumentException exc ){ }
+        try{
+            schema.slotOf( "z" );
+            fail("Should have thrown exception");
+        } catch( IllegalArgumentException exc ){ }
+        try{
+            schema.add( 3, "e", KLVSchema.Type.UINT8 );
+            fail("Should have thrown exception");
+        } catch( IllegalStateException exc ){ }
+
+        try{
+            schema.decode( new byte[]{ 1, 5, 0 }, 0, 3, schema.newRecord() );
+            fail("Should have thrown exception");
+        } catch( IllegalArgumentException exc ){ }
+    }   // end testSchemaErrors
+
+
+}
@@ -0,0 +1,258 @@
+import junit.framework.*;
+import java.io.*;
+import java.nio.*;
+import java.util.*;
+
+
+/**
+ *
+ * @author robert.harder
+ */
+public class KLVTSDemuxerTest extends TestCase {
+
+    private final static int VIDEO_PID = 0x101;
+    private final static int SYNC_PID = 0x102;
+    private final static int ASYNC_PID = 0x103;
+
+    private ByteArrayOutputStream ts;
+    private int[] continuity;
+    private List<KLV> received;
+    private List<Integer> receivedPids;
+    private List<Long> receivedPts;
+    private KLVTSDemuxer demux;
+
+    public KLVTSDemuxerTest(String testName) {
+        super(testName);
+    }
+
+    protected void setUp() throws Exception {
+        ts = new ByteArrayOutputStream();
+        continuity = new int[ KLVTSDemuxer.PID_COUNT ];
+        received = new ArrayList<KLV>();
+        receivedPids = new ArrayList<Integer>();
+        receivedPts = new ArrayList<Long>();
+        demux = new KLVTSDemuxer();
+        demux.addListener( new KLVTSDemuxer.Listener(){
+            public void klvReceived( KLVTSDemuxer.View view ){
+                received.add( view.toKLV() );
+                receivedPids.add( view.getPid() );
+                receivedPts.add( view.getPts() );
+            }
+        });
+    }
+
+    protected void tearDown() throws Exception {
+    }
+
+
+
+/* ********  S T R E A M   B U I L D I N G  ******** */
+
+
+    private static byte[] makeKey( int n ){
+        return new byte[]{
+            0x06, 0x0E, 0x2B, 0x34, 0x02, 0x0B, 0x01, 0x01,
+            0x0E, 0x01, 0x03, 0x01, 0x01, 0x00, 0x00, (byte)n };
+    }
+
+    private static KLV makeKLV( int n, int size ){
+        KLV klv = new KLV();
+        klv.setKey( makeKey( n ) );
+        klv.setLengthEncoding( KLV.LengthEncoding.BER );
+        byte[] value = new byte[ size ];
+        for( int i = 0; i < size; i++ ) value[i] = (byte)(n + i);
+        klv.setValue( value );
+        return klv;
+    }
+
+
+    /** Writes a payload as transport stream packets, stuffing the last one. */
+    private void writePackets( int pid, byte[] payload ){
+        int pos = 0;
+        boolean first = true;
+        do{
+            int n = Math.min( 184, payload.length - pos );
+            byte[] p = new byte[ 188 ];
+            p[0] = 0x47;
+            p[1] = (byte)((first ? 0x40 : 0) | (pid >> 8));
+            p[2] = (byte)pid;
+            int cc = continuity[ pid ]++ & 0xF;
+            if( n == 184 ){
+                p[3] = (byte)(0x10 | cc);
+                System.arraycopy( payload, pos, p, 4, n );
+            } else {
+                p[3] = (byte)(0x30 | cc);
+                int afLength = 183 - n;
+                p[4] = (byte)afLength;
+                if( afLength > 0 ){
+                    p[5] = 0;
+                    for( int i = 6; i < 5 + afLength; i++ ) p[i] = (byte)0xFF;
+                }   // end if: stuffing
+                System.arraycopy( payload, pos, p, 5 + afLength, n );
+            }   // end else
+            ts.write( p, 0, 188 );
+            pos += n;
+            first = false;
+        } while( pos < payload.length );
+    }
+
+
+    private void writeTables(){
+        // Program association: program 1 on PID 0x100
+        writePackets( 0, new byte[]{ 0, 0x00, (byte)0xB0, 13, 0, 1, (byte)0xC1, 0, 0,
+                0, 1, (byte)0xE1, 0x00,   0, 0, 0, 0 } );
+        // Program map: H.264 video, synchronous metadata, private data with KLVA
+        writePackets( 0x100, new byte[]{ 0, 0x02, (byte)0xB0, 34, 0, 1, (byte)0xC1, 0, 0,
+                (byte)0xE1, 0x01, (byte)0xF0, 0,
+                0x1B, (byte)0xE1, 0x01, (byte)0xF0, 0,
+                0x15, (byte)0xE1, 0x02, (byte)0xF0, 0,
+                0x06, (byte)0xE1, 0x03, (byte)0xF0, 6, 0x05, 4, 'K', 'L', 'V', 'A',
+                0, 0, 0, 0 } );
+    }
+
+
+    /** A PES packet with a PTS and a payload, optionally in metadata AU cells. */
+    private static byte[] makePes( int streamId, long pts, byte[] data, boolean cell ){
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        int payload = data.length + (cell ? 5 : 0);
+        int pesLength = 3 + 5 + payload;
+        out.write( 0 ); out.write( 0 ); out.write( 1 ); out.write( streamId );
+        out.write( pesLength >> 8 ); out.write( pesLength );
+        out.write( 0x84 ); out.write( 0x80 ); out.write( 5 );
+        out.write( (int)(0x21 | ((pts >> 29) & 0x0E)) );
+        out.write( (int)(pts >> 22) );
+        out.write( (int)(((pts >> 14) & 0xFE) | 1) );
+        out.write( (int)(pts >> 7) );
+        out.write( (int)(((pts << 1) & 0xFE) | 1) );
+        if( cell ){
+            out.write( 0 ); out.write( 0 ); out.write( 0xDF );
+            out.write( data.length >> 8 ); out.write( data.length );
+        }   // end if: AU cell
+        out.write( data, 0, data.length );
+        return out.toByteArray();
+    }
+
+
+    private byte[] makeStream(){
+        writeTables();
+        for( int i = 0; i < 20; i++ ){
+            writePackets( VIDEO_PID, new byte[ 1000 ] );
+            writePackets( SYNC_PID, makePes( 0xFC, 90000L * i, makeKLV( i, 40 ).toBytes(), true ) );
+            if( i % 5 == 0 ){
+                // Two sets in one large PES packet spanning several TS packets
+                byte[] a = makeKLV( 100 + i, 500 ).toBytes();
+                byte[] b = makeKLV( 200 + i, 3 ).toBytes();
+                byte[] both = Arrays.copyOf( a, a.length + b.length );
+                System.arraycopy( b, 0, both, a.length, b.length );
+                writePackets( ASYNC_PID, makePes( 0xBD, 0x1FFFFFFFFL, both, false ) );
+            }   // end if: async
+        }   // end for: each frame
+        return ts.toByteArray();
+    }
+
+
+
+/* ********  T E S T S  ******** */
+
+
+    /**
+     * Test of finding metadata PIDs and reading KLV from one buffer.
+     */
+    public void testFeed() throws Exception {
+        System.out.println("feed");
+
+        ByteBuffer buf = ByteBuffer.wrap( makeStream() );
+        demux.feed( buf );
+        demux.flush();
+        assertFalse( buf.hasRemaining() );
+        assertTrue( demux.isSelected( SYNC_PID ) );
+        assertTrue( demux.isSelected( ASYNC_PID ) );
+        assertFalse( demux.isSelected( VIDEO_PID ) );
+        assertEquals( 0, demux.getErrorCount() );
+        assertEquals( 28, received.size() );
+        assertEquals( 28, demux.getKLVCount() );
+
+        int sync = 0;
+        for( int i = 0; i < received.size(); i++ ){
+            KLV klv = received.get(i);
+            if( receivedPids.get(i) == SYNC_PID ){
+                assertTrue( klv.isFullKey( makeKey( sync ) ) );
+                assertEquals( 40, klv.getLength() );
+                assertEquals( (byte)(sync + 39), klv.getValue()[39] );
+                assertEquals( 90000L * sync, receivedPts.get(i).longValue() );
+                sync++;
+            } else {
+                assertEquals( ASYNC_PID, receivedPids.get(i).intValue() );
+                assertEquals( 0x1FFFFFFFFL, receivedPts.get(i).longValue() );
+            }   // end else
+        }   // end for: each received
+        assertEquals( 20, sync );
+        assertEquals( 500, received.get(1).getLength() );
+        assertTrue( received.get(2).isFullKey( makeKey( 200 ) ) );
+    }   // end testFeed
+
+
+
+    /**
+     * Test of streaming in odd-sized pieces, after some garbage,
+     * with PIDs chosen by hand.
+     */
+    public void testStreaming() throws Exception {
+        System.out.println("streaming");
+
+        demux.addPid( SYNC_PID );
+        byte[] stream = makeStream();
+        byte[] junk = new byte[]{ 1, 2, 3, 0x47, 5 };
+        byte[] all = Arrays.copyOf( junk, junk.length + stream.length );
+        System.arraycopy( stream, 0, all, junk.length, stream.length );
+
+        ByteBuffer buf = ByteBuffer.allocateDirect( 1000 );
+        int pos = 0;
+        while( pos < all.length ){
+            int n = Math.min( buf.remaining(), Math.min( 333, all.length - pos ) );
+            buf.put( all, pos, n );
+            pos += n;
+            buf.flip();
+            demux.feed( buf );
+            buf.compact();
+        }   // end while: more
+        demux.flush();
+        assertEquals( 20, received.size() );
+        assertFalse( demux.isSelected( ASYNC_PID ) );
+        assertTrue( demux.getSyncLossCount() > 0 );
+    }   // end testStreaming
+
+
+
+    /**
+     * Test of reading a file, with a lost packet.
+     */
+    public void testFileWithLoss() throws Exception {
+        System.out.println("fileWithLoss");
+
+        byte[] stream = makeStream();
+        // Find the second packet of the first async PES and drop it
+        int drop = -1;
+        for( int p = 0, seen = 0; p < stream.length; p += 188 ){
+            int pid = ((stream[p+1] & 0x1F) << 8) | (stream[p+2] & 0xFF);
+            if( pid == ASYNC_PID && ++seen == 2 ){
+                drop = p;
+                break;
+            }   // end if: found
+        }   // end for: each packet
+        File file = File.createTempFile( "KLVTSDemuxerTest", ".ts" );
+        try{
+            FileOutputStream out = new FileOutputStream( file );
+            out.write( stream, 0, drop );
+            out.write( stream, drop + 188, stream.length - drop - 188 );
+            out.close();
+            demux.demux( file );
+        } finally {
+            file.delete();
+        }
+        assertEquals( 26, received.size() );    // First async PES lost
+        assertTrue( demux.getErrorCount() > 0 );
+    }   // end testFileWithLoss
+
+
+}
@@ -0,0 +1,191 @@
+import junit.framework.*;
+import java.util.*;
+
+
+/**
+ *
+ * @author robert.harder
+ */
+public class KLVTagMapTest extends TestCase {
+
+    public KLVTagMapTest(String testName) {
+        super(testName);
+    }
+
+    protected void setUp() throws Exception {
+    }
+
+    protected void tearDown() throws Exception {
+    }
+
+
+
+    /**
+     * Test of parse method, of class KLVTagMap.
+     */
+    public void testParse() {
+        System.out.println("parse");
+
+        byte[] bytes = new byte[]{
+            43, 2, 23, 24,  // Sub KLV 1
+            44, 1, 25,      // Sub KLV 2
+            45, 0           // Sub KLV 3, empty
+        };
+        KLVTagMap map = KLVTagMap.parse(bytes, 0, bytes.length, KLV.KeyLength.OneByte, KLV.LengthEncoding.OneByte);
+        assertEquals(3, map.size());
+        assertEquals(2, map.getValueOffset(43));
+        assertEquals(2, map.getValueLength(43));
+        assertEquals(6, map.getValueOffset(44));
+        assertEquals(1, map.getValueLength(44));
+        assertEquals(0, map.getValueLength(45));
+        assertEquals(4, map.getRecordOffset(44));
+        assertFalse(map.containsTag(46));
+        assertEquals(-1, map.getValueOffset(46));
+        assertEquals(-1, map.getValueLength(46));
+        assertNull(map.getKLV(46));
+        assertEquals(25, map.getKLV(44).getValueAs8bitUnsignedInt());
+
+        // Ordered access
+        assertEquals(43, map.tagAt(0));
+        assertEquals(44, map.tagAt(1));
+        assertEquals(45, map.tagAt(2));
+    }   // end testParse
+
+
+
+    /**
+     * Test that the latter of two KLV sets with the same key wins,
+     * both in the dense range and outside of it.
+     */
+    public void testLastWins() {
+        System.out.println("lastWins");
+
+        for( int tag : new int[]{ 0, 1, 127, 128, 300, 65535 } ){
+            KLV klv = new KLV( 0, KLV.KeyLength.OneByte, KLV.LengthEncoding.BER );
+            klv.addSubKLV( tag, KLV.KeyLength.TwoBytes, KLV.LengthEncoding.BER, new byte[]{ 1 } );
+            klv.addSubKLV( tag, KLV.KeyLength.TwoBytes, KLV.LengthEncoding.BER, new byte[]{ 2, 3 } );
+            KLVTagMap map = klv.getSubKLVTagMap( KLV.KeyLength.TwoBytes, KLV.LengthEncoding.BER );
+            assertEquals(2, map.size());
+            assertEquals(1, map.indexOf(tag));
+            assertEquals(2, map.getValueLength(tag));
+            assertEquals(2, klv.getValue()[ map.getValueOffset(tag) ]);
+        }   // end for: each tag
+    }   // end testLastWins
+
+
+
+    /**
+     * Test that KLVTagMap agrees with bytesToMap for many keys,
+     * key lengths, and length encodings.
+     */
+    public void testMatchesBytesToMap() throws Exception {
+        System.out.println("matchesBytesToMap");
+
+        Random rand = new Random(42);
+        KLV.KeyLength[] keyLengths = new KLV.KeyLength[]{
+            KLV.KeyLength.OneByte, KLV.KeyLength.TwoBytes, KLV.KeyLength.FourBytes };
+        KLVTagMap map = new KLVTagMap();
+        for( KLV.KeyLength kl : keyLengths ){
+            for( KLV.LengthEncoding le : KLV.LengthEncoding.values() ){
+                KLV klv = new KLV( 0, kl, KLV.LengthEncoding.FourBytes );
+                for( int i = 0; i < 200; i++ ){
+                    int key = rand.nextInt( kl == KLV.KeyLength.OneByte ? 256 : 1000 );
+                    byte[] val = new byte[ rand.nextInt(200) ];
+                    rand.nextBytes(val);
+                    klv.addSubKLV( key, kl, le, val );
+                }   // end for: each sub
+
+                Map<Integer,KLV> expected = klv.getSubKLVMap( kl, le );
+                map.reset( klv.getValue(), 0, klv.getLength(), kl, le );
+                assertEquals(200, map.size());
+                for( Map.Entry<Integer,KLV> e : expected.entrySet() ){
+                    int key = e.getKey();
+                    byte[] val = e.getValue().getValue();
+                    assertEquals(val.length, map.getValueLength(key));
+                    int off = map.getValueOffset(key);
+                    for( int j = 0; j < val.length; j++ ){
+                        assertEquals(val[j], klv.getValue()[off+j]);
+                    }   // end for: each byte
+                }   // end for: each expected
+            }   // end for: each length encoding
+        }   // end for: each key length
+    }   // end testMatchesBytesToMap
+
+
+
+    /**
+     * Test that malformed data is rejected.
+     */
+    public void testMalformed() {
+        System.out.println("malformed");
+
+        byte[] bytes = new byte[]{ 43, 5, 23, 24 };  // Declares more than there is
+        try{
+            KLVTagMap.parse(bytes, 0, bytes.length, KLV.KeyLength.OneByte, KLV.LengthEncoding.OneByte);
+            fail("Should have thrown exception");
+        } catch( IllegalArgumentException exc ){
+            // Expected
+        }
+
+        try{
+            KLVTagMap.parse(bytes, 0, bytes.length, KLV.KeyLength.SixteenBytes, KLV.LengthEncoding.OneByte);
+            fail("Should have thrown exception");
+        } catch( IllegalArgumentException exc ){
+            // Expected
+        }
+    }   // end testMalformed
+
+
+
+
+    /**
+     * Test that the sub KLV index is kept until the value changes.
+     */
+    public void testMemoized() throws Exception {
+        System.out.println("memoized");
+
+        KLV klv = new KLV( 1, KLV.KeyLength.OneByte, KLV.LengthEncoding.BER );
+        klv.addSubKLV( 2, new byte[]{ 20 } );
+        klv.addSubKLV( 3, new byte[]{ 30, 31 } );
+
+        KLVTagMap map = klv.getSubKLVTagMap();
+        assertSame( map, klv.getSubKLVTagMap() );
+        assertTrue( klv.hasSubKLV( 3 ) );
+        assertFalse( klv.hasSubKLV( 4 ) );
+        assertEquals( 2, klv.getSubValueLength( 3 ) );
+        assertEquals( 30, klv.getValue()[ klv.getSubValueOffset( 3 ) ] );
+        assertEquals( -1, klv.getSubValueOffset( 4 ) );
+        assertEquals( 20, klv.getSubKLV( 2 ).getValueAs8bitSignedInt() );
+        assertNull( klv.getSubKLV( 4 ) );
+        assertEquals( 2, klv.getSubKLVList().size() );
+        assertEquals( 2, klv.getSubKLVMap().size() );
+        assertSame( map, klv.getSubKLVTagMap() );
+
+        // Other settings get their own index
+        KLVTagMap other = klv.getSubKLVTagMap( KLV.KeyLength.OneByte, KLV.LengthEncoding.OneByte );
+        assertNotSame( map, other );
+        assertSame( other, klv.getSubKLVTagMap( KLV.KeyLength.OneByte, KLV.LengthEncoding.OneByte ) );
+
+        // Adding drops the index
+        klv.addSubKLV( 4, new byte[]{ 40 } );
+        assertTrue( klv.hasSubKLV( 4 ) );
+        assertEquals( 3, klv.getSubKLVList().size() );
+
+        // So does setting the value
+        klv.setValue( new byte[]{ 5, 1, 50 } );
+        assertFalse( klv.hasSubKLV( 2 ) );
+        assertEquals( 50, klv.getSubKLV( 5 ).getValueAs8bitSignedInt() );
+
+        // Malformed payloads are still reported as before
+        klv.setValue( new byte[]{ 5, 9, 50 } );
+        try{
+            klv.getSubKLVList();
+            fail("Should have thrown exception");
+        } catch( Exception exc ){ }
+        try{
+            klv.hasSubKLV( 5 );
+            fail("Should have thrown exception");
+        } catch( IllegalArgumentException exc ){ }
+    }   // end testMemoized
+
+}
@@ -0,0 +1,144 @@
+import junit.framework.*;
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.util.*;
+
+
+/**
+ *
+ * @author robert.harder
+ */
+public class KLVWriteTest extends TestCase {
+
+    public KLVWriteTest(String testName) {
+        super(testName);
+    }
+
+    protected void setUp() throws Exception {
+    }
+
+    protected void tearDown() throws Exception {
+    }
+
+
+    /** Every key length and length encoding, with values on either side of the BER boundaries. */
+    private static List<KLV> makeSets(){
+        List<KLV> sets = new ArrayList<KLV>();
+        int[] sizes = new int[]{ 0, 1, 127, 128, 255, 256, 65535, 65536 };
+        for( KLV.KeyLength kl : KLV.KeyLength.values() ){
+            for( KLV.LengthEncoding le : KLV.LengthEncoding.values() ){
+                for( int size : sizes ){
+                    if( le == KLV.LengthEncoding.OneByte && size > 255 ) continue;
+                    if( le == KLV.LengthEncoding.TwoBytes && size > 65535 ) continue;
+                    KLV klv = new KLV();
+                    klv.setKeyLength( kl );
+                    klv.setLengthEncoding( le );
+                    if( kl == KLV.KeyLength.SixteenBytes ){
+                        byte[] key = new byte[16];
+                        for( int i = 0; i < 16; i++ ) key[i] = (byte)(i + 1);
+                        klv.setKey( key );
+                    } else {
+                        klv.setKey( 0x01020304 & (int)((1L << (kl.value()*8)) - 1) );
+                    }   // end else
+                    byte[] value = new byte[ size ];
+                    for( int i = 0; i < size; i++ ) value[i] = (byte)i;
+                    klv.setValue( value );
+                    sets.add( klv );
+                }   // end for: each size
+            }   // end for: each length encoding
+        }   // end for: each key length
+        return sets;
+    }
+
+
+
+    /**
+     * Test that writeHeader and toBytes agree with makeLengthField and getFullKey.
+     */
+    public void testToBytes() {
+        System.out.println("toBytes");
+
+        for( KLV klv : makeSets() ){
+            byte[] key = klv.getFullKey();
+            byte[] length = KLV.makeLengthField( klv.getLengthEncoding(), klv.getLength() );
+            byte[] bytes = klv.toBytes();
+            assertEquals( key.length + length.length, klv.getHeaderLength() );
+            assertEquals( key.length + length.length + klv.getLength(), bytes.length );
+            for( int i = 0; i < key.length; i++ ) assertEquals( key[i], bytes[i] );
+            for( int i = 0; i < length.length; i++ ) assertEquals( length[i], bytes[key.length+i] );
+            KLV back = new KLV( bytes, 0, klv.getKeyLength(), klv.getLengthEncoding() );
+            assertEquals( klv.getLength(), back.getLength() );
+            assertTrue( Arrays.equals( klv.getValue(), back.getValue() ) );
+        }   // end for: each set
+
+        assertTrue( Arrays.equals( new byte[]{ (byte)0x84, 0, 1, 0, 0 },
+                KLV.makeLengthField( KLV.LengthEncoding.BER, 65536 ) ) );
+        try{
+            KLV.makeLengthField( KLV.LengthEncoding.OneByte, 256 );
+            fail("Should have thrown exception");
+        } catch( IllegalArgumentException exc ){ }
+    }   // end testToBytes
+
+
+
+    /**
+     * Test of writing to a ByteBuffer and to a channel.
+     */
+    public void testWriteTo() throws Exception {
+        System.out.println("writeTo");
+
+        ByteArrayOutputStream expected = new ByteArrayOutputStream();
+        ByteArrayOutputStream actual = new ByteArrayOutputStream();
+        WritableByteChannel wbc = Channels.newChannel( actual );
+        ByteBuffer direct = ByteBuffer.allocateDirect( 70000 );
+        for( KLV klv : makeSets() ){
+            byte[] bytes = klv.toBytes();
+            expected.write( bytes );
+
+            direct.clear();
+            klv.writeTo( direct );
+            assertEquals( bytes.length, direct.position() );
+            direct.flip();
+            for( int i = 0; i < bytes.length; i++ ) assertEquals( bytes[i], direct.get(i) );
+
+            assertEquals( bytes.length, klv.writeTo( new Gatherer( wbc ) ) );
+        }   // end for: each set
+        assertTrue( Arrays.equals( expected.toByteArray(), actual.toByteArray() ) );
+
+        ByteBuffer small = ByteBuffer.allocate( 10 );
+        try{
+            List<KLV> sets = makeSets();
+            sets.get( sets.size() - 1 ).writeTo( small );
+            fail("Should have thrown exception");
+        } catch( BufferOverflowException exc ){ }
+        assertEquals( 0, small.position() );
+    }   // end testWriteTo
+
+
+
+    /** Gathering channel that writes at most 100 bytes at a time. */
+    private static class Gatherer implements GatheringByteChannel {
+        private final WritableByteChannel out;
+        Gatherer( WritableByteChannel out ){ this.out = out; }
+        public long write( ByteBuffer[] srcs, int offset, int length ) throws IOException {
+            long total = 0;
+            for( int i = offset; i < offset + length && total < 100; i++ ){
+                ByteBuffer src = srcs[i];
+                int n = (int)Math.min( src.remaining(), 100 - total );
+                ByteBuffer part = src.duplicate();
+                part.limit( part.position() + n );
+                out.write( part );
+                src.position( src.position() + n );
+                total += n;
+            }   // end for: each buffer
+            return total;
+        }
+        public long write( ByteBuffer[] srcs ) throws IOException { return write( srcs, 0, srcs.length ); }
+        public int write( ByteBuffer src ) throws IOException { return (int)write( new ByteBuffer[]{ src } ); }
+        public boolean isOpen(){ return true; }
+        public void close(){}
+    }   // end class Gatherer
+
+
+}
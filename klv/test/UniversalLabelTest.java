@@ -0,0 +1,127 @@
+import junit.framework.*;
+import java.util.*;
+
+
+/**
+ *
+ * @author robert.harder
+ */
+public class UniversalLabelTest extends TestCase {
+
+    public UniversalLabelTest(String testName) {
+        super(testName);
+    }
+
+    protected void setUp() throws Exception {
+    }
+
+    protected void tearDown() throws Exception {
+    }
+
+
+    /** Makes a UL that differs from its siblings only in the last bytes, like real ULs do. */
+    private static byte[] makeKey( int n ){
+        return new byte[]{
+            0x06, 0x0E, 0x2B, 0x34, 0x02, 0x0B, 0x01, 0x01,
+            0x0E, 0x01, 0x03, 0x01, 0x01, 0x00, (byte)(n >> 8), (byte)n };
+    }
+
+
+
+    /**
+     * Test of valueOf, equals, and toBytes methods, of class UniversalLabel.
+     */
+    public void testValueOf() {
+        System.out.println("valueOf");
+
+        byte[] key = makeKey(1);
+        UniversalLabel ul = UniversalLabel.valueOf(key);
+        assertEquals(0x060E2B34020B0101L, ul.getHigh());
+        assertEquals(0x0E01030101000001L, ul.getLow());
+        assertTrue(Arrays.equals(key, ul.toBytes()));
+        assertEquals(ul, UniversalLabel.valueOf(makeKey(1)));
+        assertEquals(ul.hashCode(), UniversalLabel.valueOf(makeKey(1)).hashCode());
+        assertFalse(ul.equals(UniversalLabel.valueOf(makeKey(2))));
+        assertEquals("06.0E.2B.34.02.0B.01.01.0E.01.03.01.01.00.00.01", ul.toString());
+
+        byte[] padded = new byte[20];
+        System.arraycopy(key,0, padded,3,16);
+        assertTrue(ul.matches(padded, 3));
+        assertFalse(ul.matches(padded, 2));
+        assertFalse(ul.matches(padded, 5));     // Not enough bytes
+        assertEquals(ul, UniversalLabel.valueOf(padded, 3));
+
+        try{
+            UniversalLabel.valueOf(new byte[4]);
+            fail("Should have thrown exception");
+        } catch( IllegalArgumentException exc ){
+            // Expected
+        }
+    }   // end testValueOf
+
+
+
+    /**
+     * Test of lookup and intern methods, of class UniversalLabelRegistry.
+     */
+    public void testRegistry() {
+        System.out.println("registry");
+
+        UniversalLabelRegistry<String> reg = new UniversalLabelRegistry<String>();
+        assertNull(reg.lookup(makeKey(0), 0));
+        assertNull(reg.lookup(new byte[16], 0));    // All zeros, like an empty slot
+
+        UniversalLabel[] labels = new UniversalLabel[64];
+        for( int i = 0; i < labels.length; i++ ){
+            labels[i] = reg.register(makeKey(i), "handler" + i);
+        }   // end for: each label
+        assertEquals(64, reg.size());
+
+        byte[] packet = new byte[40];
+        for( int i = 0; i < labels.length; i++ ){
+            System.arraycopy(makeKey(i),0, packet,7,16);
+            assertEquals("handler" + i, reg.lookup(packet, 7));
+            assertSame(labels[i], reg.lookupLabel(packet, 7));
+            assertSame(labels[i], reg.intern(packet, 7));
+            assertSame(labels[i], reg.intern(UniversalLabel.valueOf(makeKey(i))));
+        }   // end for: each label
+        assertNull(reg.lookup(makeKey(1000), 0));
+        assertNull(reg.lookupLabel(makeKey(1000), 0));
+        assertNull(reg.lookup(packet, 30));         // Not enough bytes
+
+        // Re-registering keeps the interned instance but replaces the handler
+        assertSame(labels[5], reg.register(makeKey(5), "new"));
+        assertEquals("new", reg.lookup(makeKey(5), 0));
+
+        assertEquals("handler6", reg.unregister(labels[6]));
+        assertNull(reg.lookup(makeKey(6), 0));
+        assertEquals("handler7", reg.lookup(makeKey(7), 0));
+    }   // end testRegistry
+
+
+
+    /**
+     * Test of KLV's Universal Label methods.
+     */
+    public void testKLV() {
+        System.out.println("KLV");
+
+        byte[] key = makeKey(9);
+        KLV klv = new KLV();
+        klv.setKey(key);
+        UniversalLabel ul = UniversalLabel.valueOf(key);
+        assertEquals(ul, klv.getUniversalLabel());
+        assertTrue(klv.isFullKey(ul));
+        assertTrue(klv.isFullKey(key));
+        assertFalse(klv.isFullKey(makeKey(10)));
+        assertFalse(klv.isFullKey(UniversalLabel.valueOf(makeKey(10))));
+
+        klv.setKey(42, KLV.KeyLength.TwoBytes);
+        assertNull(klv.getUniversalLabel());
+        assertFalse(klv.isFullKey(ul));
+        assertTrue(klv.isFullKey(new byte[]{ 0, 42 }));
+        assertFalse(klv.isFullKey(new byte[]{ 42 }));
+    }   // end testKLV
+
+
+}
@@ -169,6 +169,24 @@ public class KLV {
     public final static String DEFAULT_CHARSET_NAME = "UTF-8";
 
 
+    /**
+     * Scratch space for writing headers, one for each thread
+     * so that {@link #writeTo} allocates nothing.
+     */
+    private final static ThreadLocal<Scratch> SCRATCH = new ThreadLocal<Scratch>(){
+        @Override
+        protected Scratch initialValue(){
+            return new Scratch();
+        }
+    };
+
+    /** Room for a sixteen-byte key and a five-byte BER length field. */
+    private final static class Scratch {
+        private final byte[] header = new byte[ 16 + 5 ];
+        private final java.nio.ByteBuffer[] srcs = new java.nio.ByteBuffer[]{ java.nio.ByteBuffer.wrap( header ), null };
+    }   // end class Scratch
+
+
 /* ********  I N S T A N C E   F I E L D S  ******** */    
     
     
@@ -201,6 +219,13 @@ public class KLV {
      * can be passed around with a minimum of copying.
      */
     private byte[] value;
+
+
+    /**
+     * Index of the KLV sets in the value, built the first time they
+     * are asked for and kept until the value changes. Null when not built.
+     */
+    private KLVTagMap subIndex;
     
     
     
@@ -355,11 +380,11 @@ public class KLV {
         } else {
             if( offset < 0 )
                 throw new ArrayIndexOutOfBoundsException( "KLV: Offset must not be negative: " + offset );
-            if( value.length > 0 && offset >= value.length )
+            if( offset > value.length )                 // Empty values may start at the end
                 throw new ArrayIndexOutOfBoundsException( String.format(
                         "KLV: Offset %d is out of range (byte array length: %d).",
                         offset, value.length ) );
-            if( length - offset < value.length )
+            if( value.length - offset < length )
                 throw new ArrayIndexOutOfBoundsException( String.format(
                         "KLV: Not enough bytes in array (%d) for declared length (%d).",
                         value.length, length ) );
@@ -572,16 +597,100 @@ public class KLV {
      * The array is copied from the original underlying byte array.
      */
     public byte[] toBytes(){
-        byte[] key = this.getFullKey();
-        byte[] lengthField = KLV.makeLengthField(this.lengthEncoding, this.value.length);
-        byte[] bytes = new byte[ key.length + lengthField.length + this.value.length ];
-        
-        System.arraycopy(key,0, bytes,0,key.length);
-        System.arraycopy(lengthField,0, bytes,key.length,lengthField.length);
-        System.arraycopy(this.value,0, bytes,key.length+lengthField.length,this.value.length);
-        
+        int header = this.getHeaderLength();
+        byte[] bytes = new byte[ header + this.value.length ];
+        this.writeHeader( bytes, 0 );
+        System.arraycopy(this.value,0, bytes,header,this.value.length);
         return bytes;
     }
+
+
+
+    /**
+     * Returns the number of bytes in the key and the length field.
+     *
+     * @return length of the key and length field
+     */
+    public int getHeaderLength(){
+        return this.keyLength.value + KLV.getLengthFieldSize( this.lengthEncoding, this.value.length );
+    }
+
+
+
+    /**
+     * Writes the key and length field into the array at the offset.
+     *
+     * @param dest      the array to write to
+     * @param offset    where to start writing
+     * @return          the number of bytes written, {@link #getHeaderLength}
+     * @throws ArrayIndexOutOfBoundsException if there is not enough room
+     */
+    public int writeHeader( byte[] dest, int offset ){
+        if( this.keyLength == KeyLength.SixteenBytes ){
+            System.arraycopy( this.keyIfLong, 0, dest, offset, 16 );
+            return 16 + KLV.writeLengthField( this.lengthEncoding, this.value.length, dest, offset + 16 );
+        } else {
+            return KLV.writeHeader( this.keyIfShort, this.keyLength, this.lengthEncoding, this.value.length, dest, offset );
+        }   // end else: short key
+    }
+
+
+
+    /**
+     * Writes the whole KLV set into the buffer at its position, advancing
+     * the position. The key and length field go through a small scratch
+     * array kept for each thread and the value is copied in with one bulk
+     * put, so nothing is allocated.
+     *
+     * @param dest  the buffer to write to
+     * @throws java.nio.BufferOverflowException if there is not enough room,
+     *         in which case nothing is written
+     */
+    public void writeTo( java.nio.ByteBuffer dest ){
+        int header = this.getHeaderLength();
+        if( dest.remaining() < header + this.value.length )
+            throw new java.nio.BufferOverflowException();
+        Scratch scratch = SCRATCH.get();
+        this.writeHeader( scratch.header, 0 );
+        dest.put( scratch.header, 0, header );
+        dest.put( this.value );
+    }
+
+
+
+    /**
+     * Writes the whole KLV set to the channel with a gathering write:
+     * the key and length field from a small scratch buffer kept for each
+     * thread, and the value straight from its array, without concatenating
+     * them first. Blocks until everything is written, so the channel
+     * must be in blocking mode.
+     *
+     * @param channel   the channel to write to
+     * @return          the number of bytes written
+     * @throws java.io.IOException if the channel cannot be written to
+     * @throws java.nio.channels.IllegalBlockingModeException if the channel is not blocking
+     */
+    public long writeTo( java.nio.channels.GatheringByteChannel channel ) throws java.io.IOException {
+        if( channel instanceof java.nio.channels.SelectableChannel
+        && !((java.nio.channels.SelectableChannel)channel).isBlocking() )
+            throw new java.nio.channels.IllegalBlockingModeException();
+        Scratch scratch = SCRATCH.get();
+        int header = this.writeHeader( scratch.header, 0 );
+        java.nio.ByteBuffer[] srcs = scratch.srcs;
+        srcs[0].clear();
+        srcs[0].limit( header );
+        srcs[1] = java.nio.ByteBuffer.wrap( this.value );
+        long total = header + this.value.length;
+        long written = 0;
+        try{
+            while( written < total ){
+                written += channel.write( srcs );
+            }   // end while: more to write
+        } finally {
+            srcs[1] = null;                         // Don't hold on to the value
+        }   // end finally
+        return written;
+    }
     
     
     public static void main(String[] args){
@@ -617,8 +726,16 @@ public class KLV {
      * assuming the given key length and length field encoding.
      */
     public List<KLV> getSubKLVList( KeyLength keyLength, LengthEncoding lengthEncoding ){
-        return KLV.bytesToList(
+        KLVTagMap index = this.getSubIndexIfPossible( keyLength, lengthEncoding );
+        if( index == null ){
+            return KLV.bytesToList(
                 this.value,0,this.value.length, keyLength, lengthEncoding );
+        }   // end if: sixteen-byte keys or not well-formed
+        List<KLV> list = new ArrayList<KLV>( index.size() );
+        for( int i = 0; i < index.size(); i++ ){
+            list.add( index.getKLVAt( i ) );
+        }   // end for: each sub KLV
+        return list;
     }
     
     
@@ -646,8 +763,131 @@ public class KLV {
      * 
      */
     public Map<Integer,KLV> getSubKLVMap( KeyLength keyLength, LengthEncoding lengthEncoding ){
-        return KLV.bytesToMap(
+        KLVTagMap index = this.getSubIndexIfPossible( keyLength, lengthEncoding );
+        if( index == null ){
+            return KLV.bytesToMap(
                 this.value,0,this.value.length, keyLength, lengthEncoding );
+        }   // end if: sixteen-byte keys or not well-formed
+        Map<Integer,KLV> map = new HashMap<Integer,KLV>();
+        for( int i = 0; i < index.size(); i++ ){
+            map.put( index.tagAt( i ), index.getKLVAt( i ) );
+        }   // end for: each sub KLV, latter ones winning
+        return map;
+    }
+    
+    
+    
+    /**
+     * Return a {@link KLVTagMap} of keys (up to four bytes long) to
+     * value offsets and lengths within this KLV's payload (value field)
+     * based on the existing key length and length field encoding.
+     * No sub KLV objects are created and no keys are boxed.
+     * The map is built the first time it is asked for and kept
+     * until the value changes, so later calls cost nothing.
+     * If two KLV subsets are in the payload, and they each have the 
+     * same key value, then the latter one will overwrite the earlier one.
+     * 
+     * @throws IllegalArgumentException if the payload is not well-formed KLV
+     */
+    public KLVTagMap getSubKLVTagMap(){
+        return this.getSubKLVTagMap(this.keyLength, this.lengthEncoding);
+    }
+    
+    
+    /**
+     * Return a {@link KLVTagMap} of keys (up to four bytes long) to
+     * value offsets and lengths within this KLV's payload (value field)
+     * based on an assumed key length and length field encoding scheme.
+     * The offsets refer to the array returned by {@link #getValue}.
+     * The map is kept inside this KLV and handed out again until the
+     * value changes or other key lengths or length encodings are asked
+     * for; it must not be reset or cleared.
+     * 
+     * @throws IllegalArgumentException if the payload is not well-formed KLV
+     */
+    public KLVTagMap getSubKLVTagMap( KeyLength keyLength, LengthEncoding lengthEncoding ){
+        KLVTagMap index = this.subIndex;
+        if( index == null
+        || index.getKeyLength() != keyLength
+        || index.getLengthEncoding() != lengthEncoding ){
+            this.subIndex = null;                   // In case parsing fails
+            index = KLVTagMap.parse(
+                this.value,0,this.value.length, keyLength, lengthEncoding );
+            this.subIndex = index;
+        }   // end if: not built for these settings
+        return index;
+    }
+
+
+    /**
+     * Returns whether or not the payload has a KLV set with the given
+     * key, using the existing key length and length field encoding.
+     * After the first lookup this allocates nothing.
+     *
+     * @param key   the key to look for
+     * @return      true if there is such a KLV set
+     * @throws IllegalArgumentException if the payload is not well-formed KLV
+     */
+    public boolean hasSubKLV( int key ){
+        return this.getSubKLVTagMap().containsTag( key );
+    }
+
+
+    /**
+     * Returns the offset within {@link #getValue} of the value of the
+     * last KLV set in the payload with the given key, or -1 if there
+     * is none, using the existing key length and length field encoding.
+     * After the first lookup this allocates nothing.
+     *
+     * @param key   the key to look for
+     * @return      offset of the sub KLV's value or -1
+     * @throws IllegalArgumentException if the payload is not well-formed KLV
+     */
+    public int getSubValueOffset( int key ){
+        return this.getSubKLVTagMap().getValueOffset( key );
+    }
+
+
+    /**
+     * Returns the length of the value of the last KLV set in the
+     * payload with the given key, or -1 if there is none, using the
+     * existing key length and length field encoding.
+     * After the first lookup this allocates nothing.
+     *
+     * @param key   the key to look for
+     * @return      length of the sub KLV's value or -1
+     * @throws IllegalArgumentException if the payload is not well-formed KLV
+     */
+    public int getSubValueLength( int key ){
+        return this.getSubKLVTagMap().getValueLength( key );
+    }
+
+
+    /**
+     * Returns a copy of the last KLV set in the payload with the given
+     * key, or null if there is none, using the existing key length and
+     * length field encoding. Unlike <code>getSubKLVMap().get(key)</code>,
+     * only the one KLV set is created.
+     *
+     * @param key   the key to look for
+     * @return      the sub KLV or null
+     * @throws IllegalArgumentException if the payload is not well-formed KLV
+     */
+    public KLV getSubKLV( int key ){
+        return this.getSubKLVTagMap().getKLV( key );
+    }
+
+
+    /** Returns the memoized index, or null if the payload cannot have one. */
+    private KLVTagMap getSubIndexIfPossible( KeyLength keyLength, LengthEncoding lengthEncoding ){
+        if( keyLength == KeyLength.SixteenBytes ){
+            return null;
+        }   // end if: not supported by KLVTagMap
+        try{
+            return this.getSubKLVTagMap( keyLength, lengthEncoding );
+        } catch( IllegalArgumentException exc ){
+            return null;                            // Let the old parser report it
+        }   // end catch
     }
     
     
@@ -1014,7 +1254,7 @@ public class KLV {
         short value = 0;
         int shortLen = 2;
         for( int i = 0; i < shortLen; i++ )
-            value |= (data[i] & 0xFF) << (shortLen*8 - i*8 - 8);
+            value |= (data[offset+i] & 0xFF) << (shortLen*8 - i*8 - 8);
         return value;
     }   // end getValueAs16bitSignedInt
     
@@ -1023,7 +1263,7 @@ public class KLV {
         int value = 0;
         int shortLen = 2;
         for( int i = 0; i < shortLen; i++ )
-            value |= (data[i] & 0xFF) << (shortLen*8 - i*8 - 8);
+            value |= (data[offset+i] & 0xFF) << (shortLen*8 - i*8 - 8);
         return value;
     }   // end getValueAs16bitUnsignedInt
     
@@ -1032,7 +1272,7 @@ public class KLV {
         int value = 0;
         int shortLen = 4;
         for( int i = 0; i < shortLen; i++ )
-            value |= (data[i] & 0xFF) << (shortLen*8 - i*8 - 8);
+            value |= (data[offset+i] & 0xFF) << (shortLen*8 - i*8 - 8);
         return value;
     }   // end getValueAs32bitSignedInt
     
@@ -1269,6 +1509,7 @@ public class KLV {
                 byte[] bytes = new byte[(2<<8)-1];
                 System.arraycopy(this.value,0, bytes,0,bytes.length);
                 this.value = bytes;
+                this.subIndex = null;
             }   // end if: need to truncate
             this.lengthEncoding = lengthEncoding;
             break;
@@ -1278,6 +1519,7 @@ public class KLV {
                 byte[] bytes = new byte[(2<<16)-1];
                 System.arraycopy(this.value,0, bytes,0,bytes.length);
                 this.value = bytes;
+                this.subIndex = null;
             }   // end if: need to truncate
             this.lengthEncoding = lengthEncoding;
             break;
@@ -1485,6 +1727,7 @@ public class KLV {
             System.arraycopy(value,0, bytes,0,(int)Math.min(length,this.value.length));
         }   // end if: value exists
         this.value = bytes;
+        this.subIndex = null;
         
         return this;
     }
@@ -1560,6 +1803,7 @@ public class KLV {
         byte[] bytes = new byte[length];
         System.arraycopy(newValue,offset, bytes,0,length);
         this.value = bytes;
+        this.subIndex = null;
         
         return this;
     }
@@ -1810,6 +2054,7 @@ public class KLV {
         System.arraycopy(this.value,0, newValue,0,this.value.length);
         System.arraycopy(bytes,offset, newValue,this.value.length,length);
         this.value = newValue;
+        this.subIndex = null;
         
         return this;
     }
@@ -1938,69 +2183,122 @@ public class KLV {
      * @return                  byte array with appropriate length field bytes
      */
     protected static byte[] makeLengthField( LengthEncoding lengthEncoding, int payloadLength ){
-        
-        // Bytes for length encoding
-        byte[] bytes = null;
+        byte[] bytes = new byte[ getLengthFieldSize( lengthEncoding, payloadLength ) ];
+        writeLengthField( lengthEncoding, payloadLength, bytes, 0 );
+        return bytes;
+    }   // end makeLengthField
+
+
+
+    /**
+     * Returns the number of bytes in the length field needed to
+     * indicate the given payload length.
+     *
+     * @param lengthEncoding    field encoding flag
+     * @param payloadLength     number of bytes in value
+     * @return                  number of bytes in the length field
+     * @throws IllegalArgumentException if the encoding cannot hold the length
+     */
+    public static int getLengthFieldSize( LengthEncoding lengthEncoding, int payloadLength ){
         switch( lengthEncoding ){
-            
+
             // Unsigned integer, one byte long.
-            case OneByte: 
-                if( payloadLength > 255 ) 
-                    throw new IllegalArgumentException( 
+            case OneByte:
+                if( payloadLength > 255 )
+                    throw new IllegalArgumentException(
                         String.format("KLV: Too much data (%d bytes) for one-byte length field encoding.", payloadLength) );
-                bytes = new byte[]{ (byte)payloadLength };
-                break;
-            
-            // Unsigned integer, two bytes long, big endian.    
-            case TwoBytes: 
-                if( payloadLength > 65535 ) 
-                    throw new IllegalArgumentException( 
+                return 1;
+
+            // Unsigned integer, two bytes long, big endian.
+            case TwoBytes:
+                if( payloadLength > 65535 )
+                    throw new IllegalArgumentException(
                         String.format("KLV: Too much data (%d bytes) for two-byte length field encoding.", payloadLength) );
-                bytes = new byte[]{ (byte)(payloadLength >> 8), (byte)payloadLength };
-                break;
-                
-            // (Un?)signed integer, four bytes long, big endian.    
-            case FourBytes: 
-                bytes = new byte[]{ 
-                    (byte)(payloadLength >> 24), 
-                    (byte)(payloadLength >> 16), 
-                    (byte)(payloadLength >>  8), 
-                    (byte)payloadLength };
-                break;
-                
-            // Short BER form: If high bit is not set, then  
+                return 2;
+
+            // (Un?)signed integer, four bytes long, big endian.
+            case FourBytes:
+                return 4;
+
+            // Short BER form: If high bit is not set, then
             // use the byte to determine length of payload.
-            // Long BER form: If high bit is set (0x80), 
-            // then use low seven bits to determine how many 
-            // bytes that follow are themselves an unsigned 
-            // integer specifying the length of the payload. 
-            // Using more than four bytes to specify the length 
-            // is not supported in this code, though it's not 
+            // Long BER form: If high bit is set (0x80),
+            // then use low seven bits to determine how many
+            // bytes that follow are themselves an unsigned
+            // integer specifying the length of the payload.
+            // Using more than four bytes to specify the length
+            // is not supported in this code, though it's not
             // exactly illegal KLV notation either.
             case BER:
                 if( payloadLength <= 127 ){
-                    bytes = new byte[]{ (byte)payloadLength };
-                }   // end if: short form
-                else {
-                    if( payloadLength <= 255 ){ // One byte
-                        bytes = new byte[]{ (byte)0x81, (byte)payloadLength };
-                    } else if( payloadLength <= 65535 ){ // Two bytes
-                        bytes = new byte[]{ (byte)0x82, (byte)(payloadLength >> 8), (byte)payloadLength };
-                    } else { // Four bytes
-                    bytes = new byte[]{ 
-                        (byte)0x84,
-                        (byte)(payloadLength >> 24), 
-                        (byte)(payloadLength >> 16), 
-                        (byte)(payloadLength >>  8), 
-                        (byte)payloadLength };
-                    }
-                }   // end else: long form
-                    break;
+                    return 1;                       // Short form
+                } else if( payloadLength <= 255 ){
+                    return 2;                       // One byte
+                } else if( payloadLength <= 65535 ){
+                    return 3;                       // Two bytes
+                } else {
+                    return 5;                       // Four bytes
+                }   // end else
+
             default:
                 throw new IllegalStateException( "KLV: Unknown length field encoding flag: " + lengthEncoding );
         }   // end switch
-        return bytes;
-    }   // end makeLengthField
+    }   // end getLengthFieldSize
+
+
+
+    /**
+     * Writes the length field needed to indicate the given
+     * payload length into the array at the offset.
+     *
+     * @param lengthEncoding    field encoding flag
+     * @param payloadLength     number of bytes in value
+     * @param dest              the array to write to
+     * @param offset            where to start writing
+     * @return                  number of bytes written
+     * @throws IllegalArgumentException if the encoding cannot hold the length
+     */
+    public static int writeLengthField( LengthEncoding lengthEncoding, int payloadLength, byte[] dest, int offset ){
+        int size = getLengthFieldSize( lengthEncoding, payloadLength );
+        int pos = offset;
+        if( lengthEncoding == LengthEncoding.BER && size > 1 ){
+            dest[pos++] = (byte)(0x80 | (size - 1));    // Long form
+        }   // end if: long BER
+        int digits = lengthEncoding == LengthEncoding.BER && size > 1 ? size - 1 : size;
+        for( int i = digits - 1; i >= 0; i-- ){
+            dest[pos++] = (byte)(payloadLength >> (i*8));
+        }   // end for: each byte, big endian
+        return size;
+    }   // end writeLengthField
+
+
+
+    /**
+     * Writes a one-, two-, or four-byte key and the length field for
+     * the given payload length into the array at the offset, as the
+     * start of a KLV set whose value will follow.
+     *
+     * @param shortKey          the key
+     * @param keyLength         number of bytes in the key, not sixteen
+     * @param lengthEncoding    field encoding flag
+     * @param payloadLength     number of bytes in value
+     * @param dest              the array to write to
+     * @param offset            where to start writing
+     * @return                  number of bytes written
+     * @throws IllegalArgumentException if the key is sixteen bytes or
+     *                                  the encoding cannot hold the length
+     */
+    public static int writeHeader( int shortKey, KeyLength keyLength, LengthEncoding lengthEncoding,
+            int payloadLength, byte[] dest, int offset ){
+        if( keyLength == KeyLength.SixteenBytes )
+            throw new IllegalArgumentException( "KLV: Sixteen-byte keys must be written from a byte array." );
+        int pos = offset;
+        for( int i = keyLength.value - 1; i >= 0; i-- ){
+            dest[pos++] = (byte)(shortKey >> (i*8));
+        }   // end for: each key byte, big endian
+        pos += writeLengthField( lengthEncoding, payloadLength, dest, pos );
+        return pos - offset;
+    }   // end writeHeader
     
     
     
@@ -162,54 +162,64 @@ public class KLVSecurity {
             throw new IndexOutOfBoundsException( "Length out of range: " + length );
         }   // end else
         
-        List<KLV> subs = KLV.bytesToList(data, offset, length, KEY_LENGTH, LENGTH_ENCODING);
-        
-        KLV payloadWrapperKlv = null;   // The wrapper with a counter and original data
-        KLV sigTypeKlv = null;          // The signature type (e.g. "SHA1withDSA")
-        KLV sigKlv = null;              // The signature itself
+        KLVTagMap subs = null;
+        try{
+            subs = KLVTagMap.parse(data, offset, length, KEY_LENGTH, LENGTH_ENCODING);
+        } catch( IllegalArgumentException exc ){
+            throw new SignatureException( "Malformed KLVSecurity set: " + exc.getMessage(), exc );
+        }   // end catch
         
-        for( KLV k : subs ){
-            switch( k.getShortKey() ){
+        for( int i = 0; i < subs.size(); i++ ){
+            switch( subs.tagAt(i) ){
                 case PAYLOAD_WRAPPER_KEY:
-                    payloadWrapperKlv = k;
-                    break;
                 case SIGNATURE_TYPE_KEY:
-                    sigTypeKlv = k;
-                    break;
                 case DIGITAL_SIGNATURE_KEY:
-                    sigKlv = k;
                     break;
                 default:
                     LOGGER.warning( 
                       "Unknown KLV key 0x" + 
-                      Long.toHexString(k.getShortKey() & 0xFFFFFFFF) + 
+                      Long.toHexString(subs.tagAt(i) & 0xFFFFFFFF) + 
                       " inside KLVSecurity set." );
                     break;
             }   // end switch
         }   // end for: each sub
         
+        int payloadWrapper = subs.indexOf( PAYLOAD_WRAPPER_KEY );   // The wrapper with a counter and original data
+        int sigTypeIndex   = subs.indexOf( SIGNATURE_TYPE_KEY );    // The signature type (e.g. "SHA1withDSA")
+        int sigIndex       = subs.indexOf( DIGITAL_SIGNATURE_KEY ); // The signature itself
+        
         // Did we get all the components we needed?
-        if( payloadWrapperKlv == null ){
+        if( payloadWrapper < 0 ){
             throw new SignatureException( "No payload wrapper inside KLVSecurity set." );
-        } else if( sigTypeKlv == null ){
+        } else if( sigTypeIndex < 0 ){
             throw new SignatureException( "No declared signature type inside KLVSecurity set." );
-        } else if( sigKlv == null ){
+        } else if( sigIndex < 0 ){
             throw new SignatureException( "No digital signature inside KLVSecurity set." );
         }   // end if
         
         
-        // Now check signature
+        // Now check signature, straight from the original array
         PublicKey verifyingKey = null;                              // Set this if we find the right key
-        byte[] toVerify = payloadWrapperKlv.toBytes();              // The data to verify
-        String sigType  = sigTypeKlv.getValueAsString();            // The signature type (e.g., SHA1withDSA
-        byte[] sigBytes = sigKlv.getValue();                        // The signature itself
+        int wrapperValueOffset = subs.valueOffsetAt(payloadWrapper);
+        int wrapperValueLength = subs.valueLengthAt(payloadWrapper);
+        int toVerifyOffset = subs.recordOffsetAt(payloadWrapper);   // The data to verify
+        int toVerifyLength = wrapperValueOffset + wrapperValueLength - toVerifyOffset;
+        String sigType = null;                                      // The signature type (e.g., SHA1withDSA
+        try{
+            sigType = new String( data, subs.valueOffsetAt(sigTypeIndex), 
+              subs.valueLengthAt(sigTypeIndex), KLV.DEFAULT_CHARSET_NAME );
+        } catch( UnsupportedEncodingException exc ){
+            sigType = new String( data, subs.valueOffsetAt(sigTypeIndex), 
+              subs.valueLengthAt(sigTypeIndex) );
+        }   // end catch
         try{
             Signature sig = Signature.getInstance(sigType);         // Signing technique
             for( PublicKey key : this.publicKeysToCounters.keySet() ){    // Loop over authorized keys
                 try{
                     sig.initVerify(key);                            // Set up sig object
-                    sig.update( toVerify );                         // Bytes that were signed
-                    if( sig.verify(sigBytes) ){                     // Valid signature?
+                    sig.update( data, toVerifyOffset, toVerifyLength ); // Bytes that were signed
+                    if( sig.verify( data,                           // Valid signature?
+                      subs.valueOffsetAt(sigIndex), subs.valueLengthAt(sigIndex)) ){
                         verifyingKey = key;                         // Mark as valid
                         if( LOGGER.isLoggable(Level.FINEST) ){
                             LOGGER.finest( "Found public key that verified data: " + key );
@@ -229,24 +239,36 @@ public class KLVSecurity {
         if( verifyingKey == null ){
             throw new SignatureException( "No public key found that could verify signature." );
         }else {
-            Map<Integer,KLV> payloadSubs = payloadWrapperKlv.getSubKLVMap();
-            KLV originalKlv = payloadSubs.get( this.PAYLOAD_WRAPPER_ORIGINAL_DATA_KEY );
-            KLV counterKlv  = payloadSubs.get( this.PAYLOAD_WRAPPER_COUNTER_KEY );
+            KLVTagMap payloadSubs = null;
+            try{
+                payloadSubs = KLVTagMap.parse( data, wrapperValueOffset, wrapperValueLength, 
+                  KEY_LENGTH, LENGTH_ENCODING );
+            } catch( IllegalArgumentException exc ){
+                throw new SignatureException( "Malformed payload wrapper: " + exc.getMessage(), exc );
+            }   // end catch
+            int original = payloadSubs.indexOf( PAYLOAD_WRAPPER_ORIGINAL_DATA_KEY );
+            int counter  = payloadSubs.indexOf( PAYLOAD_WRAPPER_COUNTER_KEY );
             
-            if( originalKlv == null ){
+            if( original < 0 ){
                 throw new SignatureException( "No original data found." );
-            } else if( counterKlv == null ){
+            } else if( counter < 0 ){
                 throw new SignatureException( "No counter found." );
             }   // end if
             
-            int sigCounter = counterKlv.getValueAs32bitInt();           // Counter in packet
+            int sigCounter = 0;                                         // Counter in packet
+            int counterOffset = payloadSubs.valueOffsetAt(counter);
+            int counterLength = Math.min( 4, payloadSubs.valueLengthAt(counter) );
+            for( int i = 0; i < counterLength; i++ ){
+                sigCounter = (sigCounter << 8) | (data[counterOffset+i] & 0xFF);
+            }   // end for: up to four bytes
             int prevCounter = this.publicKeysToCounters.get(verifyingKey);    // Previous counter
             if( sigCounter <= prevCounter ){                            // Old counter?
                 throw new SignatureException( "Counter out of date; possible replay attack stopped." );
             }   // end if: old counter
             this.publicKeysToCounters.put( verifyingKey, sigCounter );        // Update saved counter
-                    
-            return originalKlv.getValue();
+            
+            int originalOffset = payloadSubs.valueOffsetAt(original);
+            return Arrays.copyOfRange( data, originalOffset, originalOffset + payloadSubs.valueLengthAt(original) );
         }   // end else: found key
     }   // end extract
     
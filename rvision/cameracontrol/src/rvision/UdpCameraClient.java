@@ -26,6 +26,9 @@ public class UdpCameraClient extends Camera{
     private DatagramSocket socket;
     private SocketAddress destination;
     
+    private byte[] sendBuffer = new byte[ 64 ];   // Reused by sendBytes, guarded by socket
+    private DatagramPacket sendPacket;
+    
     //KLVSecurity klvSec;
     
     
@@ -91,24 +94,44 @@ public class UdpCameraClient extends Camera{
     }
     
     
+    /**
+     * Builds the datagram in place: outer sixteen-byte key and four-byte
+     * length, then the raw command's key and length, then the command.
+     * The buffer and packet are reused from one command to the next.
+     */
     @Override
     protected boolean sendBytes( byte[] data, int offset, int length ){
-        KLV klv = new KLV();//0,KLV.KeyLength.SixteenBytes,KLV.LengthEncoding.BER); // Outer wrapper
-        klv.setKeyLength(KLV.KeyLength.SixteenBytes);
-        klv.setLengthEncoding(KLV.LengthEncoding.FourBytes);
-        klv.setKey(UdpCameraServer.UDP_CAMERA_SERVER_GLOBAL_KEY);               // Sixteen byte key
-        KLV sub = new KLV(                                                      // Insert raw command
-          UdpCameraServer.CAMERA_RAW_COMMAND_KLV_KEY,                           // Key for "raw"
-          UdpCameraServer.KEY_LENGTH,                                           // Key length
-          UdpCameraServer.LENGTH_ENCODING,                                      // Length encoding
-          data, offset, length );                                               // Raw bytes
-        klv.addSubKLV(sub);                                                     // Add to outer wrapper
-        byte[] klvBytes = klv.toBytes();                                        // Convert to bytes
-        
         try {
-            DatagramPacket packet = new DatagramPacket(klvBytes, 0, klvBytes.length, destination);
             synchronized( this.socket ){
-                this.socket.send(packet);
+                int subLength = UdpCameraServer.KEY_LENGTH.value()
+                        + KLV.getLengthFieldSize( UdpCameraServer.LENGTH_ENCODING, length )
+                        + length;
+                int total = UdpCameraServer.UDP_CAMERA_SERVER_GLOBAL_KEY.length
+                        + KLV.getLengthFieldSize( KLV.LengthEncoding.FourBytes, subLength )
+                        + subLength;
+                if( this.sendBuffer.length < total ){
+                    this.sendBuffer = new byte[ total ];
+                }   // end if: need more room
+                byte[] buf = this.sendBuffer;
+
+                int pos = UdpCameraServer.UDP_CAMERA_SERVER_GLOBAL_KEY.length;    // Outer wrapper
+                System.arraycopy( UdpCameraServer.UDP_CAMERA_SERVER_GLOBAL_KEY, 0, buf, 0, pos );
+                pos += KLV.writeLengthField( KLV.LengthEncoding.FourBytes, subLength, buf, pos );
+                pos += KLV.writeHeader(                                             // Insert raw command
+                  UdpCameraServer.CAMERA_RAW_COMMAND_KLV_KEY,                       // Key for "raw"
+                  UdpCameraServer.KEY_LENGTH,                                       // Key length
+                  UdpCameraServer.LENGTH_ENCODING,                                  // Length encoding
+                  length, buf, pos );
+                System.arraycopy( data, offset, buf, pos, length );                 // Raw bytes
+                pos += length;
+
+                if( this.sendPacket == null ){
+                    this.sendPacket = new DatagramPacket( buf, 0, pos, destination );
+                } else {
+                    this.sendPacket.setData( buf, 0, pos );
+                    this.sendPacket.setSocketAddress( destination );
+                }   // end else
+                this.socket.send( this.sendPacket );
             }   // end sync
         } catch (Exception ex) {
             Logger.getLogger(UdpCameraClient.class.getName()).log(Level.SEVERE, null, ex);
@@ -67,6 +67,7 @@ public class UdpCameraServer extends UdpServer implements UdpServer.Listener, Pr
     private final static int PORT_DEFAULT = 8001;
     private boolean             dispose = false;
     private Camera              camera;
+    private final KLVTagMap     subs = new KLVTagMap();
     
 
     private JmDNS jmdns;
@@ -288,22 +289,28 @@ public class UdpCameraServer extends UdpServer implements UdpServer.Listener, Pr
             LOGGER.info( "Received KLV set for UDP Camera Server: " + req );
         }
         
-        List<KLV> subs = req.getSubKLVList(KEY_LENGTH, LENGTH_ENCODING);
+        byte[] data = req.getValue();
+        KLVTagMap subs = this.subs;                 // Reused, guarded by synchronized
+        try{
+            subs.reset( data, 0, data.length, KEY_LENGTH, LENGTH_ENCODING );
+        } catch( IllegalArgumentException exc ){
+            LOGGER.warning( "Malformed KLV set for UDP Camera Server: " + exc.getMessage() );
+            return;
+        }   // end catch
         
-        // Process commands
-        for( KLV k : subs ){
-            switch( k.getShortKey() ){
+        // Process commands, in the order they arrived
+        for( int i = 0; i < subs.size(); i++ ){
+            switch( subs.tagAt(i) ){
                 case CAMERA_RAW_COMMAND_KLV_KEY:
-                    byte[] rawCommand = k.getValue();
                     Camera cam = this.camera;
                     if( cam != null ){
-                        cam.sendBytes(rawCommand,0,rawCommand.length);
+                        cam.sendBytes(data,subs.valueOffsetAt(i),subs.valueLengthAt(i));
                     }   // end if: cam != null
                     break;
                 default:
                     LOGGER.warning( 
                       "Unknown KLV key 0x" + 
-                      Long.toHexString(k.getShortKey() & 0xFFFFFFFF) + 
+                      Long.toHexString(subs.tagAt(i) & 0xFFFFFFFF) + 
                       " inside Udp Camera Server KLV set." );
             }   // end switch
         }   // end for: each sub
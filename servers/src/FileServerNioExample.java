@@ -50,7 +50,7 @@ public class FileServerNioExample {
         });
 
         // Listen for NioServer events
-        ns.addNioServerListener(new NioServer.Listener() {
+        ns.addNioServerListener(new NioServer.Adapter() {
             private Charset charset = Charset.forName("US-ASCII");
             private CharsetEncoder encoder = charset.newEncoder();
             private CharsetDecoder decoder = charset.newDecoder();
@@ -107,12 +107,11 @@ public class FileServerNioExample {
                         s = s.trim();                                           // Remove whitespace (like newline)
                         fis = new FileInputStream(s);                           // Input stream
                         FileChannel fc = fis.getChannel();                      // Associated channel
-                        evt.getKey().attach( fc );                              // Save channel in key's attachment
-                        evt.setNotifyOnTcpWritable(true);                       // Tell server we have something to write
-                        outBuff.clear();
+                        NioServer.Connection conn = evt.getConnection();
                         ack.rewind();
-                        encoder.reset().encode(ack, outBuff, true);
-                        outBuff.flip();
+                        conn.write( encoder.reset().encode(ack) );              // Acknowledge first
+                        conn.sendFile( fc, 0, fc.size() );                      // Then the file, straight from disk to socket
+                        conn.closeAfterWriting();                               // And close when both are sent
                     } catch (IOException ex) {
                         Logger.getLogger(this.getClass().getName()).warning(ex.getMessage());
                         outBuff.clear();
@@ -131,22 +130,12 @@ public class FileServerNioExample {
 
 
             @Override
-            public void tcpReadyToWrite(NioServer.Event evt) {
-                ByteBuffer dst = evt.getOutputBuffer();                         // Leave data on this buffer to have it written
-                FileChannel fc = (FileChannel) evt.getKey().attachment();       // We previously attached the FileChannel
-                if( fc == null ){
-                    return;
-                }
-                dst.clear();                                                    // Clear the buffer
+            public void fileSent(NioServer.Event evt) {
                 try {
-                    if( fc.read(dst) < 0 ){                                     // Read from FileChannel into buffer and check for EOF
-                        fc.close();                                             // Close FileChannel
-                        evt.close();                                            // Close SocketChannel
-                    }   // end if: EOF
+                    evt.getFileChannel().close();                               // Close FileChannel
                 } catch (IOException ex) {
                     Logger.getLogger(this.getClass().getName()).log(Level.SEVERE, null, ex);
                 }
-                dst.flip();                                                     // Show that buffer has data in it to be written
             }
             
 
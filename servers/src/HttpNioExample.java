@@ -7,7 +7,6 @@ import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.CharBuffer;
 import java.nio.channels.FileChannel;
-import java.nio.channels.ReadableByteChannel;
 import java.nio.charset.Charset;
 import java.nio.charset.CharsetDecoder;
 import java.nio.charset.CharsetEncoder;
@@ -26,7 +25,7 @@ import java.util.regex.Pattern;
  * 
  * @author Robert Harder
  */
-public class HttpNioExample implements NioServer.Listener {
+public class HttpNioExample implements NioServer.Listener, NioServer.ConnectionListener {
 
     private int port;
     private File root;
@@ -72,7 +71,7 @@ public class HttpNioExample implements NioServer.Listener {
         server = new NioServer();
         server.setSingleTcpPort(port);
         server.addNioServerListener(this);
-        server.setOutputBufferSize(100);
+        server.setIdleTimeout(30000);                                           // Don't let stalled clients pile up
 
 
         server.addPropertyChangeListener(new PropertyChangeListener() {
@@ -171,20 +170,24 @@ public class HttpNioExample implements NioServer.Listener {
                         try {
                             FileInputStream fis = new FileInputStream(file);    // Open file for reading
                             FileChannel fc = fis.getChannel();                  // Get channel for NIO
-                            evt.getKey().attach(fc);                            // Save it in key's attachment (convenient!)
                             CharBuffer mimeLine = contentTypeLine( filename );  // Header with mime type
                             CharBuffer sizeLine = contentLengthLine( fc.size() );  // Header with content length
 
                             System.out.println("OK: " + file);
-                            outBuff.clear();
+                            ByteBuffer headers = ByteBuffer.allocate(1024);     // Headers are queued ahead of the file
                             encoder.reset();
                             RESP_200_OK.rewind();
                             BLANK_LINE.rewind();
-                            encoder.encode(RESP_200_OK, outBuff, false);            // Encode OK
-                            encoder.encode(mimeLine, outBuff, false);               // Encode content type
-                            encoder.encode(sizeLine, outBuff, false);               // Encode content length
-                            encoder.encode(BLANK_LINE, outBuff, true);          // Encode end of headers
-                            outBuff.flip();
+                            encoder.encode(RESP_200_OK, headers, false);            // Encode OK
+                            encoder.encode(mimeLine, headers, false);               // Encode content type
+                            encoder.encode(sizeLine, headers, false);               // Encode content length
+                            encoder.encode(BLANK_LINE, headers, true);          // Encode end of headers
+                            headers.flip();
+
+                            NioServer.Connection conn = evt.getConnection();
+                            conn.write(headers);                                // Send headers
+                            conn.sendFile(fc, 0, fc.size());                    // Then the file, straight from disk to socket
+                            conn.closeAfterWriting();                           // And close when both are sent
 
                         } catch (IOException ex) {
                             Logger.getLogger(HttpNioExample.class.getName()).log(Level.SEVERE, null, ex);
@@ -240,30 +243,27 @@ public class HttpNioExample implements NioServer.Listener {
 
     
     public void tcpReadyToWrite(NioServer.Event evt) {
-        ByteBuffer buff = evt.getOutputBuffer(); // Buffer to leave data in
-        buff.clear();
+        // Files are sent with sendFile(..) rather than through the output buffer
+    }
+
+
+    public void writabilityChanged(NioServer.Event evt) {}
+
+
+    public void fileSent(NioServer.Event evt) {
+        System.out.println("Done sending file" );
         try {
-            Object att = evt.getKey().attachment();
-            if( att instanceof FileChannel ){
-                //FileChannel fc = (FileChannel)evt.getKey().attachment();
-                ReadableByteChannel rbc = (ReadableByteChannel)evt.getKey().attachment();
-
-                if( rbc != null && rbc.read(buff) < 0 ){
-                    System.out.println("Done sending file" );
-                    rbc.close();
-                    evt.close();
-                }
-            } else if( att instanceof Boolean && !((Boolean)att) ){
-                //evt.close();
-            }
+            evt.getFileChannel().close();
         } catch (IOException ex) {
             Logger.getLogger(HttpNioExample.class.getName()).log(Level.SEVERE, null, ex);
-        } finally {
-            buff.flip();
         }
+    }
 
+    public void connectionTimedOut(NioServer.Event evt) {
+        System.out.println("Connection timed out (" + evt.getTimeout() + "): " + evt.getKey().channel() );
     }
 
+
     public void connectionClosed(NioServer.Event evt) {
         System.out.println("Connection closed: " + evt.getKey().channel() );
     }
@@ -1,5 +1,6 @@
 
 
+import java.util.concurrent.atomic.*;
 import java.util.concurrent.*;
 import java.nio.channels.*;
 import java.util.logging.*;
@@ -44,13 +45,29 @@ import java.io.*;
  *     }   // end data received
  * });</pre>
  *
- * <p>The server runs on one thread, and all events are fired on that thread.
+ * <p>By default the server runs on one thread, and all events are fired on that thread.
  * Consider offloading heavy processing to another thread. Be aware that
  * you can register multiple listeners to respond to incoming data
  * so be mindful of more than one listener being around to makes calls
  * on the data.</p>
  *
- * <p>The public methods are all synchronized on <tt>this</tt>, and great
+ * <p>When one thread is not enough for the number of connections, ask for
+ * extra I/O loops before starting the server:</p>
+ *
+ * <pre> server.setIoLoopCount( 4 );</pre>
+ *
+ * <p>The server thread then accepts connections and receives UDP datagrams,
+ * and each TCP connection is handed to one of the loops, which has its own
+ * thread, selector, and buffers. All events for a connection are fired on
+ * its loop's thread, so listeners will be called on several threads at once,
+ * though never at once for the same connection.</p>
+ *
+ * <p>The public methods may be called from any thread. The I/O loops never
+ * take a lock: changes to bindings, writable notifications, and so forth are
+ * queued as commands for the loop that owns the channel, which wakes up and
+ * carries them out at the top of its next cycle, and the listeners are kept
+ * in an array that is copied on change. Only starting and stopping are
+ * synchronized on <tt>this</tt>, and great
  * care has been taken to avoid deadlocks and race conditions. That being said,
  * there may still be bugs (please contact the author if you find any), and
  * you certainly still have the power to introduce these problems yourself.</p>
@@ -59,6 +76,15 @@ import java.io.*;
  * making an instance field to hold a NioServer where you'd have to
  * pass along all the setPort(...) methods and so forth.</p>
  *
+ * <p>Subclasses that override the protected <tt>fire...</tt> methods
+ * should note that their signatures have changed since the single-threaded
+ * versions: each now takes the {@link Event} of the I/O loop firing it first,
+ * and <tt>fireTcpDataReceived</tt> takes the connection's
+ * {@link CompositeBuffer} instead of the input buffer. They are no longer
+ * synchronized and may be called on several threads at once. An override
+ * with the old signature no longer overrides anything and is never called,
+ * so mark overrides with <tt>@Override</tt> to have the compiler catch this.</p>
+ *
  * <p>The supporting {@link Event}, {@link Listener}, and {@link Adapter}
  * classes are static inner classes in this file so that you have only one
  * file to copy to your project. You're welcome.</p>
@@ -68,6 +94,10 @@ import java.io.*;
  * you may find some comments that refer to TCP instead of UDP or vice versa.
  * Please feel free to let me know, so I can correct that.</p>
  *
+ * <p>NioServer needs Java 6 or later. Options from later versions, such as
+ * <tt>SO_REUSEPORT</tt> and <code>DatagramChannel.join(..)</code>, are looked
+ * up at run time and skipped, or worked around, when they are missing.</p>
+ *
  * <p>This code is released into the Public Domain.
  * Since this is Public Domain, you don't need to worry about
  * licensing, and you can simply copy this NioServer.java file
@@ -106,8 +136,168 @@ public class NioServer {
     public final static String OUTPUT_BUFFER_SIZE_PROP = "bufferSize";
 
     private final static int BUFFER_SIZE_DEFAULT = 4096;
-    private int inputBufferSize = BUFFER_SIZE_DEFAULT;
-    private int outputBufferSize = BUFFER_SIZE_DEFAULT;
+
+    /**
+     * Refers to the pool of direct buffers for leftover data.
+     * @see #setBufferPool(NioServer.BufferPool)
+     */
+    public final static String BUFFER_POOL_PROP = "bufferPool";
+    private volatile BufferPool bufferPool = new BufferPool();                  // Shared by every I/O loop
+    private volatile int inputBufferSize = BUFFER_SIZE_DEFAULT;                    // Read by every I/O loop
+    private volatile int outputBufferSize = BUFFER_SIZE_DEFAULT;
+
+
+    /**
+     * Refers to the most unconsumed input kept for a TCP connection.
+     * @see #setMaxInputSize(int)
+     * @see #getMaxInputSize()
+     */
+    public final static String MAX_INPUT_SIZE_PROP = "maxInputSize";
+
+    private final static int MAX_INPUT_SIZE_DEFAULT = 1 << 20;
+    private volatile int maxInputSize = MAX_INPUT_SIZE_DEFAULT;                 // Read by every I/O loop
+
+
+    /**
+     * Refers to the amount of queued outgoing data above which
+     * a connection is no longer writable.
+     * @see #setWriteWatermarks(int,int)
+     * @see NioServer.Connection#write(ByteBuffer[])
+     */
+    public final static String WRITE_HIGH_WATERMARK_PROP = "writeHighWatermark";
+
+    /**
+     * Refers to the amount of queued outgoing data at or below which
+     * a connection that was not writable becomes writable again.
+     * @see #setWriteWatermarks(int,int)
+     * @see NioServer.Connection#write(ByteBuffer[])
+     */
+    public final static String WRITE_LOW_WATERMARK_PROP = "writeLowWatermark";
+
+    private final static int WRITE_HIGH_WATERMARK_DEFAULT = 64 * 1024;
+    private final static int WRITE_LOW_WATERMARK_DEFAULT = 32 * 1024;
+    private volatile int writeHighWatermark = WRITE_HIGH_WATERMARK_DEFAULT;     // Read by every I/O loop and writer
+    private volatile int writeLowWatermark = WRITE_LOW_WATERMARK_DEFAULT;
+
+
+    /**
+     * <p>The ways a TCP connection can time out:</p>
+     *
+     * <ul>
+     *  <li>IDLE - nothing read or written for the idle timeout</li>
+     *  <li>READ - nothing read for the read timeout</li>
+     *  <li>WRITE - data waiting to be sent and none of it sent for the write timeout</li>
+     * </ul>
+     *
+     * @see #setIdleTimeout(long)
+     * @see #setReadTimeout(long)
+     * @see #setWriteTimeout(long)
+     */
+    public static enum Timeout { IDLE, READ, WRITE };
+
+    /**
+     * Refers to the idle timeout for TCP connections.
+     * @see #setIdleTimeout(long)
+     */
+    public final static String IDLE_TIMEOUT_PROP = "idleTimeout";
+
+    /**
+     * Refers to the read timeout for TCP connections.
+     * @see #setReadTimeout(long)
+     */
+    public final static String READ_TIMEOUT_PROP = "readTimeout";
+
+    /**
+     * Refers to the write timeout for TCP connections.
+     * @see #setWriteTimeout(long)
+     */
+    public final static String WRITE_TIMEOUT_PROP = "writeTimeout";
+
+    private volatile long idleTimeout;                                          // Milliseconds, zero for none
+    private volatile long readTimeout;
+    private volatile long writeTimeout;
+
+    private final static long TIMER_TICK_MILLIS = 100;                          // Resolution of the timeouts
+    private final static int TIMER_WHEEL_SIZE = 512;                            // Slots, a power of two
+
+
+    /**
+     * Refers to the most bytes read from one TCP connection
+     * each time around its I/O loop, for bindings without their own budget.
+     * @see #setTcpReadBudget(int)
+     */
+    public final static String TCP_READ_BUDGET_PROP = "tcpReadBudget";
+
+    /**
+     * Refers to the TCP bindings' own read budgets. The values
+     * are maps from binding to budget.
+     * @see #setTcpReadBudget(java.net.SocketAddress,int)
+     * @see #getTcpReadBudgets()
+     */
+    public final static String TCP_READ_BUDGETS_PROP = "tcpReadBudgets";
+
+    /**
+     * Refers to the most datagrams received on one UDP binding
+     * each time around the server's loop, for bindings without their own budget.
+     * @see #setUdpReceiveBudget(int)
+     */
+    public final static String UDP_RECEIVE_BUDGET_PROP = "udpReceiveBudget";
+
+    /**
+     * Refers to the UDP bindings' own receive budgets. The values
+     * are maps from binding to budget.
+     * @see #setUdpReceiveBudget(java.net.SocketAddress,int)
+     * @see #getUdpReceiveBudgets()
+     */
+    public final static String UDP_RECEIVE_BUDGETS_PROP = "udpReceiveBudgets";
+
+    private final static int TCP_READ_BUDGET_DEFAULT = 64 * 1024;
+    private final static int UDP_RECEIVE_BUDGET_DEFAULT = 64;
+    private volatile int tcpReadBudget = TCP_READ_BUDGET_DEFAULT;               // Bytes, read by every I/O loop
+    private volatile int udpReceiveBudget = UDP_RECEIVE_BUDGET_DEFAULT;         // Datagrams
+    private final Map<SocketAddress,Integer> tcpReadBudgets = new ConcurrentHashMap<SocketAddress,Integer>();    // Per binding, instead of the above
+    private final Map<SocketAddress,Integer> udpReceiveBudgets = new ConcurrentHashMap<SocketAddress,Integer>();
+
+
+    /**
+     * Refers to the number of I/O loops that service TCP connections
+     * in addition to the server thread.
+     * @see #setIoLoopCount(int)
+     * @see #getIoLoopCount()
+     */
+    public final static String IO_LOOP_COUNT_PROP = "ioLoopCount";
+    private volatile int ioLoopCount = 0;
+
+
+    /**
+     * <p>How accepted connections are spread over the I/O loops:</p>
+     *
+     * <ul>
+     *  <li>ROUND_ROBIN - each loop in turn</li>
+     *  <li>LEAST_CONNECTIONS - the loop with the fewest connections</li>
+     * </ul>
+     *
+     * @see #setBalance(NioServer.Balance)
+     */
+    public static enum Balance { ROUND_ROBIN, LEAST_CONNECTIONS };
+    private volatile Balance balance = Balance.ROUND_ROBIN;
+
+    /**
+     * Refers to how accepted connections are spread over the I/O loops.
+     * @see #setBalance(NioServer.Balance)
+     * @see #getBalance()
+     */
+    public final static String BALANCE_PROP = "balance";
+
+
+    /**
+     * Refers to whether each UDP binding is also received
+     * on the I/O loops, sharing the port with <tt>SO_REUSEPORT</tt>.
+     * @see #setUdpReusePort(boolean)
+     * @see #isUdpReusePort()
+     */
+    public final static String UDP_REUSE_PORT_PROP = "udpReusePort";
+    private volatile boolean udpReusePort;
 
 
     /**
@@ -123,7 +313,7 @@ public class NioServer {
      * @see #getState()
      */
     public static enum State { STARTING, STARTED, STOPPING, STOPPED };
-    private State currentState = State.STOPPED;
+    private volatile State currentState = State.STOPPED;
 
     /**
      * Refers to the state of the server (STARTING, STARTED, STOPPING, STOPPED).
@@ -138,17 +328,19 @@ public class NioServer {
      * @see #getLastException()
      */
     public final static String LAST_EXCEPTION_PROP = "lastException";
-    private Throwable lastException;
+    private volatile Throwable lastException;
 
 
-    private final Collection<NioServer.Listener> listeners = new LinkedList<NioServer.Listener>(); // Event listeners
-    private NioServer.Listener[] cachedListeners = null;
-    private final NioServer.Event event = new NioServer.Event(this);                    // Shared event
+    private final Collection<NioServer.Listener> listeners = new LinkedList<NioServer.Listener>(); // Event listeners, guarded by itself
+    private volatile NioServer.Listener[] cachedListeners = new NioServer.Listener[0];  // Copied on change, read by every loop
     private final PropertyChangeSupport propSupport = new PropertyChangeSupport(this);  // Properties
 
     private ThreadFactory threadFactory;                                                // Optional thread factory
     private Thread ioThread;                                                            // Performs IO
-    private Selector selector;                                                          // Brokers all the connections
+    private volatile Selector selector;                                                 // Brokers all the connections
+    private volatile IoLoop mainLoop;                                                   // Loop run on ioThread
+    private volatile IoLoop[] ioLoops = new IoLoop[0];                                  // Extra loops for TCP connections
+    private int nextLoop;                                                               // For round robin, used only on ioThread
 
     /**
      * Refers to the TCP bindings for the server.
@@ -193,24 +385,16 @@ public class NioServer {
     public final static String SINGLE_UDP_PORT_PROP = "singleUdpPort";
 
 
-    private final Map<SocketAddress,SelectionKey> tcpBindings = new HashMap<SocketAddress,SelectionKey>();// Requested TCP bindings, e.g., "listen on port 80"
-    private final Map<SocketAddress,SelectionKey> udpBindings = new HashMap<SocketAddress,SelectionKey>();// Requested UDP bindings
-
-    private final Map<SocketAddress,String> multicastGroups = new HashMap<SocketAddress,String>();
-
-    private final Set<SocketAddress> pendingTcpAdds = new HashSet<SocketAddress>(); // TCP bindings to add to selector on next cycle
-    private final Set<SocketAddress> pendingUdpAdds = new HashSet<SocketAddress>(); // UDP bindings to add to selector on next cycle
-    private final Collection<DatagramChannel> pendingUdpToRegister = new LinkedList<DatagramChannel>();
-
-    private final Map<SocketAddress,SelectionKey> pendingTcpRemoves = new HashMap<SocketAddress,SelectionKey>(); // TCP bindings to remove from selector on next cycle
-    private final Map<SocketAddress,SelectionKey> pendingUdpRemoves = new HashMap<SocketAddress,SelectionKey>(); // UDP bindings to remove from selector on next cycle
+    private final Set<SocketAddress> tcpBindings = Collections.newSetFromMap(new ConcurrentHashMap<SocketAddress,Boolean>()); // Requested TCP bindings, e.g., "listen on port 80"
+    private final Set<SocketAddress> udpBindings = Collections.newSetFromMap(new ConcurrentHashMap<SocketAddress,Boolean>()); // Requested UDP bindings
 
-    private final Map<SelectionKey,Boolean> pendingTcpNotifyOnWritable = new HashMap<SelectionKey,Boolean>();   // Turning on and off writable notifications
+    private final Map<SocketAddress,String> multicastGroups = new ConcurrentHashMap<SocketAddress,String>();
 
-    private final Map<SelectionKey,ByteBuffer> leftoverForReading = new HashMap<SelectionKey,ByteBuffer>();   // Store leftovers from the last read
-    private final Map<SelectionKey,ByteBuffer> leftoverForWriting = new HashMap<SelectionKey,ByteBuffer>();   // Store leftovers that still need to be written
-
-    private final Set<SelectionKey> closeAfterWriting = new HashSet<SelectionKey>();
+    private final Map<SocketAddress,SelectionKey> tcpKeys = new HashMap<SocketAddress,SelectionKey>(); // Bound TCP channels, only on ioThread
+    private final Map<SocketAddress,SelectionKey> udpKeys = new ConcurrentHashMap<SocketAddress,SelectionKey>(); // Bound UDP channels, also read by sendUdp
+    private final Map<SocketAddress,DatagramChannel> replyChannels = new ConcurrentHashMap<SocketAddress,DatagramChannel>(); // Bound by sendUdp, not yet registered
+    private final Map<SocketAddress,List<DatagramChannel>> udpReusedChannels = new HashMap<SocketAddress,List<DatagramChannel>>(); // Same ports on the I/O loops, only on ioThread
+    private final Object bindingLock = new Object();                                    // Orders changes to bindings, never taken by the I/O loops
 
 
 
@@ -378,7 +562,7 @@ public class NioServer {
      * STARTING, STARTED, STOPPING, or STOPPED.
      * @return state of the server
      */
-    public synchronized State getState(){
+    public State getState(){
         return this.currentState;
     }
 
@@ -431,59 +615,50 @@ public class NioServer {
     protected void runServer(){
         try{
 
-            ByteBuffer inBuff  = ByteBuffer.allocateDirect(this.inputBufferSize);   // Buffer to use for everything
-            ByteBuffer outBuff = ByteBuffer.allocateDirect(this.outputBufferSize);  // Buffer to use for everything
+            this.selector = Selector.open();                                    // Brokers bindings, and connections if no I/O loops
+            IoLoop main = new IoLoop( this.selector );                          // Buffers and leftovers for this thread
+            main.thread = Thread.currentThread();
+            this.mainLoop = main;                                               // Binding changes are queued for it from now on
+            startIoLoops();                                                     // Extra loops, if requested
 
-            synchronized( this ){
-                this.pendingTcpAdds.addAll(this.tcpBindings.keySet());
-                this.pendingUdpAdds.addAll(this.udpBindings.keySet());
-            }
+            for( SocketAddress addr : this.tcpBindings ){                       // Bind what was requested before starting
+                updateTcpBinding(addr);
+            }   // end for: each TCP binding
+            for( SocketAddress addr : this.udpBindings ){
+                updateUdpBinding(addr);
+            }   // end for: each UDP binding
 
             setState( State.STARTED );                                          // Mark as started
             while( runLoopCheck() ){
 
                 ////////  B L O C K S   H E R E
-                if( this.selector.select() <= 0 ){                              // Block until notified
-                    LOGGER.finer("selector.select() <= 0");                     // Possible false start
-                    Thread.sleep(100);                                          // Let's not run away from ourselves
+                if( main.select() <= 0 ){                                       // Block until notified or the next tick
+                    LOGGER.finer("selector.select() <= 0");                     // Woken up, perhaps for commands
                 }///////  B L O C K S   H E R E
 
 
 
-                synchronized( this ){
-                    if( this.currentState == State.STOPPING ){
-                        try{
-                            Set<SelectionKey> keys = this.selector.keys();
-                            for( SelectionKey key : this.selector.keys() ){
-                                key.channel().close();
-                                key.cancel();
-                            }
-                        } catch( IOException exc ){
-                            fireExceptionNotification(exc);
-                            LOGGER.log(
-                              Level.SEVERE,
-                              "An error occurred while closing the server. " +
-                              "This try{may have left the server in an undefined state.",
-                              exc );
-                        } finally {
-                            continue;
+                if( this.currentState == State.STOPPING ){
+                    try{
+                        for( SelectionKey key : this.selector.keys() ){
+                            key.channel().close();
+                            key.cancel();
+                            main.cleanupClosedConnection(key);
                         }
+                    } catch( IOException exc ){
+                        fireExceptionNotification(exc);
+                        LOGGER.log(
+                          Level.SEVERE,
+                          "An error occurred while closing the server. " +
+                          "This try{may have left the server in an undefined state.",
+                          exc );
+                    } finally {
+                        continue;
                     }
-                }   // end sync
+                }   // end if: stopping
 
 
-
-                // Possibly resize outBuff if a change was requested since last cycle
-                if( this.inputBufferSize != inBuff.capacity() ){                // Mismatch size means someone asked for something new
-                    assert this.inputBufferSize >= 0 : this.inputBufferSize;    // We check for this in setBufferSize(..)
-                    inBuff = ByteBuffer.allocateDirect(this.inputBufferSize);   // Resize and use direct for OS efficiencies
-                }
-
-                // Possibly resize outBuff if a change was requested since last cycle
-                if( this.outputBufferSize != outBuff.capacity() ){              // Mismatch size means someone asked for something new
-                    assert this.outputBufferSize >= 0 : this.outputBufferSize;  // We check for this in setBufferSize(..)
-                    outBuff = ByteBuffer.allocateDirect(this.outputBufferSize); // Resize and use direct for OS efficiencies
-                }
+                main.resizeBuffers();                                           // In case a change was requested since last cycle
 
                 Set<SelectionKey> keys = this.selector.selectedKeys();          // These keys need attention
                 if( LOGGER.isLoggable(Level.FINEST ) ){                         // Only report this at finest grained logging level
@@ -494,63 +669,36 @@ public class NioServer {
                 while( iter.hasNext() ){                                        // Each accKey
                     SelectionKey key = iter.next();                             // The accKey
                     iter.remove();                                              // Remove from list
-
-                    try{
-
-                        // Accept connections
-                        // This should only be from the TCP bindings
-                        if(  key.isAcceptable()  ){                                 // New, incoming connection?
-                            handleAccept( key, outBuff );                           // Handle accepting connections
-                        }
-
-                        // Data to read
-                        // This could be an ongoing TCP connection
-                        // or a new (is there any other kind) UDP datagram
-                        else if( key.isReadable() ){                                // Existing connection has data (or is closing)
-                            handleRead( key, inBuff, outBuff );                     // Handle data
-                        }   // end if: readable
-
-                        // Available to write
-                        // This could be an ongoing TCP connection
-                        // or a new (is there any other kind) UDP datagram
-                        else if( key.isWritable() ){                                // Existing connection has data (or is closing)
-                            handleWrite( key, inBuff, outBuff );                    // Handle data
-                        }   // end if: readable
-
-                    } catch( IOException exc ){
-                        LOGGER.warning( "Encountered an error with a connection: " + exc.getMessage() );
-                        fireExceptionNotification(exc);
-                        key.channel().close();
-                    }   // end catch
-
+                    main.handleKey( key );                                      // Accept, read, or write
                 }   // end while: keys
+                main.expireTimeouts();                                          // After the keys, which may have been busy
 
             }   // end while: selector is open
 
         // Handle closing and exceptions, etc
         } catch( Exception exc ){
-            synchronized( this ){
-                if( this.currentState == State.STOPPING ){  // User asked to stop
-                    try{
-                        this.selector.close();
-                        this.selector = null;
-                        LOGGER.info( "Server closed normally." );
-                    } catch( IOException exc2 ){
-                        this.lastException = exc2;
-                        LOGGER.log(
-                          Level.SEVERE,
-                          "An error occurred while closing the server. " +
-                          "This may have left the server in an undefined state.",
-                          exc2 );
-                        fireExceptionNotification(exc2);
-                    }   // end catch IOException
-                } else {
-                    LOGGER.log( Level.WARNING, "Server closed unexpectedly: " + exc.getMessage(), exc );
-                }   // end else
-            }   // end sync
+            if( this.currentState == State.STOPPING ){      // User asked to stop
+                try{
+                    this.selector.close();
+                    this.selector = null;
+                    LOGGER.info( "Server closed normally." );
+                } catch( IOException exc2 ){
+                    this.lastException = exc2;
+                    LOGGER.log(
+                      Level.SEVERE,
+                      "An error occurred while closing the server. " +
+                      "This may have left the server in an undefined state.",
+                      exc2 );
+                    fireExceptionNotification(exc2);
+                }   // end catch IOException
+            } else {
+                LOGGER.log( Level.WARNING, "Server closed unexpectedly: " + exc.getMessage(), exc );
+            }   // end else
             fireExceptionNotification(exc);
         } finally {
             setState( State.STOPPING );
+            this.mainLoop = null;                                               // Stop queuing commands
+            stopIoLoops();                                                      // Close their connections and wait
             if( this.selector != null ){
                 try{
                     this.selector.close();
@@ -565,426 +713,399 @@ public class NioServer {
             }   // end if: not null
 
             this.selector = null;
+            this.tcpKeys.clear();                                               // Bound again on next start
+            this.udpKeys.clear();
+            for( DatagramChannel dc : this.replyChannels.values() ){
+                try{
+                    dc.close();                                                 // Any never registered
+                } catch( IOException exc ){
+                    LOGGER.fine( "Error closing UDP channel: " + exc.getMessage() );
+                }   // end catch
+            }   // end for: each reply channel
+            this.replyChannels.clear();
+            for( SocketAddress addr : new ArrayList<SocketAddress>( this.udpReusedChannels.keySet() ) ){
+                try{
+                    closeReusedChannels(addr);                                  // Any the loops never registered
+                } catch( IOException exc ){
+                    LOGGER.fine( "Error closing UDP channel: " + exc.getMessage() );
+                }   // end catch
+            }   // end for: each binding
         }   // end finally
     }
 
     /**
-     * Determines if server's "while" loop should continue and performs
-     * inter-cycle actions such as modifying server bindings.
+     * Determines if server's "while" loop should continue and carries
+     * out the commands queued since the last cycle, such as modifying
+     * server bindings. Nothing here takes a lock.
      * @return true if while loop should continue
      * @throws java.io.IOException if something within throws it
      */
-    private synchronized boolean runLoopCheck() throws IOException {
+    private boolean runLoopCheck() throws IOException {
 
         if( this.currentState == State.STOPPING ){
             LOGGER.finer( "Stopping server by request." );
             assert this.selector != null;
             this.selector.close();
-        } else if( this.selector == null ){
-            this.selector = Selector.open();
         }
 
         if( !this.selector.isOpen() ){
             return false;
         }
 
-        // Pending TCP Adds
-        for( SocketAddress addr : this.pendingTcpAdds ){                        // For each add
-            LOGGER.fine("Binding TCP: " + addr );
-            ServerSocketChannel sc = ServerSocketChannel.open();                // Open a channel
-            sc.socket().bind(addr);                                             // Bind as requested
-            sc.configureBlocking(false);                                        // Make non-blocking
-            SelectionKey acceptKey = sc.register(                               // Register with master Selector
-              this.selector, SelectionKey.OP_ACCEPT );                          // We want to "accept" connections
-            this.tcpBindings.put(addr, acceptKey);                              // Save the accKey
-        }   // end for: each address
-        this.pendingTcpAdds.clear();                                            // Remove list of pending adds
-
-        // Pending UDP Adds
-        for( SocketAddress addr : this.pendingUdpAdds ){                        // Same comments as for TCP
-            LOGGER.fine("Binding UDP: " + addr );
-            DatagramChannel dc = DatagramChannel.open();
-            dc.socket().bind(addr);
-            dc.configureBlocking(false);
-            SelectionKey acceptKey = dc.register(
-              this.selector, SelectionKey.OP_READ );
-            this.udpBindings.put(addr, acceptKey);
-
-
-            // Found a weird hack to support multicast -- at least for now.
-            String group = this.multicastGroups.get(addr);
-            if( group != null && addr instanceof InetSocketAddress ){
-                int port = ((InetSocketAddress)addr).getPort();
-                InetSocketAddress groupAddr = new InetSocketAddress(group,port);
-
-                try {
-                    // http://www.mernst.org/blog/archives/12-01-2006_12-31-2006.html
-                    // UGLY UGLY HACK: multicast support for NIO
-                    // create a temporary instanceof PlainDatagramSocket, set its fd and configure it
-                    @SuppressWarnings(value = "unchecked")
-                    java.lang.reflect.Constructor<? extends DatagramSocketImpl> c =
-                      (java.lang.reflect.Constructor<? extends DatagramSocketImpl>)Class.forName("java.net.PlainDatagramSocketImpl").getDeclaredConstructor();
-                    c.setAccessible(true);
-                    DatagramSocketImpl socketImpl = c.newInstance();
-                    java.lang.reflect.Field channelFd = Class.forName("sun.nio.ch.DatagramChannelImpl").getDeclaredField("fd");
-                    channelFd.setAccessible(true);
-                    java.lang.reflect.Field socketFd = DatagramSocketImpl.class.getDeclaredField("fd");
-                    socketFd.setAccessible(true);
-                    socketFd.set(socketImpl, channelFd.get(dc));
-                    try {
-                        java.lang.reflect.Method m = DatagramSocketImpl.class.getDeclaredMethod("joinGroup", SocketAddress.class, NetworkInterface.class);
-                        m.setAccessible(true);
-                        m.invoke(socketImpl, groupAddr, null);
-                    } catch (Exception e) {
-                        throw e;
-                    } finally {
-                        // important, otherwise the fake socket's finalizer will nuke the fd
-                        socketFd.set(socketImpl, null);
-                    }
-                } catch (Exception ex) {
-                    LOGGER.warning("Experimental feature failed. Could not join multicast group: " + ex.getMessage() );
-                    fireExceptionNotification(ex);
-                }
-
-            }   // end if: got group
-        }   // end for: each address
-        this.pendingUdpAdds.clear();
-
-
-        // Add UDP bindings that were added with the sendUdp method,
-        // probably on another thread (which is why this is necessary).
-        for( DatagramChannel dc : this.pendingUdpToRegister ){
-            SelectionKey acceptKey = dc.register(               // Register to listen for replies
-              this.selector, SelectionKey.OP_READ );            // Listen for READ events
-            this.udpBindings.put(dc.socket().getLocalSocketAddress(), acceptKey);   // Save key
-        }   // end for: each pending datagram channel to register
-        this.pendingUdpToRegister.clear();
-
-        // Pending TCP Removes
-        for( Map.Entry<SocketAddress,SelectionKey> e : this.pendingTcpRemoves.entrySet() ){
-            SelectionKey key = e.getValue();                                    // Get the registered accKey
-            if( key != null ){                                                  // Might be null if someone gave us bogus address
-                key.channel().close();                                          // Close the channel
-                key.cancel();                                                   // And cancel the accKey (redundant?)
-            }   // end if: accKey != null
-        }   // end for: each remove
-        this.pendingTcpRemoves.clear();                                         // Remove from list of pending removes
-
-
-        // Pending UDP Removes
-        for( Map.Entry<SocketAddress,SelectionKey> e : this.pendingUdpRemoves.entrySet() ){
-            SelectionKey key = e.getValue();                                    // Get the registered accKey
-            if( key != null ){                                                  // Might be null if someone gave us bogus address
-                key.channel().close();                                          // Close the channel
-                key.cancel();                                                   // And cancel the accKey (redundant?)
-            }   // end if: accKey != null
-        }   // end for: each remove
-        this.pendingUdpRemoves.clear();                                         // Remove from list of pending removes
-
-
-        // Pending TCP Notify on Writable
-        for( Map.Entry<SelectionKey,Boolean> e : this.pendingTcpNotifyOnWritable.entrySet() ){
-            SelectionKey key = e.getKey();
-            if( key != null && key.isValid() ){
-                int ops = e.getKey().interestOps();                             // Current ops
-                if( e.getValue() ){                                             // Notify?
-                    ops |= SelectionKey.OP_WRITE;                               // Add OP_WRITE
-                } else {
-                    ops &= ~SelectionKey.OP_WRITE;                              // Remove OP_WRITE
-                }
-                e.getKey().interestOps(ops);                                    // Set new interests
-            }   // end if: valid accKey
-        }   // end for: each notify on writable
-        this.pendingTcpNotifyOnWritable.clear();                                // Remove from list of pending changes
-
+        this.mainLoop.runCommands();                                            // Bindings, notifications, etc
 
         return true;                                                            // Continue main run loop
     }
 
 
-
-
     /**
-     * Handles accepting new connections.
-     * @param sel The selector with which we'll register
-     * @param key The OP_ACCEPT accKey
-     * @throws java.io.IOException if an error occurs
+     * Binds or unbinds a TCP address so that the server's channels
+     * match what was requested. Called only on the server thread,
+     * so that changes requested in any order settle correctly.
+     * @param addr the address
+     * @throws java.io.IOException if the address cannot be bound
      */
-    private void handleAccept( SelectionKey accKey, ByteBuffer outBuff ) throws IOException{
-        assert accKey.isAcceptable() : accKey.readyOps();                       // We know it should be acceptable
-        assert selector.isOpen();                                               // Not sure this matters. Meh.
-
-        SelectableChannel sc = accKey.channel();                                // Channel for th accKey
-        assert sc instanceof ServerSocketChannel : sc;                          // Only our TCP connections have OP_ACCEPT
-
-        ServerSocketChannel ch = (ServerSocketChannel)accKey.channel();         // Server channel
-        SocketChannel incoming = null;                                          // Reusable for all pending connections
-        while( (incoming = ch.accept()) != null ){                              // Iterate over all pending connections
-            incoming.configureBlocking(false);                                  // Non-blocking IO
-            SelectionKey incomingReadKey = incoming.register(                   // Register new connection
-              this.selector,                                                    // With the Selector
-              SelectionKey.OP_READ | SelectionKey.OP_WRITE );                   // Want to READ and write data
-
-            outBuff.clear().flip();                                             // Show outBuff as having nothing
-
-            ////////  FIRE EVENT  ////////
-            fireNewConnection(incomingReadKey,outBuff);                         // Fire new connection event
-            ////////  FIRE EVENT  ////////
-
-
-            // If there are leftovers, save them for next
-            // time the channel is ready.
-            if( outBuff.remaining() > 0 ){                                      // Did the user leave data to be written?
-                ByteBuffer leftover = ByteBuffer.allocateDirect(outBuff.remaining()); // Create/resize
-                leftover.put(outBuff).flip();                                   // Save new leftovers
-                assert knownState(leftover,"[PrrL..]");
-                this.leftoverForWriting.put(incomingReadKey,leftover);          // Save leftovers for next time
-                this.setNotifyOnWritable(incomingReadKey, true);                // Notify that we have something to write
-            }   // end if: has remaining bytes
+    private void updateTcpBinding( SocketAddress addr ) throws IOException {
+        SelectionKey key = this.tcpKeys.get(addr);
+        if( this.tcpBindings.contains(addr) ){                                  // Should be bound
+            if( key == null ){                                                  // But isn't yet
+                LOGGER.fine("Binding TCP: " + addr );
+                ServerSocketChannel sc = ServerSocketChannel.open();            // Open a channel
+                try{
+                    sc.socket().bind(addr);                                     // Bind as requested
+                    sc.configureBlocking(false);                                // Make non-blocking
+                    SelectionKey acceptKey = sc.register(                       // Register with master Selector
+                      this.selector, SelectionKey.OP_ACCEPT, addr );            // We want to "accept" connections, and which binding
+                    this.tcpKeys.put(addr, acceptKey);                          // Save the accKey
+                } catch( IOException exc ){
+                    sc.close();                                                 // Don't leak the channel
+                    throw exc;
+                }   // end catch
+            }   // end if: not bound
+        } else if( key != null ){                                               // Should not be bound, but is
+            LOGGER.fine("Unbinding TCP: " + addr );
+            this.tcpKeys.remove(addr);
+            key.channel().close();                                              // Close the channel
+            key.cancel();                                                       // And cancel the accKey (redundant?)
+        }   // end else: remove
+    }
 
-            if( LOGGER.isLoggable(Level.FINEST) ){
-                LOGGER.finest("  " + incoming + ", key: " + incomingReadKey );
-            }
-        }   // end while: each incoming connection
 
+    /**
+     * Binds or unbinds a UDP address so that the server's channels
+     * match what was requested, joining any multicast group.
+     * If requested, the I/O loops get channels on the same port too,
+     * unless there is a multicast group. Called only on the server thread.
+     * @param addr the address
+     * @throws java.io.IOException if the address cannot be bound
+     */
+    private void updateUdpBinding( SocketAddress addr ) throws IOException {
+        SelectionKey key = this.udpKeys.get(addr);
+        if( this.udpBindings.contains(addr) ){
+            if( key == null ){
+                LOGGER.fine("Binding UDP: " + addr );
+                String group = this.multicastGroups.get(addr);
+                IoLoop[] loops = this.udpReusePort && group == null             // Every socket on the port would get
+                               ? this.ioLoops : new IoLoop[0];                  // each of the group's datagrams
+                DatagramChannel dc = DatagramChannel.open();
+                boolean reuse = false;
+                try{
+                    reuse = loops.length > 0 && setReusePort(dc);               // Before binding
+                    dc.socket().bind(addr);
+                    dc.configureBlocking(false);
+                    SelectionKey acceptKey = dc.register(
+                      this.selector, SelectionKey.OP_READ, addr );
+                    this.udpKeys.put(addr, acceptKey);
+                } catch( IOException exc ){
+                    dc.close();
+                    throw exc;
+                }   // end catch
+
+                if( group != null && addr instanceof InetSocketAddress ){
+                    joinGroup( dc, addr, group );
+                }   // end if: got group
+
+                if( reuse ){                                                    // Same port on each loop
+                    SocketAddress local = dc.socket().getLocalSocketAddress(); // In case the port was zero
+                    List<DatagramChannel> reused = new ArrayList<DatagramChannel>();
+                    this.udpReusedChannels.put(addr, reused);
+                    for( IoLoop loop : loops ){
+                        DatagramChannel other = DatagramChannel.open();
+                        try{
+                            setReusePort(other);
+                            other.socket().bind(local);
+                            other.configureBlocking(false);
+                        } catch( IOException exc ){
+                            other.close();
+                            throw exc;
+                        }   // end catch
+                        reused.add(other);
+                        loop.register(other, addr);
+                    }   // end for: each loop
+                }   // end if: reuse port
+            }   // end if: not bound
+        } else if( key != null ){
+            LOGGER.fine("Unbinding UDP: " + addr );
+            this.udpKeys.remove(addr);
+            key.channel().close();
+            key.cancel();
+            closeReusedChannels(addr);
+        }   // end else: remove
     }
 
+
     /**
-     * Handles reading incoming data and then firing events.
-     * @param key The accKey associated with the reading
-     * @param buff the ByteBuffer to hold the data
-     * @throws java.io.IOException if an error occurs
+     * Closes the channels that shared a UDP binding's port
+     * on the I/O loops, if there are any.
+     * @param addr the binding
+     * @throws java.io.IOException if a channel cannot be closed
      */
-    private void handleRead(SelectionKey key, ByteBuffer inBuff, ByteBuffer outBuff ) throws IOException {
+    private void closeReusedChannels( SocketAddress addr ) throws IOException {
+        List<DatagramChannel> reused = this.udpReusedChannels.remove(addr);
+        if( reused != null ){
+            for( DatagramChannel dc : reused ){
+                dc.close();
+            }   // end for: each channel
+            for( IoLoop loop : this.ioLoops ){
+                loop.selector.wakeup();                                         // So they let go of the port
+            }   // end for: each loop
+        }   // end if: had some
+    }
 
-        SelectableChannel sc = key.channel();
-        inBuff.clear();                                                         // Clear input outBuff
-        assert knownState( inBuff, "[PrrrL]" );
 
-        // TCP
-        if( sc instanceof SocketChannel ){
+    /**
+     * Turns on <tt>SO_REUSEPORT</tt> for a channel that is not yet bound.
+     * The option is found by name, since it is only in Java 9 and
+     * later, and not every operating system supports it.
+     * @param dc the channel
+     * @return true if it was turned on
+     */
+    private static boolean setReusePort( DatagramChannel dc ){
+        try{
+            Object option = Class.forName("java.net.StandardSocketOptions").getField("SO_REUSEPORT").get(null);
+            java.lang.reflect.Method m = DatagramChannel.class.getMethod("setOption", Class.forName("java.net.SocketOption"), Object.class);
+            m.invoke(dc, option, Boolean.TRUE);
+            return true;
+        } catch( Exception exc ){
+            Throwable t = exc instanceof java.lang.reflect.InvocationTargetException ? exc.getCause() : exc;
+            LOGGER.warning("Could not share UDP port with SO_REUSEPORT: " + t );
+            return false;
+        }   // end catch
+    }
 
-            SocketChannel client = (SocketChannel) key.channel();               // Source socket
-            ByteBuffer leftoverR = this.leftoverForReading.get(key);            // Leftover data from last read
 
-            // See if there's leftover data to be read
-            // and copy that into inBuff first.
-            if( leftoverR != null && leftoverR.remaining() > 0 ){               // Have a leftoverR outBuff
-                assert knownState( leftoverR, "[..PrrL..]" );
+    /**
+     * Joins a multicast group on a bound datagram channel, with
+     * <code>DatagramChannel.join(..)</code> on Java 7 and later.
+     * Failure is reported but not thrown.
+     * @param dc the channel
+     * @param addr the address the channel is bound to
+     * @param group the multicast group
+     */
+    private void joinGroup( DatagramChannel dc, SocketAddress addr, String group ){
+        int port = ((InetSocketAddress)addr).getPort();
+        InetSocketAddress groupAddr = new InetSocketAddress(group,port);
 
-                if( leftoverR.remaining() <= inBuff.remaining() ){              // Is inBuff big enough to hold leftover
-                    inBuff.put(leftoverR);                                      // Preload all of leftoverR
-                    assert knownState( inBuff, "[..PrrL]" );
+        java.lang.reflect.Method join = null;
+        try{
+            join = DatagramChannel.class.getMethod("join", InetAddress.class, NetworkInterface.class);
+        } catch( NoSuchMethodException exc ){
+            LOGGER.finer("No DatagramChannel.join(..), using the old hack.");   // Java 6
+        }   // end catch
 
-                } else {
-                    while( leftoverR.hasRemaining() && inBuff.hasRemaining() ){ // While they both have more to copy
-                        inBuff.put(leftoverR.get());                            // Copy one byte at a time. Yuck.
-                    }   // end while
-                    assert knownState( inBuff, "[..PL]" );
-                }   // end else
-            }   // end if: have leftoverR outBuff
-
-            // Read into the outBuff here
-            // If End of Stream
-            if( client.read(inBuff) == -1 ){                                    // End of stream?
-                key.cancel();                                                   // Cancel the accKey
-                client.close();                                                 // And cancel the client
-                cleanupClosedConnection(key);
-                fireConnectionClosed(key);                                      // Fire event for connection closed
-                if( LOGGER.isLoggable(Level.FINER) ){
-                    LOGGER.finer("Connection closed: " + key );
-                }
+        if( join != null ){
+            try{
+                join.invoke( dc, groupAddr.getAddress(), multicastInterface((InetSocketAddress)addr) );
+            } catch( Exception exc ){
+                Throwable t = exc instanceof java.lang.reflect.InvocationTargetException ? exc.getCause() : exc;
+                LOGGER.warning("Could not join multicast group: " + t );
+                fireExceptionNotification(t);
+            }   // end catch
+            return;
+        }   // end if: Java 7
+
+        // Found a weird hack to support multicast -- at least for now.
+        try {
+            // http://www.mernst.org/blog/archives/12-01-2006_12-31-2006.html
+            // UGLY UGLY HACK: multicast support for NIO
+            // create a temporary instanceof PlainDatagramSocket, set its fd and configure it
+            @SuppressWarnings(value = "unchecked")
+            java.lang.reflect.Constructor<? extends DatagramSocketImpl> c =
+              (java.lang.reflect.Constructor<? extends DatagramSocketImpl>)Class.forName("java.net.PlainDatagramSocketImpl").getDeclaredConstructor();
+            c.setAccessible(true);
+            DatagramSocketImpl socketImpl = c.newInstance();
+            java.lang.reflect.Field channelFd = Class.forName("sun.nio.ch.DatagramChannelImpl").getDeclaredField("fd");
+            channelFd.setAccessible(true);
+            java.lang.reflect.Field socketFd = DatagramSocketImpl.class.getDeclaredField("fd");
+            socketFd.setAccessible(true);
+            socketFd.set(socketImpl, channelFd.get(dc));
+            try {
+                java.lang.reflect.Method m = DatagramSocketImpl.class.getDeclaredMethod("joinGroup", SocketAddress.class, NetworkInterface.class);
+                m.setAccessible(true);
+                m.invoke(socketImpl, groupAddr, null);
+            } catch (Exception e) {
+                throw e;
+            } finally {
+                // important, otherwise the fake socket's finalizer will nuke the fd
+                socketFd.set(socketImpl, null);
+            }
+        } catch (Exception ex) {
+            LOGGER.warning("Experimental feature failed. Could not join multicast group: " + ex.getMessage() );
+            fireExceptionNotification(ex);
+        }
+    }
 
-            } else {                                                            // Not End of Stream
 
-                inBuff.flip();                                                  // Flip the outBuff to prepare to be read
-                outBuff.clear().flip();                                         // Empty output outBuff
-                assert knownState( inBuff, "[PrrL..]" );
-                assert knownState( outBuff, "[PL...]" );
+    /**
+     * Picks the network interface for joining a multicast group:
+     * the one with the bound address, or for a wildcard binding the
+     * first that is up and supports multicast, preferring one that
+     * is not the loopback.
+     * @param addr the address the channel is bound to
+     * @return the interface
+     * @throws java.net.SocketException if there is no suitable interface
+     */
+    private static NetworkInterface multicastInterface( InetSocketAddress addr ) throws SocketException {
+        InetAddress local = addr.getAddress();
+        if( local != null && !local.isAnyLocalAddress() ){
+            NetworkInterface ni = NetworkInterface.getByInetAddress(local);
+            if( ni != null ){
+                return ni;
+            }   // end if: found
+        }   // end if: specific address
+
+        NetworkInterface loopback = null;
+        Enumeration<NetworkInterface> all = NetworkInterface.getNetworkInterfaces();
+        while( all != null && all.hasMoreElements() ){
+            NetworkInterface ni = all.nextElement();
+            if( ni.isUp() && ni.supportsMulticast() ){
+                if( !ni.isLoopback() ){
+                    return ni;
+                } else if( loopback == null ){
+                    loopback = ni;
+                }   // end else: loopback
+            }   // end if: usable
+        }   // end while: each interface
+        if( loopback == null ){
+            throw new SocketException( "No network interface supports multicast." );
+        }   // end if: none
+        return loopback;
+    }
 
-                fireTcpDataReceived(key,inBuff,outBuff);                        // Fire event for new data
 
-                // If there is also data to be written,
-                // save them in the leftover-for-writing outBuff
-                // and indicate that we should be notified about writability.
-                if( outBuff.remaining() > 0 ){                                  // Did the user leave data to be written?
-                    ByteBuffer leftoverW = this.leftoverForWriting.get(key);    // Leftover still to be written
-                    if( leftoverW == null ){                                    // Leftover outBuff not yet created?
-                        leftoverW = ByteBuffer.allocateDirect(outBuff.remaining()); // Create/resize
+    /**
+     * Queues a command on the server thread to make the binding for
+     * the address match what was requested. Does nothing if the server
+     * is not running, since it binds everything requested when it starts.
+     * @param addr the address
+     * @param tcp true for TCP, false for UDP
+     */
+    private void scheduleBindingUpdate( final SocketAddress addr, final boolean tcp ){
+        IoLoop main = this.mainLoop;
+        if( main != null ){
+            main.execute( new Command(){
+                public void run() throws IOException {
+                    if( tcp ){
+                        updateTcpBinding(addr);
                     } else {
-                        assert knownState( outBuff, "[..PrrL..]" );
-                        if( outBuff.remaining() >                               // Amount requested to be written
-                            leftoverW.capacity() - leftoverW.limit() ){         // vs. space remaining in leftoverW
-
-                            ByteBuffer temp = ByteBuffer.allocateDirect(        // Resize outBuff to...
-                              leftoverW.limit() - leftoverW.position() +        // data remaining in leftover plus
-                              outBuff.remaining() );                            // amount requested this round
-
-                            temp.put(leftoverW).flip();                         // Put new buff in proper state (ready to be read)
-                            leftoverW = temp;                                   // Replace old leftoverW outBuff
-                            assert knownState( leftoverW, "[PrrL__]" );
-
-                        }   // end if: resize leftoverW
-                        assert knownState( leftoverW, "[PrrL..]" );
-                        leftoverW.position( leftoverW.limit() );                // Move position to end of relevant data
-                        leftoverW.limit( leftoverW.capacity() );                // Move limit to end of outBuff
-                        assert knownState( leftoverW, "[..PrrL]" );
+                        updateUdpBinding(addr);
                     }
-                    assert knownState( leftoverW, "[..PrrL]" );
-                    assert knownState( outBuff, "[..PrrL..]" );
-                    leftoverW.put(outBuff).flip();                              // Record newly-arrived data and flip leftoverW
-
-                    assert knownState( leftoverW, "[PrrL..]" );
-                    assert knownState( outBuff, "[..PL..]" );
-
-                    this.leftoverForWriting.put(key,leftoverW);                 // Save leftovers for next time
-                    this.setNotifyOnWritable(key, true);                        // Make sure server processes writes
-                }   // end if: has remaining bytes
-
-
-
-                // If there's leftover data that wasn't read,
-                // save that for next time the event is fired.
-                if( inBuff.remaining() > 0 ){                                   // Did the user leave data for next time?
-                    if( leftoverR == null ||                                    // Leftover outBuff not yet created?
-                        inBuff.remaining() > leftoverR.capacity() ){            // Or is too small?
-                        leftoverR = ByteBuffer.allocateDirect(inBuff.remaining()); // Create/resize
-                    }   // end if: need to resize
-                    assert knownState( inBuff, "[..PrrL..]" );
-                    leftoverR.clear();                                          // Clear old leftovers
-                    leftoverR.put(inBuff).flip();                               // Save new leftovers
-                    assert knownState( leftoverR, "[PrrL..]" );
-
-                }   // end if: has remaining bytes
-                this.leftoverForReading.put(key,leftoverR);                      // Save leftovers for next time
-            }   // end else: read
-        }   // end if: SocketChannel
-
-        // Datagram
-        else if( sc instanceof DatagramChannel ){
-            DatagramChannel dc = (DatagramChannel)sc;                           // Cast to datagram channel
-            SocketAddress remote = null;
-            inBuff.clear(); // Fixed in v0.1.1
-            while( (remote = dc.receive(inBuff)) != null ){                     // Loop over all pending datagrams
-                inBuff.flip();                                                  // Flip after reading in
-                outBuff.clear().flip();
-                key.attach( inBuff );                                           // Attach outBuff to accKey
-                fireUdpDataReceived(key,inBuff,outBuff,remote);                 // Fire event
-
-                if( outBuff.hasRemaining() ){                                   // User left data for response?
-                    dc.send(outBuff, remote);                                   // Try sending it
-                }   // end if: something to write
-                inBuff.clear(); // Fixed in v0.1.1
-            }   // end while: each pending datagram
-        }   // end else: UDP
-
-    }   // end handleRead
-
-
-    /**
-     * Handles notifying listeners that a channel is ready to write.
-     * @param key The accKey associated with the writing
-     * @param buff the ByteBuffer to hold the data
-     * @throws java.io.IOException if an error occurs
-     */
-    private void handleWrite(SelectionKey key, ByteBuffer inBuff, ByteBuffer outBuff ) throws IOException {
-
-        SocketChannel ch = (SocketChannel)key.channel();                        // Source socket
-
-        // First see if we need to write old data
-        // that still hasn't been sent.
-        ByteBuffer leftover = this.leftoverForWriting.get(key);                 // Leftover data still needing to be written
-        if( leftover != null && leftover.remaining() > 0 ){                     // Have a leftoverR outBuff
-            assert knownState( leftover, "[PrrL..]" );
-
-            // DISCUSSION POINT:
-            //     On the one hand, "leftover" will never
-            // be bigger than the output buffer because we only give
-            // the user an opportunity to load the output buffer when
-            // the leftover buffer is empty. In this case, we don't
-            // need to worry about the leftover buffer somehow growing
-            // too big such that we might hog the server's thread,
-            // especially on a slow connection.
-            //     However it's possible that someone could resize the
-            // output buffer with setOutputBufferSize(..) and that
-            // could result in a larger or smaller leftover buffer.
-            // This doesn't seem so bad since the leftover size must
-            // still be something reasonable that was _once_ the
-            // output buffer size and was therefore _once_ considered
-            // a reasonable size perhaps.
-            //     In any event, there would be no need to copy the
-            // leftover buffer to the output buffer before writing,
-            // a notion that might come up for efficiency reasons,
-            // since A) the leftover buffer is a direct buffer anyway,
-            // and B) if it wasn't, the system would automatically
-            // copy the data to system memory eventually anyway.
-            ch.write(leftover);
-
-            if( !leftover.hasRemaining() ){
-                leftover.clear().flip();
-            }
-        }   // end if: have leftoverW outBuff
-
-
-        // If we're done with leftovers, or there were none,
-        // notify user to ask for more.
-        if( leftover == null || !leftover.hasRemaining() ){
-            outBuff.clear().flip();                                             // Clear outBuff
-
-            ////////  FIRE EVENT  ////////
-            fireTcpReadyToWrite(key,outBuff);                                   // Notify listeners who will load outBuff
-            ////////  FIRE EVENT  ////////
-
-            if( outBuff.hasRemaining() ){                                       // Did they give us something?
-                ch.write(outBuff);                                              // Write what we can of it
-            } else {                                                            // They gave us nothing
-                this.setNotifyOnWritable(key, false);                           // Stop notifying
-            }
-
-            // If there are new leftovers, save them for next
-            // time the channel is ready.
-            if( outBuff.hasRemaining() ){                                       // Is there _still_ data left to write?
-                if( leftover == null ||                                         // Leftover outBuff not yet created?
-                    outBuff.remaining() > leftover.capacity() ){                // Or is too small?
-                    leftover = ByteBuffer.allocateDirect(outBuff.remaining());  // Create/resize
-                }   // end if: need to resize
-                leftover.clear();                                               // Clear old leftovers
-                assert knownState( outBuff, "[..PrrL..]" );
-                leftover.put(outBuff).flip();                                   // Save new leftovers
-                assert knownState( leftover, "[PrrL..]" );
-            }
-            this.leftoverForWriting.put(key,leftover);                          // Save leftovers for next time
-        }   // end if: proceed with fresh buffer to user
-
-
-        // After all this writing, see if there's anything left.
-        // If nothing is left, and "close after writing" has been set,
-        // then close the channel.
-        if( this.closeAfterWriting.contains(key) &&                             // Has user requested "close after writing?"
-            (leftover == null || !leftover.hasRemaining())){                    // And is there nothing left to write?
-            ch.close();                                                         // Then close the channel
-        }
+                }   // end run
+            });
+        }   // end if: running
+    }
 
-    }   // end handleWrite
 
+    /**
+     * Opens the extra I/O loops requested with {@link #setIoLoopCount(int)}
+     * and starts a thread for each.
+     * @throws java.io.IOException if a selector cannot be opened
+     */
+    private void startIoLoops() throws IOException {
+        int count = this.ioLoopCount;
+        IoLoop[] loops = new IoLoop[ count ];
+        this.ioLoops = loops;                                                   // So that stopIoLoops() can find any that started
+        for( int i = 0; i < count; i++ ){
+            IoLoop loop = new IoLoop( Selector.open() );
+            String name = this.getClass().getName() + "-io-" + (i+1);
+            loop.thread = this.threadFactory == null
+                    ? new Thread( loop, name )                                  // Our own threads
+                    : this.threadFactory.newThread( loop );                     // User-specified threads
+            loops[i] = loop;
+            loop.thread.start();
+        }   // end for: each loop
+        this.nextLoop = 0;
+    }
 
 
     /**
-     * Removes the accKey and associated data from any maps, sets, etc
-     * that the server uses for state information.
-     * @param key the accKey that's closing
+     * Asks the extra I/O loops to close their connections and
+     * waits for their threads to finish.
      */
-    private void cleanupClosedConnection(SelectionKey key) {
+    private void stopIoLoops(){
+        IoLoop[] loops = this.ioLoops;
+        this.ioLoops = new IoLoop[0];
+        for( IoLoop loop : loops ){
+            if( loop != null ){
+                loop.shutdown();
+            }   // end if: started
+        }   // end for: each loop
+        for( IoLoop loop : loops ){
+            if( loop != null && loop.thread != null && loop.thread != Thread.currentThread() ){
+                try{
+                    loop.thread.join( 5000 );
+                } catch( InterruptedException exc ){
+                    Thread.currentThread().interrupt();                         // Keep the interruption and stop waiting
+                    break;
+                }   // end catch
+            }   // end if: started
+        }   // end for: each loop
+    }
 
-        this.pendingTcpNotifyOnWritable.remove(key);
-        this.leftoverForReading.remove(key);
-        this.leftoverForWriting.remove(key);
-        this.closeAfterWriting.remove(key);
-        this.pendingTcpNotifyOnWritable.remove(key);
 
+    /**
+     * Chooses the I/O loop to hand a new connection to.
+     * Called only on the server thread.
+     * @param loops the extra I/O loops, at least one
+     * @return the chosen loop
+     */
+    private IoLoop pickLoop( IoLoop[] loops ){
+        if( this.balance == Balance.LEAST_CONNECTIONS ){
+            IoLoop best = loops[0];
+            for( int i = 1; i < loops.length; i++ ){
+                if( loops[i].getConnectionCount() < best.getConnectionCount() ){
+                    best = loops[i];
+                }   // end if: fewer connections
+            }   // end for: each loop
+            return best;
+        } else {
+            if( this.nextLoop >= loops.length ){
+                this.nextLoop = 0;
+            }   // end if: wrap around
+            return loops[ this.nextLoop++ ];
+        }   // end else: round robin
     }
 
 
+    /**
+     * Returns the I/O loop whose selector the key belongs to,
+     * or null if there is none, such as after the server stops.
+     * @param key the key
+     * @return the loop or null
+     */
+    private IoLoop loopFor( SelectionKey key ){
+        Selector sel = key.selector();
+        IoLoop main = this.mainLoop;
+        if( main != null && main.selector == sel ){
+            return main;
+        }   // end if: server thread
+        for( IoLoop loop : this.ioLoops ){
+            if( loop != null && loop.selector == sel ){
+                return loop;
+            }   // end if: found
+        }   // end for: each loop
+        return null;
+    }
 
 
 
@@ -1001,19 +1122,16 @@ public class NioServer {
      * @param notify Whether or not to notify
      * @throws NullPointerException if accKey is null
      */
-    public synchronized void setNotifyOnWritable( SelectionKey key, boolean notify ){
-        //if(notify){
-        //    System.out.println("Turning on notifications for " + accKey );
-        //} else {
-        //    System.out.println("Turning off notifications for " + accKey );
-        //}
+    public void setNotifyOnWritable( SelectionKey key, boolean notify ){
         if( key == null ){
             throw new NullPointerException( "Cannot set notifications for null key." );
         }
-        this.pendingTcpNotifyOnWritable.put(key,notify);
-        if( this.selector != null ){
-            this.selector.wakeup();
-        }
+        Object att = key.attachment();
+        IoLoop loop = att instanceof Connection                                 // The loop that owns the connection
+                ? ((Connection)att).loop : loopFor(key);
+        if( loop != null ){
+            loop.setNotifyOnWritable(key, notify);
+        }   // end if: still running
     }
 
 
@@ -1022,57 +1140,177 @@ public class NioServer {
      * after the last byte of the output buffer has been written.
      * @param key the SelectionKey for the corresponding connection
      */
-    public synchronized void closeAfterWriting( SelectionKey key ){
-        this.closeAfterWriting.add(key);
+    public void closeAfterWriting( SelectionKey key ){
+        Object att = key.attachment();
+        if( att instanceof Connection ){                                        // Only TCP connections
+            Connection conn = (Connection)att;
+            conn.loop.closeAfterWriting(conn);                                  // The loop that owns the connection
+        }   // end if: a connection
     }   // end closeAfterWriting
 
 
 
-/* ********  B U F F E R   S I Z E  ******** */
+/* ********  I / O   L O O P S  ******** */
+
 
     /**
-     * Returns the size of the ByteBuffer used to read
-     * from the connections. This refers to the buffer
-     * that will be passed along with {@link Event}
-     * objects as data is received and so forth.
-     * @return The size of the ByteBuffer
+     * Returns the number of I/O loops that service TCP
+     * connections in addition to the server thread.
+     * @return the number of extra loops
+     * @see #setIoLoopCount(int)
      */
-    public synchronized int getInputBufferSize(){
-        return this.inputBufferSize;
+    public int getIoLoopCount(){
+        return this.ioLoopCount;
     }
 
+
     /**
-     * Sets the size of the ByteBuffer used to read
-     * from the connections. This refers to the buffer
-     * that will be passed along with {@link Event}
-     * objects as data is received and so forth.
-     * @param size The size of the ByteBuffer
-     * @throws IllegalArgumentException if size is not positive
+     * <p>Sets the number of I/O loops, each with its own thread,
+     * selector, and buffers, that service TCP connections.
+     * With zero, the default, everything happens on the one
+     * server thread. Otherwise the server thread accepts new
+     * connections and receives UDP datagrams (unless
+     * {@link #setUdpReusePort(boolean)} spreads them too), and hands each
+     * connection to one of the loops according to
+     * {@link #setBalance(NioServer.Balance)}. A connection stays with
+     * its loop, and all its events are fired on that loop's thread,
+     * so listeners may be called on several threads at once
+     * but never at once for the same connection.</p>
+     *
+     * <p>The change takes effect the next time the server starts
+     * (see {@link #reset()}).</p>
+     *
+     * @param count the number of extra loops
+     * @throws IllegalArgumentException if count is negative
      */
-    public synchronized void setInputBufferSize( int size ){
-        if( size <= 0 ){
-            throw new IllegalArgumentException( "New buffer size must be positive: " + size );
-        }   // end if: size outside range
+    public void setIoLoopCount( int count ){
+        if( count < 0 ){
+            throw new IllegalArgumentException( "I/O loop count must not be negative: " + count );
+        }   // end if: out of range
+        int oldVal = this.ioLoopCount;
+        this.ioLoopCount = count;
+        firePropertyChange( IO_LOOP_COUNT_PROP, oldVal, count );
+    }
 
-        int oldVal = this.inputBufferSize;
-        this.inputBufferSize = size;
-        if( this.selector != null ){
-            this.selector.wakeup();
-        }
 
-        firePropertyChange( INPUT_BUFFER_SIZE_PROP, oldVal, size  );
+    /**
+     * Returns how accepted connections are spread over the I/O loops.
+     * @return the balance
+     * @see #setBalance(NioServer.Balance)
+     */
+    public Balance getBalance(){
+        return this.balance;
     }
 
 
     /**
-     * Returns the size of the ByteBuffer used to write
-     * to the connections. This refers to the buffer
-     * that will be passed along with {@link Event}
-     * objects.
-     * @return The size of the ByteBuffer
+     * Sets how accepted connections are spread over the I/O loops,
+     * which takes effect with the next connection.
+     * @param balance the balance
+     * @throws NullPointerException if balance is null
+     * @see #setIoLoopCount(int)
      */
-    public synchronized int getOutputBufferSize(){
-        return this.outputBufferSize;
+    public void setBalance( Balance balance ){
+        if( balance == null ){
+            throw new NullPointerException( "Balance must not be null." );
+        }   // end if: null
+        Balance oldVal = this.balance;
+        this.balance = balance;
+        firePropertyChange( BALANCE_PROP, oldVal, balance );
+    }
+
+
+    /**
+     * Returns whether each UDP binding is also received on the I/O loops.
+     * @return true if UDP ports are shared with the I/O loops
+     * @see #setUdpReusePort(boolean)
+     */
+    public boolean isUdpReusePort(){
+        return this.udpReusePort;
+    }
+
+
+    /**
+     * <p>Sets whether each UDP binding is also received on the I/O loops
+     * (see {@link #setIoLoopCount(int)}), so that a busy port is not limited
+     * to the one server thread. Each binding then gets a channel on the
+     * server thread and on each loop, all bound to the same port with the
+     * <tt>SO_REUSEPORT</tt> socket option, and the operating system spreads
+     * the incoming datagrams among them, usually by their source.
+     * {@link NioServer.Listener#udpDataReceived(NioServer.Event)} is then
+     * fired on several threads at once.</p>
+     *
+     * <p>The option is set by name, since it needs Java 9 or later
+     * and an operating system that supports it, such as Linux 3.9 or later.
+     * Where it is missing, a warning is logged and the binding gets
+     * only the one channel.</p>
+     *
+     * <p>Bindings with a multicast group (see
+     * {@link #addUdpBinding(java.net.SocketAddress,String)}) keep the one
+     * channel on the server thread. The operating system does not spread
+     * multicast datagrams: it hands each one to every socket on the port,
+     * on Linux even to those that did not join the group, so each
+     * datagram would be received once per channel.</p>
+     *
+     * <p>The change applies to UDP bindings made after it, including
+     * everything bound when the server starts.</p>
+     *
+     * @param reuse whether to share UDP ports with the I/O loops
+     */
+    public void setUdpReusePort( boolean reuse ){
+        boolean oldVal = this.udpReusePort;
+        this.udpReusePort = reuse;
+        firePropertyChange( UDP_REUSE_PORT_PROP, oldVal, reuse );
+    }
+
+
+
+/* ********  B U F F E R   S I Z E  ******** */
+
+    /**
+     * Returns the size of the ByteBuffer used to read
+     * from the connections. This refers to the buffer
+     * that will be passed along with {@link Event}
+     * objects as data is received and so forth.
+     * @return The size of the ByteBuffer
+     */
+    public int getInputBufferSize(){
+        return this.inputBufferSize;
+    }
+
+    /**
+     * Sets the size of the ByteBuffer used to read
+     * from the connections. This refers to the buffer
+     * that will be passed along with {@link Event}
+     * objects as data is received and so forth.
+     * @param size The size of the ByteBuffer
+     * @throws IllegalArgumentException if size is not positive
+     */
+    public void setInputBufferSize( int size ){
+        if( size <= 0 ){
+            throw new IllegalArgumentException( "New buffer size must be positive: " + size );
+        }   // end if: size outside range
+
+        int oldVal = this.inputBufferSize;
+        this.inputBufferSize = size;
+        Selector sel = this.selector;
+        if( sel != null ){
+            sel.wakeup();
+        }
+
+        firePropertyChange( INPUT_BUFFER_SIZE_PROP, oldVal, size  );
+    }
+
+
+    /**
+     * Returns the size of the ByteBuffer used to write
+     * to the connections. This refers to the buffer
+     * that will be passed along with {@link Event}
+     * objects.
+     * @return The size of the ByteBuffer
+     */
+    public int getOutputBufferSize(){
+        return this.outputBufferSize;
     }
 
     /**
@@ -1083,20 +1321,455 @@ public class NioServer {
      * @param size The size of the ByteBuffer
      * @throws IllegalArgumentException if size is not positive
      */
-    public synchronized void setOutputBufferSize( int size ){
+    public void setOutputBufferSize( int size ){
         if( size <= 0 ){
             throw new IllegalArgumentException( "New buffer size must be positive: " + size );
         }   // end if: size outside range
 
         int oldVal = this.outputBufferSize;
         this.outputBufferSize = size;
-        if( this.selector != null ){
-            this.selector.wakeup();
+        Selector sel = this.selector;
+        if( sel != null ){
+            sel.wakeup();
         }
 
         firePropertyChange( OUTPUT_BUFFER_SIZE_PROP, oldVal, size  );
     }
 
+
+    /**
+     * Returns the most input a TCP connection may leave
+     * unconsumed before the server closes it.
+     * @return the limit in bytes
+     * @see #setMaxInputSize(int)
+     */
+    public int getMaxInputSize(){
+        return this.maxInputSize;
+    }
+
+
+    /**
+     * Sets the most input a TCP connection may leave unconsumed between
+     * events. Whatever the listeners leave in the input buffer is kept for
+     * the next event, so a peer that never sends a complete message could
+     * otherwise use up any amount of memory. When a connection's leftovers
+     * reach the limit after an event, it is closed and
+     * {@link NioServer.Listener#connectionClosed(NioServer.Event)} fired.
+     * It should be larger than the largest message expected.
+     * The default is 1MB.
+     * @param size the limit in bytes
+     * @throws IllegalArgumentException if size is not positive
+     */
+    public void setMaxInputSize( int size ){
+        if( size <= 0 ){
+            throw new IllegalArgumentException( "Maximum input size must be positive: " + size );
+        }   // end if: size outside range
+
+        int oldVal = this.maxInputSize;
+        this.maxInputSize = size;
+        firePropertyChange( MAX_INPUT_SIZE_PROP, oldVal, size );
+    }
+
+
+    /**
+     * Returns the pool of direct buffers that holds the data each
+     * connection has left over between events. Its counts show
+     * how much direct memory the connections are holding.
+     * @return the pool
+     */
+    public BufferPool getBufferPool(){
+        return this.bufferPool;
+    }
+
+
+    /**
+     * Sets the pool of direct buffers that holds the data each
+     * connection has left over between events, such as one with
+     * an arena (see {@link NioServer.BufferPool#BufferPool(int,int,int)}).
+     * Connections already open keep using the pool they started with,
+     * so that each buffer goes back to the pool it came from, and only
+     * connections accepted after the change use the new one.
+     * @param pool the pool
+     * @throws NullPointerException if pool is null
+     */
+    public void setBufferPool( BufferPool pool ){
+        if( pool == null ){
+            throw new NullPointerException( "Buffer pool must not be null." );
+        }   // end if: null
+        BufferPool oldVal = this.bufferPool;
+        this.bufferPool = pool;
+        firePropertyChange( BUFFER_POOL_PROP, oldVal, pool );
+    }
+
+
+    /**
+     * Returns the number of queued outgoing bytes above which
+     * a connection is no longer writable.
+     * @return the high watermark
+     * @see #setWriteWatermarks(int,int)
+     */
+    public int getWriteHighWatermark(){
+        return this.writeHighWatermark;
+    }
+
+
+    /**
+     * Returns the number of queued outgoing bytes at or below which
+     * a connection that was not writable becomes writable again.
+     * @return the low watermark
+     * @see #setWriteWatermarks(int,int)
+     */
+    public int getWriteLowWatermark(){
+        return this.writeLowWatermark;
+    }
+
+
+    /**
+     * Sets the watermarks for data queued with
+     * {@link NioServer.Connection#write(ByteBuffer[])}. When more than
+     * <tt>high</tt> bytes are waiting to be sent, the connection is no longer
+     * writable, and it becomes writable again once the I/O loop has sent
+     * enough that no more than <tt>low</tt> bytes are waiting. Each change
+     * fires {@link NioServer.ConnectionListener#writabilityChanged(NioServer.Event)},
+     * so that producers can hold off rather than queue without limit.
+     * The defaults are 32KB and 64KB. Open connections are checked against
+     * the new watermarks on their I/O loop's next cycle.
+     * @param low the low watermark
+     * @param high the high watermark
+     * @throws IllegalArgumentException if low is negative or greater than high
+     */
+    public void setWriteWatermarks( int low, int high ){
+        if( low < 0 || high < low ){
+            throw new IllegalArgumentException( "Watermarks must not be negative and low must not exceed high: " + low + ", " + high );
+        }   // end if: out of order
+
+        int oldLow = this.writeLowWatermark;
+        int oldHigh = this.writeHighWatermark;
+        this.writeLowWatermark = low;
+        this.writeHighWatermark = high;
+        recheckWritability();
+        firePropertyChange( WRITE_LOW_WATERMARK_PROP, oldLow, low );
+        firePropertyChange( WRITE_HIGH_WATERMARK_PROP, oldHigh, high );
+    }
+
+
+    /**
+     * Returns the idle timeout for TCP connections in milliseconds,
+     * or zero if there is none.
+     * @return the idle timeout
+     * @see #setIdleTimeout(long)
+     */
+    public long getIdleTimeout(){
+        return this.idleTimeout;
+    }
+
+
+    /**
+     * Sets how long a TCP connection may go without anything being read
+     * from it or written to it. When it has gone that long,
+     * {@link NioServer.ConnectionListener#connectionTimedOut(NioServer.Event)}
+     * is fired, and then the connection is closed and
+     * {@link NioServer.Listener#connectionClosed(NioServer.Event)} fired.
+     * Timeouts are checked on each I/O loop's thread with a timing wheel,
+     * to within about a tenth of a second. Zero, the default, means none.
+     * Applies to connections already open too.
+     * @param millis the timeout in milliseconds, or zero
+     * @throws IllegalArgumentException if millis is negative
+     */
+    public void setIdleTimeout( long millis ){
+        if( millis < 0 ){
+            throw new IllegalArgumentException( "Timeout must not be negative: " + millis );
+        }   // end if: negative
+
+        long oldVal = this.idleTimeout;
+        this.idleTimeout = millis;
+        rescheduleTimeouts();
+        firePropertyChange( IDLE_TIMEOUT_PROP, oldVal, millis );
+    }
+
+
+    /**
+     * Returns the read timeout for TCP connections in milliseconds,
+     * or zero if there is none.
+     * @return the read timeout
+     * @see #setReadTimeout(long)
+     */
+    public long getReadTimeout(){
+        return this.readTimeout;
+    }
+
+
+    /**
+     * Sets how long a TCP connection may go without anything being read
+     * from it, whether or not the server is writing to it, as with a client
+     * that connects and then says nothing. Handled like the idle timeout
+     * (see {@link #setIdleTimeout(long)}). Zero, the default, means none.
+     * @param millis the timeout in milliseconds, or zero
+     * @throws IllegalArgumentException if millis is negative
+     */
+    public void setReadTimeout( long millis ){
+        if( millis < 0 ){
+            throw new IllegalArgumentException( "Timeout must not be negative: " + millis );
+        }   // end if: negative
+
+        long oldVal = this.readTimeout;
+        this.readTimeout = millis;
+        rescheduleTimeouts();
+        firePropertyChange( READ_TIMEOUT_PROP, oldVal, millis );
+    }
+
+
+    /**
+     * Returns the write timeout for TCP connections in milliseconds,
+     * or zero if there is none.
+     * @return the write timeout
+     * @see #setWriteTimeout(long)
+     */
+    public long getWriteTimeout(){
+        return this.writeTimeout;
+    }
+
+
+    /**
+     * Sets how long data may wait to be sent on a TCP connection without
+     * any of it being sent, as with a client that has stopped reading.
+     * The time counts from when the connection's I/O loop first tries to
+     * send the data, not from when it was queued. Handled like the idle timeout (see {@link #setIdleTimeout(long)}).
+     * Zero, the default, means none.
+     * @param millis the timeout in milliseconds, or zero
+     * @throws IllegalArgumentException if millis is negative
+     */
+    public void setWriteTimeout( long millis ){
+        if( millis < 0 ){
+            throw new IllegalArgumentException( "Timeout must not be negative: " + millis );
+        }   // end if: negative
+
+        long oldVal = this.writeTimeout;
+        this.writeTimeout = millis;
+        rescheduleTimeouts();
+        firePropertyChange( WRITE_TIMEOUT_PROP, oldVal, millis );
+    }
+
+
+    /**
+     * Asks each running I/O loop to check the writability of
+     * its open connections again, after the watermarks have changed.
+     */
+    private void recheckWritability(){
+        List<IoLoop> loops = new ArrayList<IoLoop>( Arrays.asList( this.ioLoops ) );
+        IoLoop main = this.mainLoop;
+        if( main != null ){
+            loops.add(main);
+        }   // end if: running
+        for( final IoLoop loop : loops ){
+            loop.execute( new Command(){
+                public void run(){
+                    loop.checkAllWritability();
+                }   // end run
+            });
+        }   // end for: each loop
+    }
+
+
+    /**
+     * Asks each running I/O loop to check the timeouts of
+     * its open connections again, after they have changed.
+     */
+    private void rescheduleTimeouts(){
+        List<IoLoop> loops = new ArrayList<IoLoop>( Arrays.asList( this.ioLoops ) );
+        IoLoop main = this.mainLoop;
+        if( main != null ){
+            loops.add(main);
+        }   // end if: running
+        for( final IoLoop loop : loops ){
+            loop.execute( new Command(){
+                public void run(){
+                    loop.scheduleAllTimeouts();
+                }   // end run
+            });
+        }   // end for: each loop
+    }
+
+
+
+/* ********  R E A D   B U D G E T S  ******** */
+
+
+    /**
+     * Returns the most bytes read from one TCP connection each time
+     * around its I/O loop, for bindings without their own budget.
+     * @return the budget in bytes
+     * @see #setTcpReadBudget(int)
+     */
+    public int getTcpReadBudget(){
+        return this.tcpReadBudget;
+    }
+
+
+    /**
+     * <p>Sets the most bytes read from one TCP connection each time around
+     * its I/O loop, for bindings without their own budget. A connection is
+     * read, and {@link NioServer.Listener#tcpDataReceived(NioServer.Event)}
+     * fired, once per input buffer full until the budget is used up or the
+     * socket is empty. Whatever is left waits until every other channel
+     * that was ready has had its turn, so that one fast sender cannot hold
+     * up the rest of the loop. The default is 64KB.</p>
+     *
+     * @param bytes the budget in bytes
+     * @throws IllegalArgumentException if bytes is not positive
+     */
+    public void setTcpReadBudget( int bytes ){
+        if( bytes <= 0 ){
+            throw new IllegalArgumentException( "Budget must be positive: " + bytes );
+        }   // end if: not positive
+
+        int oldVal = this.tcpReadBudget;
+        this.tcpReadBudget = bytes;
+        firePropertyChange( TCP_READ_BUDGET_PROP, oldVal, bytes );
+    }
+
+
+    /**
+     * Returns the most bytes read each time around the I/O loop
+     * from a TCP connection accepted on the given binding.
+     * @param binding the TCP binding
+     * @return the binding's budget, or the server's if it has none
+     * @see #setTcpReadBudget(java.net.SocketAddress,int)
+     */
+    public int getTcpReadBudget( SocketAddress binding ){
+        Integer bytes = binding == null ? null : this.tcpReadBudgets.get(binding);
+        return bytes == null ? this.tcpReadBudget : bytes;
+    }
+
+
+    /**
+     * Sets the read budget (see {@link #setTcpReadBudget(int)}) for
+     * TCP connections accepted on the given binding, such as a small
+     * one for bulk transfers so that a control port stays responsive.
+     * Zero goes back to the server's budget. Applies to connections
+     * already open too, and may be set before the binding is added.
+     * @param binding the TCP binding
+     * @param bytes the budget in bytes, or zero
+     * @throws NullPointerException if binding is null
+     * @throws IllegalArgumentException if bytes is negative
+     */
+    public void setTcpReadBudget( SocketAddress binding, int bytes ){
+        if( binding == null ){
+            throw new NullPointerException( "Binding must not be null." );
+        } else if( bytes < 0 ){
+            throw new IllegalArgumentException( "Budget must not be negative: " + bytes );
+        }   // end else: negative
+
+        synchronized( this.tcpReadBudgets ){
+            Map<SocketAddress,Integer> oldVal = getTcpReadBudgets();            // Save old map for prop change event
+            if( bytes == 0 ){
+                this.tcpReadBudgets.remove(binding);
+            } else {
+                this.tcpReadBudgets.put(binding, bytes);
+            }   // end else: own budget
+            Map<SocketAddress,Integer> newVal = getTcpReadBudgets();            // Save new map for prop change event
+            firePropertyChange( TCP_READ_BUDGETS_PROP, oldVal, newVal );
+        }   // end sync
+    }
+
+
+    /**
+     * Returns the TCP bindings that have their own read budget, and
+     * their budgets. The map is a copy: changing it has no effect on
+     * the server.
+     * @return map of binding to budget in bytes
+     * @see #setTcpReadBudget(java.net.SocketAddress,int)
+     */
+    public Map<SocketAddress,Integer> getTcpReadBudgets(){
+        return new HashMap<SocketAddress,Integer>( this.tcpReadBudgets );
+    }
+
+
+    /**
+     * Returns the most datagrams received on one UDP binding each time
+     * around the server's loop, for bindings without their own budget.
+     * @return the budget in datagrams
+     * @see #setUdpReceiveBudget(int)
+     */
+    public int getUdpReceiveBudget(){
+        return this.udpReceiveBudget;
+    }
+
+
+    /**
+     * Sets the most datagrams received on one UDP binding, and
+     * {@link NioServer.Listener#udpDataReceived(NioServer.Event)} fired for,
+     * each time around the server's loop, for bindings without their own
+     * budget. Datagrams still waiting are received once every other channel
+     * that was ready has had its turn, so that a burst of datagrams cannot
+     * hold up the TCP connections on the same thread. The default is 64.
+     * @param datagrams the budget in datagrams
+     * @throws IllegalArgumentException if datagrams is not positive
+     */
+    public void setUdpReceiveBudget( int datagrams ){
+        if( datagrams <= 0 ){
+            throw new IllegalArgumentException( "Budget must be positive: " + datagrams );
+        }   // end if: not positive
+
+        int oldVal = this.udpReceiveBudget;
+        this.udpReceiveBudget = datagrams;
+        firePropertyChange( UDP_RECEIVE_BUDGET_PROP, oldVal, datagrams );
+    }
+
+
+    /**
+     * Returns the most datagrams received on the given
+     * UDP binding each time around the server's loop.
+     * @param binding the UDP binding
+     * @return the binding's budget, or the server's if it has none
+     * @see #setUdpReceiveBudget(java.net.SocketAddress,int)
+     */
+    public int getUdpReceiveBudget( SocketAddress binding ){
+        Integer datagrams = binding == null ? null : this.udpReceiveBudgets.get(binding);
+        return datagrams == null ? this.udpReceiveBudget : datagrams;
+    }
+
+
+    /**
+     * Sets the receive budget (see {@link #setUdpReceiveBudget(int)})
+     * for the given UDP binding. Zero goes back to the server's budget.
+     * May be set before the binding is added.
+     * @param binding the UDP binding
+     * @param datagrams the budget in datagrams, or zero
+     * @throws NullPointerException if binding is null
+     * @throws IllegalArgumentException if datagrams is negative
+     */
+    public void setUdpReceiveBudget( SocketAddress binding, int datagrams ){
+        if( binding == null ){
+            throw new NullPointerException( "Binding must not be null." );
+        } else if( datagrams < 0 ){
+            throw new IllegalArgumentException( "Budget must not be negative: " + datagrams );
+        }   // end else: negative
+
+        synchronized( this.udpReceiveBudgets ){
+            Map<SocketAddress,Integer> oldVal = getUdpReceiveBudgets();         // Save old map for prop change event
+            if( datagrams == 0 ){
+                this.udpReceiveBudgets.remove(binding);
+            } else {
+                this.udpReceiveBudgets.put(binding, datagrams);
+            }   // end else: own budget
+            Map<SocketAddress,Integer> newVal = getUdpReceiveBudgets();         // Save new map for prop change event
+            firePropertyChange( UDP_RECEIVE_BUDGETS_PROP, oldVal, newVal );
+        }   // end sync
+    }
+
+
+    /**
+     * Returns the UDP bindings that have their own receive budget, and
+     * their budgets. The map is a copy: changing it has no effect on
+     * the server.
+     * @return map of binding to budget in datagrams
+     * @see #setUdpReceiveBudget(java.net.SocketAddress,int)
+     */
+    public Map<SocketAddress,Integer> getUdpReceiveBudgets(){
+        return new HashMap<SocketAddress,Integer>( this.udpReceiveBudgets );
+    }
+
 /* ********  T C P   B I N D I N G S  ******** */
 
 
@@ -1111,17 +1784,14 @@ public class NioServer {
      * @param addr The address on which to listen
      * @return "this" to aid in chaining commands
      */
-    public synchronized NioServer addTcpBinding( SocketAddress addr ){
-        Set<SocketAddress> oldVal = this.getTcpBindings();                      // Save old set for prop change event
-        this.tcpBindings.put(addr,null);                                        // Add binding
-        Set<SocketAddress> newVal = this.getTcpBindings();                      // Save new set for prop change event
-        this.pendingTcpAdds.add(addr);                                          // Prepare pending add action
-        this.pendingTcpRemoves.remove(addr);                                    // In case it's also pending a remove
-
-        if( this.selector != null ){                                            // If there's a selector...
-            this.selector.wakeup();                                             // Wake it up to handle the add action
-        }
-        firePropertyChange(TCP_BINDINGS_PROP, oldVal, newVal);                  // Fire prop change
+    public NioServer addTcpBinding( SocketAddress addr ){
+        synchronized( this.bindingLock ){
+            Set<SocketAddress> oldVal = this.getTcpBindings();                  // Save old set for prop change event
+            this.tcpBindings.add(addr);                                         // Add binding
+            Set<SocketAddress> newVal = this.getTcpBindings();                  // Save new set for prop change event
+            scheduleBindingUpdate(addr, true);                                  // Server thread binds it on next cycle
+            firePropertyChange(TCP_BINDINGS_PROP, oldVal, newVal);              // Fire prop change
+        }   // end sync
         return this;
     }
 
@@ -1133,17 +1803,14 @@ public class NioServer {
      * @param addr The address to stop listening to
      * @return "this" to aid in chaining commands
      */
-    public synchronized NioServer removeTcpBinding( SocketAddress addr ){
-        Set<SocketAddress> oldVal = this.getTcpBindings();                      // Save old set for prop change event
-        this.pendingTcpRemoves.put( addr, this.tcpBindings.get(addr) );         // Prepare pending remove action
-        this.tcpBindings.remove(addr);                                          // Remove binding
-        this.pendingTcpAdds.remove(addr);                                       // In case it's also pending an add
-        Set<SocketAddress> newVal = this.getTcpBindings();                      // Save new set for prop change event
-
-        if( this.selector != null ){                                            // If there's a selector...
-            this.selector.wakeup();                                             // Wake it up to handle the remove action
-        }
-        firePropertyChange(TCP_BINDINGS_PROP, oldVal, newVal);                  // Fire prop change
+    public NioServer removeTcpBinding( SocketAddress addr ){
+        synchronized( this.bindingLock ){
+            Set<SocketAddress> oldVal = this.getTcpBindings();                  // Save old set for prop change event
+            this.tcpBindings.remove(addr);                                      // Remove binding
+            Set<SocketAddress> newVal = this.getTcpBindings();                  // Save new set for prop change event
+            scheduleBindingUpdate(addr, true);                                  // Server thread unbinds it on next cycle
+            firePropertyChange(TCP_BINDINGS_PROP, oldVal, newVal);              // Fire prop change
+        }   // end sync
         return this;
     }
 
@@ -1156,9 +1823,9 @@ public class NioServer {
      * set have no effect on the server.
      * @return set of tcp listening points
      */
-    public synchronized Set<SocketAddress> getTcpBindings(){
+    public Set<SocketAddress> getTcpBindings(){
         Set<SocketAddress> bindings = new HashSet<SocketAddress>();
-        bindings.addAll( this.tcpBindings.keySet() );
+        bindings.addAll( this.tcpBindings );
         return bindings;
     }
 
@@ -1170,27 +1837,29 @@ public class NioServer {
      * @param newSet
      * @return "this" to aid in chaining commands
      */
-    public synchronized NioServer setTcpBindings( Set<SocketAddress> newSet ){
+    public NioServer setTcpBindings( Set<SocketAddress> newSet ){
         Set<SocketAddress> toAdd = new HashSet<SocketAddress>();
         Set<SocketAddress> toRemove = new HashSet<SocketAddress>();
 
-        toRemove.addAll( getTcpBindings() );
-        for( SocketAddress addr : newSet ){
-            if( toRemove.contains(addr) ){
-                toRemove.remove(addr);
-            } else {
-                toAdd.add(addr);
-            }
-        }   // end for: each new addr
+        synchronized( this.bindingLock ){
+            toRemove.addAll( getTcpBindings() );
+            for( SocketAddress addr : newSet ){
+                if( toRemove.contains(addr) ){
+                    toRemove.remove(addr);
+                } else {
+                    toAdd.add(addr);
+                }
+            }   // end for: each new addr
 
 
-        for( SocketAddress addr : toRemove ){
-            removeTcpBinding(addr);
-        }   // end for: each new addr
+            for( SocketAddress addr : toRemove ){
+                removeTcpBinding(addr);
+            }   // end for: each new addr
 
-        for( SocketAddress addr : toAdd ){
-            addTcpBinding(addr);
-        }   // end for: each new addr
+            for( SocketAddress addr : toAdd ){
+                addTcpBinding(addr);
+            }   // end for: each new addr
+        }   // end sync
 
         return this;
     }
@@ -1201,10 +1870,12 @@ public class NioServer {
      * Clears all TCP bindings.
      * @return "this" to aid in chaining commands
      */
-    public synchronized NioServer clearTcpBindings(){
-        for( SocketAddress addr : getTcpBindings() ){
-            removeTcpBinding(addr);
-        }
+    public NioServer clearTcpBindings(){
+        synchronized( this.bindingLock ){
+            for( SocketAddress addr : getTcpBindings() ){
+                removeTcpBinding(addr);
+            }
+        }   // end sync
         return this;
     }
 
@@ -1222,7 +1893,7 @@ public class NioServer {
      * @param addr The address on which to listen
      * @return "this" to aid in chaining commands
      */
-    public synchronized NioServer addUdpBinding( SocketAddress addr ){
+    public NioServer addUdpBinding( SocketAddress addr ){
         return addUdpBinding(addr,null);
     }
 
@@ -1240,25 +1911,29 @@ public class NioServer {
      * don't support multicast groups ("annoyed grunt"), however I
      * found a clever hack at this gentleman's website
      * (<a href="http://www.mernst.org/blog/archives/12-01-2006_12-31-2006.html">http://www.mernst.org/blog/archives/12-01-2006_12-31-2006.html</a>)
-     * that makes multicast work -- for now.</p>
+     * that makes multicast work -- for now. On Java 7 and later,
+     * <code>DatagramChannel.join(..)</code> is used instead, on the
+     * interface with the bound address, or for a wildcard address
+     * the first interface that supports multicast.</p>
+     *
+     * <p>The binding is received on the server thread alone, even
+     * with {@link #setUdpReusePort(boolean)} turned on.</p>
      *
      * @param addr The address on which to listen
      * @param group The multicast group to join
      * @return "this" to aid in chaining commands
      */
-    public synchronized NioServer addUdpBinding( SocketAddress addr, String group ){
-        Map<SocketAddress,String> oldVal = this.getUdpBindings();
-        this.udpBindings.put(addr,null);
-        this.pendingUdpAdds.add(addr);
-        this.pendingUdpRemoves.remove(addr);
-        if( group != null ){
-            this.multicastGroups.put(addr,group);
-        }   // end if: multicast too
-        Map<SocketAddress,String> newVal = this.getUdpBindings();
-        if( this.selector != null ){
-            this.selector.wakeup();
-        }
-        firePropertyChange(UDP_BINDINGS_PROP,oldVal,newVal);
+    public NioServer addUdpBinding( SocketAddress addr, String group ){
+        synchronized( this.bindingLock ){
+            Map<SocketAddress,String> oldVal = this.getUdpBindings();
+            if( group != null ){
+                this.multicastGroups.put(addr,group);
+            }   // end if: multicast too
+            this.udpBindings.add(addr);
+            Map<SocketAddress,String> newVal = this.getUdpBindings();
+            scheduleBindingUpdate(addr, false);
+            firePropertyChange(UDP_BINDINGS_PROP,oldVal,newVal);
+        }   // end sync
         return this;
     }
 
@@ -1271,18 +1946,15 @@ public class NioServer {
      * @param addr The address to stop listening to
      * @return "this" to aid in chaining commands
      */
-    public synchronized NioServer removeUdpBinding( SocketAddress addr ){
-        Map<SocketAddress,String> oldVal = this.getUdpBindings();               // Save old set for prop change event
-        this.pendingUdpRemoves.put( addr, this.udpBindings.get(addr) );         // Prepare pending remove action
-        this.udpBindings.remove(addr);                                          // Remove binding
-        this.multicastGroups.remove(addr);                                      // Remove multicast note
-        this.pendingUdpAdds.remove(addr);                                       // In case it's also pending an add
-        Map<SocketAddress,String> newVal = this.getUdpBindings();               // Save new set for prop change event
-
-        if( this.selector != null ){                                            // If there's a selector...
-            this.selector.wakeup();                                             // Wake it up to handle the remove action
-        }
-        firePropertyChange(UDP_BINDINGS_PROP, oldVal, newVal);                  // Fire prop change
+    public NioServer removeUdpBinding( SocketAddress addr ){
+        synchronized( this.bindingLock ){
+            Map<SocketAddress,String> oldVal = this.getUdpBindings();           // Save old set for prop change event
+            this.udpBindings.remove(addr);                                      // Remove binding
+            this.multicastGroups.remove(addr);                                  // Remove multicast note
+            Map<SocketAddress,String> newVal = this.getUdpBindings();           // Save new set for prop change event
+            scheduleBindingUpdate(addr, false);                                 // Server thread unbinds it on next cycle
+            firePropertyChange(UDP_BINDINGS_PROP, oldVal, newVal);              // Fire prop change
+        }   // end sync
         return this;
     }
 
@@ -1299,9 +1971,9 @@ public class NioServer {
      * be the requested multicast group.
      * @return map of udp listening points
      */
-    public synchronized Map<SocketAddress,String> getUdpBindings(){
+    public Map<SocketAddress,String> getUdpBindings(){
         Map<SocketAddress,String>bindings = new HashMap<SocketAddress,String>();
-        for( SocketAddress addr : this.udpBindings.keySet() ){
+        for( SocketAddress addr : this.udpBindings ){
             bindings.put(addr, this.multicastGroups.get(addr) );
         }   // end for: each address
         return bindings;
@@ -1316,38 +1988,108 @@ public class NioServer {
      * then that will be the channel from which the datagram is sent.
      * If the boundFrom address/port is not
      * bound (via {@link #addUdpBinding(java.net.SocketAddress)}), then
-     * a new binding will be established and maintained, essentially creating
-     * a means to listen for replies.
+     * a new binding will be established and, if the server is running,
+     * maintained, essentially creating a means to listen for replies.
      * If boundFrom is null, then
      * the system will pick an arbitrary port from which to send the data.
+     * Calls made at once with the same boundFrom, not yet bound, all send
+     * from the channel that the first of them binds.
      *
      * @param boundFrom Source of reply
      * @param dest      Destination for reply
      * @param out       Data to send
      * @throws java.io.IOException
      */
-    public synchronized SocketAddress sendUdp( SocketAddress boundFrom, SocketAddress dest, ByteBuffer out ) throws IOException{
-        SelectionKey key = this.udpBindings.get(boundFrom);     // Attempt to retrieve previous binding
-        DatagramChannel dc = null;
-        if( key == null ){                                      // If no binding found...
-            dc = DatagramChannel.open();                        // Create channel
-            dc.socket().bind(boundFrom);                        // Bind to specific "from" or any if null
-            dc.configureBlocking(false);                        // Make non-blocking i/o
-            this.pendingUdpToRegister.add(dc);
-            dc.send(out, dest);                                 // Send data
-        } else {
-            SelectableChannel sc = key.channel();               // Get existing channel
-            if( sc instanceof DatagramChannel ){                // Verify it is DatagramChannel (assert may work here)
-                dc = (DatagramChannel)sc;                       // Cast to DatagramChannel
-                dc.send(out, dest);                             // Send data
-            } else {
-                throw new IOException("Reply cannot be sent from non-Datagram channel: " + sc );
-            }
-        }   // end else: got channel
+    public SocketAddress sendUdp( SocketAddress boundFrom, SocketAddress dest, ByteBuffer out ) throws IOException{
+        DatagramChannel dc = boundFrom == null                  // Attempt to retrieve previous binding
+                ? null : findUdpChannel(boundFrom);
+        if( dc == null ){                                       // If no binding found...
+            synchronized( this.bindingLock ){                   // One call binds it, others wait and use it
+                dc = boundFrom == null ? null : findUdpChannel(boundFrom);
+                if( dc == null ){
+                    dc = DatagramChannel.open();                // Create channel
+                    SocketAddress local = null;
+                    try{
+                        dc.socket().bind(boundFrom);            // Bind to specific "from" or any if null
+                        dc.configureBlocking(false);            // Make non-blocking i/o
+                        local = dc.socket().getLocalSocketAddress();
+                    } catch( IOException exc ){
+                        dc.close();
+                        throw exc;
+                    }   // end catch
+                    try{
+                        dc.send(out, dest);                     // Send data
+                    } finally {
+                        listenForReplies(dc, local);            // Registered on the server thread
+                    }   // end finally
+                    return local;
+                }   // end if: still not bound
+            }   // end sync
+        }   // end if: not bound
+        dc.send(out, dest);                                     // Send data
         return dc.socket().getLocalSocketAddress();
     }   // end sendUdpReply
 
 
+    /**
+     * Returns the channel bound to the address, either by a UDP binding
+     * or by an earlier {@link #sendUdp} whose channel the server thread
+     * has not registered yet, or null if there is none.
+     * @param addr the address
+     * @return the channel or null
+     * @throws java.io.IOException if the address is bound to something else
+     */
+    private DatagramChannel findUdpChannel( SocketAddress addr ) throws IOException {
+        DatagramChannel dc = this.replyChannels.get(addr);     // Before the keys, which registering fills first
+        if( dc != null ){
+            return dc;
+        }   // end if: not registered yet
+
+        SelectionKey key = this.udpKeys.get(addr);
+        if( key == null ){
+            return null;
+        }   // end if: not bound
+        SelectableChannel sc = key.channel();                   // Get existing channel
+        if( sc instanceof DatagramChannel ){                    // Verify it is DatagramChannel (assert may work here)
+            return (DatagramChannel)sc;
+        } else {
+            throw new IOException("Reply cannot be sent from non-Datagram channel: " + sc );
+        }
+    }
+
+
+    /**
+     * Queues a channel opened by {@link #sendUdp} to be registered
+     * on the server thread like any other UDP binding, or closes it
+     * if the server is not running.
+     * @param dc the channel
+     * @param local the address it is bound to
+     * @throws java.io.IOException if the channel cannot be closed
+     */
+    private void listenForReplies( final DatagramChannel dc, final SocketAddress local ) throws IOException{
+        IoLoop main = this.mainLoop;
+        if( main == null ){
+            dc.close();
+        } else {
+            this.replyChannels.put(local, dc);                      // Found by sendUdp until registered
+            main.execute( new Command(){
+                public void run() throws IOException {
+                    try{
+                        if( dc.isOpen() ){
+                            SelectionKey acceptKey = dc.register(   // Register to listen for replies
+                              selector, SelectionKey.OP_READ, local ); // Listen for READ events
+                            udpKeys.put(local, acceptKey);          // Save key
+                            udpBindings.add(local);
+                        }   // end if: still open
+                    } finally {
+                        replyChannels.remove(local);                // After the key is there
+                    }   // end finally
+                }   // end run
+            });
+        }   // end else: running
+    }
+
+
     /**
      * <p>Sets the UDP bindings that the server should use.
      * The expression <code>setTcpBindings( getTcpBindings() )</code>
@@ -1358,29 +2100,31 @@ public class NioServer {
      * @param newMap
      * @return "this" to aid in chaining commands
      */
-    public synchronized NioServer setUdpBindings( Map<SocketAddress,String> newMap ){
+    public NioServer setUdpBindings( Map<SocketAddress,String> newMap ){
         Map<SocketAddress,String> toAdd = new HashMap<SocketAddress,String>();
         Map<SocketAddress,String> toRemove = new HashMap<SocketAddress,String>();
 
-        toRemove.putAll( getUdpBindings() );
-        for( Map.Entry<SocketAddress,String> e : newMap.entrySet() ){
-            SocketAddress addr = e.getKey();
-            String group = e.getValue();
-            if( toRemove.containsKey(addr) ){
-                toRemove.remove(addr);
-            } else {
-                toAdd.put(addr,group);
-            }
-        }   // end for: each new addr
+        synchronized( this.bindingLock ){
+            toRemove.putAll( getUdpBindings() );
+            for( Map.Entry<SocketAddress,String> e : newMap.entrySet() ){
+                SocketAddress addr = e.getKey();
+                String group = e.getValue();
+                if( toRemove.containsKey(addr) ){
+                    toRemove.remove(addr);
+                } else {
+                    toAdd.put(addr,group);
+                }
+            }   // end for: each new addr
 
 
-        for( Map.Entry<SocketAddress,String> e : toRemove.entrySet() ){
-            removeUdpBinding(e.getKey());
-        }   // end for: each new addr
+            for( Map.Entry<SocketAddress,String> e : toRemove.entrySet() ){
+                removeUdpBinding(e.getKey());
+            }   // end for: each new addr
 
-        for( Map.Entry<SocketAddress,String> e : toAdd.entrySet() ){
-            addUdpBinding(e.getKey(),e.getValue());
-        }   // end for: each new addr
+            for( Map.Entry<SocketAddress,String> e : toAdd.entrySet() ){
+                addUdpBinding(e.getKey(),e.getValue());
+            }   // end for: each new addr
+        }   // end sync
 
         return this;
     }
@@ -1390,10 +2134,12 @@ public class NioServer {
      * Clears all UDP bindings.
      * @return "this" to aid in chaining commands
      */
-    public synchronized NioServer clearUdpBindings(){
-        for( SocketAddress addr : getUdpBindings().keySet() ){
-            removeUdpBinding(addr);
-        }
+    public NioServer clearUdpBindings(){
+        synchronized( this.bindingLock ){
+            for( SocketAddress addr : getUdpBindings().keySet() ){
+                removeUdpBinding(addr);
+            }
+        }   // end sync
         return this;
     }
 
@@ -1409,15 +2155,17 @@ public class NioServer {
      * @return <code>this</code> to aid in chaining
      * @throws IllegalArgumentException if port is out of range
      */
-    public synchronized NioServer setSingleTcpPort( int port ){
-        int oldVal = getSingleTcpPort();
-        if( oldVal == port ){
-            return this;
-        }
-        clearTcpBindings();
-        addTcpBinding( new InetSocketAddress(port) );
-        int newVal =  port;
-        firePropertyChange( SINGLE_TCP_PORT_PROP, oldVal, newVal );
+    public NioServer setSingleTcpPort( int port ){
+        synchronized( this.bindingLock ){
+            int oldVal = getSingleTcpPort();
+            if( oldVal == port ){
+                return this;
+            }
+            clearTcpBindings();
+            addTcpBinding( new InetSocketAddress(port) );
+            int newVal =  port;
+            firePropertyChange( SINGLE_TCP_PORT_PROP, oldVal, newVal );
+        }   // end sync
         return this;
     }
 
@@ -1429,7 +2177,7 @@ public class NioServer {
      * @return <code>this</code> to aid in chaining
      * @throws IllegalArgumentException if port is out of range
      */
-    public synchronized NioServer setSingleUdpPort( int port ){
+    public NioServer setSingleUdpPort( int port ){
         return setSingleUdpPort( port, null );
     }
 
@@ -1443,15 +2191,17 @@ public class NioServer {
      * @return <code>this</code> to aid in chaining
      * @throws IllegalArgumentException if port is out of range
      */
-    public synchronized NioServer setSingleUdpPort( int port, String group ){
-        int oldVal = getSingleUdpPort();
-        if( oldVal == port ){
-            return this;
-        }
-        clearUdpBindings();
-        addUdpBinding( new InetSocketAddress(port), group );
-        int newVal =  port;
-        firePropertyChange( SINGLE_UDP_PORT_PROP, oldVal, newVal );
+    public NioServer setSingleUdpPort( int port, String group ){
+        synchronized( this.bindingLock ){
+            int oldVal = getSingleUdpPort();
+            if( oldVal == port ){
+                return this;
+            }
+            clearUdpBindings();
+            addUdpBinding( new InetSocketAddress(port), group );
+            int newVal =  port;
+            firePropertyChange( SINGLE_UDP_PORT_PROP, oldVal, newVal );
+        }   // end sync
         return this;
     }
 
@@ -1463,7 +2213,7 @@ public class NioServer {
      * bindings or some other error.
      * @return TCP listening port or -1
      */
-    public synchronized int getSingleTcpPort(){
+    public int getSingleTcpPort(){
         int port = -1;
         Set<SocketAddress> bindings = getTcpBindings();
         if( bindings.size() == 1 ){
@@ -1483,7 +2233,7 @@ public class NioServer {
      * bindings or some other error.
      * @return UDP listening port or -1
      */
-    public synchronized int getSingleUdpPort(){
+    public int getSingleUdpPort(){
         int port = -1;
         Map<SocketAddress,String> bindings = getUdpBindings();
         if( bindings.size() == 1 ){
@@ -1502,38 +2252,42 @@ public class NioServer {
     /** Adds a {@link Listener}.
      * @param l the listener
      */
-    public synchronized void addNioServerListener(NioServer.Listener l) {
-        listeners.add(l);
-        cachedListeners = null;
+    public void addNioServerListener(NioServer.Listener l) {
+        synchronized( listeners ){
+            listeners.add(l);
+            cachedListeners = listeners.toArray(new NioServer.Listener[ listeners.size() ] );
+        }   // end sync
     }
 
 
     /** Removes a {@link Listener}.
      * @param l the listener
      */
-    public synchronized void removeNioServerListener(NioServer.Listener l) {
-        listeners.remove(l);
-        cachedListeners = null;
+    public void removeNioServerListener(NioServer.Listener l) {
+        synchronized( listeners ){
+            listeners.remove(l);
+            cachedListeners = listeners.toArray(new NioServer.Listener[ listeners.size() ] );
+        }   // end sync
     }
 
 
     /**
      * Fire when data is received.
+     * @param event the event of the I/O loop firing it
      * @param key the SelectionKey associated with the data
-     * @param outBuff the outBuff containing the new (and possibly leftoverR) data
+     * @param input the chain holding the new (and possibly leftover) data
+     * @param outBuff the outBuff for data to be written
      */
-    protected synchronized void fireTcpDataReceived(SelectionKey key, ByteBuffer inBuff, ByteBuffer outBuff ) {
+    protected void fireTcpDataReceived(NioServer.Event event, SelectionKey key, NioServer.CompositeBuffer input, ByteBuffer outBuff ) {
 
-        if( cachedListeners == null ){
-            cachedListeners = listeners.toArray(new NioServer.Listener[ listeners.size() ] );
-        }
-        this.event.reset(key,inBuff,outBuff,null);
+        NioServer.Listener[] snapshot = this.cachedListeners;                   // Copied on change, so no lock needed
+        event.reset(key,input,outBuff);
 
         // Make a Runnable object to execute the calls to listeners.
         // In the event we don't have an Executor, this results in
         // an unnecessary object instantiation, but it also makes
         // the code more maintainable.
-        for( NioServer.Listener l : cachedListeners ){
+        for( NioServer.Listener l : snapshot ){
             try{
                 l.tcpDataReceived(event);
             } catch( Exception exc ){
@@ -1546,22 +2300,21 @@ public class NioServer {
 
     /**
      * Fire when data is received.
+     * @param event the event of the I/O loop firing it
      * @param key the SelectionKey associated with the data
      * @param outBuff the outBuff containing the new (and possibly leftoverR) data
      */
-    protected synchronized void fireTcpReadyToWrite(SelectionKey key, ByteBuffer outBuff) {
+    protected void fireTcpReadyToWrite(NioServer.Event event, SelectionKey key, ByteBuffer outBuff) {
         assert knownState( outBuff, "[PL..]" );
 
-        if( cachedListeners == null ){
-            cachedListeners = listeners.toArray(new NioServer.Listener[ listeners.size() ] );
-        }
-        this.event.reset(key,null,outBuff,null);
+        NioServer.Listener[] snapshot = this.cachedListeners;                   // Copied on change, so no lock needed
+        event.reset(key,null,outBuff,null);
 
         // Make a Runnable object to execute the calls to listeners.
         // In the event we don't have an Executor, this results in
         // an unnecessary object instantiation, but it also makes
         // the code more maintainable.
-        for( NioServer.Listener l : cachedListeners ){
+        for( NioServer.Listener l : snapshot ){
             try{
                 l.tcpReadyToWrite(event);
             } catch( Exception exc ){
@@ -1575,23 +2328,22 @@ public class NioServer {
 
     /**
      * Fire when data is received.
+     * @param event the event of the I/O loop firing it
      * @param key the SelectionKey associated with the data
      * @param inBuff the input buffer containing the data
      * @param remote the source address of the datagram or null if not available
      * @param outBuff the output buffer for writing data
      */
-    protected synchronized void fireUdpDataReceived(SelectionKey key, ByteBuffer inBuff, ByteBuffer outBuff, SocketAddress remote) {
+    protected void fireUdpDataReceived(NioServer.Event event, SelectionKey key, ByteBuffer inBuff, ByteBuffer outBuff, SocketAddress remote) {
 
-        if( cachedListeners == null ){
-            cachedListeners = listeners.toArray(new NioServer.Listener[ listeners.size() ] );
-        }
-        this.event.reset(key,inBuff,outBuff,remote);
+        NioServer.Listener[] snapshot = this.cachedListeners;                   // Copied on change, so no lock needed
+        event.reset(key,inBuff,outBuff,remote);
 
         // Make a Runnable object to execute the calls to listeners.
         // In the event we don't have an Executor, this results in
         // an unnecessary object instantiation, but it also makes
         // the code more maintainable.
-        for( NioServer.Listener l : cachedListeners ){
+        for( NioServer.Listener l : snapshot ){
             try{
                 l.udpDataReceived(event);
             } catch( Exception exc ){
@@ -1605,20 +2357,19 @@ public class NioServer {
 
     /**
      * Fire when a connection is closed remotely.
+     * @param event the event of the I/O loop firing it
      * @param key The accKey for the closed connection.
      */
-    protected synchronized void fireConnectionClosed(SelectionKey key) {
+    protected void fireConnectionClosed(NioServer.Event event, SelectionKey key) {
 
-        if( cachedListeners == null ){
-            cachedListeners = listeners.toArray(new NioServer.Listener[ listeners.size() ] );
-        }
-        this.event.reset(key,null,null,null);
+        NioServer.Listener[] snapshot = this.cachedListeners;                   // Copied on change, so no lock needed
+        event.reset(key,null,null,null);
 
         // Make a Runnable object to execute the calls to listeners.
         // In the event we don't have an Executor, this results in
         // an unnecessary object instantiation, but it also makes
         // the code more maintainable.
-        for( NioServer.Listener l : cachedListeners ){
+        for( NioServer.Listener l : snapshot ){
             try{
                 l.connectionClosed(event);
             } catch( Exception exc ){
@@ -1631,155 +2382,2478 @@ public class NioServer {
 
 
 
-    /**
-     * Fire when a new connection is established.
-     * @param key the SelectionKey associated with the connection
-     */
-    protected synchronized void fireNewConnection(SelectionKey key, ByteBuffer outBuff) {
+    /**
+     * Fire when a new connection is established.
+     * @param event the event of the I/O loop firing it
+     * @param key the SelectionKey associated with the connection
+     */
+    protected void fireNewConnection(NioServer.Event event, SelectionKey key, ByteBuffer outBuff) {
+
+        NioServer.Listener[] snapshot = this.cachedListeners;                   // Copied on change, so no lock needed
+        event.reset(key,null,outBuff,null);
+
+        // Make a Runnable object to execute the calls to listeners.
+        // In the event we don't have an Executor, this results in
+        // an unnecessary object instantiation, but it also makes
+        // the code more maintainable.
+        for( NioServer.Listener l : snapshot ){
+            try{
+                l.newConnectionReceived(event);
+            } catch( Exception exc ){
+                LOGGER.warning("NioServer.Listener " + l + " threw an exception: " + exc.getMessage() );
+                fireExceptionNotification(exc);
+            }   // end catch
+        }   // end for: each listener
+     }  // end fireNioServerPacketReceived
+
+
+
+    /**
+     * Fire when a connection crosses one of the write watermarks,
+     * to the listeners that are also {@link NioServer.ConnectionListener}s.
+     * @param event the event of the I/O loop firing it
+     * @param key the SelectionKey associated with the connection
+     */
+    protected void fireWritabilityChanged(NioServer.Event event, SelectionKey key) {
+
+        NioServer.Listener[] snapshot = this.cachedListeners;                   // Copied on change, so no lock needed
+        event.reset(key,null,null,null);
+
+        for( NioServer.Listener l : snapshot ){
+            if( l instanceof NioServer.ConnectionListener ){
+                try{
+                    ((NioServer.ConnectionListener)l).writabilityChanged(event);
+                } catch( Exception exc ){
+                    LOGGER.warning("NioServer.Listener " + l + " threw an exception: " + exc.getMessage() );
+                    fireExceptionNotification(exc);
+                }   // end catch
+            }   // end if: wants connection events
+        }   // end for: each listener
+     }  // end fireWritabilityChanged
+
+
+
+    /**
+     * Fire when a file queued with {@link Connection#sendFile(FileChannel,long,long)}
+     * has been sent, to the listeners that are also {@link NioServer.ConnectionListener}s.
+     * @param event the event of the I/O loop firing it
+     * @param key the SelectionKey associated with the connection
+     * @param file the file that was sent
+     */
+    protected void fireFileSent(NioServer.Event event, SelectionKey key, FileChannel file) {
+
+        NioServer.Listener[] snapshot = this.cachedListeners;                   // Copied on change, so no lock needed
+        event.reset(key,file);
+
+        for( NioServer.Listener l : snapshot ){
+            if( l instanceof NioServer.ConnectionListener ){
+                try{
+                    ((NioServer.ConnectionListener)l).fileSent(event);
+                } catch( Exception exc ){
+                    LOGGER.warning("NioServer.Listener " + l + " threw an exception: " + exc.getMessage() );
+                    fireExceptionNotification(exc);
+                }   // end catch
+            }   // end if: wants connection events
+        }   // end for: each listener
+     }  // end fireFileSent
+
+
+
+    /**
+     * Fire when a connection has timed out, just before it is closed,
+     * to the listeners that are also {@link NioServer.ConnectionListener}s.
+     * @param event the event of the I/O loop firing it
+     * @param key the SelectionKey associated with the connection
+     * @param timeout which timeout it was
+     */
+    protected void fireConnectionTimedOut(NioServer.Event event, SelectionKey key, NioServer.Timeout timeout) {
+
+        NioServer.Listener[] snapshot = this.cachedListeners;                   // Copied on change, so no lock needed
+        event.reset(key,timeout);
+
+        for( NioServer.Listener l : snapshot ){
+            if( l instanceof NioServer.ConnectionListener ){
+                try{
+                    ((NioServer.ConnectionListener)l).connectionTimedOut(event);
+                } catch( Exception exc ){
+                    LOGGER.warning("NioServer.Listener " + l + " threw an exception: " + exc.getMessage() );
+                    fireExceptionNotification(exc);
+                }   // end catch
+            }   // end if: wants connection events
+        }   // end for: each listener
+     }  // end fireConnectionTimedOut
+
+
+
+
+
+/* ********  P R O P E R T Y   C H A N G E  ******** */
+
+
+    /**
+     * Fires property chagne events for all current values
+     * setting the old value to null and new value to the current.
+     */
+    public void fireProperties(){
+        firePropertyChange( STATE_PROP, null, getState()  );
+        firePropertyChange( INPUT_BUFFER_SIZE_PROP, null, getInputBufferSize()  );
+        firePropertyChange( OUTPUT_BUFFER_SIZE_PROP, null, getOutputBufferSize()  );
+    }
+
+
+    /**
+     * Fire a property change event on the current thread.
+     *
+     * @param prop      name of property
+     * @param oldVal    old value
+     * @param newVal    new value
+     */
+    protected void firePropertyChange( final String prop, final Object oldVal, final Object newVal ){
+        try{
+            propSupport.firePropertyChange(prop,oldVal,newVal);
+        } catch( Exception exc ){
+            LOGGER.log(Level.WARNING,
+                    "A property change listener threw an exception: " + exc.getMessage()
+                    ,exc);
+            fireExceptionNotification(exc);
+        }   // end catch
+    }   // end fire
+
+
+
+    /**
+     * Add a property listener.
+     * @param listener the listener
+     */
+    public void addPropertyChangeListener( PropertyChangeListener listener ){
+        propSupport.addPropertyChangeListener(listener);
+    }
+
+
+    /**
+     * Add a property listener for the named property.
+     * @param property the property name
+     * @param listener the listener
+     */
+    public void addPropertyChangeListener( String property, PropertyChangeListener listener ){
+        propSupport.addPropertyChangeListener(property,listener);
+    }
+
+
+    /**
+     * Remove a property listener.
+     * @param listener the listener
+     */
+    public void removePropertyChangeListener( PropertyChangeListener listener ){
+        propSupport.removePropertyChangeListener(listener);
+    }
+
+
+    /**
+     * Remove a property listener for the named property.
+     * @param property the property name
+     * @param listener the listener
+     */
+    public void removePropertyChangeListener( String property, PropertyChangeListener listener ){
+        propSupport.removePropertyChangeListener(property,listener);
+    }
+
+
+
+/* ********  E X C E P T I O N S  ******** */
+
+
+    /**
+     * Returns the last exception (Throwable, actually)
+     * that the server encountered.
+     * @return last exception
+     */
+    public Throwable getLastException(){
+        return this.lastException;
+    }
+
+    /**
+     * Fires a property change event with the new exception.
+     * @param t
+     */
+    protected void fireExceptionNotification( Throwable t ){
+        Throwable oldVal = this.lastException;
+        this.lastException = t;
+        firePropertyChange( LAST_EXCEPTION_PROP, oldVal, t );
+    }
+
+
+
+/* ********  L O G G I N G  ******** */
+
+
+
+    /**
+     * Static method to set the logging level using Java's
+     * <tt>java.util.logging</tt> package. Example:
+     * <code>NioServer.setLoggingLevel(Level.OFF);</code>.
+     *
+     * @param level the new logging level
+     */
+    public static void setLoggingLevel( Level level ){
+        LOGGER.setLevel(level);
+    }
+
+    /**
+     * Static method returning the logging level using Java's
+     * <tt>java.util.logging</tt> package.
+     * @return the logging level
+     */
+    public static Level getLoggingLevel(){
+        return LOGGER.getLevel();
+    }
+
+
+    /** Milliseconds from an arbitrary start, unaffected by changes to the clock. */
+    private static long currentMillis(){
+        return System.nanoTime() / 1000000L;
+    }
+
+
+
+
+
+/* ********                                                          ******** */
+/* ********                                                          ******** */
+/* ********   I N N E R   C L A S S   I O   L O O P                  ******** */
+/* ********                                                          ******** */
+/* ********                                                          ******** */
+
+
+
+    /**
+     * A change requested on one thread and carried out on the
+     * thread of the I/O loop it was queued on.
+     * @see IoLoop#execute
+     */
+    private static interface Command {
+        void run() throws IOException;
+    }
+
+
+    /** A connection accepted on the server thread, on its way to an I/O loop. */
+    private static class Handoff {
+        private final SocketChannel channel;
+        private final SocketAddress binding;                                    // Where it was accepted
+
+        private Handoff( SocketChannel channel, SocketAddress binding ){
+            this.channel = channel;
+            this.binding = binding;
+        }
+    }
+
+
+
+    /**
+     * <p>One selector and everything needed to service the channels
+     * registered with it: input and output buffers and the shared event.
+     * What belongs to a single connection, such as its leftovers, is kept
+     * in its {@link Connection}, the key's attachment. The server thread drives
+     * its own loop, which also handles the bindings. Each extra loop
+     * (see {@link NioServer#setIoLoopCount(int)}) runs on its own
+     * thread and only services the connections handed to it, so the
+     * loops share no buffers or locks.</p>
+     *
+     * <p>Everything but the command queue and the hand-off queue is only
+     * touched on the loop's own thread. Other threads ask for changes by
+     * queuing a {@link Command} with {@link #execute}, which wakes up the
+     * selector, and the loop runs the commands at the top of its next cycle.</p>
+     */
+    private class IoLoop implements Runnable {
+
+        private final Selector selector;                                        // This loop's channels
+        private final NioServer.Event event = new NioServer.Event(NioServer.this); // Shared event for this thread
+        private ByteBuffer inBuff;                                              // Buffer to use for everything
+        private ByteBuffer outBuff;                                             // Buffer to use for everything
+        private Thread thread;                                                  // Thread that runs the loop
+        private volatile boolean running = true;
+        private volatile int keyCount;                                          // Registered keys, for balancing
+
+        private final Queue<Command> commands = new ConcurrentLinkedQueue<Command>();   // Queued by any thread, run by this one
+        private final Queue<Handoff> handoffs = new ConcurrentLinkedQueue<Handoff>(); // Accepted on the server thread
+        private final ByteBuffer[] gather = new ByteBuffer[64];                 // Buffers for one gathering write
+        private final TimerWheel timers = new TimerWheel( currentMillis() );    // Next timeout check of each connection
+        private final List<Connection> expired = new ArrayList<Connection>();  // Reused for each tick
+        private long now = currentMillis();                                     // As of the last select
+
+
+        private IoLoop( Selector selector ){
+            this.selector = selector;
+            this.inBuff  = ByteBuffer.allocateDirect(inputBufferSize);          // Use direct for OS efficiencies
+            this.outBuff = ByteBuffer.allocateDirect(outputBufferSize);
+        }
+
+
+        /**
+         * Runs an extra loop until {@link #shutdown()} is called,
+         * then closes its connections and selector.
+         */
+        public void run(){
+            try{
+                while( this.running ){
+                    registerHandoffs();                                         // New connections from the server thread
+                    runCommands();                                              // Changes requested since last cycle
+                    resizeBuffers();
+                    this.keyCount = this.selector.keys().size();
+
+                    ////////  B L O C K S   H E R E
+                    select();
+                    ////////  B L O C K S   H E R E
+
+                    Iterator<SelectionKey> iter = this.selector.selectedKeys().iterator();
+                    while( this.running && iter.hasNext() ){
+                        SelectionKey key = iter.next();
+                        iter.remove();
+                        handleKey( key );
+                    }   // end while: keys
+                    expireTimeouts();
+                }   // end while: running
+            } catch( Exception exc ){
+                LOGGER.log( Level.WARNING, "I/O loop closed unexpectedly: " + exc.getMessage(), exc );
+                fireExceptionNotification(exc);
+            } finally {
+                closeAll();
+            }   // end finally
+        }
+
+
+        /** Asks the loop to close its connections and stop. */
+        private void shutdown(){
+            this.running = false;
+            this.selector.wakeup();
+        }
+
+
+        /** Closes every channel registered with this loop, and the selector. */
+        private void closeAll(){
+            Handoff h = null;
+            while( (h = this.handoffs.poll()) != null ){                        // Never registered
+                try{
+                    h.channel.close();
+                } catch( IOException exc ){
+                    LOGGER.fine( "Error closing connection: " + exc.getMessage() );
+                }   // end catch
+            }   // end while: each hand-off
+            try{
+                for( SelectionKey key : this.selector.keys() ){
+                    key.channel().close();
+                    key.cancel();
+                    cleanupClosedConnection(key);
+                }   // end for: each key
+                this.selector.close();
+            } catch( IOException exc ){
+                LOGGER.log(
+                  Level.SEVERE,
+                  "An error occurred while closing an I/O loop. " +
+                  "This may have left the server in an undefined state.",
+                  exc );
+                fireExceptionNotification(exc);
+            }   // end catch
+            this.commands.clear();
+            this.keyCount = 0;
+        }
+
+
+        /**
+         * Returns the approximate number of connections on this loop,
+         * including any handed to it but not yet registered.
+         * @return number of connections
+         */
+        private int getConnectionCount(){
+            return this.keyCount + this.handoffs.size();
+        }
+
+
+        /**
+         * Passes a newly accepted connection to this loop. Called on the server thread.
+         * @param ch the connection
+         * @param binding the TCP binding it was accepted on
+         */
+        private void handoff( SocketChannel ch, SocketAddress binding ){
+            this.handoffs.add( new Handoff(ch, binding) );
+            this.selector.wakeup();
+        }
+
+
+        /**
+         * Registers connections handed to this loop.
+         * @throws java.io.IOException if an error occurs
+         */
+        private void registerHandoffs() throws IOException {
+            Handoff h = null;
+            while( (h = this.handoffs.peek()) != null ){                        // Still counted while registering
+                try{
+                    acceptConnection(h.channel, h.binding);
+                } catch( IOException exc ){
+                    LOGGER.warning( "Encountered an error with a connection: " + exc.getMessage() );
+                    fireExceptionNotification(exc);
+                    h.channel.close();
+                } finally {
+                    this.keyCount = this.selector.keys().size();                // Counted here before it leaves
+                    this.handoffs.poll();                                       // the hand-offs, for balancing
+                }   // end finally
+            }   // end while: each hand-off
+        }
+
+
+        /**
+         * Registers a datagram channel that shares a UDP binding's port,
+         * at the top of the next cycle. Called on the server thread.
+         * @param dc the bound channel
+         * @param binding the UDP binding, which has the budget
+         */
+        private void register( final DatagramChannel dc, final SocketAddress binding ){
+            execute( new Command(){
+                public void run() throws IOException {
+                    if( dc.isOpen() ){                                          // Not unbound meanwhile
+                        dc.register( IoLoop.this.selector, SelectionKey.OP_READ, binding );
+                    }   // end if: still open
+                }   // end run
+            });
+        }
+
+
+        /**
+         * Queues a command to run on this loop's thread at the top of
+         * its next cycle and wakes up the selector. Never blocks.
+         * @param cmd the command
+         */
+        private void execute( Command cmd ){
+            this.commands.add(cmd);
+            this.selector.wakeup();
+        }
+
+
+        /**
+         * Runs the commands queued since the last cycle. An error
+         * in one is reported and does not stop the others.
+         */
+        private void runCommands(){
+            Command cmd = null;
+            while( (cmd = this.commands.poll()) != null ){
+                try{
+                    cmd.run();
+                } catch( Exception exc ){
+                    LOGGER.log( Level.WARNING, "Error while carrying out a request: " + exc.getMessage(), exc );
+                    fireExceptionNotification(exc);
+                }   // end catch
+            }   // end while: each command
+        }
+
+
+        /**
+         * Turns writable notifications on or off, right away if called on
+         * this loop's thread, otherwise at the top of the next cycle.
+         */
+        private void setNotifyOnWritable( final SelectionKey key, final boolean notify ){
+            if( Thread.currentThread() == this.thread ){
+                applyNotifyOnWritable(key, notify);
+            } else {
+                execute( new Command(){
+                    public void run(){
+                        applyNotifyOnWritable(key, notify);
+                    }   // end run
+                });
+            }   // end else: another thread
+        }
+
+
+        /** Adds or removes OP_WRITE from the key's interests. */
+        private void applyNotifyOnWritable( SelectionKey key, boolean notify ){
+            if( key != null && key.isValid() ){
+                try{
+                    int ops = key.interestOps();                                // Current ops
+                    if( notify ){                                               // Notify?
+                        ops |= SelectionKey.OP_WRITE;                           // Add OP_WRITE
+                    } else {
+                        ops &= ~SelectionKey.OP_WRITE;                          // Remove OP_WRITE
+                    }
+                    key.interestOps(ops);                                       // Set new interests
+                } catch( CancelledKeyException exc ){
+                    cleanupClosedConnection(key);                               // Closed meanwhile
+                }   // end catch
+            }   // end if: valid accKey
+        }
+
+
+        /**
+         * Marks the connection to be closed once everything has been
+         * written, right away if called on this loop's thread,
+         * otherwise at the top of the next cycle.
+         */
+        private void closeAfterWriting( final Connection conn ){
+            if( Thread.currentThread() == this.thread ){
+                conn.closeAfterWriting = true;
+            } else {
+                execute( new Command(){
+                    public void run(){
+                        conn.closeAfterWriting = true;
+                    }   // end run
+                });
+            }   // end else: another thread
+        }
+
+
+        /**
+         * Makes sure the connection's queue gets written, by turning on
+         * writable notifications right away if called on this loop's thread,
+         * otherwise at the top of the next cycle. Several calls from other
+         * threads before then queue only one command.
+         */
+        private void flushSoon( final Connection conn ){
+            if( Thread.currentThread() == this.thread ){
+                applyNotifyOnWritable(conn.key, true);
+            } else if( conn.flushRequested.compareAndSet(false, true) ){
+                execute( new Command(){
+                    public void run(){
+                        conn.flushRequested.set(false);                         // Writes after this need another command
+                        applyNotifyOnWritable(conn.key, true);
+                    }   // end run
+                });
+            }   // end else: first request from another thread
+        }
+
+
+        /**
+         * Fires the writability event for a connection that has just
+         * gone over the high watermark, at the top of the next cycle
+         * so that listeners are only ever called on this loop's thread.
+         */
+        private void writabilityLost( final Connection conn ){
+            execute( new Command(){
+                public void run(){
+                    if( conn.key.isValid() ){
+                        fireWritabilityChanged(IoLoop.this.event, conn.key);
+                    }   // end if: still open
+                }   // end run
+            });
+        }
+
+
+        /**
+         * Waits for channels to be ready, and if any timeouts are scheduled
+         * no longer than the next tick of the timer wheel, then notes the time.
+         * @return the number of keys ready
+         * @throws java.io.IOException if an error occurs
+         */
+        private int select() throws IOException {
+            int ready = this.timers.isEmpty()
+                    ? this.selector.select()
+                    : this.selector.select( this.timers.millisToNextTick(currentMillis()) );
+            this.now = currentMillis();
+            return ready;
+        }
+
+
+        /**
+         * Checks the connections whose turn in the timer wheel has come.
+         * Called after the selected keys have been handled so that
+         * data just read counts.
+         */
+        private void expireTimeouts(){
+            if( this.timers.isEmpty() ){
+                return;
+            }   // end if: nothing scheduled
+            List<Connection> expired = this.expired;
+            this.timers.expire(this.now, expired);
+            for( Connection conn : expired ){
+                try{
+                    checkTimeouts(conn);
+                } catch( IOException exc ){
+                    LOGGER.warning( "Error closing connection: " + exc.getMessage() );
+                    fireExceptionNotification(exc);
+                }   // end catch
+            }   // end for: each connection
+            expired.clear();
+        }
+
+
+        /**
+         * Times out the connection if it is past one of its deadlines,
+         * otherwise schedules it again for the nearest one.
+         * @param conn the connection
+         * @throws java.io.IOException if the connection cannot be closed
+         */
+        private void checkTimeouts( Connection conn ) throws IOException {
+            SelectionKey key = conn.key;
+            if( !key.isValid() ){                                               // Closed by the application
+                cleanupClosedConnection(key);
+                return;
+            }   // end if: already closed
+
+            long now = this.now;
+            long read = readTimeout;
+            long write = writeTimeout;
+            long idle = idleTimeout;
+            NioServer.Timeout timeout = null;
+            long next = Long.MAX_VALUE;
+
+            if( read > 0 ){
+                long deadline = conn.lastRead + read;
+                if( deadline <= now ){
+                    timeout = NioServer.Timeout.READ;
+                } else {
+                    next = Math.min(next, deadline);
+                }
+            }   // end if: read timeout
+            if( write > 0 && timeout == null ){
+                if( !conn.outgoing.isEmpty() ){                                 // Loop has tried to send it, see flush(..)
+                    long deadline = conn.lastWrite + write;
+                    if( deadline <= now ){
+                        timeout = NioServer.Timeout.WRITE;
+                    } else {
+                        next = Math.min(next, deadline);
+                    }
+                } else {                                                        // Nothing tried yet, look again later
+                    next = Math.min(next, now + write);
+                }
+            }   // end if: write timeout
+            if( idle > 0 && timeout == null ){
+                long deadline = Math.max(conn.lastRead, conn.lastWrite) + idle;
+                if( deadline <= now ){
+                    timeout = NioServer.Timeout.IDLE;
+                } else {
+                    next = Math.min(next, deadline);
+                }
+            }   // end if: idle timeout
+
+            if( timeout != null ){
+
+                ////////  FIRE EVENT  ////////
+                fireConnectionTimedOut(this.event, key, timeout);
+                ////////  FIRE EVENT  ////////
+
+                key.cancel();
+                key.channel().close();
+                cleanupClosedConnection(key);
+                fireConnectionClosed(this.event, key);
+                if( LOGGER.isLoggable(Level.FINER) ){
+                    LOGGER.finer("Connection timed out (" + timeout + "): " + key );
+                }
+            } else if( next != Long.MAX_VALUE ){                                // Any timeouts at all?
+                this.timers.schedule(conn, next);
+            }
+        }
+
+
+        /**
+         * Puts each open connection on the next tick of the
+         * timer wheel, where its timeouts will be worked out anew.
+         */
+        private void scheduleAllTimeouts(){
+            for( SelectionKey key : this.selector.keys() ){
+                Object att = key.attachment();
+                if( att instanceof Connection && key.isValid() ){
+                    this.timers.schedule( (Connection)att, this.now );
+                }   // end if: a connection
+            }   // end for: each key
+        }
+
+
+        /**
+         * Fires the writability event for each open connection that the
+         * watermarks now put on the other side, as if data had just been
+         * queued or sent.
+         */
+        private void checkAllWritability(){
+            int high = writeHighWatermark;
+            int low = writeLowWatermark;
+            for( SelectionKey key : this.selector.keys() ){
+                Object att = key.attachment();
+                if( att instanceof Connection && key.isValid() ){
+                    Connection conn = (Connection)att;
+                    long queued = conn.queuedBytes.get();
+                    if( queued > high && conn.writable.compareAndSet(true, false) ){
+                        fireWritabilityChanged(this.event, key);
+                    } else if( queued <= low && conn.writable.compareAndSet(false, true) ){
+                        fireWritabilityChanged(this.event, key);
+                    }   // end else: drained enough
+                }   // end if: a connection
+            }   // end for: each key
+        }
+
+
+        /** Replaces the buffers if a new size was requested since the last cycle. */
+        private void resizeBuffers(){
+            int inSize = inputBufferSize;
+            int outSize = outputBufferSize;
+            if( inSize != this.inBuff.capacity() ){                             // Mismatch size means someone asked for something new
+                assert inSize >= 0 : inSize;                                    // We check for this in setBufferSize(..)
+                this.inBuff = ByteBuffer.allocateDirect(inSize);                // Resize and use direct for OS efficiencies
+            }
+            if( outSize != this.outBuff.capacity() ){
+                assert outSize >= 0 : outSize;
+                this.outBuff = ByteBuffer.allocateDirect(outSize);
+            }
+        }
+
+
+        /**
+         * Accepts, reads, or writes as the key is ready to.
+         * An error closes the key's channel, as does a listener
+         * replacing a connection key's attachment.
+         * @param key the selected key
+         * @throws java.io.IOException if the channel cannot be closed after an error
+         */
+        private void handleKey( SelectionKey key ) throws IOException {
+            Object att = key.attachment();                                      // Connection, binding, or null
+            if( key.channel() instanceof SocketChannel && !(att instanceof Connection) ){
+                LOGGER.warning( "Closing connection whose key attachment was replaced: " + key.channel() );
+                key.cancel();                                                   // Its state is lost, so
+                key.channel().close();                                          // only this connection can go
+                return;
+            }   // end if: not ours
+            try{
+
+                // Accept connections
+                // This should only be from the TCP bindings
+                if(  key.isAcceptable()  ){                                     // New, incoming connection?
+                    handleAccept( key );                                        // Handle accepting connections
+                }
+
+                // Data to read
+                // This could be an ongoing TCP connection
+                // or a new (is there any other kind) UDP datagram
+                else if( key.isReadable() ){                                    // Existing connection has data (or is closing)
+                    handleRead( key );                                          // Handle data
+                }   // end if: readable
+
+                // Available to write
+                // This could be an ongoing TCP connection
+                // or a new (is there any other kind) UDP datagram
+                else if( key.isWritable() ){                                    // Existing connection has data (or is closing)
+                    handleWrite( key );                                         // Handle data
+                }   // end if: readable
+
+                if( !checkAttachment(key, att) && !key.isValid() ){            // Closed during the event
+                    cleanupClosedConnection(key);                               // Give back its buffers
+                }   // end if: closed
+
+            } catch( CancelledKeyException exc ){
+                key.attach(att);                                                // In case a listener replaced it
+                cleanupClosedConnection(key);                                   // Closed by a listener meanwhile
+            } catch( IOException exc ){
+                LOGGER.warning( "Encountered an error with a connection: " + exc.getMessage() );
+                fireExceptionNotification(exc);
+                key.attach(att);
+                cleanupClosedConnection(key);
+                key.channel().close();
+            }   // end catch
+        }
+
+
+        /**
+         * Closes a connection whose key attachment a listener replaced
+         * during an event, since the server keeps the connection's state
+         * there (see {@link Connection#setContext(Object)}). The connection
+         * is put back first so that its buffers can be given back.
+         * @param key the connection's key
+         * @param att what was attached before the event
+         * @return true if the attachment had been replaced
+         * @throws java.io.IOException if the channel cannot be closed
+         */
+        private boolean checkAttachment( SelectionKey key, Object att ) throws IOException {
+            if( !(att instanceof Connection) || key.attachment() == att ){
+                return false;
+            }   // end if: untouched
+
+            LOGGER.warning( "Closing connection whose key attachment was replaced: " + att );
+            key.attach(att);
+            if( key.isValid() ){
+                key.cancel();
+                key.channel().close();
+                cleanupClosedConnection(key);
+                fireConnectionClosed(this.event, key);
+            } else {
+                cleanupClosedConnection(key);                                   // Closed during the event anyway
+            }   // end else: already closed
+            return true;
+        }
+
+
+        /**
+         * Handles accepting new connections, handing them to the
+         * extra I/O loops if there are any.
+         * @param accKey The OP_ACCEPT accKey
+         * @throws java.io.IOException if an error occurs
+         */
+        private void handleAccept( SelectionKey accKey ) throws IOException{
+            assert accKey.isAcceptable() : accKey.readyOps();                   // We know it should be acceptable
+            assert selector.isOpen();                                           // Not sure this matters. Meh.
+
+            SelectableChannel sc = accKey.channel();                            // Channel for th accKey
+            assert sc instanceof ServerSocketChannel : sc;                      // Only our TCP connections have OP_ACCEPT
+
+            ServerSocketChannel ch = (ServerSocketChannel)accKey.channel();     // Server channel
+            SocketAddress binding = (SocketAddress)accKey.attachment();         // Which binding it is
+            SocketChannel incoming = null;                                      // Reusable for all pending connections
+            while( (incoming = ch.accept()) != null ){                          // Iterate over all pending connections
+                IoLoop[] loops = ioLoops;
+                if( loops.length > 0 ){                                         // Extra loops handle connections
+                    pickLoop(loops).handoff(incoming, binding);
+                } else {                                                        // Handle it on this thread
+                    acceptConnection(incoming, binding);
+                }
+            }   // end while: each incoming connection
+
+        }
+
+
+        /**
+         * Registers a new connection with this loop's selector
+         * and fires the new connection event.
+         * @param incoming the new connection
+         * @param binding the TCP binding it was accepted on
+         * @throws java.io.IOException if an error occurs
+         */
+        private void acceptConnection( SocketChannel incoming, SocketAddress binding ) throws IOException{
+            incoming.configureBlocking(false);                                  // Non-blocking IO
+            SelectionKey incomingReadKey = incoming.register(                   // Register new connection
+              this.selector,                                                    // With the Selector
+              SelectionKey.OP_READ | SelectionKey.OP_WRITE );                   // Want to READ and write data
+            Connection conn = new Connection( NioServer.this, this, incomingReadKey, binding, bufferPool );
+            incomingReadKey.attach(conn);                                       // All per-connection state
+            conn.lastRead = this.now;
+            conn.lastWrite = this.now;
+            if( idleTimeout > 0 || readTimeout > 0 || writeTimeout > 0 ){
+                this.timers.schedule(conn, this.now);                           // Deadlines are worked out on the next tick
+            }   // end if: timeouts
+
+            ByteBuffer outBuff = this.outBuff;
+            outBuff.clear().flip();                                             // Show outBuff as having nothing
+
+            ////////  FIRE EVENT  ////////
+            fireNewConnection(this.event,incomingReadKey,outBuff);              // Fire new connection event
+            ////////  FIRE EVENT  ////////
+
+            if( checkAttachment(incomingReadKey, conn) ){                       // Replaced by a listener
+                return;
+            }   // end if: closed
+
+
+            // If there are leftovers, save them for next
+            // time the channel is ready.
+            if( outBuff.remaining() > 0 ){                                      // Did the user leave data to be written?
+                queueCopy(conn, outBuff);                                       // Save leftovers for next time
+                this.setNotifyOnWritable(incomingReadKey, true);                // Notify that we have something to write
+            }   // end if: has remaining bytes
+
+            if( LOGGER.isLoggable(Level.FINEST) ){
+                LOGGER.finest("  " + incoming + ", key: " + incomingReadKey );
+            }
+        }
+
+        /**
+         * Handles reading incoming data and then firing events,
+         * up to the read or receive budget of the key's binding.
+         * @param key The accKey associated with the reading
+         * @throws java.io.IOException if an error occurs
+         */
+        private void handleRead( SelectionKey key ) throws IOException {
+
+            ByteBuffer inBuff = this.inBuff;
+            ByteBuffer outBuff = this.outBuff;
+            SelectableChannel sc = key.channel();
+            inBuff.clear();                                                     // Clear input outBuff
+            assert knownState( inBuff, "[PrrrL]" );
+
+            // TCP
+            if( sc instanceof SocketChannel ){
+
+                SocketChannel client = (SocketChannel) key.channel();           // Source socket
+                Connection conn = (Connection) key.attachment();                // Per-connection state
+                CompositeBuffer input = conn.input;                             // Leftover data from last read, if any
+                BufferPool pool = conn.pool;
+                int size = inBuff.capacity();
+                int budget = getTcpReadBudget(conn.binding);                    // Whatever is left waits for the next cycle
+
+                do{
+                    // Read straight onto the end of the chain,
+                    // after any leftovers, without copying them.
+                    ByteBuffer dst = input.tail(pool, Math.min(size, budget));
+                    if( dst.remaining() > budget ){
+                        dst.limit( dst.position() + budget );
+                    }   // end if: more room than budget
+                    int room = dst.remaining();
+                    int read = client.read( dst );
+
+                    // If End of Stream
+                    if( read == -1 ){                                           // End of stream?
+                        key.cancel();                                           // Cancel the accKey
+                        client.close();                                         // And cancel the client
+                        cleanupClosedConnection(key);
+                        fireConnectionClosed(this.event,key);                   // Fire event for connection closed
+                        if( LOGGER.isLoggable(Level.FINER) ){
+                            LOGGER.finer("Connection closed: " + key );
+                        }
+                        break;
+                    }   // end if: end of stream
+
+                    if( read == 0 ){                                            // Nothing after all
+                        input.commit(pool);                                     // Don't hold an empty buffer
+                        break;
+                    }   // end if: nothing
+
+                    input.appended(read);                                       // New data is on the chain
+                    conn.lastRead = this.now;                                   // For the timeouts
+                    budget -= read;
+                    outBuff.clear().flip();                                     // Empty output outBuff
+                    assert knownState( outBuff, "[PL...]" );
+
+                    fireTcpDataReceived(this.event,key,input,outBuff);          // Fire event for new data
+                    input.commit(pool);                                         // Keep what wasn't consumed
+                    if( input.remaining() >= maxInputSize && key.isValid() ){   // Peer never finishes a message?
+                        LOGGER.warning("Closing connection with too much unconsumed input (" + input.remaining() + " bytes): " + key );
+                        key.cancel();
+                        client.close();
+                        cleanupClosedConnection(key);
+                        fireConnectionClosed(this.event,key);
+                        break;
+                    }   // end if: over the limit
+
+                    // If there is also data to be written,
+                    // queue it behind anything already waiting
+                    // and indicate that we should be notified about writability.
+                    if( outBuff.remaining() > 0 ){                              // Did the user leave data to be written?
+                        queueCopy(conn, outBuff);                               // Save leftovers for next time
+                        this.setNotifyOnWritable(key, true);                    // Make sure server processes writes
+                    }   // end if: has remaining bytes
+
+                    if( read < room ){                                          // Socket is empty
+                        break;
+                    }   // end if: empty
+                } while( budget > 0 && key.isValid() );                        // Still open and within budget
+            }   // end if: SocketChannel
+
+            // Datagram
+            else if( sc instanceof DatagramChannel ){
+                DatagramChannel dc = (DatagramChannel)sc;                       // Cast to datagram channel
+                SocketAddress remote = null;
+                int budget = getUdpReceiveBudget( (SocketAddress)key.attachment() ); // The rest wait for the next cycle
+                inBuff.clear(); // Fixed in v0.1.1
+                while( budget-- > 0 && key.isValid() &&                         // Loop over pending datagrams, within budget
+                       (remote = dc.receive(inBuff)) != null ){
+                    inBuff.flip();                                              // Flip after reading in
+                    outBuff.clear().flip();
+                    fireUdpDataReceived(this.event,key,inBuff,outBuff,remote);  // Fire event
+
+                    if( outBuff.hasRemaining() ){                               // User left data for response?
+                        dc.send(outBuff, remote);                               // Try sending it
+                    }   // end if: something to write
+                    inBuff.clear(); // Fixed in v0.1.1
+                }   // end while: each pending datagram
+            }   // end else: UDP
+
+        }   // end handleRead
+
+
+        /**
+         * Handles writing queued data and files and notifying listeners
+         * that a channel is ready to write.
+         * @param key The accKey associated with the writing
+         * @throws java.io.IOException if an error occurs
+         */
+        private void handleWrite( SelectionKey key ) throws IOException {
+
+            ByteBuffer outBuff = this.outBuff;
+            SocketChannel ch = (SocketChannel)key.channel();                    // Source socket
+            Connection conn = (Connection) key.attachment();                    // Per-connection state
+
+            // First see if we need to write old data
+            // that still hasn't been sent: leftovers from
+            // the output buffer and anything from Connection.write(..).
+            boolean done = flush(conn, ch);
+
+
+            // If we're done with leftovers, or there were none,
+            // notify user to ask for more.
+            if( done ){
+                outBuff.clear().flip();                                         // Clear outBuff
+
+                ////////  FIRE EVENT  ////////
+                fireTcpReadyToWrite(this.event,key,outBuff);                    // Notify listeners who will load outBuff
+                ////////  FIRE EVENT  ////////
+
+                if( outBuff.hasRemaining() ){                                   // Did they give us something?
+                    if( !conn.hasQueuedWrites() ){                              // Unless they also queued something,
+                        if( ch.write(outBuff) > 0 ){                            // write what we can of it
+                            conn.lastWrite = this.now;
+                        }   // end if: sent something
+                    }   // end if: nothing ahead of it
+
+                    // If there are new leftovers, save them for next
+                    // time the channel is ready.
+                    if( outBuff.hasRemaining() ){                               // Is there _still_ data left to write?
+                        queueCopy(conn, outBuff);
+                    }
+                } else if( !conn.hasQueuedWrites() ){                           // They gave us nothing
+                    this.setNotifyOnWritable(key, false);                       // Stop notifying
+                }
+            }   // end if: proceed with fresh buffer to user
+
+
+            // After all this writing, see if there's anything left.
+            // If nothing is left, and "close after writing" has been set,
+            // then close the channel.
+            if( conn.closeAfterWriting &&                                       // Has user requested "close after writing?"
+                !conn.hasQueuedWrites() ){                                      // And is there nothing left to write?
+                ch.close();                                                     // Then close the channel
+                cleanupClosedConnection(key);
+            }
+
+        }   // end handleWrite
+
+
+        /**
+         * Writes as much of the connection's queue as the channel will
+         * take, handing the channel several buffers at a time with a
+         * gathering write. Fires the writability event if the queue
+         * has drained to the low watermark.
+         * @param conn the connection
+         * @param ch its channel
+         * @return true if the queue was emptied
+         * @throws java.io.IOException if an error occurs
+         */
+        private boolean flush( Connection conn, SocketChannel ch ) throws IOException {
+            boolean waiting = !conn.outgoing.isEmpty();                         // Already waiting to be sent?
+            ArrayDeque<Object> outgoing = conn.takeQueued();                    // Everything queued so far, in order
+            if( !waiting && !outgoing.isEmpty() ){                              // Write timeout counts from now
+                conn.lastWrite = this.now;
+            }   // end if: newly waiting
+            ByteBuffer[] gather = this.gather;
+            BufferPool pool = conn.pool;
+            long total = 0;
+
+            while( !outgoing.isEmpty() ){
+
+                // Files go straight from the file to the socket
+                if( outgoing.peekFirst() instanceof FileRegion ){
+                    FileRegion region = (FileRegion)outgoing.peekFirst();
+                    long before = region.remaining;
+                    boolean done = region.transferTo(ch);
+                    if( region.remaining < before ){
+                        conn.lastWrite = this.now;
+                    }   // end if: sent something
+                    if( !done ){                                                // Channel didn't take it all
+                        break;
+                    }   // end if: channel full
+                    conn.sent( outgoing.pollFirst(), pool );
+
+                    ////////  FIRE EVENT  ////////
+                    fireFileSent(this.event, conn.key, region.file);
+                    ////////  FIRE EVENT  ////////
+                    continue;
+                }   // end if: file
+
+                // Buffers go several at a time, up to the next file
+                int count = 0;
+                for( Object item : outgoing ){                                  // Oldest first
+                    if( !(item instanceof ByteBuffer) ){
+                        break;
+                    }   // end if: a file
+                    gather[count++] = (ByteBuffer)item;
+                    if( count == gather.length ){
+                        break;
+                    }   // end if: full
+                }   // end for: each queued buffer
+
+                total += ch.write(gather, 0, count);
+                Arrays.fill(gather, 0, count, null);                           // Don't hold on to them
+
+                int written = 0;
+                Object head = null;
+                while( (head = outgoing.peekFirst()) instanceof ByteBuffer && !((ByteBuffer)head).hasRemaining() ){
+                    conn.sent( outgoing.pollFirst(), pool );                   // Done with it
+                    written++;
+                }   // end while: each buffer sent
+                if( written < count ){                                          // Channel didn't take it all
+                    break;
+                }   // end if: channel full
+            }   // end while: more to write
+
+            if( total > 0 ){
+                conn.lastWrite = this.now;
+                long left = conn.queuedBytes.addAndGet(-total);
+                if( left <= writeLowWatermark && conn.writable.compareAndSet(false, true) ){
+                    fireWritabilityChanged(this.event, conn.key);
+                }   // end if: drained enough
+            }   // end if: wrote something
+            return outgoing.isEmpty();
+        }
+
+
+        /**
+         * Copies what remains in the output buffer to a buffer from the
+         * pool and queues it behind anything already waiting to be written.
+         * @param conn the connection
+         * @param outBuff the output buffer, emptied by this
+         */
+        private void queueCopy( Connection conn, ByteBuffer outBuff ){
+            ByteBuffer copy = conn.pool.acquire(outBuff.remaining());
+            assert knownState( outBuff, "[..PrrL..]" );
+            copy.put(outBuff).flip();
+            assert knownState( copy, "[PrrL..]" );
+            conn.queue(copy, true);
+        }
+
+
+
+        /**
+         * Drops the state kept in the key's {@link Connection}, if it has one,
+         * giving its buffers back to the pool. Safe to call more than once.
+         * The application's context is left alone for the closed event.
+         * @param key the accKey that's closing
+         */
+        private void cleanupClosedConnection(SelectionKey key) {
+            Object att = key.attachment();
+            if( att instanceof Connection ){
+                Connection conn = (Connection)att;
+                BufferPool pool = conn.pool;
+                conn.input.release(pool);
+                conn.discardQueued(pool);
+                this.timers.cancel(conn);
+                conn.closeAfterWriting = false;
+            }   // end if: a connection
+        }
+
+    }   // end inner class IoLoop
+
+
+
+
+
+
+/* ********                                                                ******** */
+/* ********                                                                ******** */
+/* ********   S T A T I C   I N N E R   C L A S S   B U F F E R   P O O L  ******** */
+/* ********                                                                ******** */
+/* ********                                                                ******** */
+
+
+
+    /**
+     * <p>A pool of direct ByteBuffers that the server uses for the data
+     * each connection has left over between events, so that a burst of
+     * connections doesn't mean a burst of <code>ByteBuffer.allocateDirect(..)</code>
+     * calls, which are slow and whose memory is only given back by the
+     * garbage collector.</p>
+     *
+     * <p>Buffers come in size classes, the powers of two from
+     * {@link #MIN_BUFFER_SIZE} up to the pool's maximum, and a request
+     * is rounded up to its class. Each class is a lock-free queue of idle
+     * buffers, so any I/O loop may take and give back buffers at once.
+     * Requests bigger than the maximum are allocated and dropped as usual.</p>
+     *
+     * <p>Optionally the pool carves its buffers out of one big direct
+     * buffer, an arena, allocated up front. Once the arena is used up,
+     * further buffers are allocated separately. Since memory cannot be
+     * given back to an arena piecemeal, the pool keeps every buffer carved
+     * from its arena, even past the limit for its class. Buffers allocated
+     * separately are kept or dropped as in a pool with no arena.</p>
+     *
+     * <p>A buffer must not be used after it is given back with
+     * {@link #release(ByteBuffer)}, and must not be given back twice.
+     * The counts are for monitoring and are read without locking.</p>
+     *
+     * <p>This code is released into the Public Domain.
+     * Since this is Public Domain, you don't need to worry about
+     * licensing, and you can simply copy this NioServer.java file
+     * to your own package and use it as you like. Enjoy.
+     * Please consider leaving the following statement here in this code:</p>
+     *
+     * <p><em>This <tt>NioServer</tt> class was copied to this project from its source as
+     * found at <a href="http://iharder.net" target="_blank">iHarder.net</a>.</em></p>
+     *
+     * @author Robert Harder
+     * @author rharder@users.sourceforge.net
+     * @version 0.1
+     * @see NioServer#setBufferPool(NioServer.BufferPool)
+     */
+    public static class BufferPool {
+
+        /** Smallest buffer the pool hands out. */
+        public final static int MIN_BUFFER_SIZE = 512;
+        private final static int MIN_SHIFT = 9;
+
+        /** Largest buffer pooled by default. */
+        public final static int DEFAULT_MAX_BUFFER_SIZE = 1 << 20;
+
+        /** Idle buffers kept in each size class by default. */
+        public final static int DEFAULT_BUFFERS_PER_CLASS = 256;
+
+        private final int maxBufferSize;
+        private final int buffersPerClass;
+        private final List<Queue<ByteBuffer>> idle;                             // Idle buffers by size class
+        private final AtomicInteger[] idleCounts;                               // Since queue sizes are slow
+        private final ByteBuffer arena;                                         // Null if none
+        private final AtomicInteger arenaUsed = new AtomicInteger();            // Bump pointer into the arena
+        private final Map<ByteBuffer,Boolean> arenaSlices;                      // By identity, since equals(..) compares contents
+
+        private final AtomicLong acquireCount = new AtomicLong();
+        private final AtomicLong allocateCount = new AtomicLong();
+        private final AtomicLong inUseCount = new AtomicLong();
+        private final AtomicLong inUseBytes = new AtomicLong();
+        private final AtomicLong idleBytes = new AtomicLong();
+
+
+        /**
+         * Creates a pool with the default limits and no arena.
+         */
+        public BufferPool(){
+            this( DEFAULT_MAX_BUFFER_SIZE, DEFAULT_BUFFERS_PER_CLASS, 0 );
+        }
+
+
+        /**
+         * Creates a pool with no arena.
+         * @param maxBufferSize largest buffer to pool
+         * @param buffersPerClass idle buffers to keep in each size class
+         * @throws IllegalArgumentException if either is not positive
+         */
+        public BufferPool( int maxBufferSize, int buffersPerClass ){
+            this( maxBufferSize, buffersPerClass, 0 );
+        }
+
+
+        /**
+         * Creates a pool whose buffers are carved out of an arena of
+         * the given size, allocated now, or with no arena if the size is zero.
+         * @param maxBufferSize largest buffer to pool
+         * @param buffersPerClass idle buffers to keep in each size class, besides those carved from the arena
+         * @param arenaSize bytes of direct memory to allocate up front, or zero
+         * @throws IllegalArgumentException if maxBufferSize or buffersPerClass
+         *         is not positive, or arenaSize is negative
+         */
+        public BufferPool( int maxBufferSize, int buffersPerClass, int arenaSize ){
+            if( maxBufferSize <= 0 ){
+                throw new IllegalArgumentException( "Maximum buffer size must be positive: " + maxBufferSize );
+            }   // end if: out of range
+            if( buffersPerClass <= 0 ){
+                throw new IllegalArgumentException( "Buffers per class must be positive: " + buffersPerClass );
+            }   // end if: out of range
+            if( arenaSize < 0 ){
+                throw new IllegalArgumentException( "Arena size must not be negative: " + arenaSize );
+            }   // end if: out of range
+            this.maxBufferSize = MIN_BUFFER_SIZE << sizeClass( Math.min( maxBufferSize, 1 << 30 ) );
+            this.buffersPerClass = buffersPerClass;
+            int classes = sizeClass( this.maxBufferSize ) + 1;
+            this.idle = new ArrayList<Queue<ByteBuffer>>( classes );
+            this.idleCounts = new AtomicInteger[ classes ];
+            for( int i = 0; i < classes; i++ ){
+                this.idle.add( new ConcurrentLinkedQueue<ByteBuffer>() );
+                this.idleCounts[i] = new AtomicInteger();
+            }   // end for: each class
+            this.arena = arenaSize > 0 ? ByteBuffer.allocateDirect( arenaSize ) : null;
+            this.arenaSlices = arenaSize > 0 ? new IdentityHashMap<ByteBuffer,Boolean>() : null;
+        }
+
+
+        /**
+         * Returns a cleared direct buffer with at least the given
+         * capacity, reused if one is idle. Its contents are left over
+         * from its last use.
+         * @param size the capacity needed
+         * @return the buffer
+         * @throws IllegalArgumentException if size is negative
+         */
+        public ByteBuffer acquire( int size ){
+            if( size < 0 ){
+                throw new IllegalArgumentException( "Buffer size must not be negative: " + size );
+            }   // end if: out of range
+            this.acquireCount.incrementAndGet();
+            ByteBuffer buff = null;
+            if( size > this.maxBufferSize ){
+                buff = ByteBuffer.allocateDirect( size );                       // Too big to pool
+                this.allocateCount.incrementAndGet();
+            } else {
+                int c = sizeClass( size );
+                buff = this.idle.get(c).poll();
+                if( buff == null ){
+                    buff = allocate( MIN_BUFFER_SIZE << c );
+                } else {
+                    this.idleCounts[c].decrementAndGet();
+                    this.idleBytes.addAndGet( -buff.capacity() );
+                }   // end else: reused
+            }   // end else: pooled size
+            this.inUseCount.incrementAndGet();
+            this.inUseBytes.addAndGet( buff.capacity() );
+            buff.clear();
+            return buff;
+        }
+
+
+        /**
+         * Gives back a buffer from {@link #acquire(int)} for reuse.
+         * Null is ignored.
+         * @param buff the buffer, which must not be used again
+         */
+        public void release( ByteBuffer buff ){
+            if( buff == null ){
+                return;
+            }   // end if: nothing
+            int cap = buff.capacity();
+            this.inUseCount.decrementAndGet();
+            this.inUseBytes.addAndGet( -cap );
+            if( cap > this.maxBufferSize || cap < MIN_BUFFER_SIZE ||
+                Integer.bitCount( cap ) != 1 || !buff.isDirect() ){
+                return;
+            }   // end if: not pooled
+            int c = sizeClass( cap );
+            if( this.idleCounts[c].incrementAndGet() > this.buffersPerClass && !isArenaSlice( buff ) ){
+                this.idleCounts[c].decrementAndGet();
+                return;                                                         // Class is full: let it go
+            }   // end if: full
+            this.idleBytes.addAndGet( cap );
+            this.idle.get(c).add( buff );
+        }
+
+
+        /**
+         * Returns the capacity of the largest buffer the pool keeps.
+         * @return the size in bytes
+         */
+        public int getMaxBufferSize(){
+            return this.maxBufferSize;
+        }
+
+
+        /**
+         * Returns the size of the arena, or zero if there is none.
+         * @return the size in bytes
+         */
+        public int getArenaSize(){
+            return this.arena == null ? 0 : this.arena.capacity();
+        }
+
+
+        /**
+         * Returns how much of the arena has been carved into buffers.
+         * @return the size in bytes
+         */
+        public int getArenaUsed(){
+            return this.arenaUsed.get();
+        }
+
+
+        /**
+         * Returns the number of buffers asked for with {@link #acquire(int)}.
+         * @return the number of buffers
+         */
+        public long getAcquireCount(){
+            return this.acquireCount.get();
+        }
+
+
+        /**
+         * Returns the number of buffers allocated with
+         * <code>ByteBuffer.allocateDirect(..)</code> because none was idle,
+         * not counting those carved from the arena.
+         * @return the number of buffers
+         */
+        public long getAllocateCount(){
+            return this.allocateCount.get();
+        }
+
+
+        /**
+         * Returns the number of buffers acquired and not yet given back.
+         * @return the number of buffers
+         */
+        public long getInUseCount(){
+            return this.inUseCount.get();
+        }
+
+
+        /**
+         * Returns the capacity of the buffers acquired and not yet given back.
+         * @return the size in bytes
+         */
+        public long getInUseBytes(){
+            return this.inUseBytes.get();
+        }
+
+
+        /**
+         * Returns the number of idle buffers kept in the pool.
+         * @return the number of buffers
+         */
+        public long getIdleCount(){
+            long count = 0;
+            for( AtomicInteger c : this.idleCounts ){
+                count += c.get();
+            }   // end for: each class
+            return count;
+        }
+
+
+        /**
+         * Returns the capacity of the idle buffers kept in the pool.
+         * @return the size in bytes
+         */
+        public long getIdleBytes(){
+            return this.idleBytes.get();
+        }
+
+
+        /** Returns the size class for a capacity: the power of two at or above it, counted from the smallest. */
+        private static int sizeClass( int size ){
+            if( size <= MIN_BUFFER_SIZE ){
+                return 0;
+            }   // end if: smallest
+            return 32 - Integer.numberOfLeadingZeros( size - 1 ) - MIN_SHIFT;
+        }
+
+
+        /** Returns whether the buffer was carved from the arena, and so must be kept. */
+        private boolean isArenaSlice( ByteBuffer buff ){
+            if( this.arenaSlices == null ){
+                return false;
+            }   // end if: no arena
+            synchronized( this.arenaSlices ){
+                return this.arenaSlices.containsKey( buff );
+            }   // end sync
+        }
+
+
+        /** Carves a buffer from the arena if there is room, else allocates one. */
+        private ByteBuffer allocate( int size ){
+            if( this.arena != null ){
+                int used;
+                while( (used = this.arenaUsed.get()) + size <= this.arena.capacity() ){
+                    if( this.arenaUsed.compareAndSet( used, used + size ) ){
+                        ByteBuffer dup = this.arena.duplicate();                // Arena itself is never moved
+                        dup.limit( used + size ).position( used );
+                        ByteBuffer slice = dup.slice();
+                        synchronized( this.arenaSlices ){
+                            this.arenaSlices.put( slice, Boolean.TRUE );
+                        }   // end sync
+                        return slice;
+                    }   // end if: got it
+                }   // end while: room left
+            }   // end if: arena
+            this.allocateCount.incrementAndGet();
+            return ByteBuffer.allocateDirect( size );
+        }
+
+
+        @Override
+        public String toString(){
+            return "NioServer.BufferPool[inUse=" + getInUseCount() + " (" + getInUseBytes() + " bytes)" +
+                    ", idle=" + getIdleCount() + " (" + getIdleBytes() + " bytes)" +
+                    ", arena=" + getArenaUsed() + "/" + getArenaSize() +
+                    ", allocated=" + getAllocateCount() + " of " + getAcquireCount() + "]";
+        }
+
+    }   // end static inner class BufferPool
+
+
+
+
+
+/* ********                                                                        ******** */
+/* ********                                                                        ******** */
+/* ********   S T A T I C   I N N E R   C L A S S   C O M P O S I T E   B U F F E R  ******** */
+/* ********                                                                        ******** */
+/* ********                                                                        ******** */
+
+
+
+    /**
+     * <p>The data received on a TCP connection and not yet consumed,
+     * kept as a chain of buffers from the server's {@link BufferPool}.
+     * Each read goes straight into the buffer at the end of the chain,
+     * or a new one, so data left over for the next event is never
+     * copied, however long a message takes to arrive.</p>
+     *
+     * <p>Listeners get the chain from {@link NioServer.Event#getInputChain()}
+     * and read it much like a ByteBuffer: whatever they don't consume
+     * with {@link #get()}, {@link #skip(int)} and so forth is kept for
+     * the next event. They cannot change the data.
+     * When a message may be incomplete, look ahead with {@link #peek(int)}
+     * and {@link #indexOf(byte)}, or {@link #mark()} and {@link #reset()},
+     * and leave it unconsumed until it has all arrived:</p>
+     *
+     * <pre> public void tcpDataReceived( NioServer.Event evt ){
+     *     NioServer.CompositeBuffer in = evt.getInputChain();
+     *     int eol;
+     *     while( (eol = in.indexOf( (byte)'\n' )) >= 0 ){
+     *         byte[] line = new byte[ eol + 1 ];
+     *         in.get( line );
+     *         ...
+     *     }
+     * }</pre>
+     *
+     * <p>A chain belongs to one connection and is only used on its
+     * I/O loop's thread, during an event.</p>
+     *
+     * <p>This code is released into the Public Domain.
+     * Since this is Public Domain, you don't need to worry about
+     * licensing, and you can simply copy this NioServer.java file
+     * to your own package and use it as you like. Enjoy.
+     * Please consider leaving the following statement here in this code:</p>
+     *
+     * <p><em>This <tt>NioServer</tt> class was copied to this project from its source as
+     * found at <a href="http://iharder.net" target="_blank">iHarder.net</a>.</em></p>
+     *
+     * @author Robert Harder
+     * @author rharder@users.sourceforge.net
+     * @version 0.1
+     * @see NioServer.Event#getInputChain()
+     */
+    public static class CompositeBuffer {
+
+        private ByteBuffer[] segments = new ByteBuffer[4];                      // Data in [position, limit) of each
+        private int count;                                                      // Segments in use
+        private int seg;                                                        // Segment the cursor is in
+        private int pos;                                                        // Cursor's index in that segment
+        private int remaining;                                                  // Bytes from the cursor on
+
+        private int markSeg;
+        private int markPos;
+        private int markRemaining = -1;                                         // No mark
+
+        private ByteBuffer flat;                                                // Handed out by Event.getInputBuffer()
+        private int flatBase;                                                   // Where flat starts in its segment
+
+
+        private CompositeBuffer(){
+        }
+
+
+        /**
+         * Returns the number of bytes from the current position to the end.
+         * @return the number of bytes
+         */
+        public int remaining(){
+            return this.remaining;
+        }
+
+
+        /**
+         * Returns whether or not there are any bytes left.
+         * @return true if there are bytes left
+         */
+        public boolean hasRemaining(){
+            return this.remaining > 0;
+        }
+
+
+        /**
+         * Returns the number of buffers the remaining bytes are spread over.
+         * @return the number of buffers
+         */
+        public int getSegmentCount(){
+            int n = 0;
+            for( int i = this.seg; i < this.count; i++ ){
+                if( (i == this.seg ? this.pos : this.segments[i].position()) < this.segments[i].limit() ){
+                    n++;
+                }   // end if: has data
+            }   // end for: each segment
+            return n;
+        }
+
+
+        /**
+         * Reads the byte at the current position and moves past it.
+         * @return the byte
+         * @throws java.nio.BufferUnderflowException if there are no bytes left
+         */
+        public byte get(){
+            if( this.remaining <= 0 ){
+                throw new BufferUnderflowException();
+            }   // end if: empty
+            ByteBuffer b = this.segments[ this.seg ];
+            while( this.pos >= b.limit() ){                                     // Used up: move to the next
+                b = this.segments[ ++this.seg ];
+                this.pos = b.position();
+            }   // end while: used up
+            this.remaining--;
+            return b.get( this.pos++ );
+        }
+
+
+        /**
+         * Reads bytes into the array and moves past them.
+         * @param dst the array to fill
+         * @return this chain
+         * @throws java.nio.BufferUnderflowException if there are not enough bytes left
+         */
+        public CompositeBuffer get( byte[] dst ){
+            return get( dst, 0, dst.length );
+        }
+
+
+        /**
+         * Reads bytes into part of the array and moves past them.
+         * @param dst the array
+         * @param off where to start in the array
+         * @param len the number of bytes to read
+         * @return this chain
+         * @throws java.nio.BufferUnderflowException if there are not enough bytes left
+         */
+        public CompositeBuffer get( byte[] dst, int off, int len ){
+            if( off < 0 || len < 0 || off + len > dst.length ){
+                throw new IndexOutOfBoundsException( "Offset " + off + " and length " + len + " do not fit array of " + dst.length );
+            }   // end if: out of range
+            if( len > this.remaining ){
+                throw new BufferUnderflowException();
+            }   // end if: not enough
+            while( len > 0 ){
+                ByteBuffer b = this.segments[ this.seg ];
+                int n = Math.min( len, b.limit() - this.pos );
+                if( n <= 0 ){                                                   // Used up: move to the next
+                    this.pos = this.segments[ ++this.seg ].position();
+                    continue;
+                }   // end if: used up
+                ByteBuffer d = b.duplicate();
+                d.position( this.pos );
+                d.get( dst, off, n );
+                this.pos += n;
+                this.remaining -= n;
+                off += n;
+                len -= n;
+            }   // end while: more to read
+            return this;
+        }
+
+
+        /**
+         * Reads as many bytes as fit into the buffer and moves past them.
+         * @param dst the buffer to fill
+         * @return the number of bytes read
+         */
+        public int get( ByteBuffer dst ){
+            int total = 0;
+            while( this.remaining > 0 && dst.hasRemaining() ){
+                ByteBuffer b = this.segments[ this.seg ];
+                int n = Math.min( dst.remaining(), b.limit() - this.pos );
+                if( n <= 0 ){                                                   // Used up: move to the next
+                    this.pos = this.segments[ ++this.seg ].position();
+                    continue;
+                }   // end if: used up
+                ByteBuffer d = b.duplicate();
+                d.limit( this.pos + n );
+                d.position( this.pos );
+                dst.put( d );
+                this.pos += n;
+                this.remaining -= n;
+                total += n;
+            }   // end while: more to read
+            return total;
+        }
+
+
+        /**
+         * Returns the byte the given number of bytes past the current
+         * position without moving.
+         * @param offset how far past the current position
+         * @return the byte
+         * @throws IndexOutOfBoundsException if offset is negative or not less than {@link #remaining()}
+         */
+        public byte peek( int offset ){
+            if( offset < 0 || offset >= this.remaining ){
+                throw new IndexOutOfBoundsException( "Offset " + offset + " with " + this.remaining + " remaining" );
+            }   // end if: out of range
+            int s = this.seg;
+            int p = this.pos;
+            while( true ){
+                ByteBuffer b = this.segments[s];
+                int avail = b.limit() - p;
+                if( offset < avail ){
+                    return b.get( p + offset );
+                }   // end if: in this segment
+                offset -= avail;
+                p = this.segments[ ++s ].position();
+            }   // end while: each segment
+        }
+
+
+        /**
+         * Returns how far past the current position the given byte
+         * first appears, or -1 if it does not. Does not move.
+         * @param value the byte to look for
+         * @return the offset or -1
+         */
+        public int indexOf( byte value ){
+            int offset = 0;
+            for( int s = this.seg; s < this.count; s++ ){
+                ByteBuffer b = this.segments[s];
+                int lim = b.limit();
+                for( int p = (s == this.seg ? this.pos : b.position()); p < lim; p++ ){
+                    if( b.get(p) == value ){
+                        return offset;
+                    }   // end if: found
+                    offset++;
+                }   // end for: each byte
+            }   // end for: each segment
+            return -1;
+        }
+
+
+        /**
+         * Moves past bytes without reading them.
+         * @param n the number of bytes
+         * @return this chain
+         * @throws IllegalArgumentException if n is negative or more than {@link #remaining()}
+         */
+        public CompositeBuffer skip( int n ){
+            if( n < 0 || n > this.remaining ){
+                throw new IllegalArgumentException( "Cannot skip " + n + " with " + this.remaining + " remaining" );
+            }   // end if: out of range
+            while( n > 0 ){
+                ByteBuffer b = this.segments[ this.seg ];
+                int k = Math.min( n, b.limit() - this.pos );
+                if( k <= 0 ){                                                   // Used up: move to the next
+                    this.pos = this.segments[ ++this.seg ].position();
+                    continue;
+                }   // end if: used up
+                this.pos += k;
+                this.remaining -= k;
+                n -= k;
+            }   // end while: more to skip
+            return this;
+        }
+
+
+        /**
+         * Remembers the current position for {@link #reset()}.
+         * @return this chain
+         */
+        public CompositeBuffer mark(){
+            this.markSeg = this.seg;
+            this.markPos = this.pos;
+            this.markRemaining = this.remaining;
+            return this;
+        }
+
+
+        /**
+         * Goes back to the position remembered with {@link #mark()}
+         * during this event.
+         * @return this chain
+         * @throws java.nio.InvalidMarkException if there is no mark
+         */
+        public CompositeBuffer reset(){
+            if( this.markRemaining < 0 ){
+                throw new InvalidMarkException();
+            }   // end if: no mark
+            this.seg = this.markSeg;
+            this.pos = this.markPos;
+            this.remaining = this.markRemaining;
+            return this;
+        }
+
+
+        /**
+         * Returns read-only buffers over the remaining bytes, in order,
+         * without copying, such as for a gathering write. Moving
+         * through them does not move this chain.
+         * @return the buffers
+         */
+        public ByteBuffer[] buffers(){
+            ByteBuffer[] views = new ByteBuffer[ getSegmentCount() ];
+            int v = 0;
+            for( int i = this.seg; i < this.count; i++ ){
+                ByteBuffer b = this.segments[i];
+                int start = i == this.seg ? this.pos : b.position();
+                if( start < b.limit() ){
+                    ByteBuffer view = b.asReadOnlyBuffer();
+                    view.position( start );
+                    views[ v++ ] = view;
+                }   // end if: has data
+            }   // end for: each segment
+            return views;
+        }
+
+
+        @Override
+        public String toString(){
+            return "NioServer.CompositeBuffer[remaining=" + this.remaining + ", segments=" + getSegmentCount() + "]";
+        }
+
+
+        /**
+         * Returns a buffer to read into at the end of the chain,
+         * adding a buffer from the pool if the last one has
+         * less than half the given size free.
+         */
+        private ByteBuffer tail( BufferPool pool, int size ){
+            ByteBuffer last = this.count > 0 ? this.segments[ this.count - 1 ] : null;
+            if( last == null || last.capacity() - last.limit() < size / 2 ){
+                last = pool.acquire( size );
+                last.limit( 0 );                                                // No data yet
+                if( this.count == this.segments.length ){
+                    this.segments = Arrays.copyOf( this.segments, this.count * 2 );
+                }   // end if: full
+                this.segments[ this.count++ ] = last;
+                if( this.count == 1 ){
+                    this.seg = 0;
+                    this.pos = 0;
+                }   // end if: first
+            }   // end if: new segment
+            ByteBuffer dst = last.duplicate();
+            dst.limit( last.capacity() );
+            dst.position( last.limit() );
+            return dst;
+        }
+
+
+        /** Records that bytes were read into the buffer from {@link #tail}. */
+        private void appended( int n ){
+            if( n > 0 ){
+                ByteBuffer last = this.segments[ this.count - 1 ];
+                last.limit( last.limit() + n );
+                this.remaining += n;
+            }   // end if: got some
+        }
+
+
+        /**
+         * Returns the remaining bytes as one buffer starting at zero, for
+         * {@link NioServer.Event#getInputBuffer()}, copying them into
+         * one pooled buffer if they are spread over several.
+         */
+        private ByteBuffer flatten( BufferPool pool ){
+            if( this.flat == null ){
+                if( this.count == 0 ){
+                    return ByteBuffer.allocate(0);
+                }   // end if: nothing at all
+                while( this.seg < this.count - 1 && this.pos >= this.segments[ this.seg ].limit() ){
+                    this.pos = this.segments[ ++this.seg ].position();
+                }   // end while: used up
+                if( this.remaining > this.segments[ this.seg ].limit() - this.pos ){
+                    int r = this.remaining;
+                    ByteBuffer whole = pool.acquire( r );
+                    get( whole );                                               // Moves to the end
+                    whole.flip();
+                    release( pool );
+                    this.segments[0] = whole;
+                    this.count = 1;
+                    this.remaining = r;
+                }   // end if: spread out
+                ByteBuffer d = this.segments[ this.seg ].duplicate();
+                d.limit( this.pos + this.remaining );
+                d.position( this.pos );
+                this.flat = d.slice();
+                this.flatBase = this.pos;
+                this.markRemaining = -1;
+            }   // end if: not yet
+            return this.flat;
+        }
+
+
+        /**
+         * Drops what was consumed during the event, giving back
+         * buffers that are used up, and gets ready for the next.
+         */
+        private void commit( BufferPool pool ){
+            if( this.flat != null ){                                            // Listeners used a plain ByteBuffer
+                ByteBuffer b = this.segments[ this.seg ];
+                int start = this.flatBase + this.flat.position();
+                int end = this.flatBase + this.flat.limit();
+                b.position( 0 );
+                b.limit( end );
+                b.position( start );
+                for( int i = this.seg + 1; i < this.count; i++ ){               // Nothing after it
+                    pool.release( this.segments[i] );
+                    this.segments[i] = null;
+                }   // end for: each later segment
+                this.count = this.seg + 1;
+                this.pos = start;
+                this.remaining = end - start;
+                this.flat = null;
+            }   // end if: flat
+            if( this.remaining == 0 ){
+                release( pool );                                                // Idle connections hold nothing
+                return;
+            }   // end if: all consumed
+            this.segments[ this.seg ].position( this.pos );
+            if( this.seg > 0 ){
+                for( int i = 0; i < this.seg; i++ ){
+                    pool.release( this.segments[i] );
+                }   // end for: each used up segment
+                System.arraycopy( this.segments, this.seg, this.segments, 0, this.count - this.seg );
+                Arrays.fill( this.segments, this.count - this.seg, this.count, null );
+                this.count -= this.seg;
+                this.seg = 0;
+            }   // end if: some used up
+            this.markRemaining = -1;
+        }
+
+
+        /** Gives every buffer back to the pool and empties the chain. */
+        private void release( BufferPool pool ){
+            for( int i = 0; i < this.count; i++ ){
+                pool.release( this.segments[i] );
+                this.segments[i] = null;
+            }   // end for: each segment
+            this.count = 0;
+            this.seg = 0;
+            this.pos = 0;
+            this.remaining = 0;
+            this.markRemaining = -1;
+            this.flat = null;
+        }
+
+    }   // end static inner class CompositeBuffer
+
+
+
+
+
+/* ********                                                              ******** */
+/* ********                                                              ******** */
+/* ********   S T A T I C   I N N E R   C L A S S   C O N N E C T I O N  ******** */
+/* ********                                                              ******** */
+/* ********                                                              ******** */
+
+
+
+    /**
+     * <p>Everything the server keeps for one TCP connection, stored as
+     * the attachment of the connection's {@link SelectionKey}. The server
+     * owns the attachment, so don't call <code>key.attach(..)</code>
+     * yourself. Instead, keep your own state for the connection, such as
+     * a file being sent or a half-parsed request, in the context slot:</p>
+     *
+     * <pre> public void tcpDataReceived( NioServer.Event evt ){
+     *     MyRequest req = (MyRequest)evt.getConnection().getContext();
+     *     if( req == null ){
+     *         req = new MyRequest();
+     *         evt.getConnection().setContext( req );
+     *     }
+     *     ...
+     * }</pre>
+     *
+     * <p>The context is still available in the
+     * {@link NioServer.Listener#connectionClosed(NioServer.Event)} event
+     * so that it can be cleaned up.</p>
+     *
+     * <p>Data can also be sent from any thread, not just during events,
+     * with {@link #write(ByteBuffer[])}, which queues it for the
+     * connection's I/O loop, and files can be sent without copying them
+     * with {@link #sendFile(FileChannel,long,long)}.</p>
+     *
+     * <p>This code is released into the Public Domain.
+     * Since this is Public Domain, you don't need to worry about
+     * licensing, and you can simply copy this NioServer.java file
+     * to your own package and use it as you like. Enjoy.
+     * Please consider leaving the following statement here in this code:</p>
+     *
+     * <p><em>This <tt>NioServer</tt> class was copied to this project from its source as
+     * found at <a href="http://iharder.net" target="_blank">iHarder.net</a>.</em></p>
+     *
+     * @author Robert Harder
+     * @author rharder@users.sourceforge.net
+     * @version 0.1
+     * @see NioServer.Event#getConnection()
+     */
+    public static class Connection {
+
+        private final NioServer server;
+        private final IoLoop loop;                                              // Owns the connection
+        private final SelectionKey key;
+        private final SocketAddress binding;                                    // Where it was accepted
+        private final BufferPool pool;                                          // Where its buffers come from and go back to
+        private volatile Object context;                                        // Belongs to the application
+
+        // Queued on any thread, written by the loop
+        private final Queue<Object> writeQueue = new ConcurrentLinkedQueue<Object>(); // Buffers and files, additions guarded by itself
+        private final AtomicLong queuedBytes = new AtomicLong();                // Queued and not yet written
+        private final AtomicInteger queuedFiles = new AtomicInteger();          // Files queued and not yet sent
+        private final AtomicBoolean writable = new AtomicBoolean(true);         // Not over the high watermark
+        private final AtomicBoolean flushRequested = new AtomicBoolean();       // Command already on its way to the loop
+
+        // Only touched on the loop's thread
+        private final CompositeBuffer input = new CompositeBuffer();            // Received and not yet consumed
+        private final ArrayDeque<Object> outgoing = new ArrayDeque<Object>();   // Taken from the queue, being written
+        private final Set<ByteBuffer> pooled = Collections.newSetFromMap(new IdentityHashMap<ByteBuffer,Boolean>()); // Outgoing buffers owned by the pool
+        private boolean closeAfterWriting;
+        private long lastRead;                                                  // When data last arrived
+        private long lastWrite;                                                 // When data last went out, or the loop first tried to send it
+        private Connection timerPrev;                                           // Neighbours in the timer wheel's slot
+        private Connection timerNext;
+        private long timerTick = -1;                                            // Tick in the wheel, or -1 if not in it
+
+
+        private Connection( NioServer server, IoLoop loop, SelectionKey key, SocketAddress binding, BufferPool pool ){
+            this.server = server;
+            this.loop = loop;
+            this.key = key;
+            this.binding = binding;
+            this.pool = pool;
+        }
+
+
+        /**
+         * Returns the server that accepted this connection.
+         * @return the server
+         */
+        public NioServer getNioServer(){
+            return this.server;
+        }
+
+
+        /**
+         * Returns the SelectionKey for this connection.
+         * @return the key
+         */
+        public SelectionKey getKey(){
+            return this.key;
+        }
+
+
+        /**
+         * Returns the channel for this connection.
+         * @return the channel
+         */
+        public SocketChannel getChannel(){
+            return (SocketChannel)this.key.channel();
+        }
+
+
+        /**
+         * Returns the TCP binding this connection was accepted on,
+         * as given to {@link NioServer#addTcpBinding(java.net.SocketAddress)}.
+         * @return the binding
+         */
+        public SocketAddress getBinding(){
+            return this.binding;
+        }
+
+
+        /**
+         * Returns the application's object for this connection,
+         * or null if none has been set.
+         * @return the context or null
+         */
+        public Object getContext(){
+            return this.context;
+        }
+
+
+        /**
+         * Sets the application's object for this connection.
+         * The server does nothing with it.
+         * @param context the context, which may be null
+         */
+        public void setContext( Object context ){
+            this.context = context;
+        }
+
+
+        /**
+         * Shorthand for <code>getNioServer().setNotifyOnWritable(getKey(), notify)</code>.
+         * @param notify whether or not to provide notifications
+         */
+        public void setNotifyOnWritable( boolean notify ){
+            this.server.setNotifyOnWritable( this.key, notify );
+        }
+
+
+        /**
+         * Shorthand for <code>getNioServer().closeAfterWriting(getKey())</code>.
+         */
+        public void closeAfterWriting(){
+            this.loop.closeAfterWriting( this );
+        }
+
+
+        /**
+         * <p>Queues data to be sent on this connection and returns right
+         * away. May be called from any thread. The connection's I/O loop
+         * writes the queue, oldest first, as fast as the channel takes it,
+         * handing the channel several buffers at once. The buffers of one
+         * call are kept together and in order.</p>
+         *
+         * <p>The buffers now belong to the server: don't change them until
+         * the data has been sent, which you can tell when
+         * {@link #getQueuedBytes()} drops. Data left in the output buffer
+         * during an event is sent after anything queued before the
+         * event returns.</p>
+         *
+         * <p>Nothing stops the queue from growing, so a producer faster
+         * than the network should check {@link #isWritable()} and hold off
+         * after it turns false until
+         * {@link NioServer.ConnectionListener#writabilityChanged(NioServer.Event)}
+         * says otherwise (see {@link NioServer#setWriteWatermarks(int,int)}).</p>
+         *
+         * @param buffers the data, from each buffer's position to its limit
+         * @throws java.nio.channels.ClosedChannelException if the connection is closed
+         */
+        public void write( ByteBuffer... buffers ) throws ClosedChannelException {
+            if( !this.key.isValid() ){
+                throw new ClosedChannelException();
+            }   // end if: closed
+
+            long bytes = 0;
+            for( ByteBuffer buff : buffers ){
+                bytes += buff.remaining();
+            }   // end for: each buffer
+            if( bytes > 0 ){
+                synchronized( this.writeQueue ){                                // Keep one call's buffers together
+                    queued(bytes);                                              // Counted before the loop can write them
+                    for( ByteBuffer buff : buffers ){
+                        if( buff.hasRemaining() ){
+                            this.writeQueue.add(buff);
+                        }   // end if: something to send
+                    }   // end for: each buffer
+                }   // end sync
+                this.loop.flushSoon(this);
+            }   // end if: something to send
+        }
+
+
+        /**
+         * <p>Queues part of a file to be sent on this connection and returns
+         * right away. May be called from any thread. When its turn comes,
+         * after anything queued before it, the connection's I/O loop sends it
+         * with <code>FileChannel.transferTo(..)</code> whenever the channel
+         * is ready, so the data goes from the file to the socket without
+         * being copied through the server's buffers.</p>
+         *
+         * <p>Once all of it has been sent, or the file turns out to end
+         * sooner, {@link NioServer.ConnectionListener#fileSent(NioServer.Event)}
+         * is fired. The file is not closed by the server and must not be
+         * closed before then. If the connection closes first, the event is
+         * not fired and the server closes the file instead, as it also does
+         * when this method throws because the connection is closed already.
+         * Files do not count towards the write watermarks.</p>
+         *
+         * <pre> public void tcpDataReceived( NioServer.Event evt ){
+         *     ...
+         *     NioServer.Connection conn = evt.getConnection();
+         *     FileChannel fc = new FileInputStream( file ).getChannel();
+         *     conn.write( headers );
+         *     conn.sendFile( fc, 0, fc.size() );
+         *     conn.closeAfterWriting();
+         * }
+         *
+         * public void fileSent( NioServer.Event evt ){
+         *     evt.getFileChannel().close();
+         * }</pre>
+         *
+         * @param file the file, open for reading
+         * @param position where in the file to start
+         * @param count the number of bytes to send
+         * @throws IllegalArgumentException if position or count is negative
+         * @throws java.nio.channels.ClosedChannelException if the connection is closed
+         */
+        public void sendFile( FileChannel file, long position, long count ) throws ClosedChannelException {
+            if( position < 0 || count < 0 ){
+                throw new IllegalArgumentException( "Position and count must not be negative: " + position + ", " + count );
+            }   // end if: negative
+            FileRegion region = new FileRegion( file, position, count );
+            if( !this.key.isValid() ){
+                region.close();
+                throw new ClosedChannelException();
+            }   // end if: closed
+
+            synchronized( this.writeQueue ){
+                this.queuedFiles.incrementAndGet();                             // Counted before the loop can send it
+                this.writeQueue.add(region);
+            }   // end sync
+            if( !this.key.isValid() && this.writeQueue.remove(region) ){           // Closed meanwhile, and the loop
+                this.queuedFiles.decrementAndGet();                             // may have discarded the queue already
+                region.close();
+                throw new ClosedChannelException();
+            }   // end if: closed before the loop took it
+            this.loop.flushSoon(this);
+        }
+
+
+        /**
+         * Returns false while more than the server's high watermark of
+         * data queued with {@link #write(ByteBuffer[])} is waiting to be
+         * sent, and true again once it has drained to the low watermark.
+         * @return whether or not producers may keep writing
+         * @see NioServer#setWriteWatermarks(int,int)
+         */
+        public boolean isWritable(){
+            return this.writable.get();
+        }
+
+
+        /**
+         * Returns the number of bytes queued on this connection
+         * and not yet sent.
+         * @return the queued bytes
+         */
+        public long getQueuedBytes(){
+            return this.queuedBytes.get();
+        }
+
+
+        /**
+         * Returns whether or not the connection's channel is open.
+         * @return true if open
+         */
+        public boolean isOpen(){
+            return this.key.channel().isOpen();
+        }
+
+
+        /**
+         * Closes the connection's channel. The
+         * {@link NioServer.Listener#connectionClosed(NioServer.Event)}
+         * event is not fired for connections closed this way.
+         * @throws java.io.IOException if an error occurs
+         */
+        public void close() throws IOException{
+            this.key.channel().close();
+        }
+
+
+        @Override
+        public String toString(){
+            return "NioServer.Connection[" + this.key.channel() + "]";
+        }
+
+
+        /**
+         * Counts newly queued bytes, noting when the
+         * connection goes over the high watermark.
+         */
+        private void queued( long bytes ){
+            long total = this.queuedBytes.addAndGet(bytes);
+            if( total > this.server.writeHighWatermark && this.writable.compareAndSet(true, false) ){
+                this.loop.writabilityLost(this);
+            }   // end if: just went over
+        }
+
+
+        /**
+         * Queues one buffer behind the others. Called on the loop's thread,
+         * which gives the buffer back to the pool once sent if so marked.
+         */
+        private void queue( ByteBuffer buff, boolean fromPool ){
+            if( fromPool ){
+                this.pooled.add(buff);
+            }   // end if: pool's buffer
+            synchronized( this.writeQueue ){
+                queued(buff.remaining());
+                this.writeQueue.add(buff);
+            }   // end sync
+        }
+
+
+        /**
+         * Returns everything queued so far, buffers and
+         * {@link FileRegion}s, in order. Called on the loop's thread.
+         */
+        private ArrayDeque<Object> takeQueued(){
+            Object item = null;
+            while( (item = this.writeQueue.poll()) != null ){
+                this.outgoing.addLast(item);
+            }   // end while: each newly queued item
+            return this.outgoing;
+        }
 
-        if( cachedListeners == null ){
-            cachedListeners = listeners.toArray(new NioServer.Listener[ listeners.size() ] );
+
+        /** Returns whether or not anything is waiting to be sent. */
+        private boolean hasQueuedWrites(){
+            return this.queuedBytes.get() > 0 || this.queuedFiles.get() > 0;
         }
-        this.event.reset(key,null,outBuff,null);
 
-        // Make a Runnable object to execute the calls to listeners.
-        // In the event we don't have an Executor, this results in
-        // an unnecessary object instantiation, but it also makes
-        // the code more maintainable.
-        for( NioServer.Listener l : cachedListeners ){
-            try{
-                l.newConnectionReceived(event);
-            } catch( Exception exc ){
-                LOGGER.warning("NioServer.Listener " + l + " threw an exception: " + exc.getMessage() );
-                fireExceptionNotification(exc);
-            }   // end catch
-        }   // end for: each listener
-     }  // end fireNioServerPacketReceived
 
+        /** Called on the loop's thread once a buffer or file has been sent. */
+        private void sent( Object item, BufferPool pool ){
+            if( item instanceof FileRegion ){
+                this.queuedFiles.decrementAndGet();
+            } else if( this.pooled.remove(item) ){
+                pool.release((ByteBuffer)item);
+            }   // end else: pool's buffer
+        }
 
 
+        /**
+         * Drops whatever was not sent, giving the pool its buffers
+         * back and closing the files.
+         */
+        private void discardQueued( BufferPool pool ){
+            for( Object item : takeQueued() ){
+                if( item instanceof FileRegion ){
+                    ((FileRegion)item).close();
+                }   // end if: file
+                sent(item, pool);
+            }   // end for: each item
+            this.outgoing.clear();
+            this.pooled.clear();
+            this.queuedBytes.set(0);
+        }
 
+    }   // end static inner class Connection
 
-/* ********  P R O P E R T Y   C H A N G E  ******** */
 
 
     /**
-     * Fires property chagne events for all current values
-     * setting the old value to null and new value to the current.
+     * Part of a file queued with
+     * {@link Connection#sendFile(FileChannel,long,long)}, and how
+     * much of it is left to send. Only touched on the loop's thread
+     * once queued.
      */
-    public synchronized void fireProperties(){
-        firePropertyChange( STATE_PROP, null, getState()  );
-        firePropertyChange( INPUT_BUFFER_SIZE_PROP, null, getInputBufferSize()  );
-        firePropertyChange( OUTPUT_BUFFER_SIZE_PROP, null, getOutputBufferSize()  );
-    }
+    private static class FileRegion {
 
+        private final FileChannel file;
+        private long position;
+        private long remaining;
 
-    /**
-     * Fire a property change event on the current thread.
-     *
-     * @param prop      name of property
-     * @param oldVal    old value
-     * @param newVal    new value
-     */
-    protected synchronized void firePropertyChange( final String prop, final Object oldVal, final Object newVal ){
-        try{
-            propSupport.firePropertyChange(prop,oldVal,newVal);
-        } catch( Exception exc ){
-            LOGGER.log(Level.WARNING,
-                    "A property change listener threw an exception: " + exc.getMessage()
-                    ,exc);
-            fireExceptionNotification(exc);
-        }   // end catch
-    }   // end fire
 
+        private FileRegion( FileChannel file, long position, long count ){
+            this.file = file;
+            this.position = position;
+            this.remaining = count;
+        }
 
 
-    /**
-     * Add a property listener.
-     * @param listener the listener
-     */
-    public synchronized void addPropertyChangeListener( PropertyChangeListener listener ){
-        propSupport.addPropertyChangeListener(listener);
-    }
+        /**
+         * Sends as much of the region as the channel will take.
+         * @param ch the channel
+         * @return true if nothing is left, which includes the file ending early
+         * @throws java.io.IOException if an error occurs
+         */
+        private boolean transferTo( SocketChannel ch ) throws IOException {
+            while( this.remaining > 0 ){
+                long sent = this.file.transferTo(this.position, this.remaining, ch);
+                if( sent > 0 ){
+                    this.position += sent;
+                    this.remaining -= sent;
+                } else if( this.position >= this.file.size() ){                 // Nothing sent because the file ended
+                    this.remaining = 0;
+                } else {                                                        // Channel is full
+                    return false;
+                }   // end else: try again later
+            }   // end while: more to send
+            return true;
+        }
 
 
-    /**
-     * Add a property listener for the named property.
-     * @param property the property name
-     * @param listener the listener
-     */
-    public synchronized void addPropertyChangeListener( String property, PropertyChangeListener listener ){
-        propSupport.addPropertyChangeListener(property,listener);
-    }
+        /** Closes the file when the connection closed before it was sent. */
+        private void close(){
+            try{
+                this.file.close();
+            } catch( IOException exc ){
+                LOGGER.fine( "Error closing file: " + exc.getMessage() );
+            }   // end catch
+        }
 
+    }   // end static inner class FileRegion
 
-    /**
-     * Remove a property listener.
-     * @param listener the listener
-     */
-    public synchronized void removePropertyChangeListener( PropertyChangeListener listener ){
-        propSupport.removePropertyChangeListener(listener);
-    }
 
 
     /**
-     * Remove a property listener for the named property.
-     * @param property the property name
-     * @param listener the listener
+     * <p>A hashed timing wheel holding the next timeout check for each of
+     * an I/O loop's connections. Time is cut into ticks of
+     * {@link #TIMER_TICK_MILLIS} and the wheel into {@link #TIMER_WHEEL_SIZE}
+     * slots, each a doubly-linked list threaded through the connections
+     * themselves, so scheduling and cancelling take constant time and
+     * allocate nothing. A check due more than one turn of the wheel away
+     * waits in its slot while the wheel goes around.</p>
+     *
+     * <p>Reading and writing only note the time on the connection rather
+     * than move it in the wheel. When a connection's tick comes up, the loop
+     * works out its real deadlines and times it out or schedules it again.
+     * Only touched on the loop's thread.</p>
      */
-    public synchronized void removePropertyChangeListener( String property, PropertyChangeListener listener ){
-        propSupport.removePropertyChangeListener(property,listener);
-    }
+    private static class TimerWheel {
 
+        private final Connection[] slots = new Connection[ TIMER_WHEEL_SIZE ];  // Head of each slot's list
+        private final long start;                                               // Time of tick zero
+        private long tick;                                                      // Last tick expired
+        private int size;                                                       // Connections in the wheel
 
 
-/* ********  E X C E P T I O N S  ******** */
+        private TimerWheel( long start ){
+            this.start = start;
+        }
 
 
-    /**
-     * Returns the last exception (Throwable, actually)
-     * that the server encountered.
-     * @return last exception
-     */
-    public synchronized Throwable getLastException(){
-        return this.lastException;
-    }
+        /** Returns whether or not no connections are scheduled. */
+        private boolean isEmpty(){
+            return this.size == 0;
+        }
 
-    /**
-     * Fires a property change event with the new exception.
-     * @param t
-     */
-    protected void fireExceptionNotification( Throwable t ){
-        Throwable oldVal = this.lastException;
-        this.lastException = t;
-        firePropertyChange( LAST_EXCEPTION_PROP, oldVal, t );
-    }
 
+        /**
+         * Schedules the connection for the first tick at or after
+         * the deadline, in place of any earlier schedule.
+         */
+        private void schedule( Connection conn, long deadline ){
+            cancel(conn);
+            long t = (deadline - this.start + TIMER_TICK_MILLIS - 1) / TIMER_TICK_MILLIS;   // Round up
+            if( t <= this.tick ){                                               // Never in the past
+                t = this.tick + 1;
+            }   // end if: already past
+            int slot = (int)(t & (TIMER_WHEEL_SIZE - 1));
+            Connection head = this.slots[slot];
+            conn.timerTick = t;
+            conn.timerPrev = null;
+            conn.timerNext = head;
+            if( head != null ){
+                head.timerPrev = conn;
+            }   // end if: slot not empty
+            this.slots[slot] = conn;
+            this.size++;
+        }
 
 
-/* ********  L O G G I N G  ******** */
+        /** Takes the connection out of the wheel if it is in it. */
+        private void cancel( Connection conn ){
+            if( conn.timerTick < 0 ){
+                return;
+            }   // end if: not scheduled
+            if( conn.timerPrev == null ){
+                this.slots[ (int)(conn.timerTick & (TIMER_WHEEL_SIZE - 1)) ] = conn.timerNext;
+            } else {
+                conn.timerPrev.timerNext = conn.timerNext;
+            }
+            if( conn.timerNext != null ){
+                conn.timerNext.timerPrev = conn.timerPrev;
+            }   // end if: not last
+            conn.timerPrev = null;
+            conn.timerNext = null;
+            conn.timerTick = -1;
+            this.size--;
+        }
 
 
+        /**
+         * Takes out the connections due at or before the given time, adding
+         * them to the list. Each slot is visited at most once however long
+         * it has been since the last call.
+         */
+        private void expire( long now, List<Connection> expired ){
+            long target = (now - this.start) / TIMER_TICK_MILLIS;
+            long from = Math.max( this.tick + 1, target - TIMER_WHEEL_SIZE + 1 );
+            for( long t = from; t <= target; t++ ){
+                Connection conn = this.slots[ (int)(t & (TIMER_WHEEL_SIZE - 1)) ];
+                while( conn != null ){
+                    Connection next = conn.timerNext;
+                    if( conn.timerTick <= target ){                             // Not waiting for a later turn
+                        cancel(conn);
+                        expired.add(conn);
+                    }   // end if: due
+                    conn = next;
+                }   // end while: each in slot
+            }   // end for: each tick
+            if( target > this.tick ){
+                this.tick = target;
+            }   // end if: moved on
+        }
 
-    /**
-     * Static method to set the logging level using Java's
-     * <tt>java.util.logging</tt> package. Example:
-     * <code>NioServer.setLoggingLevel(Level.OFF);</code>.
-     *
-     * @param level the new logging level
-     */
-    public static void setLoggingLevel( Level level ){
-        LOGGER.setLevel(level);
-    }
 
-    /**
-     * Static method returning the logging level using Java's
-     * <tt>java.util.logging</tt> package.
-     * @return the logging level
-     */
-    public static Level getLoggingLevel(){
-        return LOGGER.getLevel();
-    }
+        /** Returns how long until the next tick, at least one millisecond. */
+        private long millisToNextTick( long now ){
+            long next = this.start + (this.tick + 1) * TIMER_TICK_MILLIS;
+            return Math.max( 1, next - now );
+        }
+
+    }   // end static inner class TimerWheel
 
 
 
@@ -1798,7 +4872,8 @@ public class NioServer {
     /**
      * <p>An interface for listening to events from a {@link NioServer}.
      * A single {@link Event} is shared for all invocations
-     * of these methods.</p>
+     * of these methods on each I/O loop's thread
+     * (see {@link NioServer#setIoLoopCount(int)}).</p>
      *
      * <p>Of critical importance are the input and output buffers,
      * as provided by
@@ -1848,8 +4923,11 @@ public class NioServer {
          * accKey with the connection. You will only get new connection
          * events for TCP connections (not UDP).</p>
          *
-         * <p>The accKey's attachment mechanism is unused by NioServer and is
-         * available for you to store whatever you like.</p>
+         * <p>The accKey's attachment is used by NioServer, and a connection
+         * whose attachment is replaced is closed. Store whatever you like
+         * with the connection's context instead, for instance
+         * <code>evt.getConnection().setContext( new MySession() )</code>
+         * (see {@link NioServer.Connection#setContext(Object)}).</p>
          *
          * <p>If your protocol requires the server to respond to a client
          * upon connection, this sample code demonstrates such an arrangement
@@ -1876,24 +4954,22 @@ public class NioServer {
         /**
          * <p>Called when TCP data is received. Retrieve the associated ByteBuffer
          * with {@link NioServer.Event#getInputBuffer()}.
-         * This is the source ByteBuffer
-         * used by the server directly to receive the data. It is a
-         * "direct" ByteBuffer (created with <code>ByteBuffer.allocateDirect(..)</code>).</p>
+         * This is a view of the "direct" buffer, from the server's
+         * {@link NioServer.BufferPool}, that the server read the data into.</p>
          *
          * <p>Read from it as much as
          * you can. Any data that remains on or after the value
          * of <code>position()</code> will be saved for the next
          * time an event is fired. In this way, you can defer
-         * processing incomplete data until everything arrives.</p>
-         *
-         * <p><em>If you leave the buffer full, all the way up to the
-         * very last byte at <code>capacity()</code>, then that
-         * connection cannot receive any more data.</em> On some operating systems
-         * and Java virtual machines, this will serve to throttle back
-         * the client sending the data.</p>
+         * processing incomplete data until everything arrives.
+         * For messages that may take many reads to arrive, use the
+         * {@link NioServer.CompositeBuffer} from
+         * {@link NioServer.Event#getInputChain()} instead, which
+         * holds the saved data and the new without copying either.</p>
          *
-         * <p>The accKey's attachment mechanism is unused by NioServer and is
-         * available for you to store whatever you like.</p>
+         * <p>The accKey's attachment is used by NioServer. Store whatever
+         * you like with the connection's context instead
+         * (see {@link NioServer.Event#getConnection()}).</p>
          *
          * <p>If you wish to also write data as a result of what is read,
          * the preferred method is to retrieve the output buffer with
@@ -1983,7 +5059,9 @@ public class NioServer {
         public abstract void tcpReadyToWrite( NioServer.Event evt );
 
         /**
-         * Called when a TCP connection is closed.
+         * Called when a TCP connection is closed by the client,
+         * or by the server after a timeout
+         * (see {@link NioServer#setIdleTimeout(long)}).
          * @param evt the shared event
          */
         public abstract void connectionClosed( NioServer.Event evt );
@@ -1995,6 +5073,92 @@ public class NioServer {
 
 
 
+/* ********                                                                                ******** */
+/* ********                                                                                ******** */
+/* ********   S T A T I C   I N N E R   C L A S S   C O N N E C T I O N   L I S T E N E R  ******** */
+/* ********                                                                                ******** */
+/* ********                                                                                ******** */
+
+
+
+    /**
+     * <p>Further events about TCP connections. They go to every
+     * {@link NioServer.Listener} added with
+     * {@link NioServer#addNioServerListener(NioServer.Listener)} that also
+     * implements this interface, as {@link NioServer.Adapter} does,
+     * so existing listeners need not change. Like the others, they are
+     * fired on the connection's I/O loop thread with its shared {@link Event}.</p>
+     *
+     * <p>This code is released into the Public Domain.
+     * Since this is Public Domain, you don't need to worry about
+     * licensing, and you can simply copy this NioServer.java file
+     * to your own package and use it as you like. Enjoy.
+     * Please consider leaving the following statement here in this code:</p>
+     *
+     * <p><em>This <tt>NioServer</tt> class was copied to this project from its source as
+     * found at <a href="http://iharder.net" target="_blank">iHarder.net</a>.</em></p>
+     *
+     * @author Robert Harder
+     * @author rharder@users.sourceforge.net
+     * @version 0.1
+     * @see NioServer
+     * @see Listener
+     * @see Connection
+     */
+    public static interface ConnectionListener extends java.util.EventListener {
+
+
+        /**
+         * <p>Called when the data queued with
+         * {@link NioServer.Connection#write(ByteBuffer[])} goes over the
+         * high watermark or drains to the low one
+         * (see {@link NioServer#setWriteWatermarks(int,int)}).
+         * Check {@link NioServer.Connection#isWritable()} for which,
+         * since it may have changed again by the time the event arrives:</p>
+         *
+         * <pre>
+         *   public void writabilityChanged(NioServer.Event evt) {
+         *       NioServer.Connection conn = evt.getConnection();
+         *       if( conn.isWritable() ){
+         *           producer.resume( conn );
+         *       } else {
+         *           producer.pause( conn );
+         *       }
+         *   }</pre>
+         *
+         * @param evt the shared event
+         */
+        public abstract void writabilityChanged( NioServer.Event evt );
+
+
+        /**
+         * Called when a file queued with
+         * {@link NioServer.Connection#sendFile(FileChannel,long,long)}
+         * has been sent, or as much of it as there was. The file, from
+         * {@link NioServer.Event#getFileChannel()}, is yours to close.
+         * @param evt the shared event
+         */
+        public abstract void fileSent( NioServer.Event evt );
+
+
+        /**
+         * Called when a connection has timed out
+         * (see {@link NioServer#setIdleTimeout(long)}), with
+         * {@link NioServer.Event#getTimeout()} saying which timeout it was.
+         * The connection is still open, so a last message may be queued, but
+         * it is closed right after this and
+         * {@link NioServer.Listener#connectionClosed(NioServer.Event)} fired.
+         * @param evt the shared event
+         */
+        public abstract void connectionTimedOut( NioServer.Event evt );
+
+
+    }   // end inner static class ConnectionListener
+
+
+
+
+
 
 
 /* ********                                                        ******** */
@@ -2008,7 +5172,8 @@ public class NioServer {
 
     /**
      * A helper class that implements all methods of the
-     * {@link NioServer.Listener} interface with empty methods.
+     * {@link NioServer.Listener} and {@link NioServer.ConnectionListener}
+     * interfaces with empty methods.
      *
      * <p>This code is released into the Public Domain.
      * Since this is Public Domain, you don't need to worry about
@@ -2026,7 +5191,7 @@ public class NioServer {
      * @see Listener
      * @see Event
      */
-    public static class Adapter implements NioServer.Listener {
+    public static class Adapter implements NioServer.Listener, NioServer.ConnectionListener {
 
         /**
          * Empty method.
@@ -2066,6 +5231,30 @@ public class NioServer {
          */
         public void tcpReadyToWrite(NioServer.Event evt){}
 
+
+        /**
+         * Empty method.
+         * @see ConnectionListener
+         * @param evt the shared event
+         */
+        public void writabilityChanged(NioServer.Event evt){}
+
+
+        /**
+         * Empty method.
+         * @see ConnectionListener
+         * @param evt the shared event
+         */
+        public void fileSent(NioServer.Event evt){}
+
+
+        /**
+         * Empty method.
+         * @see ConnectionListener
+         * @param evt the shared event
+         */
+        public void connectionTimedOut(NioServer.Event evt){}
+
     }   // end static inner class Adapter
 
 /* ********                                                    ******** */
@@ -2107,15 +5296,33 @@ public class NioServer {
 
         /**
          * The outBuff that holds the data from the client, for some events.
+         * For TCP it is made from {@link #input} when first asked for.
          */
         private ByteBuffer inBuff;
 
+        /**
+         * The chain that holds the data from a TCP client.
+         */
+        private NioServer.CompositeBuffer input;
+
         /**
          * The outBuff that holds the data to send to the client, for some events.
          */
         private ByteBuffer outBuff;
 
 
+        /**
+         * The file that was sent, for the file sent event.
+         */
+        private FileChannel file;
+
+
+        /**
+         * Which timeout it was, for the timed out event.
+         */
+        private NioServer.Timeout timeout;
+
+
         /**
          * The source address for incoming UDP datagrams.
          * The {@link #getRemoteSocketAddress} method
@@ -2161,6 +5368,19 @@ public class NioServer {
         }
 
 
+        /**
+         * Returns the {@link NioServer.Connection} for a TCP event,
+         * where you can keep your own state for the connection,
+         * or null for a UDP event.
+         *
+         * @return the connection or null
+         */
+        public NioServer.Connection getConnection(){
+            Object att = this.key == null ? null : this.key.attachment();
+            return att instanceof NioServer.Connection ? (NioServer.Connection)att : null;
+        }
+
+
         /**
          * Resets an event between firings by updating the parameters
          * that change.
@@ -2170,8 +5390,45 @@ public class NioServer {
         protected void reset( SelectionKey key, ByteBuffer inBuff, ByteBuffer outBuff, SocketAddress remoteUdp ){
             this.key = key;
             this.inBuff = inBuff;
+            this.input = null;
             this.outBuff = outBuff;
             this.remoteUdp = remoteUdp;
+            this.file = null;
+            this.timeout = null;
+        }
+
+
+        /**
+         * Resets an event for data received on a TCP connection.
+         * @param key The SelectionKey for the event
+         * @param input the chain with the data
+         * @param outBuff the output buffer
+         */
+        protected void reset( SelectionKey key, NioServer.CompositeBuffer input, ByteBuffer outBuff ){
+            reset( key, (ByteBuffer)null, outBuff, null );
+            this.input = input;
+        }
+
+
+        /**
+         * Resets an event for a file that has been sent.
+         * @param key The SelectionKey for the event
+         * @param file the file
+         */
+        protected void reset( SelectionKey key, FileChannel file ){
+            reset( key, null, null, null );
+            this.file = file;
+        }
+
+
+        /**
+         * Resets an event for a connection that has timed out.
+         * @param key The SelectionKey for the event
+         * @param timeout which timeout it was
+         */
+        protected void reset( SelectionKey key, NioServer.Timeout timeout ){
+            reset( key, null, null, null );
+            this.timeout = timeout;
         }
 
 
@@ -2192,13 +5449,59 @@ public class NioServer {
          * like, but you leave this outBuff's position at the beginning
          * of the second line. In this way, The beginning of the second
          * line will be the start of the outBuff the next time around.</p>
+         *
+         * <p>For TCP, if the data has arrived over several reads and is
+         * spread over several buffers, it is copied into one the first time
+         * this is called during the event. Listeners that may have to wait
+         * for large messages should use {@link #getInputChain()} instead,
+         * which never copies, and should not use both in one event.</p>
          * @return outBuff with the data
          */
         public ByteBuffer getInputBuffer(){
+            if( this.inBuff == null && this.input != null ){
+                this.inBuff = this.input.flatten( getConnection().pool );
+            }   // end if: TCP, first time
             return this.inBuff;
         }
 
 
+        /**
+         * Returns the data received on a TCP connection, and any left
+         * over from before, as a {@link NioServer.CompositeBuffer}, or null
+         * for other events. Whatever is not consumed is saved for the next
+         * event, without being copied.
+         * This applies to the
+         * {@link NioServer.Listener#tcpDataReceived(NioServer.Event)}
+         * event.
+         * @return the data or null
+         */
+        public NioServer.CompositeBuffer getInputChain(){
+            return this.input;
+        }
+
+
+        /**
+         * Returns the file that was sent, for the
+         * {@link NioServer.ConnectionListener#fileSent(NioServer.Event)}
+         * event, or null for other events.
+         * @return the file or null
+         */
+        public FileChannel getFileChannel(){
+            return this.file;
+        }
+
+
+        /**
+         * Returns which timeout it was, for the
+         * {@link NioServer.ConnectionListener#connectionTimedOut(NioServer.Event)}
+         * event, or null for other events.
+         * @return the timeout or null
+         */
+        public NioServer.Timeout getTimeout(){
+            return this.timeout;
+        }
+
+
         /**
          * <p>Returns the {@link java.nio.ByteBuffer} in which you leave
          * data to be written to the client.
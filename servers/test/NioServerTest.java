@@ -0,0 +1,1053 @@
+import junit.framework.*;
+import java.io.*;
+import java.net.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.beans.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+
+/**
+ *
+ * @author robert.harder
+ */
+public class NioServerTest extends TestCase {
+
+    private NioServer server;
+    private InetSocketAddress addr;
+
+    public NioServerTest(String testName) {
+        super(testName);
+    }
+
+    protected void setUp() throws Exception {
+        server = new NioServer();
+        addr = new InetSocketAddress( "127.0.0.1", freePort() );
+    }
+
+    protected void tearDown() throws Exception {
+        server.stop();
+    }
+
+
+    /** Finds a port that nothing is listening on. */
+    private static int freePort() throws IOException {
+        ServerSocket ss = new ServerSocket( 0 );
+        int port = ss.getLocalPort();
+        ss.close();
+        return port;
+    }
+
+    /** Starts the server and waits until it is running. */
+    private void start() throws Exception {
+        server.start();
+        for( int i = 0; i < 500 && server.getState() != NioServer.State.STARTED; i++ ){
+            Thread.sleep( 10 );
+        }   // end for: wait
+        assertEquals( NioServer.State.STARTED, server.getState() );
+    }
+
+    private static Socket connect( InetSocketAddress addr ) throws IOException {
+        Socket s = new Socket();
+        s.connect( addr, 5000 );
+        return s;
+    }
+
+    private static void await( CountDownLatch latch ) throws InterruptedException {
+        assertTrue( "Timed out", latch.await( 5, TimeUnit.SECONDS ) );
+    }
+
+
+
+    /**
+     * Test that connections keep their buffers in the pool they started
+     * with when the pool is swapped, and give them all back on closing.
+     */
+    public void testSwapBufferPool() throws Exception {
+        System.out.println("swapBufferPool");
+
+        NioServer.BufferPool first = new NioServer.BufferPool();
+        NioServer.BufferPool second = new NioServer.BufferPool( 1 << 16, 4, 1 << 16 );   // With an arena
+        server.setBufferPool( first );
+        final BlockingQueue<Integer> received = new LinkedBlockingQueue<Integer>();
+        final CountDownLatch closed = new CountDownLatch( 2 );
+        server.addTcpBinding( addr );
+        server.addNioServerListener( new NioServer.Adapter(){
+            public void tcpDataReceived( NioServer.Event evt ){
+                received.add( evt.getInputChain().remaining() );       // Consume nothing
+            }
+            public void connectionClosed( NioServer.Event evt ){
+                closed.countDown();
+            }
+        });
+        start();
+
+        Socket before = connect( addr );
+        before.getOutputStream().write( new byte[ 100 ] );
+        assertEquals( 100, (int)received.poll( 5, TimeUnit.SECONDS ) );
+        assertTrue( first.getInUseCount() > 0 );
+
+        server.setBufferPool( second );
+        before.getOutputStream().write( new byte[ 5000 ] );
+        int total = 0;
+        while( total < 5100 ){
+            total = received.poll( 5, TimeUnit.SECONDS );
+        }   // end while: all of it
+        assertEquals( 0, second.getAcquireCount() );
+
+        Socket after = connect( addr );
+        after.getOutputStream().write( new byte[ 100 ] );
+        assertEquals( 100, (int)received.poll( 5, TimeUnit.SECONDS ) );
+        assertTrue( second.getInUseCount() > 0 );
+
+        before.close();
+        after.close();
+        await( closed );
+        assertEquals( 0, first.getInUseCount() );
+        assertEquals( 0, first.getInUseBytes() );
+        assertEquals( 0, second.getInUseCount() );
+        assertEquals( 0, second.getInUseBytes() );
+        assertTrue( second.getIdleCount() > 0 );
+    }   // end testSwapBufferPool
+
+
+
+    /**
+     * Test that a pool with an arena keeps every buffer carved from
+     * the arena, but limits the buffers allocated once it ran out.
+     */
+    public void testArenaOverflow() throws Exception {
+        System.out.println("arenaOverflow");
+
+        NioServer.BufferPool pool = new NioServer.BufferPool( 1 << 16, 1, 1024 );   // Two small buffers' worth
+        ByteBuffer[] buffs = new ByteBuffer[ 4 ];
+        for( int i = 0; i < buffs.length; i++ ){
+            buffs[i] = pool.acquire( 512 );
+        }   // end for: each buffer
+        assertEquals( 1024, pool.getArenaUsed() );
+        assertEquals( 2, pool.getAllocateCount() );
+
+        pool.release( buffs[2] );                                   // Allocated: fits the class
+        pool.release( buffs[3] );                                   // Allocated: class is full
+        pool.release( buffs[0] );                                   // Arena: kept anyway
+        pool.release( buffs[1] );
+        assertEquals( 3, pool.getIdleCount() );
+        assertEquals( 3 * 512, pool.getIdleBytes() );
+        assertEquals( 0, pool.getInUseCount() );
+
+        pool.acquire( 512 );                                        // All reused
+        pool.acquire( 512 );
+        pool.acquire( 512 );
+        assertEquals( 2, pool.getAllocateCount() );
+    }   // end testArenaOverflow
+
+
+
+    /**
+     * Test that a connection is closed once its unconsumed input reaches the limit.
+     */
+    public void testMaxInputSize() throws Exception {
+        System.out.println("maxInputSize");
+
+        final NioServer.BufferPool pool = new NioServer.BufferPool();
+        server.setBufferPool( pool );
+        server.setMaxInputSize( 10000 );
+        final BlockingQueue<Integer> received = new LinkedBlockingQueue<Integer>();
+        final CountDownLatch closed = new CountDownLatch( 1 );
+        server.addTcpBinding( addr );
+        server.addNioServerListener( new NioServer.Adapter(){
+            public void tcpDataReceived( NioServer.Event evt ){
+                received.add( evt.getInputChain().remaining() );       // Consume nothing
+            }
+            public void connectionClosed( NioServer.Event evt ){
+                closed.countDown();
+            }
+        });
+        start();
+
+        Socket s = connect( addr );
+        s.getOutputStream().write( new byte[ 9000 ] );
+        int total = 0;
+        while( total < 9000 ){
+            total = received.poll( 5, TimeUnit.SECONDS );
+        }   // end while: all of it
+        assertEquals( 1, closed.getCount() );                       // Under the limit
+
+        s.getOutputStream().write( new byte[ 2000 ] );
+        await( closed );
+        assertEquals( 0, pool.getInUseCount() );
+        s.setSoTimeout( 5000 );
+        try{
+            assertEquals( -1, s.getInputStream().read() );
+        } catch( SocketException exc ){ }                           // Or reset
+        s.close();
+    }   // end testMaxInputSize
+
+
+
+    /**
+     * Test that the server closes files still queued when a connection
+     * closes, and files queued on a connection that is closed already.
+     */
+    public void testSendFileClosed() throws Exception {
+        System.out.println("sendFileClosed");
+
+        File tmp = File.createTempFile( "NioServerTest", ".bin" );
+        tmp.deleteOnExit();
+        RandomAccessFile raf = new RandomAccessFile( tmp, "rw" );
+        raf.setLength( 64 << 20 );                                  // More than the socket buffers hold
+        raf.close();
+
+        final FileChannel big = new FileInputStream( tmp ).getChannel();
+        final BlockingQueue<NioServer.Connection> conns = new LinkedBlockingQueue<NioServer.Connection>();
+        final CountDownLatch sent = new CountDownLatch( 1 );
+        server.addTcpBinding( addr );
+        server.addNioServerListener( new NioServer.Adapter(){
+            public void tcpDataReceived( NioServer.Event evt ){
+                try{
+                    evt.getConnection().sendFile( big, 0, big.size() );
+                    conns.add( evt.getConnection() );
+                } catch( IOException exc ){
+                    fail( exc.toString() );
+                }
+            }
+            public void fileSent( NioServer.Event evt ){
+                sent.countDown();
+            }
+        });
+        start();
+
+        Socket s = connect( addr );
+        s.getOutputStream().write( 1 );
+        assertTrue( s.getInputStream().read( new byte[ 1000 ] ) > 0 );
+        s.setSoLinger( true, 0 );                                   // Reset rather than close gracefully
+        s.close();
+
+        for( int i = 0; i < 500 && big.isOpen(); i++ ){
+            Thread.sleep( 10 );
+        }   // end for: wait
+        assertFalse( big.isOpen() );
+        assertEquals( 1, sent.getCount() );
+
+        NioServer.Connection conn = conns.poll( 5, TimeUnit.SECONDS );
+        FileChannel late = new FileInputStream( tmp ).getChannel();
+        try{
+            conn.sendFile( late, 0, 1 );
+            fail( "Should have thrown" );
+        } catch( ClosedChannelException exc ){ }
+        assertFalse( late.isOpen() );
+    }   // end testSendFileClosed
+
+
+
+    /**
+     * Test that the per-binding budgets fire their own property
+     * and leave the server-wide budgets alone.
+     */
+    public void testBindingBudgetProperties() throws Exception {
+        System.out.println("bindingBudgetProperties");
+
+        final List<PropertyChangeEvent> events = new ArrayList<PropertyChangeEvent>();
+        server.addPropertyChangeListener( new PropertyChangeListener(){
+            public void propertyChange( PropertyChangeEvent evt ){
+                events.add( evt );
+            }
+        });
+        int tcp = server.getTcpReadBudget();
+        int udp = server.getUdpReceiveBudget();
+
+        server.setTcpReadBudget( addr, 1000 );
+        assertEquals( 1, events.size() );
+        assertEquals( NioServer.TCP_READ_BUDGETS_PROP, events.get(0).getPropertyName() );
+        assertEquals( Collections.singletonMap( addr, 1000 ), events.get(0).getNewValue() );
+        assertEquals( 1000, server.getTcpReadBudget( addr ) );
+        assertEquals( tcp, server.getTcpReadBudget() );
+
+        server.setUdpReceiveBudget( addr, 8 );
+        assertEquals( 2, events.size() );
+        assertEquals( NioServer.UDP_RECEIVE_BUDGETS_PROP, events.get(1).getPropertyName() );
+        assertEquals( 8, server.getUdpReceiveBudget( addr ) );
+        assertEquals( udp, server.getUdpReceiveBudget() );
+
+        server.setTcpReadBudget( addr, 0 );
+        assertEquals( 3, events.size() );
+        assertTrue( server.getTcpReadBudgets().isEmpty() );
+        assertEquals( tcp, server.getTcpReadBudget( addr ) );
+
+        server.setTcpReadBudget( 2000 );
+        assertEquals( NioServer.TCP_READ_BUDGET_PROP, events.get(3).getPropertyName() );
+    }   // end testBindingBudgetProperties
+
+
+
+    /**
+     * Test that a multicast datagram is received once when UDP ports
+     * are shared with the I/O loops, and that the multicast binding
+     * keeps its one channel, so everything arrives on one thread.
+     */
+    public void testMulticastReusePort() throws Exception {
+        System.out.println("multicastReusePort");
+
+        NetworkInterface ni = null;
+        for( NetworkInterface n : Collections.list( NetworkInterface.getNetworkInterfaces() ) ){
+            if( ni == null && n.isUp() && n.supportsMulticast() && !n.isLoopback() ){
+                ni = n;                                             // Where the server joins, for a wildcard binding
+            }
+        }   // end for: each interface
+        if( ni == null ){
+            System.out.println("No multicast interface, skipping");
+            return;
+        }   // end if: can't test
+
+        DatagramSocket ds = new DatagramSocket( 0 );
+        int port = ds.getLocalPort();
+        ds.close();
+        final BlockingQueue<String> received = new LinkedBlockingQueue<String>();
+        server.setIoLoopCount( 3 );
+        server.setUdpReusePort( true );
+        server.addUdpBinding( new InetSocketAddress( port ), "239.1.2.3" );
+        server.addNioServerListener( new NioServer.Adapter(){
+            public void udpDataReceived( NioServer.Event evt ){
+                received.add( Thread.currentThread().getName() );
+            }
+        });
+        start();
+        Thread.sleep( 200 );                                        // Let it join
+
+        MulticastSocket ms = new MulticastSocket();
+        ms.setNetworkInterface( ni );
+        ms.send( new DatagramPacket( new byte[4], 4, InetAddress.getByName( "239.1.2.3" ), port ) );
+        ms.close();
+        String thread = received.poll( 5, TimeUnit.SECONDS );
+        assertNotNull( thread );
+        Thread.sleep( 500 );                                        // Any copies would be here by now
+        assertEquals( 0, received.size() );
+
+        for( int i = 0; i < 50; i++ ){                              // Shared ports spread these by source
+            ds = new DatagramSocket();
+            ds.send( new DatagramPacket( new byte[4], 4, InetAddress.getByName( "127.0.0.1" ), port ) );
+            ds.close();
+        }   // end for: each source port
+        for( int i = 0; i < 50; i++ ){
+            assertEquals( thread, received.poll( 5, TimeUnit.SECONDS ) );
+        }   // end for: each datagram
+    }   // end testMulticastReusePort
+
+
+
+    /**
+     * Records the timeout and close events in the order they fire.
+     */
+    private BlockingQueue<String> recordTimeouts(){
+        final BlockingQueue<String> events = new LinkedBlockingQueue<String>();
+        server.addNioServerListener( new NioServer.Adapter(){
+            public void connectionTimedOut( NioServer.Event evt ){
+                events.add( String.valueOf( evt.getTimeout() ) );
+            }
+            public void connectionClosed( NioServer.Event evt ){
+                events.add( "closed" );
+            }
+        });
+        return events;
+    }
+
+
+    /**
+     * Test that a connection with no traffic times out as idle, the
+     * timeout event coming before the close event.
+     */
+    public void testIdleTimeout() throws Exception {
+        System.out.println("idleTimeout");
+
+        server.setIdleTimeout( 300 );
+        server.addTcpBinding( addr );
+        BlockingQueue<String> events = recordTimeouts();
+        start();
+
+        long start = System.currentTimeMillis();
+        Socket s = connect( addr );
+        assertEquals( "IDLE", events.poll( 5, TimeUnit.SECONDS ) );
+        assertEquals( "closed", events.poll( 5, TimeUnit.SECONDS ) );
+        assertTrue( System.currentTimeMillis() - start >= 300 );
+        s.setSoTimeout( 5000 );
+        assertEquals( -1, s.getInputStream().read() );
+        s.close();
+    }   // end testIdleTimeout
+
+
+    /**
+     * Test that a connection that keeps being written to still times
+     * out when nothing arrives from it.
+     */
+    public void testReadTimeout() throws Exception {
+        System.out.println("readTimeout");
+
+        final byte[] chunk = new byte[ 100 ];
+        server.setReadTimeout( 500 );
+        server.addTcpBinding( addr );
+        server.addNioServerListener( new NioServer.Adapter(){
+            public void tcpReadyToWrite( NioServer.Event evt ){
+                try{
+                    Thread.sleep( 20 );                             // A trickle
+                } catch( InterruptedException exc ){ }
+                evt.getOutputBuffer().clear();
+                evt.getOutputBuffer().put( chunk ).flip();
+            }
+        });
+        BlockingQueue<String> events = recordTimeouts();
+        start();
+
+        Socket s = connect( addr );
+        s.getOutputStream().write( 1 );                             // Counts as read
+        assertNull( events.poll( 300, TimeUnit.MILLISECONDS ) );
+        assertEquals( "READ", events.poll( 5, TimeUnit.SECONDS ) );
+        assertEquals( "closed", events.poll( 5, TimeUnit.SECONDS ) );
+        s.close();
+    }   // end testReadTimeout
+
+
+    /**
+     * Test that a connection times out when what is queued for it
+     * cannot be sent, as with a client that has stopped reading.
+     */
+    public void testWriteTimeout() throws Exception {
+        System.out.println("writeTimeout");
+
+        server.setWriteTimeout( 300 );
+        server.addTcpBinding( addr );
+        server.addNioServerListener( new NioServer.Adapter(){
+            public void tcpDataReceived( NioServer.Event evt ){
+                evt.getInputChain().skip( evt.getInputChain().remaining() );
+                try{
+                    evt.getConnection().write( ByteBuffer.allocate( 32 << 20 ) );  // More than the socket buffers hold
+                } catch( IOException exc ){
+                    fail( exc.toString() );
+                }
+            }
+        });
+        BlockingQueue<String> events = recordTimeouts();
+        start();
+
+        Socket s = connect( addr );
+        s.getOutputStream().write( 1 );                             // Never reads the reply
+        assertEquals( "WRITE", events.poll( 5, TimeUnit.SECONDS ) );
+        assertEquals( "closed", events.poll( 5, TimeUnit.SECONDS ) );
+        s.close();
+    }   // end testWriteTimeout
+
+
+    /**
+     * Test that data queued on a connection during a busy pass of its
+     * loop is not timed out before the loop has tried to send it, however
+     * long ago the connection last wrote.
+     */
+    public void testWriteTimeoutBusyLoop() throws Exception {
+        System.out.println("writeTimeoutBusyLoop");
+
+        final BlockingQueue<NioServer.Connection> conns = new LinkedBlockingQueue<NioServer.Connection>();
+        final int[] passes = new int[1];
+        server.setWriteTimeout( 200 );
+        server.addTcpBinding( addr );
+        server.addNioServerListener( new NioServer.Adapter(){
+            public void newConnectionReceived( NioServer.Event evt ){
+                if( !conns.isEmpty() ){                             // The second keeps the loop busy
+                    evt.getConnection().setNotifyOnWritable( true );
+                }
+                conns.add( evt.getConnection() );
+            }
+            public void tcpReadyToWrite( NioServer.Event evt ){
+                try{
+                    Thread.sleep( 250 );                            // Longer than the write timeout
+                    if( passes[0]++ % 2 == 0 ){                     // Every other pass, so it was sent long ago
+                        conns.peek().write( ByteBuffer.allocate( 1 ) );     // Reply on the quiet one
+                    }
+                } catch( Exception exc ){
+                    fail( exc.toString() );
+                }
+                evt.getOutputBuffer().clear();
+                evt.getOutputBuffer().put( (byte)0 ).flip();
+            }
+        });
+        BlockingQueue<String> events = recordTimeouts();
+        start();
+
+        Socket quiet = connect( addr );
+        Thread.sleep( 300 );
+        Socket busy = connect( addr );
+        quiet.setSoTimeout( 5000 );
+        busy.setSoTimeout( 5000 );
+        for( int i = 0; i < 4; i++ ){
+            assertEquals( 0, quiet.getInputStream().read() );
+        }   // end for: each reply
+        assertTrue( events.toString(), events.isEmpty() );
+        quiet.close();
+        busy.close();
+    }   // end testWriteTimeoutBusyLoop
+
+
+
+    /**
+     * Test that the object set as a connection's context is there
+     * for each later event on the same connection, and not on others.
+     */
+    public void testContext() throws Exception {
+        System.out.println("context");
+
+        final BlockingQueue<Object> contexts = new LinkedBlockingQueue<Object>();
+        server.addTcpBinding( addr );
+        server.addNioServerListener( new NioServer.Adapter(){
+            public void newConnectionReceived( NioServer.Event evt ){
+                evt.getConnection().setContext( new StringBuilder() );
+            }
+            public void tcpDataReceived( NioServer.Event evt ){
+                StringBuilder sb = (StringBuilder)evt.getConnection().getContext();
+                while( evt.getInputChain().hasRemaining() ){
+                    sb.append( (char)evt.getInputChain().get() );
+                }
+                contexts.add( sb.toString() );
+            }
+            public void connectionClosed( NioServer.Event evt ){
+                contexts.add( evt.getConnection().getContext().toString() );
+            }
+        });
+        start();
+
+        Socket a = connect( addr );
+        Socket b = connect( addr );
+        a.getOutputStream().write( 'a' );
+        assertEquals( "a", contexts.poll( 5, TimeUnit.SECONDS ) );
+        b.getOutputStream().write( 'x' );
+        assertEquals( "x", contexts.poll( 5, TimeUnit.SECONDS ) );
+        a.getOutputStream().write( 'b' );
+        assertEquals( "ab", contexts.poll( 5, TimeUnit.SECONDS ) );
+        a.close();
+        assertEquals( "ab", contexts.poll( 5, TimeUnit.SECONDS ) );
+        b.close();
+        assertEquals( "x", contexts.poll( 5, TimeUnit.SECONDS ) );
+    }   // end testContext
+
+
+    /**
+     * Test that a listener replacing a connection key's attachment
+     * closes that connection only, giving back its buffers.
+     */
+    public void testForeignAttachment() throws Exception {
+        System.out.println("foreignAttachment");
+
+        final NioServer.BufferPool pool = new NioServer.BufferPool();
+        final BlockingQueue<String> received = new LinkedBlockingQueue<String>();
+        server.setBufferPool( pool );
+        server.addTcpBinding( addr );
+        server.addNioServerListener( new NioServer.Adapter(){
+            public void tcpDataReceived( NioServer.Event evt ){
+                byte b = evt.getInputChain().get();
+                if( b == 'x' ){
+                    evt.getKey().attach( "mine" );                  // Not allowed
+                }
+                received.add( String.valueOf( (char)b ) );
+            }
+        });
+        start();
+
+        Socket good = connect( addr );
+        Socket bad = connect( addr );
+        bad.getOutputStream().write( 'y' );
+        assertEquals( "y", received.poll( 5, TimeUnit.SECONDS ) );
+        bad.getOutputStream().write( 'x' );
+        assertEquals( "x", received.poll( 5, TimeUnit.SECONDS ) );
+        bad.setSoTimeout( 5000 );
+        try{
+            assertEquals( -1, bad.getInputStream().read() );
+        } catch( SocketException exc ){ }                           // Or reset
+
+        good.getOutputStream().write( 'g' );                        // The loop carries on
+        assertEquals( "g", received.poll( 5, TimeUnit.SECONDS ) );
+        good.close();
+        for( int i = 0; i < 500 && pool.getInUseCount() > 0; i++ ){
+            Thread.sleep( 10 );
+        }   // end for: wait
+        assertEquals( 0, pool.getInUseCount() );
+    }   // end testForeignAttachment
+
+
+
+    /** Reads exactly the given number of bytes. */
+    private static byte[] readFully( Socket s, int n ) throws IOException {
+        byte[] data = new byte[ n ];
+        new DataInputStream( s.getInputStream() ).readFully( data );
+        return data;
+    }
+
+
+    /** Returns a buffer of the given size holding bytes 0, 1, 2... from the start value. */
+    private static ByteBuffer pattern( int start, int size ){
+        ByteBuffer buff = ByteBuffer.allocate( size );
+        for( int i = 0; i < size; i++ ){
+            buff.put( (byte)(start + i) );
+        }   // end for: each byte
+        buff.flip();
+        return buff;
+    }
+
+
+    /** Adds each connection to the queue as it arrives. */
+    private BlockingQueue<NioServer.Connection> recordConnections(){
+        final BlockingQueue<NioServer.Connection> conns = new LinkedBlockingQueue<NioServer.Connection>();
+        server.addNioServerListener( new NioServer.Adapter(){
+            public void newConnectionReceived( NioServer.Event evt ){
+                conns.add( evt.getConnection() );
+            }
+        });
+        return conns;
+    }
+
+
+    /**
+     * Test that data written from several threads at once arrives with
+     * each call's buffers together and each thread's calls in order.
+     */
+    public void testWriteFromThreads() throws Exception {
+        System.out.println("writeFromThreads");
+
+        server.addTcpBinding( addr );
+        BlockingQueue<NioServer.Connection> conns = recordConnections();
+        start();
+
+        Socket s = connect( addr );
+        final NioServer.Connection conn = conns.poll( 5, TimeUnit.SECONDS );
+        final int threads = 4;
+        final int calls = 2000;
+        Thread[] writers = new Thread[ threads ];
+        for( int t = 0; t < threads; t++ ){
+            final int id = t;
+            writers[t] = new Thread(){
+                public void run(){
+                    try{
+                        for( int i = 0; i < calls; i++ ){
+                            ByteBuffer head = ByteBuffer.allocate( 4 );
+                            head.put( (byte)id ).put( (byte)(i >> 8) ).put( (byte)i ).put( (byte)0 ).flip();
+                            ByteBuffer tail = ByteBuffer.allocate( 4 );
+                            tail.put( (byte)id ).put( (byte)(i >> 8) ).put( (byte)i ).put( (byte)1 ).flip();
+                            conn.write( head, tail );               // Kept together
+                        }   // end for: each call
+                    } catch( IOException exc ){
+                        exc.printStackTrace();
+                    }
+                }
+            };
+            writers[t].start();
+        }   // end for: each thread
+
+        s.setSoTimeout( 5000 );
+        DataInputStream in = new DataInputStream( s.getInputStream() );
+        int[] next = new int[ threads ];
+        for( int n = 0; n < threads * calls; n++ ){
+            byte[] msg = new byte[ 8 ];
+            in.readFully( msg );
+            int id = msg[0];
+            int seq = ((msg[1] & 0xFF) << 8) | (msg[2] & 0xFF);
+            assertEquals( next[id] & 0xFFFF, seq );
+            assertEquals( 0, msg[3] );
+            assertEquals( msg[0], msg[4] );                         // Tail straight after its head
+            assertEquals( msg[1], msg[5] );
+            assertEquals( msg[2], msg[6] );
+            assertEquals( 1, msg[7] );
+            next[id]++;
+        }   // end for: each message
+        for( Thread t : writers ){
+            t.join( 5000 );
+        }   // end for: each thread
+        assertEquals( 0, conn.getQueuedBytes() );
+        s.close();
+    }   // end testWriteFromThreads
+
+
+    /**
+     * Test that data a listener leaves in the output buffer goes out
+     * after what it queued during the event, and ahead of anything
+     * queued after the event.
+     */
+    public void testOutputBufferOrder() throws Exception {
+        System.out.println("outputBufferOrder");
+
+        final BlockingQueue<NioServer.Connection> conns = new LinkedBlockingQueue<NioServer.Connection>();
+        server.addTcpBinding( addr );
+        server.addNioServerListener( new NioServer.Adapter(){
+            public void tcpDataReceived( NioServer.Event evt ){
+                evt.getInputChain().skip( evt.getInputChain().remaining() );
+                try{
+                    evt.getConnection().write( ByteBuffer.wrap( new byte[]{ 'A' } ) );
+                } catch( IOException exc ){
+                    fail( exc.toString() );
+                }
+                ByteBuffer out = evt.getOutputBuffer();
+                out.clear();
+                while( out.hasRemaining() ){
+                    out.put( (byte)'B' );                           // As much as it holds
+                }
+                out.flip();
+                conns.add( evt.getConnection() );
+            }
+        });
+        start();
+
+        Socket s = connect( addr );
+        s.setSoTimeout( 5000 );
+        s.getOutputStream().write( 1 );
+        NioServer.Connection conn = conns.poll( 5, TimeUnit.SECONDS );
+        assertEquals( 'A', readFully( s, 1 )[0] );                  // The event has returned by now
+        conn.write( ByteBuffer.wrap( new byte[]{ 'C' } ) );
+        int size = server.getOutputBufferSize();
+        byte[] rest = readFully( s, size + 1 );
+        for( int i = 0; i < size; i++ ){
+            assertEquals( 'B', rest[i] );
+        }   // end for: each byte
+        assertEquals( 'C', rest[size] );
+        s.close();
+    }   // end testOutputBufferOrder
+
+
+    /**
+     * Test that one write of more buffers than a gathering write takes,
+     * and more data than the socket holds, all arrives in order.
+     */
+    public void testGatheringWrite() throws Exception {
+        System.out.println("gatheringWrite");
+
+        server.addTcpBinding( addr );
+        BlockingQueue<NioServer.Connection> conns = recordConnections();
+        start();
+
+        Socket s = connect( addr );
+        s.setSoTimeout( 5000 );
+        NioServer.Connection conn = conns.poll( 5, TimeUnit.SECONDS );
+        ByteBuffer[] buffers = new ByteBuffer[ 200 ];
+        int total = 0;
+        for( int i = 0; i < buffers.length; i++ ){
+            int size = 1 + (i * 7919) % 40000;                      // Assorted sizes
+            buffers[i] = pattern( total, size );
+            total += size;
+        }   // end for: each buffer
+        conn.write( buffers );
+
+        byte[] data = readFully( s, total );
+        for( int i = 0; i < total; i++ ){
+            assertEquals( (byte)i, data[i] );
+        }   // end for: each byte
+        for( ByteBuffer buff : buffers ){
+            assertFalse( buff.hasRemaining() );
+        }   // end for: each buffer
+        assertEquals( 0, conn.getQueuedBytes() );
+        s.close();
+    }   // end testGatheringWrite
+
+
+    /** Records each writability change as the connection's new state. */
+    private BlockingQueue<Boolean> recordWritability(){
+        final BlockingQueue<Boolean> changes = new LinkedBlockingQueue<Boolean>();
+        server.addNioServerListener( new NioServer.Adapter(){
+            public void writabilityChanged( NioServer.Event evt ){
+                changes.add( evt.getConnection().isWritable() );
+            }
+        });
+        return changes;
+    }
+
+
+    /**
+     * Test that the writability event fires once going over the high
+     * watermark and once draining to the low one.
+     */
+    public void testWriteWatermarks() throws Exception {
+        System.out.println("writeWatermarks");
+
+        server.setWriteWatermarks( 1000, 4000 );
+        server.addTcpBinding( addr );
+        BlockingQueue<NioServer.Connection> conns = recordConnections();
+        BlockingQueue<Boolean> changes = recordWritability();
+        start();
+
+        Socket s = connect( addr );
+        s.setSoTimeout( 5000 );
+        NioServer.Connection conn = conns.poll( 5, TimeUnit.SECONDS );
+        int size = 32 << 20;                                        // More than the socket buffers hold
+        conn.write( ByteBuffer.allocate( size ) );
+        assertFalse( conn.isWritable() );
+        assertEquals( Boolean.FALSE, changes.poll( 5, TimeUnit.SECONDS ) );
+
+        readFully( s, size );
+        assertEquals( Boolean.TRUE, changes.poll( 5, TimeUnit.SECONDS ) );
+        assertTrue( conn.isWritable() );
+        Thread.sleep( 200 );
+        assertTrue( changes.isEmpty() );                            // Once each way
+        s.close();
+    }   // end testWriteWatermarks
+
+
+    /**
+     * Test that changing the watermarks fires the writability event for
+     * connections already on the other side of them.
+     */
+    public void testChangeWriteWatermarks() throws Exception {
+        System.out.println("changeWriteWatermarks");
+
+        int size = 32 << 20;                                        // More than the socket buffers hold
+        server.setWriteWatermarks( 1000, 2 * size );
+        server.addTcpBinding( addr );
+        BlockingQueue<NioServer.Connection> conns = recordConnections();
+        BlockingQueue<Boolean> changes = recordWritability();
+        start();
+
+        Socket s = connect( addr );
+        s.setSoTimeout( 5000 );
+        NioServer.Connection conn = conns.poll( 5, TimeUnit.SECONDS );
+        conn.write( ByteBuffer.allocate( size ) );
+        assertTrue( conn.isWritable() );
+        assertNull( changes.poll( 200, TimeUnit.MILLISECONDS ) );
+
+        server.setWriteWatermarks( 1000, 4000 );                    // Now over the high one
+        assertEquals( Boolean.FALSE, changes.poll( 5, TimeUnit.SECONDS ) );
+
+        server.setWriteWatermarks( 2 * size, 2 * size );            // Now under the low one
+        assertEquals( Boolean.TRUE, changes.poll( 5, TimeUnit.SECONDS ) );
+        readFully( s, size );
+        assertNull( changes.poll( 200, TimeUnit.MILLISECONDS ) );
+        s.close();
+    }   // end testChangeWriteWatermarks
+
+
+
+    /**
+     * Connects the given number of clients one at a time and returns,
+     * in order, the thread each connection's first event fired on.
+     * Every event on a connection is checked to fire on that thread.
+     */
+    private List<String> connectAndRecordThreads( int count, List<Socket> sockets ) throws Exception {
+        final BlockingQueue<String> accepted = new LinkedBlockingQueue<String>();
+        final BlockingQueue<String> events = new LinkedBlockingQueue<String>();
+        server.addNioServerListener( new NioServer.Adapter(){
+            public void newConnectionReceived( NioServer.Event evt ){
+                evt.getConnection().setContext( Thread.currentThread().getName() );
+                accepted.add( Thread.currentThread().getName() );
+            }
+            public void tcpDataReceived( NioServer.Event evt ){
+                evt.getInputChain().skip( evt.getInputChain().remaining() );
+                events.add( evt.getConnection().getContext() + "=" + Thread.currentThread().getName() );
+                evt.getOutputBuffer().clear();
+                evt.getOutputBuffer().put( (byte)1 ).flip();
+            }
+        });
+
+        List<String> threads = new ArrayList<String>();
+        for( int i = 0; i < count; i++ ){
+            sockets.add( connect( addr ) );
+            threads.add( accepted.poll( 5, TimeUnit.SECONDS ) );
+        }   // end for: each client
+        for( int round = 0; round < 3; round++ ){
+            for( Socket s : sockets ){
+                s.getOutputStream().write( 1 );
+                s.setSoTimeout( 5000 );
+                assertEquals( 1, s.getInputStream().read() );
+            }   // end for: each client
+        }   // end for: each round
+        String evt = null;
+        while( (evt = events.poll()) != null ){
+            String[] pair = evt.split( "=" );
+            assertEquals( pair[0], pair[1] );                       // Same thread as it started on
+        }   // end while: each event
+        return threads;
+    }
+
+
+    /**
+     * Test that round robin hands connections to each
+     * extra I/O loop in turn, never the server thread.
+     */
+    public void testIoLoopsRoundRobin() throws Exception {
+        System.out.println("ioLoopsRoundRobin");
+
+        server.setIoLoopCount( 3 );
+        server.setBalance( NioServer.Balance.ROUND_ROBIN );
+        server.addTcpBinding( addr );
+        start();
+
+        List<Socket> sockets = new ArrayList<Socket>();
+        List<String> threads = connectAndRecordThreads( 6, sockets );
+        assertEquals( 3, new HashSet<String>( threads ).size() );
+        for( int i = 0; i < 3; i++ ){
+            assertTrue( threads.get(i), threads.get(i).startsWith( "NioServer-io-" ) );
+            assertEquals( threads.get(i), threads.get(i + 3) );    // In turn
+        }   // end for: each loop
+        for( Socket s : sockets ){
+            s.close();
+        }   // end for: each client
+    }   // end testIoLoopsRoundRobin
+
+
+    /**
+     * Test that the least connections policy fills the loops evenly
+     * and hands new connections to the loop that has lost some.
+     */
+    public void testIoLoopsLeastConnections() throws Exception {
+        System.out.println("ioLoopsLeastConnections");
+
+        final CountDownLatch closed = new CountDownLatch( 2 );
+        server.setIoLoopCount( 3 );
+        server.setBalance( NioServer.Balance.LEAST_CONNECTIONS );
+        server.addTcpBinding( addr );
+        server.addNioServerListener( new NioServer.Adapter(){
+            public void connectionClosed( NioServer.Event evt ){
+                closed.countDown();
+            }
+        });
+        start();
+
+        List<Socket> sockets = new ArrayList<Socket>();
+        List<String> threads = connectAndRecordThreads( 6, sockets );
+        Map<String,Integer> counts = new HashMap<String,Integer>();
+        for( String t : threads ){
+            counts.put( t, counts.containsKey(t) ? counts.get(t) + 1 : 1 );
+        }   // end for: each connection
+        assertEquals( 3, counts.size() );
+        for( int n : counts.values() ){
+            assertEquals( 2, n );
+        }   // end for: each loop
+
+        String emptied = threads.get(0);                            // Close both of one loop's connections
+        for( int i = threads.size() - 1; i >= 0; i-- ){
+            if( threads.get(i).equals( emptied ) ){
+                sockets.remove(i).close();
+            }
+        }   // end for: each connection
+        await( closed );
+        Thread.sleep( 200 );                                        // Let the loop count them
+
+        List<String> more = connectAndRecordThreads( 2, sockets );
+        assertEquals( emptied, more.get(0) );
+        assertEquals( emptied, more.get(1) );
+        for( Socket s : sockets ){
+            s.close();
+        }   // end for: each client
+    }   // end testIoLoopsLeastConnections
+
+
+
+    /** Finds a UDP port that nothing is bound to. */
+    private static int freeUdpPort() throws IOException {
+        DatagramSocket ds = new DatagramSocket( 0 );
+        int port = ds.getLocalPort();
+        ds.close();
+        return port;
+    }
+
+
+    /**
+     * Test that sends from several threads at once from the same address,
+     * not yet bound, all go out from one channel on that address.
+     */
+    public void testSendUdpConcurrently() throws Exception {
+        System.out.println("sendUdpConcurrently");
+
+        start();
+        final DatagramSocket dest = new DatagramSocket( 0, InetAddress.getByName( "127.0.0.1" ) );
+        dest.setSoTimeout( 5000 );
+        final int threads = 8;
+        for( int round = 0; round < 5; round++ ){
+            final InetSocketAddress from = new InetSocketAddress( "127.0.0.1", freeUdpPort() );
+            final CountDownLatch go = new CountDownLatch( 1 );
+            final BlockingQueue<Object> results = new LinkedBlockingQueue<Object>();
+            for( int t = 0; t < threads; t++ ){
+                new Thread(){
+                    public void run(){
+                        try{
+                            go.await();
+                            results.add( server.sendUdp( from, dest.getLocalSocketAddress(), ByteBuffer.wrap( new byte[]{ 1 } ) ) );
+                        } catch( Exception exc ){
+                            results.add( exc );
+                        }
+                    }
+                }.start();
+            }   // end for: each thread
+            go.countDown();
+            for( int t = 0; t < threads; t++ ){
+                Object result = results.poll( 5, TimeUnit.SECONDS );
+                assertEquals( from, result );                       // Not an exception
+                DatagramPacket p = new DatagramPacket( new byte[ 10 ], 10 );
+                dest.receive( p );
+                assertEquals( from, p.getSocketAddress() );
+            }   // end for: each thread
+            for( int i = 0; i < 500 && !server.getUdpBindings().containsKey( from ); i++ ){
+                Thread.sleep( 10 );
+            }   // end for: wait
+            assertTrue( server.getUdpBindings().containsKey( from ) );  // Listening for replies
+        }   // end for: each round
+        dest.close();
+    }   // end testSendUdpConcurrently
+
+
+    /**
+     * Test that TCP and UDP bindings added to and removed from a running
+     * server open and close their ports.
+     */
+    public void testChangeBindingsWhileRunning() throws Exception {
+        System.out.println("changeBindingsWhileRunning");
+
+        final BlockingQueue<Integer> datagrams = new LinkedBlockingQueue<Integer>();
+        server.addNioServerListener( new NioServer.Adapter(){
+            public void udpDataReceived( NioServer.Event evt ){
+                datagrams.add( evt.getInputBuffer().remaining() );
+            }
+        });
+        start();
+
+        server.addTcpBinding( addr );
+        Socket s = null;
+        for( int i = 0; i < 500 && s == null; i++ ){
+            try{
+                s = connect( addr );
+            } catch( ConnectException exc ){
+                Thread.sleep( 10 );
+            }
+        }   // end for: wait for it to open
+        assertNotNull( s );
+        s.close();
+
+        server.removeTcpBinding( addr );
+        boolean refused = false;
+        for( int i = 0; i < 500 && !refused; i++ ){
+            try{
+                connect( addr ).close();
+                Thread.sleep( 10 );
+            } catch( ConnectException exc ){
+                refused = true;
+            }
+        }   // end for: wait for it to close
+        assertTrue( refused );
+
+        InetSocketAddress udp = new InetSocketAddress( "127.0.0.1", freeUdpPort() );
+        server.addUdpBinding( udp );
+        DatagramSocket ds = new DatagramSocket();
+        Integer size = null;
+        for( int i = 0; i < 50 && size == null; i++ ){              // Until it's bound
+            ds.send( new DatagramPacket( new byte[ 3 ], 3, udp ) );
+            size = datagrams.poll( 100, TimeUnit.MILLISECONDS );
+        }   // end for: wait for it to open
+        assertEquals( 3, (int)size );
+        ds.close();
+
+        server.removeUdpBinding( udp );
+        DatagramSocket taken = null;
+        for( int i = 0; i < 500 && taken == null; i++ ){
+            try{
+                taken = new DatagramSocket( udp );
+            } catch( BindException exc ){
+                Thread.sleep( 10 );
+            }
+        }   // end for: wait for it to close
+        assertNotNull( taken );
+        taken.close();
+    }   // end testChangeBindingsWhileRunning
+
+
+}